@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of activating and deactivating spans, which happens on the hot path of every traced request
+ * and every time a task is handed over to another thread.
+ * <p>
+ * The spans are started once and are shared by all benchmark threads,
+ * so that only the activation itself is measured.
+ * Each thread has its own activation stack, so there's no contention between the threads,
+ * the multi-threaded variants show the cost of looking up the activation stack of the current thread.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ActivationBenchmark extends AbstractBenchmark {
+
+    private ElasticApmTracer tracer;
+    private Transaction transaction;
+    private Span span;
+    private Runnable wrappedTask;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ActivationBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder().build();
+        transaction = tracer.startRootTransaction(null);
+        span = transaction.createSpan();
+        wrappedTask = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        span.end();
+        transaction.end();
+        tracer.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public AbstractSpan<?> activateDeactivate() {
+        transaction.activate();
+        AbstractSpan<?> active = tracer.getActive();
+        transaction.deactivate();
+        return active;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AbstractSpan<?> activateDeactivate8Threads() {
+        transaction.activate();
+        AbstractSpan<?> active = tracer.getActive();
+        transaction.deactivate();
+        return active;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Transaction activateNested() {
+        transaction.activate();
+        span.activate();
+        Transaction current = tracer.currentTransaction();
+        span.deactivate();
+        transaction.deactivate();
+        return current;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void runWrappedTask() {
+        // the wrapper is recycled after it has been run
+        span.withActive(wrappedTask).run();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void runWrappedTask8Threads() {
+        span.withActive(wrappedTask).run();
+    }
+}
@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stress tests the propagation of the active transaction to other threads.
+ * <p>
+ * {@link #propagateToThreadPool()} hands one million tasks over to a thread pool,
+ * each wrapped so that the transaction is active while the task is executed,
+ * which shows the churn of the wrapper objects.
+ * {@link #propagateToShortLivedThreads()} executes each task on a new thread,
+ * which shows the per-thread overhead of the tracer, like the state created for every thread which activates a span.
+ * The {@code gc.alloc.rate.norm} metric of the {@link org.openjdk.jmh.profile.GCProfiler} shows the allocations per task.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ContextPropagationStressBenchmark extends AbstractBenchmark {
+
+    private static final int TASKS = 1_000_000;
+    private static final int SHORT_LIVED_THREADS = 100_000;
+    /**
+     * Limits the number of threads which are alive at the same time
+     */
+    private static final int MAX_CONCURRENT_THREADS = 1_000;
+
+    private ElasticApmTracer tracer;
+    private ExecutorService executor;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ContextPropagationStressBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder().build();
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        tracer.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void propagateToThreadPool() throws InterruptedException {
+        Transaction transaction = tracer.startRootTransaction(null);
+        CountDownLatch latch = new CountDownLatch(TASKS);
+        Runnable task = new ActiveSpanTask(tracer, transaction, latch);
+        for (int i = 0; i < TASKS; i++) {
+            executor.execute(tracer.wrapRunnable(task, transaction));
+        }
+        latch.await();
+        transaction.end();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SHORT_LIVED_THREADS)
+    public void propagateToShortLivedThreads() throws InterruptedException {
+        Transaction transaction = tracer.startRootTransaction(null);
+        CountDownLatch latch = new CountDownLatch(SHORT_LIVED_THREADS);
+        Runnable task = new ActiveSpanTask(tracer, transaction, latch);
+        Thread[] threads = new Thread[MAX_CONCURRENT_THREADS];
+        for (int i = 0; i < SHORT_LIVED_THREADS; i += MAX_CONCURRENT_THREADS) {
+            for (int j = 0; j < MAX_CONCURRENT_THREADS; j++) {
+                threads[j] = new Thread(tracer.wrapRunnable(task, transaction));
+                threads[j].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        latch.await();
+        transaction.end();
+    }
+
+    private static class ActiveSpanTask implements Runnable {
+        private final ElasticApmTracer tracer;
+        private final Transaction transaction;
+        private final CountDownLatch latch;
+
+        private ActiveSpanTask(ElasticApmTracer tracer, Transaction transaction, CountDownLatch latch) {
+            this.tracer = tracer;
+            this.transaction = transaction;
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            if (tracer.getActive() != transaction) {
+                throw new IllegalStateException("The transaction has not been propagated");
+            }
+            latch.countDown();
+        }
+    }
+}
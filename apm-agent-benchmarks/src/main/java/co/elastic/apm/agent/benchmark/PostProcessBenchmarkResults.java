@@ -29,6 +29,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -36,17 +37,34 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.function.Predicate;
 
+/**
+ * Converts the JMH json result file into an Elasticsearch bulk file.
+ * <p>
+ * Usage: {@code PostProcessBenchmarkResults <jmh-result.json> <bulk-file> [<timestamp>] [<summary-file>]}
+ * </p>
+ * <p>
+ * If a summary file is given,
+ * a compact json object containing the score and the normalized allocation rate of each benchmark is written to it.
+ * The keys of that object include the benchmark parameters (see {@link #getBenchmarkId(String, JsonNode)}),
+ * which makes it easy to diff the summaries of two revisions in order to spot regressions.
+ * </p>
+ */
 public class PostProcessBenchmarkResults {
 
     private final ArrayNode jmhResultJson;
     private final String resultFilePath;
+    @Nullable
+    private final String summaryFilePath;
     private final long timestamp;
     private ObjectMapper objectMapper;
 
-    private PostProcessBenchmarkResults(String jmhResultJsonPath, String resultFilePath, long timestamp) throws IOException {
+    private PostProcessBenchmarkResults(String jmhResultJsonPath, String resultFilePath, long timestamp, @Nullable String summaryFilePath) throws IOException {
         this.resultFilePath = resultFilePath;
+        this.summaryFilePath = summaryFilePath;
         this.timestamp = timestamp;
         objectMapper = new ObjectMapper();
         jmhResultJson = (ArrayNode) objectMapper.readTree(new File(jmhResultJsonPath));
@@ -59,7 +77,7 @@ public class PostProcessBenchmarkResults {
         } else {
             timestamp = System.currentTimeMillis();
         }
-        new PostProcessBenchmarkResults(args[0], args[1], timestamp).process();
+        new PostProcessBenchmarkResults(args[0], args[1], timestamp, args.length > 3 ? args[3] : null).process();
     }
 
     private static String execCmd(String cmd) {
@@ -82,6 +100,7 @@ public class PostProcessBenchmarkResults {
             .put("executed_at", Instant.now().toString());
         for (JsonNode benchmark : jmhResultJson) {
             final String benchmarkName = benchmark.get("benchmark").textValue();
+            ((ObjectNode) benchmark).put("benchmark_id", getBenchmarkId(benchmarkName, benchmark));
             ((ObjectNode) benchmark).put("benchmark", benchmarkName.substring(benchmarkName.lastIndexOf('.') + 1));
             ((ObjectNode) benchmark).put("@timestamp", timestamp);
             ((ObjectNode) benchmark).set("meta", meta);
@@ -94,8 +113,63 @@ public class PostProcessBenchmarkResults {
                 removeFields((ObjectNode) secondaryMetric, fieldName -> fieldName.startsWith("raw"));
             }
         }
-        jmhResultJson.add(subtractBenchmarkResults(getBenchmarkByName("benchmarkWithApm"), getBenchmarkByName("benchmarkWithoutApm")));
+        final ObjectNode benchmarkWithApm = getBenchmarkByName("benchmarkWithApm");
+        final ObjectNode benchmarkWithoutApm = getBenchmarkByName("benchmarkWithoutApm");
+        if (benchmarkWithApm != null && benchmarkWithoutApm != null) {
+            jmhResultJson.add(subtractBenchmarkResults(benchmarkWithApm, benchmarkWithoutApm));
+        }
         writeBulkFile(this.resultFilePath);
+        if (summaryFilePath != null) {
+            writeSummaryFile(summaryFilePath);
+        }
+    }
+
+    /**
+     * Returns a stable identifier of a benchmark which includes the simple class name, the number of threads and the benchmark parameters,
+     * for example {@code DeflateBenchmark.deflate[threads=1,compressionLevel=1]}.
+     */
+    static String getBenchmarkId(String fullyQualifiedBenchmarkName, JsonNode benchmark) {
+        final int methodSeparator = fullyQualifiedBenchmarkName.lastIndexOf('.');
+        final StringBuilder id = new StringBuilder(fullyQualifiedBenchmarkName.substring(fullyQualifiedBenchmarkName.lastIndexOf('.', methodSeparator - 1) + 1))
+            .append("[threads=").append(benchmark.path("threads").asInt(1));
+        final JsonNode params = benchmark.get("params");
+        if (params != null) {
+            // sorting makes the id independent of the order in which JMH lists the parameters
+            final Map<String, String> sortedParams = new TreeMap<>();
+            for (Iterator<Map.Entry<String, JsonNode>> it = params.fields(); it.hasNext(); ) {
+                final Map.Entry<String, JsonNode> param = it.next();
+                sortedParams.put(param.getKey(), param.getValue().asText());
+            }
+            for (Map.Entry<String, String> param : sortedParams.entrySet()) {
+                id.append(',').append(param.getKey()).append('=').append(param.getValue());
+            }
+        }
+        return id.append(']').toString();
+    }
+
+    private void writeSummaryFile(String summaryFilePath) throws IOException {
+        final ObjectNode summary = objectMapper.createObjectNode();
+        summary.put("revision", execCmd("git rev-parse --short HEAD"));
+        summary.put("@timestamp", timestamp);
+        final ObjectNode benchmarks = summary.putObject("benchmarks");
+        for (JsonNode benchmark : jmhResultJson) {
+            final JsonNode benchmarkId = benchmark.get("benchmark_id");
+            if (benchmarkId == null) {
+                continue;
+            }
+            final JsonNode primaryMetric = benchmark.get("primaryMetric");
+            final ObjectNode benchmarkSummary = benchmarks.putObject(benchmarkId.textValue());
+            benchmarkSummary.put("mode", benchmark.path("mode").asText());
+            benchmarkSummary.set("score", primaryMetric.get("score"));
+            benchmarkSummary.set("score_error", primaryMetric.get("scoreError"));
+            benchmarkSummary.set("score_unit", primaryMetric.get("scoreUnit"));
+            final JsonNode allocRateNorm = benchmark.path("secondaryMetrics").get("gc.alloc.rate.norm");
+            if (allocRateNorm != null) {
+                benchmarkSummary.set("alloc_rate_norm", allocRateNorm.get("score"));
+                benchmarkSummary.set("alloc_rate_norm_unit", allocRateNorm.get("scoreUnit"));
+            }
+        }
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(new File(summaryFilePath), summary);
     }
 
 
@@ -128,6 +202,7 @@ public class PostProcessBenchmarkResults {
     private ObjectNode subtractBenchmarkResults(ObjectNode benchmark, ObjectNode benchmarkBaseline) {
         final ObjectNode result = benchmark.deepCopy();
         result.put("benchmark", result.get("benchmark").textValue() + ".delta");
+        result.put("benchmark_id", result.get("benchmark_id").textValue() + ".delta");
         subtract((ObjectNode) result.get("primaryMetric"), (ObjectNode) benchmarkBaseline.get("primaryMetric"));
         subtract((ObjectNode) result.get("secondaryMetrics"), (ObjectNode) benchmarkBaseline.get("secondaryMetrics"));
         return result;
@@ -146,6 +221,7 @@ public class PostProcessBenchmarkResults {
         }
     }
 
+    @Nullable
     private ObjectNode getBenchmarkByName(String benchmarkName) {
         for (JsonNode benchmark : jmhResultJson) {
             if (benchmark.get("benchmark").textValue().equals(benchmarkName)) {
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.matcher;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.context.web.WebConfiguration;
+import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.matcher.WildcardMatcherSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares evaluating the default {@code sanitize_field_names} and {@code ignore_urls} matchers one after another
+ * with evaluating them as a compiled {@link WildcardMatcherSet}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WildcardMatcherBenchmark extends AbstractBenchmark {
+
+    private static final String[] HEADER_NAMES = {
+        "Host", "User-Agent", "Accept", "Accept-Language", "Accept-Encoding", "Connection", "Referer", "Authorization", "X-Request-Id"
+    };
+
+    private List<WildcardMatcher> sanitizeFieldNames;
+    private WildcardMatcherSet sanitizeFieldNamesSet;
+    private List<WildcardMatcher> ignoreUrls;
+    private WildcardMatcherSet ignoreUrlsSet;
+
+    public static void main(String[] args) throws RunnerException {
+        run(WildcardMatcherBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .addOptionProvider(new CoreConfiguration())
+            .addOptionProvider(new WebConfiguration())
+            .build();
+        sanitizeFieldNamesSet = WildcardMatcherSet.of(config.getConfig(CoreConfiguration.class).getSanitizeFieldNames());
+        // a plain list is evaluated one matcher after another
+        sanitizeFieldNames = new ArrayList<>(sanitizeFieldNamesSet);
+        ignoreUrlsSet = WildcardMatcherSet.of(config.getConfig(WebConfiguration.class).getIgnoreUrls());
+        ignoreUrls = new ArrayList<>(ignoreUrlsSet);
+    }
+
+    @Benchmark
+    public int sanitizeHeadersLinear() {
+        int sanitized = 0;
+        for (String headerName : HEADER_NAMES) {
+            if (WildcardMatcher.isAnyMatch(sanitizeFieldNames, headerName)) {
+                sanitized++;
+            }
+        }
+        return sanitized;
+    }
+
+    @Benchmark
+    public int sanitizeHeadersCompiled() {
+        int sanitized = 0;
+        for (String headerName : HEADER_NAMES) {
+            if (sanitizeFieldNamesSet.isAnyMatch(headerName)) {
+                sanitized++;
+            }
+        }
+        return sanitized;
+    }
+
+    @Benchmark
+    public WildcardMatcher ignoreUrlLinear() {
+        return WildcardMatcher.anyMatch(ignoreUrls, "/api/v1/products", "/42/reviews");
+    }
+
+    @Benchmark
+    public WildcardMatcher ignoreUrlCompiled() {
+        return ignoreUrlsSet.anyMatch("/api/v1/products", "/42/reviews");
+    }
+}
@@ -29,13 +29,17 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import co.elastic.apm.agent.objectpool.impl.ThreadLocalObjectPool;
 import org.agrona.concurrent.ManyToManyConcurrentArrayQueue;
 import org.jctools.queues.MpmcArrayQueue;
+import org.jctools.queues.MpscArrayQueue;
 import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Setup;
@@ -43,6 +47,7 @@ import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Threads;
 import org.openjdk.jmh.runner.RunnerException;
 
+import javax.annotation.Nullable;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -56,6 +61,13 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
     private ObjectPool<Transaction> threadLocalObjectPool;
     private ObjectPool<Transaction> jctoolsQueueObjectPool;
     private ObjectPool<Transaction> jctoolsAtomicQueueObjectPool;
+    private ObjectPool<Transaction> magazineObjectPool;
+    /**
+     * Hands the transactions from the creating threads over to the recycling thread,
+     * like the reporter thread recycles spans which have ended on application threads
+     */
+    private MpscArrayQueue<Transaction> jctoolsHandOff;
+    private MpscArrayQueue<Transaction> magazineHandOff;
 
     public static void main(String[] args) throws RunnerException {
         run(ObjectPoolBenchmark.class);
@@ -69,6 +81,9 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         jctoolsAtomicQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), true, () -> new Transaction(tracer));
         agronaQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new ManyToManyConcurrentArrayQueue<>(256), true, () -> new Transaction(tracer));
         threadLocalObjectPool = new ThreadLocalObjectPool<>(64, true, () -> new Transaction(tracer));
+        magazineObjectPool = new ObjectPoolFactory().createTransactionPool(256, tracer);
+        jctoolsHandOff = new MpscArrayQueue<>(4096);
+        magazineHandOff = new MpscArrayQueue<>(4096);
     }
 
     @TearDown
@@ -122,4 +137,74 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         return transaction;
     }
 
+    @Benchmark
+    @Threads(8)
+    public Transaction testMagazineObjectPool() {
+        Transaction transaction = magazineObjectPool.createInstance();
+        magazineObjectPool.recycle(transaction);
+        return transaction;
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Transaction testJctoolsAtomicQueueObjectPoolHighContention() {
+        Transaction transaction = jctoolsAtomicQueueObjectPool.createInstance();
+        jctoolsAtomicQueueObjectPool.recycle(transaction);
+        return transaction;
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Transaction testMagazineObjectPoolHighContention() {
+        Transaction transaction = magazineObjectPool.createInstance();
+        magazineObjectPool.recycle(transaction);
+        return transaction;
+    }
+
+    @Benchmark
+    @Group("jctoolsCrossThread")
+    @GroupThreads(7)
+    public Transaction testJctoolsQueueObjectPoolCreate() {
+        return createAndHandOff(jctoolsQueueObjectPool, jctoolsHandOff);
+    }
+
+    @Benchmark
+    @Group("jctoolsCrossThread")
+    @GroupThreads(1)
+    public Transaction testJctoolsQueueObjectPoolRecycle() {
+        return recycleHandedOff(jctoolsQueueObjectPool, jctoolsHandOff);
+    }
+
+    @Benchmark
+    @Group("magazineCrossThread")
+    @GroupThreads(7)
+    public Transaction testMagazineObjectPoolCreate() {
+        return createAndHandOff(magazineObjectPool, magazineHandOff);
+    }
+
+    @Benchmark
+    @Group("magazineCrossThread")
+    @GroupThreads(1)
+    public Transaction testMagazineObjectPoolRecycle() {
+        return recycleHandedOff(magazineObjectPool, magazineHandOff);
+    }
+
+    private static Transaction createAndHandOff(ObjectPool<Transaction> pool, MpscArrayQueue<Transaction> handOff) {
+        Transaction transaction = pool.createInstance();
+        if (!handOff.offer(transaction)) {
+            // the recycling thread can't keep up, don't block the creating threads
+            pool.recycle(transaction);
+        }
+        return transaction;
+    }
+
+    @Nullable
+    private static Transaction recycleHandedOff(ObjectPool<Transaction> pool, MpscArrayQueue<Transaction> handOff) {
+        Transaction transaction = handOff.relaxedPoll();
+        if (transaction != null) {
+            pool.recycle(transaction);
+        }
+        return transaction;
+    }
+
 }
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractMockApmServerBenchmark;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Measures the deflate stage of the intake API handler, which compresses the serialized nd-json before sending it to the APM Server.
+ * <p>
+ * The agent uses a compression level of {@code 1}
+ * (see {@code co.elastic.apm.agent.report.AbstractIntakeApiHandler#GZIP_COMPRESSION_LEVEL}),
+ * the other levels are there to put the numbers into perspective.
+ * The payload is a realistic mix of transactions and spans, serialized once before the benchmark.
+ * </p>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class DeflateBenchmark extends AbstractMockApmServerBenchmark {
+
+    private static final int TRANSACTIONS = 100;
+    private static final int SPANS_PER_TRANSACTION = 10;
+
+    @Param({"1", "6"})
+    public int compressionLevel;
+
+    private Deflater deflater;
+    private byte[] payload;
+    private byte[] compressed;
+
+    public DeflateBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(DeflateBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        deflater = new Deflater(compressionLevel);
+        compressed = new byte[64 * 1024];
+        payload = createPayload();
+        System.out.println("Uncompressed payload size: " + payload.length);
+        System.out.println("Compressed payload size: " + deflate());
+    }
+
+    private byte[] createPayload() throws IOException {
+        DslJsonSerializer serializer = new DslJsonSerializer(tracer.getConfig(StacktraceConfiguration.class),
+            new ApmServerClient(tracer.getConfig(ReporterConfiguration.class)));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        serializer.setOutputStream(os);
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Transaction transaction = tracer.startRootTransaction(getClass().getClassLoader())
+                .withName("GET /api/products/" + (i % 10))
+                .withType("request")
+                .withResult("HTTP 2xx");
+            for (int j = 0; j < SPANS_PER_TRANSACTION; j++) {
+                Span span = transaction.createSpan()
+                    .withName("SELECT FROM products")
+                    .withType("db")
+                    .withSubtype("h2")
+                    .withAction("query");
+                span.getContext().getDb().withStatement("SELECT * FROM products WHERE id = " + j).withType("sql");
+                serializer.serializeSpanNdJson(span);
+                span.decrementReferences();
+            }
+            serializer.serializeTransactionNdJson(transaction);
+            transaction.decrementReferences();
+        }
+        serializer.flush();
+        return os.toByteArray();
+    }
+
+    @Benchmark
+    public int deflate() {
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        int compressedSize = 0;
+        while (!deflater.finished()) {
+            compressedSize += deflater.deflate(compressed);
+        }
+        return compressedSize;
+    }
+}
@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractMockApmServerBenchmark;
+import co.elastic.apm.agent.report.Reporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the contention of application threads publishing events to the reporter's ring buffer.
+ * <p>
+ * Each invocation ends an empty transaction which publishes it to the ring buffer of the
+ * {@link co.elastic.apm.agent.report.ApmServerReporter}.
+ * The reporter threads are not able to keep up with this rate so that a lot of events are dropped,
+ * which is the scenario where the publish path is under the most pressure.
+ * Compare the {@code reporter.dropped} and {@code reporter.reported} metrics of the
+ * {@link co.elastic.apm.agent.benchmark.profiler.ReporterProfiler}
+ * across the different thread counts.
+ * </p>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ReporterPublishBenchmark extends AbstractMockApmServerBenchmark {
+
+    public ReporterPublishBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(ReporterPublishBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        System.getProperties().put(Reporter.class.getName(), tracer.getReporter());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void publish1Thread() {
+        publish();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void publish8Threads() {
+        publish();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void publish64Threads() {
+        publish();
+    }
+
+    private void publish() {
+        tracer.startRootTransaction(null)
+            .withName("transaction")
+            .end();
+    }
+}
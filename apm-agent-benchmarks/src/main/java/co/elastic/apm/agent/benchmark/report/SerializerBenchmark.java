@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractMockApmServerBenchmark;
+import co.elastic.apm.agent.impl.context.Request;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency and allocations of serializing events to nd-json, which is what the reporter thread spends most of its time on.
+ * <p>
+ * The serialized bytes are discarded, the deflate stage is measured separately in {@link DeflateBenchmark}.
+ * Run with {@code -prof gc} and compare {@code gc.alloc.rate.norm} which should be close to zero for all benchmarks.
+ * </p>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class SerializerBenchmark extends AbstractMockApmServerBenchmark {
+
+    private DslJsonSerializer serializer;
+    private Transaction transaction;
+    private Span span;
+    private MetricRegistry metricRegistry;
+    private Labels.Immutable spanLabels;
+    private Labels.Immutable transactionLabels;
+
+    public SerializerBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(SerializerBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        serializer = new DslJsonSerializer(tracer.getConfig(StacktraceConfiguration.class),
+            new ApmServerClient(tracer.getConfig(ReporterConfiguration.class)));
+        serializer.setOutputStream(new BlackholeOutputStream(blackhole));
+        // the events are never ended so that they are not reported and can be serialized over and over again
+        transaction = createTransaction();
+        span = createSpan(transaction);
+        metricRegistry = new MetricRegistry(tracer.getConfig(ReporterConfiguration.class));
+        spanLabels = Labels.Mutable.of("span.type", "db").immutableCopy();
+        transactionLabels = Labels.Mutable.of("transaction.name", "GET /api/products").immutableCopy();
+    }
+
+    private Transaction createTransaction() {
+        Transaction transaction = tracer.startRootTransaction(getClass().getClassLoader())
+            .withName("GET /api/products")
+            .withType("request")
+            .withResult("HTTP 2xx");
+        Request request = transaction.getContext().getRequest();
+        request.withMethod("GET")
+            .withHttpVersion("1.1")
+            .addHeader("Accept", "application/json")
+            .addHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64)")
+            .getUrl()
+            .withProtocol("http")
+            .withHostname("localhost")
+            .withPort(8080)
+            .withPathname("/api/products")
+            .withSearch("q=foo");
+        transaction.getContext().getResponse().withStatusCode(200).withFinished(true);
+        transaction.addLabel("region", "eu-west-1");
+        return transaction;
+    }
+
+    private Span createSpan(Transaction transaction) {
+        Span span = transaction.createSpan()
+            .withName("SELECT FROM products")
+            .withType("db")
+            .withSubtype("h2")
+            .withAction("query");
+        span.getContext().getDb()
+            .withStatement("SELECT * FROM products WHERE id = ?")
+            .withType("sql")
+            .withUser("sa");
+        span.getContext().getDestination().withAddress("localhost").withPort(5432);
+        span.withStacktrace(new Throwable());
+        return span;
+    }
+
+    @Benchmark
+    public void serializeTransaction() throws IOException {
+        serializer.serializeTransactionNdJson(transaction);
+        serializer.flush();
+    }
+
+    @Benchmark
+    public void serializeSpan() throws IOException {
+        serializer.serializeSpanNdJson(span);
+        serializer.flush();
+    }
+
+    @Benchmark
+    public void serializeMetrics() throws IOException {
+        metricRegistry.updateTimer("span.self_time", spanLabels, 42);
+        metricRegistry.updateTimer("transaction.duration", transactionLabels, 4242);
+        metricRegistry.updateHistogram("transaction.duration.histogram", transactionLabels, 4242);
+        serializer.serializeMetrics(metricRegistry);
+        serializer.flush();
+    }
+
+    private static class BlackholeOutputStream extends OutputStream {
+
+        private final Blackhole blackhole;
+
+        private BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
@@ -36,6 +36,8 @@ import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.infra.Blackhole;
 import org.openjdk.jmh.runner.RunnerException;
 
+import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 @State(Scope.Thread)
@@ -43,8 +45,21 @@ import java.util.concurrent.TimeUnit;
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 public class SignatureParserBenchmark extends AbstractBenchmark {
 
+    /**
+     * The number of distinct prepared statements an application issues repeatedly
+     */
+    private static final int DISTINCT_QUERIES = 4096;
+    /**
+     * The share of prepared statements which are dynamically built and thus rarely repeated,
+     * like {@code IN} lists with a varying number of parameters
+     */
+    private static final double DYNAMIC_QUERY_RATIO = 0.2;
+    private static final int WORKLOAD_SIZE = 1 << 16;
+
     private SignatureParser signatureParser;
     private StringBuilder stringBuilder;
+    private String[] skewedWorkload;
+    private int workloadIndex;
 
     public static void main(String[] args) throws RunnerException {
         run(SignatureParserBenchmark.class);
@@ -54,6 +69,40 @@ public class SignatureParserBenchmark extends AbstractBenchmark {
     public void setUp() {
         stringBuilder = new StringBuilder();
         signatureParser = new SignatureParser();
+        skewedWorkload = createSkewedWorkload(new Random(42));
+    }
+
+    /**
+     * Creates a workload where the popularity of the queries follows a Zipf distribution,
+     * mixed with a long tail of queries that are hardly ever repeated.
+     */
+    private static String[] createSkewedWorkload(Random random) {
+        String[] queries = new String[DISTINCT_QUERIES];
+        double[] cumulativeWeights = new double[DISTINCT_QUERIES];
+        double totalWeight = 0;
+        for (int i = 0; i < DISTINCT_QUERIES; i++) {
+            queries[i] = "SELECT t.id, t.name, t.created_at, t.updated_at FROM table" + i + " t WHERE t.tenant_id = ? AND t.id = ?";
+            totalWeight += 1.0 / (i + 1);
+            cumulativeWeights[i] = totalWeight;
+        }
+        String[] workload = new String[WORKLOAD_SIZE];
+        for (int i = 0; i < WORKLOAD_SIZE; i++) {
+            if (random.nextDouble() < DYNAMIC_QUERY_RATIO) {
+                workload[i] = createDynamicQuery(random);
+            } else {
+                int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble() * totalWeight);
+                workload[i] = queries[index >= 0 ? index : -index - 1];
+            }
+        }
+        return workload;
+    }
+
+    private static String createDynamicQuery(Random random) {
+        StringBuilder query = new StringBuilder("SELECT t.id, t.name FROM table").append(random.nextInt(DISTINCT_QUERIES)).append(" t WHERE t.id IN (?");
+        for (int i = random.nextInt(64); i >= 0; i--) {
+            query.append(", ?");
+        }
+        return query.append(')').toString();
     }
 
     @Benchmark
@@ -70,6 +119,13 @@ public class SignatureParserBenchmark extends AbstractBenchmark {
         return stringBuilder;
     }
 
+    @Benchmark
+    public StringBuilder parseSkewedPreparedStatements() {
+        stringBuilder.setLength(0);
+        signatureParser.querySignature(skewedWorkload[workloadIndex++ & (WORKLOAD_SIZE - 1)], stringBuilder, true);
+        return stringBuilder;
+    }
+
     @Benchmark
     public void consumeCpu() {
         // to get a feel for the jitter of this machine (most notable in higher percentiles)
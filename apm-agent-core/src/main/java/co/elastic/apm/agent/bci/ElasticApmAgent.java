@@ -25,6 +25,8 @@
 package co.elastic.apm.agent.bci;
 
 import co.elastic.apm.agent.bci.bytebuddy.AnnotationValueOffsetMappingFactory;
+import co.elastic.apm.agent.bci.bytebuddy.ClassMatchIndex;
+import co.elastic.apm.agent.bci.bytebuddy.CombinedNamePreFilter;
 import co.elastic.apm.agent.bci.bytebuddy.ErrorLoggingListener;
 import co.elastic.apm.agent.bci.bytebuddy.FailSafeDeclaredMethodsCompiler;
 import co.elastic.apm.agent.bci.bytebuddy.MatcherTimer;
@@ -35,12 +37,15 @@ import co.elastic.apm.agent.bci.bytebuddy.SoftlyReferencingTypePoolCache;
 import co.elastic.apm.agent.bci.methodmatching.MethodMatcher;
 import co.elastic.apm.agent.bci.methodmatching.TraceMethodInstrumentation;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.StartupInfo;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
 import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
 import co.elastic.apm.agent.util.ExecutorUtils;
+import co.elastic.apm.agent.util.IOUtils;
 import co.elastic.apm.agent.util.ThreadUtils;
+import co.elastic.apm.agent.util.VersionUtils;
 import com.blogspot.mydailyjava.weaklockfree.WeakConcurrentMap;
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.agent.builder.AgentBuilder;
@@ -59,6 +64,7 @@ import net.bytebuddy.utility.JavaModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationOption;
+import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -68,6 +74,7 @@ import java.lang.instrument.Instrumentation;
 import java.lang.reflect.Constructor;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -99,6 +106,10 @@ public class ElasticApmAgent {
     // private static final Logger doNotUseThisLogger = LoggerFactory.getLogger(ElasticApmAgent.class);
 
     private static final ConcurrentMap<String, MatcherTimer> matcherTimers = new ConcurrentHashMap<>();
+    /**
+     * Options which typically change with every deployment but don't have an influence on the type matchers
+     */
+    private static final Collection<String> CLASS_MATCH_INDEX_IGNORED_OPTIONS = Arrays.asList("service_version", "service_node_name", "environment", "global_labels");
     @Nullable
     private static Instrumentation instrumentation;
     @Nullable
@@ -107,6 +118,10 @@ public class ElasticApmAgent {
     private static final WeakConcurrentMap<Class<?>, Set<Collection<Class<? extends ElasticApmInstrumentation>>>> dynamicallyInstrumentedClasses = new WeakConcurrentMap.WithInlinedExpunction<>();
     @Nullable
     private static File agentJarFile;
+    @Nullable
+    private static ClassMatchIndex classMatchIndex;
+    @Nullable
+    private static ClassMatchIndex.ClassFileHasher classFileHasher;
 
     /**
      * Called reflectively by {@link AgentMain} to initialize the agent
@@ -117,8 +132,18 @@ public class ElasticApmAgent {
     @SuppressWarnings("unused") // called through reflection
     public static void initialize(String agentArguments, Instrumentation instrumentation, File agentJarFile, boolean premain) {
         ElasticApmAgent.agentJarFile = agentJarFile;
+        long start = System.nanoTime();
         ElasticApmTracer tracer = new ElasticApmTracerBuilder(agentArguments).build();
-        initInstrumentation(tracer, instrumentation, loadInstrumentations(tracer), premain);
+        StartupInfo.recordPhase("tracer", start);
+        // the instrumentations are loaded and installed on the calling thread
+        // so that the transformer is registered before the application classes are loaded
+        start = System.nanoTime();
+        Iterable<ElasticApmInstrumentation> instrumentations = loadInstrumentations(tracer);
+        StartupInfo.recordPhase("load instrumentations", start);
+        start = System.nanoTime();
+        initInstrumentation(tracer, instrumentation, instrumentations, premain);
+        StartupInfo.recordPhase("install instrumentations", start);
+        StartupInfo.logTimeline();
     }
 
     public static void initInstrumentation(ElasticApmTracer tracer, Instrumentation instrumentation) {
@@ -147,6 +172,10 @@ public class ElasticApmAgent {
             public void run() {
                 tracer.stop();
                 matcherTimers.clear();
+                ClassMatchIndex index = classMatchIndex;
+                if (index != null) {
+                    index.save();
+                }
             }
         });
         matcherTimers.clear();
@@ -158,6 +187,11 @@ public class ElasticApmAgent {
         ElasticApmInstrumentation.staticInit(tracer);
         // POOL_ONLY because we don't want to cause eager linking on startup as the class path may not be complete yet
         AgentBuilder agentBuilder = initAgentBuilder(tracer, instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, premain);
+        if (classMatchIndex != null) {
+            // has to be registered before the agent's transformer so that the class file hash is known when matching
+            classFileHasher = new ClassMatchIndex.ClassFileHasher();
+            instrumentation.addTransformer(classFileHasher, true);
+        }
         resettableClassFileTransformer = agentBuilder.installOn(ElasticApmAgent.instrumentation);
         CoreConfiguration coreConfig = tracer.getConfig(CoreConfiguration.class);
         for (ConfigurationOption<?> instrumentationOption : coreConfig.getInstrumentationOptions()) {
@@ -205,17 +239,67 @@ public class ElasticApmAgent {
             .with(TypeValidation.of(logger.isDebugEnabled()))
             .with(FailSafeDeclaredMethodsCompiler.INSTANCE);
         AgentBuilder agentBuilder = getAgentBuilder(byteBuddy, coreConfiguration, logger, descriptionStrategy, premain);
-        int numberOfAdvices = 0;
+        List<ElasticApmInstrumentation> includedInstrumentations = new ArrayList<>();
         for (final ElasticApmInstrumentation advice : instrumentations) {
             if (isIncluded(advice, coreConfiguration)) {
-                numberOfAdvices++;
-                agentBuilder = applyAdvice(tracer, agentBuilder, advice, new ElementMatcher.Junction.Conjunction<>(advice.getTypeMatcher(), not(isInterface())));
+                includedInstrumentations.add(advice);
             }
         }
-        logger.debug("Applied {} advices", numberOfAdvices);
+        ClassMatchIndex classMatchIndex = initClassMatchIndex(tracer, includedInstrumentations, logger);
+        List<ElementMatcher<? super NamedElement>> preFilters = new ArrayList<>(includedInstrumentations.size());
+        for (ElasticApmInstrumentation advice : includedInstrumentations) {
+            preFilters.add(advice.getTypeMatcherPreFilter());
+        }
+        CombinedNamePreFilter namePreFilter = CombinedNamePreFilter.of(preFilters);
+        for (int i = 0; i < includedInstrumentations.size(); i++) {
+            ElasticApmInstrumentation advice = includedInstrumentations.get(i);
+            agentBuilder = applyAdvice(tracer, agentBuilder, advice, new ElementMatcher.Junction.Conjunction<>(advice.getTypeMatcher(), not(isInterface())),
+                classMatchIndex, namePreFilter, i);
+        }
+        logger.debug("Applied {} advices", includedInstrumentations.size());
         return agentBuilder;
     }
 
+    @Nullable
+    private static ClassMatchIndex initClassMatchIndex(ElasticApmTracer tracer, List<ElasticApmInstrumentation> instrumentations, Logger logger) {
+        if (classMatchIndex != null) {
+            // the instrumentations are re-initialized, which may change the position of the instrumentations
+            classMatchIndex.save();
+            classMatchIndex = null;
+        }
+        CoreConfiguration coreConfiguration = tracer.getConfig(CoreConfiguration.class);
+        if (!coreConfiguration.isClassMatchIndex()) {
+            return null;
+        }
+        File directory;
+        if (coreConfiguration.getClassMatchIndexDirectory() != null) {
+            directory = new File(coreConfiguration.getClassMatchIndexDirectory());
+        } else {
+            try {
+                directory = IOUtils.createPrivateTempDirectory("elastic-apm-class-match-index", coreConfiguration.getServiceName());
+            } catch (IOException e) {
+                logger.warn("Can't use the default class match index directory, the class match index is disabled: {}", e.getMessage());
+                return null;
+            }
+        }
+        StringBuilder key = new StringBuilder().append(VersionUtils.getAgentVersion());
+        for (ElasticApmInstrumentation instrumentation : instrumentations) {
+            key.append('\n').append(instrumentation.getClass().getName());
+        }
+        // the type matchers of some instrumentations depend on the configuration, for example trace_methods
+        ConfigurationRegistry configurationRegistry = tracer.getConfigurationRegistry();
+        List<String> optionKeys = new ArrayList<>(configurationRegistry.getConfigurationOptionsByKey().keySet());
+        Collections.sort(optionKeys);
+        for (String optionKey : optionKeys) {
+            ConfigurationOption<?> option = configurationRegistry.getConfigurationOptionByKey(optionKey);
+            if (!option.isDynamic() && !option.isDefault() && !CLASS_MATCH_INDEX_IGNORED_OPTIONS.contains(optionKey)) {
+                key.append('\n').append(optionKey).append('=').append(option.getValueAsString());
+            }
+        }
+        classMatchIndex = ClassMatchIndex.load(directory, key.toString(), instrumentations.size());
+        return classMatchIndex;
+    }
+
     private static boolean isIncluded(ElasticApmInstrumentation advice, CoreConfiguration coreConfiguration) {
         ArrayList<String> disabledInstrumentations = new ArrayList<>(coreConfiguration.getDisabledInstrumentations());
         // Supporting the deprecated `incubating` tag for backward compatibility
@@ -239,7 +323,9 @@ public class ElasticApmAgent {
     }
 
     private static AgentBuilder applyAdvice(final ElasticApmTracer tracer, final AgentBuilder agentBuilder,
-                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super TypeDescription> typeMatcher) {
+                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super TypeDescription> typeMatcher,
+                                            @Nullable final ClassMatchIndex classMatchIndex, @Nullable final CombinedNamePreFilter namePreFilter,
+                                            final int instrumentationIndex) {
         final Logger logger = LoggerFactory.getLogger(ElasticApmAgent.class);
         logger.debug("Applying instrumentation {}", instrumentation.getClass().getName());
         final boolean classLoadingMatchingPreFilter = tracer.getConfig(CoreConfiguration.class).isClassLoadingMatchingPreFilter();
@@ -257,12 +343,24 @@ public class ElasticApmAgent {
                         if (classLoadingMatchingPreFilter && !classLoaderMatcher.matches(classLoader)) {
                             return false;
                         }
-                        if (typeMatchingWithNamePreFilter && !typeMatcherPreFilter.matches(typeDescription)) {
+                        if (typeMatchingWithNamePreFilter) {
+                            // the combined pre-filter scans the name once for all instrumentations
+                            boolean preFilterMatches = namePreFilter != null
+                                ? namePreFilter.matches(typeDescription, instrumentationIndex)
+                                : typeMatcherPreFilter.matches(typeDescription);
+                            if (!preFilterMatches) {
+                                return false;
+                            }
+                        }
+                        if (classMatchIndex != null && classMatchIndex.isKnownMismatch(typeDescription, instrumentationIndex)) {
                             return false;
                         }
                         boolean typeMatches;
                         try {
                             typeMatches = typeMatcher.matches(typeDescription) && versionPostFilter.matches(protectionDomain);
+                            if (classMatchIndex != null) {
+                                classMatchIndex.record(typeDescription, instrumentationIndex, typeMatches);
+                            }
                         } catch (Exception ignored) {
                             // could be because of a missing type
                             typeMatches = false;
@@ -393,6 +491,11 @@ public class ElasticApmAgent {
             transformer.reset(instrumentation, RedefinitionStrategy.RETRANSFORMATION);
         }
         dynamicClassFileTransformers.clear();
+        if (classFileHasher != null) {
+            instrumentation.removeTransformer(classFileHasher);
+            classFileHasher = null;
+        }
+        classMatchIndex = null;
         instrumentation = null;
     }
 
@@ -536,7 +639,7 @@ public class ElasticApmAgent {
                         ElasticApmInstrumentation apmInstrumentation = instantiate(instrumentationClass);
                         ElementMatcher.Junction<? super TypeDescription> typeMatcher = getTypeMatcher(classToInstrument, apmInstrumentation.getMethodMatcher(), none());
                         if (typeMatcher != null && isIncluded(apmInstrumentation, config)) {
-                            agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, typeMatcher.and(apmInstrumentation.getTypeMatcher()));
+                            agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, typeMatcher.and(apmInstrumentation.getTypeMatcher()), null, null, -1);
                         }
                     }
                     dynamicClassFileTransformers.add(agentBuilder.installOn(instrumentation));
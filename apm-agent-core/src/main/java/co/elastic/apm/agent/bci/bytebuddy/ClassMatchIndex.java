@@ -0,0 +1,378 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import co.elastic.apm.agent.util.IOUtils;
+import net.bytebuddy.description.type.TypeDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent index of the type matching results of the instrumentations,
+ * which allows to skip the type matching for known combinations of a class and an instrumentation on subsequent starts.
+ * <p>
+ * The index records, per class name and class file hash, which instrumentations have been evaluated and which of them matched.
+ * Only the result of the full type matcher is recorded, as the cheap pre-filters don't need to be skipped
+ * and as the class loader pre-filter depends on the class loader rather than on the class.
+ * When a class has been rejected by an instrumentation and the class file is unchanged,
+ * {@link #isKnownMismatch(TypeDescription, int)} returns {@code true}.
+ * Matches are always evaluated again, as matching has side effects, like {@code onTypeMatch}.
+ * The super types of a class are not part of the hash,
+ * as determining them would require the type resolution the index is meant to avoid.
+ * A class whose super types change while the class file stays the same may therefore not be instrumented
+ * until the index is discarded.
+ * </p>
+ * <p>
+ * The index file is only used when its key matches, which is based on the agent version,
+ * the enabled instrumentations and the configuration.
+ * Also, it's only used if it's owned by the current user.
+ * The instrumentations are identified by their position in the list of enabled instrumentations.
+ * </p>
+ * <p>
+ * The class file hash is calculated by {@link ClassFileHasher},
+ * a {@link ClassFileTransformer} which has to be registered before the transformer of the agent.
+ * It only hashes the class file the current thread is about to transform.
+ * When the matchers are invoked outside of a class file transformation,
+ * for example when deciding which already loaded classes to retransform,
+ * the hash is not known and the index is not used.
+ * </p>
+ */
+public class ClassMatchIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClassMatchIndex.class);
+    private static final int MAGIC = 0xE1A5C1A5;
+    private static final int FORMAT_VERSION = 1;
+    private static final long NO_HASH = -1;
+    private static final String FILE_NAME = "class-match-index.bin";
+
+    private final File file;
+    private final String key;
+    private final int numberOfInstrumentations;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong evaluated = new AtomicLong();
+
+    ClassMatchIndex(File file, String key, int numberOfInstrumentations) {
+        this.file = file;
+        this.key = key;
+        this.numberOfInstrumentations = numberOfInstrumentations;
+    }
+
+    /**
+     * Loads the index from the provided directory.
+     * If there's no index file or if it has been created with a different key, the returned index is empty.
+     *
+     * @param directory                the directory of the index file
+     * @param key                      identifies the agent version, the instrumentations and the configuration the index is valid for
+     * @param numberOfInstrumentations the number of enabled instrumentations
+     * @return the index
+     */
+    public static ClassMatchIndex load(File directory, String key, int numberOfInstrumentations) {
+        ClassMatchIndex index = new ClassMatchIndex(new File(directory, FILE_NAME), digest(key), numberOfInstrumentations);
+        index.read();
+        return index;
+    }
+
+    /**
+     * Returns whether the provided instrumentation has rejected the type in a previous run
+     *
+     * @param type            the type which is being matched
+     * @param instrumentation the position of the instrumentation
+     * @return {@code true} if the type matching can be skipped as the instrumentation is known to reject the type
+     */
+    public boolean isKnownMismatch(TypeDescription type, int instrumentation) {
+        long hash = ClassFileHasher.getHash(type);
+        if (hash == NO_HASH) {
+            return false;
+        }
+        Entry entry = entries.get(type.getName());
+        if (entry != null && entry.isMismatch(hash, instrumentation)) {
+            skipped.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the type matching result of an instrumentation for a type
+     *
+     * @param type            the type which has been matched
+     * @param instrumentation the position of the instrumentation
+     * @param matches         whether the type matcher of the instrumentation matches the type
+     */
+    public void record(TypeDescription type, int instrumentation, boolean matches) {
+        long hash = ClassFileHasher.getHash(type);
+        if (hash == NO_HASH) {
+            return;
+        }
+        evaluated.incrementAndGet();
+        String className = type.getName();
+        Entry entry = entries.get(className);
+        if (entry == null || entry.hash != hash) {
+            // the class is new or has changed
+            entry = new Entry(hash, numberOfInstrumentations);
+            entries.put(className, entry);
+        }
+        entry.record(instrumentation, matches);
+    }
+
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            // the index decides which classes are not instrumented, so it must not be possible for others to plant it
+            if (!Files.isRegularFile(file.toPath(), LinkOption.NOFOLLOW_LINKS) || !IOUtils.isOwnedByCurrentUser(file)) {
+                logger.warn("Ignoring class match index {} as it is not a regular file owned by the current user", file);
+                return;
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to check the owner of class match index {}: {}", file, e.getMessage());
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !in.readUTF().equals(key) || in.readInt() != numberOfInstrumentations) {
+                logger.info("Discarding class match index {} as it has been created for a different agent setup", file);
+                return;
+            }
+            int words = Entry.words(numberOfInstrumentations);
+            for (int i = 0, size = in.readInt(); i < size; i++) {
+                String className = in.readUTF();
+                Entry entry = new Entry(in.readLong(), numberOfInstrumentations);
+                for (int j = 0; j < words; j++) {
+                    entry.evaluated[j] = in.readLong();
+                }
+                for (int j = 0; j < words; j++) {
+                    entry.matched[j] = in.readLong();
+                }
+                entries.put(className, entry);
+            }
+            logger.debug("Loaded class match index {} with {} classes", file, entries.size());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to read class match index {}: {}", file, e.getMessage());
+            logger.debug("Class match index read failure", e);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Writes the index to disk, replacing the previous index file
+     */
+    public void save() {
+        logger.debug("Class match index: skipped {} type matches, evaluated {} type matches", skipped.get(), evaluated.get());
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("Failed to create directory {} for the class match index", directory);
+            return;
+        }
+        Path tempFile = null;
+        try {
+            // creates a new file which is only accessible by the current user, rather than following a potentially planted link
+            tempFile = Files.createTempFile(directory.toPath(), FILE_NAME, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(key);
+                out.writeInt(numberOfInstrumentations);
+                // the map may change while writing
+                Map<String, Entry> snapshot = new ConcurrentHashMap<>(entries);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> mapEntry : snapshot.entrySet()) {
+                    out.writeUTF(mapEntry.getKey());
+                    mapEntry.getValue().writeTo(out);
+                }
+            }
+            try {
+                Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            logger.debug("Saved class match index {} with {} classes", file, entries.size());
+        } catch (IOException e) {
+            logger.warn("Failed to save class match index {}: {}", file, e.getMessage());
+            logger.debug("Class match index save failure", e);
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getSkipped() {
+        return skipped.get();
+    }
+
+    private static String digest(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is available on every JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        private final long hash;
+        private final long[] evaluated;
+        private final long[] matched;
+
+        private Entry(long hash, int numberOfInstrumentations) {
+            this.hash = hash;
+            this.evaluated = new long[words(numberOfInstrumentations)];
+            this.matched = new long[words(numberOfInstrumentations)];
+        }
+
+        private static int words(int bits) {
+            return (bits + 63) >>> 6;
+        }
+
+        synchronized boolean isMismatch(long hash, int instrumentation) {
+            int word = instrumentation >>> 6;
+            long mask = 1L << instrumentation;
+            return this.hash == hash && (evaluated[word] & mask) != 0 && (matched[word] & mask) == 0;
+        }
+
+        synchronized void record(int instrumentation, boolean matches) {
+            int word = instrumentation >>> 6;
+            long mask = 1L << instrumentation;
+            evaluated[word] |= mask;
+            if (matches) {
+                matched[word] |= mask;
+            } else {
+                matched[word] &= ~mask;
+            }
+        }
+
+        synchronized void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(hash);
+            for (long word : evaluated) {
+                out.writeLong(word);
+            }
+            for (long word : matched) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    /**
+     * Calculates the CRC32 checksum of the class file which is about to be transformed by the current thread.
+     * <p>
+     * Has to be registered before the transformer of the agent, so that the hash is available when the matchers are evaluated.
+     * Never transforms a class.
+     * </p>
+     */
+    public static class ClassFileHasher implements ClassFileTransformer {
+
+        private static final ThreadLocal<CurrentClassFile> currentClassFile = new ThreadLocal<CurrentClassFile>() {
+            @Override
+            protected CurrentClassFile initialValue() {
+                return new CurrentClassFile();
+            }
+        };
+
+        @Nullable
+        @Override
+        public byte[] transform(@Nullable ClassLoader loader, @Nullable String className, @Nullable Class<?> classBeingRedefined,
+                                @Nullable ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            CurrentClassFile current = currentClassFile.get();
+            if (className == null) {
+                current.internalName = null;
+            } else {
+                current.crc32.reset();
+                current.crc32.update(classfileBuffer, 0, classfileBuffer.length);
+                current.hash = current.crc32.getValue();
+                current.internalName = className;
+            }
+            return null;
+        }
+
+        static long getHash(TypeDescription type) {
+            CurrentClassFile current = currentClassFile.get();
+            String internalName = current.internalName;
+            if (internalName != null && isSameClass(internalName, type.getName())) {
+                return current.hash;
+            }
+            return NO_HASH;
+        }
+
+        /**
+         * Compares an internal class name, like {@code java/lang/String}, with a binary class name, like {@code java.lang.String}, without allocations
+         */
+        private static boolean isSameClass(String internalName, String binaryName) {
+            if (internalName.length() != binaryName.length()) {
+                return false;
+            }
+            for (int i = 0; i < internalName.length(); i++) {
+                char c = internalName.charAt(i);
+                if (c != binaryName.charAt(i) && !(c == '/' && binaryName.charAt(i) == '.')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static class CurrentClassFile {
+            private final CRC32 crc32 = new CRC32();
+            @Nullable
+            private String internalName;
+            private long hash;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.NameMatcher;
+import net.bytebuddy.matcher.StringMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Combines the {@linkplain co.elastic.apm.agent.bci.ElasticApmInstrumentation#getTypeMatcherPreFilter() name pre-filters}
+ * of all instrumentations into a single Aho-Corasick automaton,
+ * so that a class name is scanned once to determine the candidate instrumentations,
+ * instead of evaluating each pre-filter separately.
+ * <p>
+ * For every pre-filter, the literals which are necessary for the pre-filter to match are derived from the
+ * {@link ElementMatcher} tree, consisting of {@link NameMatcher}s with a {@link StringMatcher} and their conjunctions and disjunctions.
+ * When the automaton finds one of these literals in the name, the instrumentation is a candidate
+ * and the original pre-filter is evaluated to get the exact result.
+ * Pre-filters which can't be analyzed, like custom matchers or regular expressions, are always candidates.
+ * Hence, the result is always the same as evaluating the pre-filters one by one.
+ * </p>
+ */
+public class CombinedNamePreFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CombinedNamePreFilter.class);
+    /**
+     * Case-insensitive literals are expanded to all case variants, as long as there are not more than that
+     */
+    private static final int MAX_CASE_VARIANTS = 16;
+
+    @Nullable
+    private static final Field NAME_MATCHER_MATCHER = getField(NameMatcher.class, "matcher");
+    @Nullable
+    private static final Field STRING_MATCHER_VALUE = getField(StringMatcher.class, "value");
+    @Nullable
+    private static final Field STRING_MATCHER_MODE = getField(StringMatcher.class, "mode");
+    @Nullable
+    private static final Field CONJUNCTION_LEFT = getField(ElementMatcher.Junction.Conjunction.class, "left");
+    @Nullable
+    private static final Field CONJUNCTION_RIGHT = getField(ElementMatcher.Junction.Conjunction.class, "right");
+    @Nullable
+    private static final Field DISJUNCTION_LEFT = getField(ElementMatcher.Junction.Disjunction.class, "left");
+    @Nullable
+    private static final Field DISJUNCTION_RIGHT = getField(ElementMatcher.Junction.Disjunction.class, "right");
+
+    private final List<? extends ElementMatcher<? super NamedElement>> preFilters;
+    /**
+     * The instrumentations whose pre-filter can't be analyzed
+     */
+    private final long[] alwaysCandidates;
+    private final Literal[] literals;
+    // the Aho-Corasick automaton, indexed by state
+    private final char[][] transitionChars;
+    private final int[][] transitionTargets;
+    private final int[] failure;
+    /**
+     * The literals which end in a state, including the ones of the failure states
+     */
+    private final int[][] outputs;
+    private final ThreadLocal<Candidates> candidates = new ThreadLocal<Candidates>() {
+        @Override
+        protected Candidates initialValue() {
+            return new Candidates(alwaysCandidates.length);
+        }
+    };
+
+    private CombinedNamePreFilter(List<? extends ElementMatcher<? super NamedElement>> preFilters, long[] alwaysCandidates, Literal[] literals,
+                                  char[][] transitionChars, int[][] transitionTargets, int[] failure, int[][] outputs) {
+        this.preFilters = preFilters;
+        this.alwaysCandidates = alwaysCandidates;
+        this.literals = literals;
+        this.transitionChars = transitionChars;
+        this.transitionTargets = transitionTargets;
+        this.failure = failure;
+        this.outputs = outputs;
+    }
+
+    /**
+     * Creates a combined pre-filter
+     *
+     * @param preFilters the name pre-filters of the instrumentations, the position in the list identifies the instrumentation
+     * @return the combined pre-filter
+     */
+    public static CombinedNamePreFilter of(List<? extends ElementMatcher<? super NamedElement>> preFilters) {
+        long[] alwaysCandidates = new long[(preFilters.size() + 63) >>> 6];
+        Map<Literal, Literal> literals = new LinkedHashMap<>();
+        int analyzed = 0;
+        for (int i = 0; i < preFilters.size(); i++) {
+            Set<Literal> necessaryLiterals = getNecessaryLiterals(preFilters.get(i));
+            if (necessaryLiterals == null) {
+                alwaysCandidates[i >>> 6] |= 1L << i;
+            } else {
+                analyzed++;
+                for (Literal literal : necessaryLiterals) {
+                    Literal existing = literals.get(literal);
+                    if (existing == null) {
+                        existing = new Literal(literal.value, literal.mode, preFilters.size());
+                        literals.put(existing, existing);
+                    }
+                    existing.instrumentations[i >>> 6] |= 1L << i;
+                }
+            }
+        }
+        logger.debug("Combined {} of {} name pre-filters into an automaton with {} literals", analyzed, preFilters.size(), literals.size());
+        return build(preFilters, alwaysCandidates, literals.keySet().toArray(new Literal[0]));
+    }
+
+    private static CombinedNamePreFilter build(List<? extends ElementMatcher<? super NamedElement>> preFilters, long[] alwaysCandidates, Literal[] literals) {
+        // the trie
+        List<Map<Character, Integer>> transitions = new ArrayList<>();
+        List<List<Integer>> ownOutputs = new ArrayList<>();
+        transitions.add(new HashMap<Character, Integer>());
+        ownOutputs.add(new ArrayList<Integer>());
+        for (int i = 0; i < literals.length; i++) {
+            int state = 0;
+            for (char c : literals[i].value.toCharArray()) {
+                Integer next = transitions.get(state).get(c);
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.add(new HashMap<Character, Integer>());
+                    ownOutputs.add(new ArrayList<Integer>());
+                    transitions.get(state).put(c, next);
+                }
+                state = next;
+            }
+            ownOutputs.get(state).add(i);
+        }
+        int states = transitions.size();
+        char[][] transitionChars = new char[states][];
+        int[][] transitionTargets = new int[states][];
+        for (int state = 0; state < states; state++) {
+            List<Character> chars = new ArrayList<>(transitions.get(state).keySet());
+            Collections.sort(chars);
+            transitionChars[state] = new char[chars.size()];
+            transitionTargets[state] = new int[chars.size()];
+            for (int i = 0; i < chars.size(); i++) {
+                transitionChars[state][i] = chars.get(i);
+                transitionTargets[state][i] = transitions.get(state).get(chars.get(i));
+            }
+        }
+        // the failure links, in breadth-first order so that the failure state of a state's parent is already known
+        int[] failure = new int[states];
+        int[][] outputs = new int[states][];
+        outputs[0] = toArray(ownOutputs.get(0));
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int child : transitionTargets[0]) {
+            failure[child] = 0;
+            outputs[child] = toArray(ownOutputs.get(child));
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int i = 0; i < transitionChars[state].length; i++) {
+                char c = transitionChars[state][i];
+                int child = transitionTargets[state][i];
+                int fallback = failure[state];
+                int next = transition(transitionChars, transitionTargets, fallback, c);
+                while (next < 0 && fallback != 0) {
+                    fallback = failure[fallback];
+                    next = transition(transitionChars, transitionTargets, fallback, c);
+                }
+                failure[child] = next < 0 ? 0 : next;
+                Set<Integer> childOutputs = new LinkedHashSet<>(ownOutputs.get(child));
+                for (int output : outputs[failure[child]]) {
+                    childOutputs.add(output);
+                }
+                outputs[child] = toArray(childOutputs);
+                queue[tail++] = child;
+            }
+        }
+        return new CombinedNamePreFilter(preFilters, alwaysCandidates, literals, transitionChars, transitionTargets, failure, outputs);
+    }
+
+    /**
+     * Returns whether the pre-filter of an instrumentation matches the provided element.
+     * The result is the same as calling {@code preFilters.get(instrumentation).matches(element)}.
+     *
+     * @param element         the element to match, usually a type
+     * @param instrumentation the position of the instrumentation's pre-filter
+     * @return whether the pre-filter of the instrumentation matches
+     */
+    public boolean matches(NamedElement element, int instrumentation) {
+        return isCandidate(element.getActualName(), instrumentation) && preFilters.get(instrumentation).matches(element);
+    }
+
+    /**
+     * Scans the name once per thread and caches the candidates, as all instrumentations are matched against the same type one after another.
+     */
+    boolean isCandidate(String name, int instrumentation) {
+        Candidates candidates = this.candidates.get();
+        if (!name.equals(candidates.name)) {
+            scan(name, candidates.instrumentations);
+            candidates.name = name;
+        }
+        return (candidates.instrumentations[instrumentation >>> 6] & (1L << instrumentation)) != 0;
+    }
+
+    private void scan(String name, long[] result) {
+        System.arraycopy(alwaysCandidates, 0, result, 0, result.length);
+        int state = 0;
+        for (int i = 0, length = name.length(); i < length; i++) {
+            char c = name.charAt(i);
+            int next = transition(transitionChars, transitionTargets, state, c);
+            while (next < 0 && state != 0) {
+                state = failure[state];
+                next = transition(transitionChars, transitionTargets, state, c);
+            }
+            state = next < 0 ? 0 : next;
+            for (int output : outputs[state]) {
+                Literal literal = literals[output];
+                if (literal.accepts(i + 1 - literal.value.length(), i, length)) {
+                    long[] instrumentations = literal.instrumentations;
+                    for (int word = 0; word < result.length; word++) {
+                        result[word] |= instrumentations[word];
+                    }
+                }
+            }
+        }
+    }
+
+    private static int transition(char[][] transitionChars, int[][] transitionTargets, int state, char c) {
+        int index = Arrays.binarySearch(transitionChars[state], c);
+        return index < 0 ? -1 : transitionTargets[state][index];
+    }
+
+    /**
+     * Derives literals of which at least one is contained in every name the matcher matches
+     *
+     * @return the literals, or {@code null} if the matcher can't be analyzed or if it may match names without any literal
+     */
+    @Nullable
+    static Set<Literal> getNecessaryLiterals(ElementMatcher<?> matcher) {
+        try {
+            if (matcher instanceof NameMatcher && NAME_MATCHER_MATCHER != null) {
+                Object stringMatcher = NAME_MATCHER_MATCHER.get(matcher);
+                if (stringMatcher instanceof StringMatcher && STRING_MATCHER_VALUE != null && STRING_MATCHER_MODE != null) {
+                    return getLiterals((String) STRING_MATCHER_VALUE.get(stringMatcher), (StringMatcher.Mode) STRING_MATCHER_MODE.get(stringMatcher));
+                }
+            } else if (matcher instanceof ElementMatcher.Junction.Conjunction && CONJUNCTION_LEFT != null && CONJUNCTION_RIGHT != null) {
+                // every operand is a necessary condition, the more selective one is used
+                Set<Literal> left = getNecessaryLiterals((ElementMatcher<?>) CONJUNCTION_LEFT.get(matcher));
+                Set<Literal> right = getNecessaryLiterals((ElementMatcher<?>) CONJUNCTION_RIGHT.get(matcher));
+                if (left == null || right == null) {
+                    return left == null ? right : left;
+                }
+                return left.size() <= right.size() ? left : right;
+            } else if (matcher instanceof ElementMatcher.Junction.Disjunction && DISJUNCTION_LEFT != null && DISJUNCTION_RIGHT != null) {
+                Set<Literal> left = getNecessaryLiterals((ElementMatcher<?>) DISJUNCTION_LEFT.get(matcher));
+                Set<Literal> right = getNecessaryLiterals((ElementMatcher<?>) DISJUNCTION_RIGHT.get(matcher));
+                if (left == null || right == null) {
+                    return null;
+                }
+                Set<Literal> union = new LinkedHashSet<>(left);
+                union.addAll(right);
+                return union;
+            }
+        } catch (IllegalAccessException | RuntimeException e) {
+            logger.debug("Can't analyze name pre-filter {}", matcher, e);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Set<Literal> getLiterals(String value, StringMatcher.Mode mode) {
+        if (value.isEmpty()) {
+            // matches every name
+            return null;
+        }
+        switch (mode) {
+            case EQUALS_FULLY:
+                return singleton(value, Literal.EQUALS);
+            case STARTS_WITH:
+                return singleton(value, Literal.STARTS_WITH);
+            case ENDS_WITH:
+                return singleton(value, Literal.ENDS_WITH);
+            case CONTAINS:
+                return singleton(value, Literal.CONTAINS);
+            case EQUALS_FULLY_IGNORE_CASE:
+                return getCaseVariants(value, Literal.EQUALS);
+            case STARTS_WITH_IGNORE_CASE:
+                return getCaseVariants(value, Literal.STARTS_WITH);
+            case ENDS_WITH_IGNORE_CASE:
+                return getCaseVariants(value, Literal.ENDS_WITH);
+            case CONTAINS_IGNORE_CASE:
+                return getCaseVariants(value, Literal.CONTAINS);
+            default:
+                // regular expressions
+                return null;
+        }
+    }
+
+    private static Set<Literal> singleton(String value, int mode) {
+        Set<Literal> literals = new LinkedHashSet<>();
+        literals.add(new Literal(value, mode, 0));
+        return literals;
+    }
+
+    @Nullable
+    private static Set<Literal> getCaseVariants(String value, int mode) {
+        List<String> variants = new ArrayList<>();
+        variants.add("");
+        for (char c : value.toCharArray()) {
+            char lower = Character.toLowerCase(c);
+            char upper = Character.toUpperCase(c);
+            if (c > 127 || lower == upper) {
+                if (c > 127) {
+                    // non-ASCII characters may have more case variants than just the upper and lower case
+                    return null;
+                }
+                for (int i = 0; i < variants.size(); i++) {
+                    variants.set(i, variants.get(i) + c);
+                }
+            } else {
+                if (variants.size() * 2 > MAX_CASE_VARIANTS) {
+                    return null;
+                }
+                List<String> expanded = new ArrayList<>(variants.size() * 2);
+                for (String variant : variants) {
+                    expanded.add(variant + lower);
+                    expanded.add(variant + upper);
+                }
+                variants = expanded;
+            }
+        }
+        Set<Literal> literals = new LinkedHashSet<>();
+        for (String variant : variants) {
+            literals.add(new Literal(variant, mode, 0));
+        }
+        return literals;
+    }
+
+    private static int[] toArray(Iterable<Integer> integers) {
+        List<Integer> list = new ArrayList<>();
+        for (Integer integer : integers) {
+            list.add(integer);
+        }
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    @Nullable
+    private static Field getField(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            // all pre-filters are evaluated one by one
+            return null;
+        }
+    }
+
+    static class Literal {
+        static final int EQUALS = 0;
+        static final int STARTS_WITH = 1;
+        static final int ENDS_WITH = 2;
+        static final int CONTAINS = 3;
+
+        private final String value;
+        private final int mode;
+        private final long[] instrumentations;
+
+        Literal(String value, int mode, int numberOfInstrumentations) {
+            this.value = value;
+            this.mode = mode;
+            this.instrumentations = new long[(numberOfInstrumentations + 63) >>> 6];
+        }
+
+        /**
+         * @param start  the position of the first character of the literal's occurrence in the name
+         * @param end    the position of the last character of the literal's occurrence in the name
+         * @param length the length of the name
+         */
+        boolean accepts(int start, int end, int length) {
+            switch (mode) {
+                case EQUALS:
+                    return start == 0 && end == length - 1;
+                case STARTS_WITH:
+                    return start == 0;
+                case ENDS_WITH:
+                    return end == length - 1;
+                default:
+                    return true;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Literal literal = (Literal) o;
+            return mode == literal.mode && value.equals(literal.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * value.hashCode() + mode;
+        }
+
+        @Override
+        public String toString() {
+            return value + "/" + mode;
+        }
+    }
+
+    private static class Candidates {
+        @Nullable
+        private String name;
+        private final long[] instrumentations;
+
+        private Candidates(int words) {
+            this.instrumentations = new long[words];
+        }
+    }
+}
@@ -27,13 +27,13 @@ package co.elastic.apm.agent.configuration;
 import co.elastic.apm.agent.bci.ElasticApmAgent;
 import co.elastic.apm.agent.bci.methodmatching.MethodMatcher;
 import co.elastic.apm.agent.bci.methodmatching.configuration.MethodMatcherValueConverter;
-import co.elastic.apm.agent.configuration.converter.ListValueConverter;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.configuration.converter.TimeDurationValueConverter;
 import co.elastic.apm.agent.configuration.validation.RegexValidator;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherListValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherSet;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
 import org.stagemonitor.configuration.converter.MapValueConverter;
@@ -157,6 +157,22 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .addValidator(isInRange(0d, 1d))
         .buildWithDefault(1.0);
 
+    private final ConfigurationOption<Double> sampledTransactionsPerSecond = ConfigurationOption.doubleOption()
+        .key("sampled_transactions_per_second")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.17.0]", "performance", "experimental")
+        .description("When set to a positive value, the agent adapts the sample rate so that roughly this many transactions\n" +
+            "per second are sampled, regardless of the throughput of the service.\n" +
+            "This avoids that traffic spikes lead to a proportional increase of the reporting overhead.\n" +
+            "\n" +
+            "The rate is adjusted every second, based on the recently observed throughput.\n" +
+            "<<config-transaction-sample-rate>> is the upper bound of the effective sample rate.\n" +
+            "The effective sample rate is reported as the `agent.sampling.rate` metric.\n" +
+            "\n" +
+            "This option has no effect if <<config-tail-sampling>> is enabled.")
+        .dynamic(false)
+        .buildWithDefault(-1d);
+
     private final ConfigurationOption<Integer> transactionMaxSpans = ConfigurationOption.integerOption()
         .key("transaction_max_spans")
         .configurationCategory(CORE_CATEGORY)
@@ -169,7 +185,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(500);
 
     private final ConfigurationOption<List<WildcardMatcher>> sanitizeFieldNames = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("sanitize_field_names")
         .configurationCategory(CORE_CATEGORY)
         .description("Sometimes it is necessary to sanitize the data sent to Elastic APM,\n" +
@@ -197,7 +213,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         )
         .dynamic(true)
         .tags("security")
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.valueOf("password"),
             WildcardMatcher.valueOf("passwd"),
             WildcardMatcher.valueOf("pwd"),
@@ -211,7 +227,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.valueOf("authorization"),
             // HTTP response header which can contain session ids
             WildcardMatcher.valueOf("set-cookie")
-        ));
+        )));
 
     private final ConfigurationOption<Collection<String>> disabledInstrumentations = ConfigurationOption.stringsOption()
         .key("disable_instrumentations")
@@ -227,7 +243,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Collections.<String>singleton("experimental"));
 
     private final ConfigurationOption<List<WildcardMatcher>> unnestExceptions = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("unnest_exceptions")
         .configurationCategory(CORE_CATEGORY)
         .description("When reporting exceptions,\n" +
@@ -237,10 +253,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Collections.singletonList(WildcardMatcher.valueOf("(?-i)*Nested*Exception")));
+        .buildWithDefault(WildcardMatcherSet.of(Collections.singletonList(WildcardMatcher.valueOf("(?-i)*Nested*Exception"))));
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreExceptions = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("ignore_exceptions")
         .tags("added[1.11.0]")
         .configurationCategory(CORE_CATEGORY)
@@ -330,8 +346,68 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "is available somewhere in the classpath where it never gets loaded unless this matching is applied.")
         .buildWithDefault(true);
 
+    private final ConfigurationOption<Boolean> classMatchIndex = ConfigurationOption.booleanOption()
+        .key("class_match_index")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.17.0]", "performance", "experimental")
+        .description("When enabled, the agent stores which classes have been rejected by which instrumentation in a file\n" +
+            "within the <<config-class-match-index-directory>>.\n" +
+            "On the next start of the application, the agent skips the type matching for these combinations,\n" +
+            "as long as the class file is unchanged, which speeds up the startup.\n" +
+            "\n" +
+            "The index is discarded when updating the agent or when changing the instrumentations or the configuration of the agent.\n" +
+            "\n" +
+            "NOTE: The index only takes the class file of a class into account, not the class files of its super types.\n" +
+            "If a super type changes, for example because it implements an additional interface,\n" +
+            "while the class file of the class itself stays the same,\n" +
+            "instrumentations which match based on the super types may be skipped for that class.\n" +
+            "Delete the index file after updating libraries whose type hierarchy is relevant for the instrumentations,\n" +
+            "or don't enable this option when the libraries of the application change without changing the configuration or version of the agent.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<String> classMatchIndexDirectory = ConfigurationOption.stringOption()
+        .key("class_match_index_directory")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.17.0]", "experimental")
+        .description("The directory where the class match index is stored when <<config-class-match-index>> is enabled.\n" +
+            "\n" +
+            "If not set, the agent uses a directory named after the <<config-service-name>>\n" +
+            "within the `elastic-apm-class-match-index-<user name>` directory in `java.io.tmpdir`.\n" +
+            "This directory can only be accessed by the user running the agent.\n" +
+            "If it exists but is owned by another user, the class match index is disabled.\n" +
+            "An index file which is not owned by the user running the agent is ignored.")
+        .dynamic(false)
+        .build();
+
+    private final ConfigurationOption<Integer> startupThreads = ConfigurationOption.integerOption()
+        .key("startup_threads")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.17.0]", "performance", "experimental")
+        .description("The number of threads used to start the components of the agent, like the metrics collectors.\n" +
+            "\n" +
+            "By default, the components are started one after another on the thread that starts the agent.\n" +
+            "When set to a value greater than 1, independent components are started in parallel,\n" +
+            "which reduces the startup time of the agent, especially when some components are slow to start.")
+        .addValidator(isInRange(1, 16))
+        .dynamic(false)
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<TimeDuration> deferredStartupDelay = TimeDurationValueConverter.durationOption("ms")
+        .key("deferred_startup_delay")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.17.0]", "performance", "experimental")
+        .description("Defers the start of components that are not needed to trace requests,\n" +
+            "like the profiler, the JMX metrics and the log shipper.\n" +
+            "These components are started as soon as the first transaction starts or after the configured delay, whichever comes first.\n" +
+            "This keeps their initialization out of the startup of the application.\n" +
+            "\n" +
+            "Set to `0ms` to start all components when the agent starts.")
+        .dynamic(false)
+        .buildWithDefault(TimeDuration.of("0ms"));
+
     private final ConfigurationOption<List<WildcardMatcher>> classesExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("classes_excluded_from_instrumentation")
         .configurationCategory(CORE_CATEGORY)
         .description("Use to exclude specific classes from being instrumented. In order to exclude entire packages, \n" +
@@ -342,7 +418,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Collections.<WildcardMatcher>emptyList());
 
     private final ConfigurationOption<List<WildcardMatcher>> defaultClassesExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("classes_excluded_from_instrumentation_default")
         .configurationCategory(CORE_CATEGORY)
         .tags("internal")
@@ -350,7 +426,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(false)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.valueOf("(?-i)org.infinispan*"),
             WildcardMatcher.valueOf("(?-i)org.apache.xerces*"),
             WildcardMatcher.valueOf("(?-i)org.jboss.as.*"),
@@ -358,10 +434,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.valueOf("(?-i)org.eclipse.jdt.ecj*"),
             WildcardMatcher.valueOf("(?-i)org.wildfly.extension.*"),
             WildcardMatcher.valueOf("(?-i)org.wildfly.security*")
-        ));
+        )));
 
     private final ConfigurationOption<List<WildcardMatcher>> methodsExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("methods_excluded_from_instrumentation")
         .configurationCategory(CORE_CATEGORY)
         .tags("internal")
@@ -369,9 +445,9 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.valueOf("(?-i)_persistence_*")
-        ));
+        )));
 
     private final ConfigurationOption<List<MethodMatcher>> traceMethods = ConfigurationOption
         .builder(MethodMatcherValueConverter.LIST, List.class)
@@ -564,6 +640,134 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(TimeDuration.of("0ms"));
 
+    private final ConfigurationOption<Boolean> tailSampling = ConfigurationOption.booleanOption()
+        .key("tail_sampling")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When enabled, the agent defers the sampling decision until the transaction has ended.\n" +
+            "This makes it possible to keep all slow or failed transactions,\n" +
+            "including their spans, while still sampling only a fraction of all other transactions.\n" +
+            "\n" +
+            "The spans of a transaction are held back until the transaction ends.\n" +
+            "The transaction and its spans are then kept if the transaction matches any of\n" +
+            "<<config-tail-sampling-min-duration>>, <<config-tail-sampling-results>>,\n" +
+            "<<config-tail-sampling-transaction-names>> or <<config-tail-sampling-errors>>.\n" +
+            "Otherwise, <<config-transaction-sample-rate>> determines whether they are kept.\n" +
+            "Transactions that are not kept are reported like non-sampled transactions, without context and spans.\n" +
+            "\n" +
+            "As the decision is made at the end of the transaction, all transactions which start a trace are recorded.\n" +
+            "However, outgoing requests propagate the head-based sampling decision of <<config-transaction-sample-rate>>,\n" +
+            "as the tail-based decision is not known yet.\n" +
+            "Downstream services therefore only record the traces which have been sampled according to <<config-transaction-sample-rate>>.\n" +
+            "Transactions continuing a trace from an incoming request follow the sampling decision of the caller.\n" +
+            "If this service keeps a transaction based on the tail-based decision,\n" +
+            "the distributed trace is incomplete, as downstream services have not recorded it.\n" +
+            "Also, errors are reported immediately and may reference transactions which are not kept,\n" +
+            "unless <<config-tail-sampling-errors>> is enabled.\n" +
+            "\n" +
+            "The number of spans which are held back is limited by <<config-tail-sampling-max-buffered-spans>>.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> tailSamplingMinDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("tail_sampling_min_duration")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When <<config-tail-sampling>> is enabled,\n" +
+            "transactions which take at least this long are always kept.\n" +
+            "\n" +
+            "Set to `-1ms` to not keep transactions based on their duration.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("1000ms"));
+
+    private final ConfigurationOption<List<WildcardMatcher>> tailSamplingResults = ConfigurationOption
+        .builder(new WildcardMatcherListValueConverter(), List.class)
+        .key("tail_sampling_results")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When <<config-tail-sampling>> is enabled,\n" +
+            "transactions whose result matches any of these patterns are always kept.\n" +
+            "\n" +
+            WildcardMatcher.DOCUMENTATION)
+        .dynamic(true)
+        .buildWithDefault(WildcardMatcherSet.of(Collections.singletonList(WildcardMatcher.valueOf("HTTP 5xx"))));
+
+    private final ConfigurationOption<List<WildcardMatcher>> tailSamplingTransactionNames = ConfigurationOption
+        .builder(new WildcardMatcherListValueConverter(), List.class)
+        .key("tail_sampling_transaction_names")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When <<config-tail-sampling>> is enabled,\n" +
+            "transactions whose name matches any of these patterns are always kept.\n" +
+            "\n" +
+            WildcardMatcher.DOCUMENTATION)
+        .dynamic(true)
+        .buildWithDefault(Collections.<WildcardMatcher>emptyList());
+
+    private final ConfigurationOption<Boolean> tailSamplingErrors = ConfigurationOption.booleanOption()
+        .key("tail_sampling_errors")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When <<config-tail-sampling>> is enabled,\n" +
+            "setting this to `true` keeps all transactions during which an error has been captured.")
+        .dynamic(true)
+        .buildWithDefault(true);
+
+    private final ConfigurationOption<Integer> tailSamplingMaxBufferedSpans = ConfigurationOption.integerOption()
+        .key("tail_sampling_max_buffered_spans")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When <<config-tail-sampling>> is enabled,\n" +
+            "this is the maximum number of spans which are held back until their transaction ends, across all transactions.\n" +
+            "The spans of a single transaction are additionally limited by <<config-transaction-max-spans>>.\n" +
+            "\n" +
+            "When this limit is reached, the sampling decision for transactions that have further spans\n" +
+            "is made immediately, based on <<config-transaction-sample-rate>>, like without tail-based sampling.\n" +
+            "This limits the memory overhead in case of a high number of concurrent or long running transactions.")
+        .dynamic(false)
+        .buildWithDefault(10000);
+
+    private final ConfigurationOption<Boolean> spanCompressionEnabled = ConfigurationOption.booleanOption()
+        .key("span_compression_enabled")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("Setting this option to true enables span compression.\n" +
+            "Span compression reduces the collection, processing, and storage overhead of chatty code paths, and removes clutter from the UI.\n" +
+            "The tradeoff is that some information, such as the DB statements of all but the first compressed span, is not collected.\n" +
+            "\n" +
+            "Consecutive exit spans of the same parent, such as database queries, are compressed into a single composite span\n" +
+            "if they have the same type, subtype and destination and if they are either\n" +
+            "\n" +
+            " - an exact match, meaning they also have the same name and are faster than <<config-span-compression-exact-match-max-duration>>, or\n" +
+            " - of the same kind and faster than <<config-span-compression-same-kind-max-duration>>.\n" +
+            "\n" +
+            "A composite span records the number of compressed spans and the sum of their durations.\n" +
+            "Spans that propagate the trace context to downstream services can't be compressed.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> spanCompressionExactMatchMaxDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("span_compression_exact_match_max_duration")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When <<config-span-compression-enabled>> is enabled,\n" +
+            "consecutive spans that are exact matches and that are faster than this threshold are compressed into a single composite span.\n" +
+            "Two spans are exact matches if they have the same name, type, subtype and destination.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("50ms"));
+
+    private final ConfigurationOption<TimeDuration> spanCompressionSameKindMaxDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("span_compression_same_kind_max_duration")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When <<config-span-compression-enabled>> is enabled,\n" +
+            "consecutive spans of the same kind that are faster than this threshold are compressed into a single composite span,\n" +
+            "even if their names differ.\n" +
+            "Two spans are of the same kind if they have the same type, subtype and destination.\n" +
+            "The name of the composite span reflects the destination, for example `Calls to mysql`.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("5ms"));
+
     public boolean isInstrument() {
         return instrument.get();
     }
@@ -605,6 +809,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return sampleRate;
     }
 
+    public double getSampledTransactionsPerSecond() {
+        return sampledTransactionsPerSecond.get();
+    }
+
     public int getTransactionMaxSpans() {
         return transactionMaxSpans.get();
     }
@@ -645,6 +853,23 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return classLoadingMatchingPreFilter.get();
     }
 
+    public boolean isClassMatchIndex() {
+        return classMatchIndex.get();
+    }
+
+    @Nullable
+    public String getClassMatchIndexDirectory() {
+        return classMatchIndexDirectory.get();
+    }
+
+    public int getStartupThreads() {
+        return startupThreads.get();
+    }
+
+    public TimeDuration getDeferredStartupDelay() {
+        return deferredStartupDelay.get();
+    }
+
     public List<WildcardMatcher> getClassesExcludedFromInstrumentation() {
         return classesExcludedFromInstrumentation.get();
     }
@@ -704,6 +929,42 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return spanMinDuration.get();
     }
 
+    public boolean isTailSampling() {
+        return tailSampling.get();
+    }
+
+    public TimeDuration getTailSamplingMinDuration() {
+        return tailSamplingMinDuration.get();
+    }
+
+    public List<WildcardMatcher> getTailSamplingResults() {
+        return tailSamplingResults.get();
+    }
+
+    public List<WildcardMatcher> getTailSamplingTransactionNames() {
+        return tailSamplingTransactionNames.get();
+    }
+
+    public boolean isTailSamplingErrors() {
+        return tailSamplingErrors.get();
+    }
+
+    public int getTailSamplingMaxBufferedSpans() {
+        return tailSamplingMaxBufferedSpans.get();
+    }
+
+    public boolean isSpanCompressionEnabled() {
+        return spanCompressionEnabled.get();
+    }
+
+    public TimeDuration getSpanCompressionExactMatchMaxDuration() {
+        return spanCompressionExactMatchMaxDuration.get();
+    }
+
+    public TimeDuration getSpanCompressionSameKindMaxDuration() {
+        return spanCompressionSameKindMaxDuration.get();
+    }
+
     /*
      * Makes sure to not initialize ConfigurationOption, which would initialize the logger
      */
@@ -26,10 +26,9 @@ package co.elastic.apm.agent.configuration;
 
 import co.elastic.apm.agent.bci.VisibleForAdvice;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherListValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 
 import java.util.Collections;
 import java.util.List;
@@ -60,7 +59,7 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Boolean.TRUE);
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreMessageQueues = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("ignore_message_queues")
         .configurationCategory(MESSAGING_CATEGORY)
         .description("Used to filter out specific messaging queues/topics from being traced. \n" +
@@ -86,6 +85,32 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(Boolean.TRUE);
 
+    private final ConfigurationOption<BatchStrategy> messageBatchStrategy = ConfigurationOption.enumOption(BatchStrategy.class)
+        .key("message_batch_strategy")
+        .configurationCategory(MESSAGING_CATEGORY)
+        .tags("added[1.17.0]", "experimental")
+        .description("Determines whether the agent creates a transaction for each received message (`SINGLE_HANDLING`) \n" +
+            "or a single transaction for each batch of messages returned by a poll (`BATCH_HANDLING`). \n" +
+            "\n" +
+            "Batch handling drastically reduces the overhead for consumers which process many small messages. \n" +
+            "Instead of continuing the traces of the individual messages, a batch transaction starts a new trace and \n" +
+            "records links to the trace contexts of up to <<config-message-batch-max-links>> of its messages. \n" +
+            "Message headers and bodies are not captured in batch handling mode. \n" +
+            "\n" +
+            "This option is case-insensitive and is currently only relevant for Kafka.")
+        .dynamic(true)
+        .buildWithDefault(BatchStrategy.SINGLE_HANDLING);
+
+    private final ConfigurationOption<Integer> messageBatchMaxLinks = ConfigurationOption.integerOption()
+        .key("message_batch_max_links")
+        .configurationCategory(MESSAGING_CATEGORY)
+        .tags("added[1.17.0]", "experimental")
+        .description("The maximum number of links to the trace contexts of the messages a batch transaction records. \n" +
+            "If a batch contains more messages, a random sample of them is linked. \n" +
+            "Only relevant if <<config-message-batch-strategy>> is set to `BATCH_HANDLING`.")
+        .dynamic(true)
+        .buildWithDefault(10);
+
     public MessagingConfiguration.Strategy getMessagePollingTransactionStrategy() {
         return messagePollingTransactionStrategy.get();
     }
@@ -104,10 +129,23 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
         return endMessagingTransactionOnPoll.get();
     }
 
+    public BatchStrategy getMessageBatchStrategy() {
+        return messageBatchStrategy.get();
+    }
+
+    public int getMessageBatchMaxLinks() {
+        return messageBatchMaxLinks.get();
+    }
+
     @VisibleForAdvice
     public enum Strategy {
         POLLING,
         HANDLING,
         BOTH
     }
+
+    public enum BatchStrategy {
+        SINGLE_HANDLING,
+        BATCH_HANDLING
+    }
 }
@@ -34,11 +34,18 @@ import org.slf4j.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Logs system information and configuration on startup.
  * <p>
+ * Also keeps track of the startup timeline of the agent,
+ * see {@link #recordPhase(String, long)} and {@link #logTimeline()}.
+ * </p>
+ * <p>
  * Based on {@code org.stagemonitor.core.Stagemonitor} and {@code org.stagemonitor.core.configuration.ConfigurationLogger},
  * under Apache license 2.0.
  * </p>
@@ -46,6 +53,11 @@ import java.util.List;
 public class StartupInfo extends AbstractLifecycleListener {
 
     private static final Logger logger = LoggerFactory.getLogger(StartupInfo.class);
+    /**
+     * Limits the size of the timeline in case many tracers are created, like in tests
+     */
+    private static final int MAX_PHASES = 256;
+    private static final List<Phase> timeline = new CopyOnWriteArrayList<>();
     private final String elasticApmVersion;
 
     public StartupInfo() {
@@ -68,6 +80,54 @@ public class StartupInfo extends AbstractLifecycleListener {
         logConfiguration(configurationRegistry, logger);
     }
 
+    /**
+     * Records a phase of the agent startup which has been started at {@code startNanos} and which ends now.
+     *
+     * @param name       the name of the phase, for example the name of the component which has been started
+     * @param startNanos the start of the phase, as returned by {@link System#nanoTime()}
+     */
+    public static void recordPhase(String name, long startNanos) {
+        if (timeline.size() < MAX_PHASES) {
+            timeline.add(new Phase(name, Thread.currentThread().getName(), startNanos, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Logs the total startup time at info level and the individual phases at debug level.
+     * The offsets of the phases are relative to the start of the first recorded phase.
+     */
+    public static void logTimeline() {
+        logTimeline(logger);
+    }
+
+    static void logTimeline(Logger logger) {
+        List<Phase> phases = getTimeline();
+        if (phases.isEmpty()) {
+            return;
+        }
+        long origin = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        for (Phase phase : phases) {
+            origin = Math.min(origin, phase.startNanos);
+            end = Math.max(end, phase.endNanos);
+        }
+        logger.info("Elastic APM agent started in {} ms", TimeUnit.NANOSECONDS.toMillis(end - origin));
+        if (logger.isDebugEnabled()) {
+            for (Phase phase : phases) {
+                logger.debug("Startup phase {} on thread {}: started at +{} ms, took {} ms", phase.name, phase.threadName,
+                    TimeUnit.NANOSECONDS.toMillis(phase.startNanos - origin), phase.getDurationMs());
+            }
+        }
+    }
+
+    static List<Phase> getTimeline() {
+        return new ArrayList<>(timeline);
+    }
+
+    static void clearTimeline() {
+        timeline.clear();
+    }
+
     void logConfiguration(ConfigurationRegistry configurationRegistry, Logger logger) {
         final String serviceName = configurationRegistry.getConfig(CoreConfiguration.class).getServiceName();
         logger.info("Starting Elastic APM {} as {} on {}", elasticApmVersion, serviceName, getJvmAndOsVersionString());
@@ -105,4 +165,30 @@ public class StartupInfo extends AbstractLifecycleListener {
                 option.getNameOfCurrentConfigurationSource());
         }
     }
+
+    static class Phase {
+        private final String name;
+        private final String threadName;
+        private final long startNanos;
+        private final long endNanos;
+
+        private Phase(String name, String threadName, long startNanos, long endNanos) {
+            this.name = name;
+            this.threadName = threadName;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getThreadName() {
+            return threadName;
+        }
+
+        long getDurationMs() {
+            return TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+        }
+    }
 }
@@ -0,0 +1,37 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.context;
+
+/**
+ * A {@link LifecycleListener} whose start may be deferred until the first transaction starts,
+ * or until the {@link co.elastic.apm.agent.configuration.CoreConfiguration#getDeferredStartupDelay() deferred startup delay} elapsed.
+ * <p>
+ * Implement this interface for components which are not required to trace the first requests of an application,
+ * so that their initialization does not add to the startup time of the application.
+ * If the tracer is paused when the listener is started, {@link #pause()} is called right after {@link #start}.
+ * </p>
+ */
+public interface DeferrableLifecycleListener extends LifecycleListener {
+}
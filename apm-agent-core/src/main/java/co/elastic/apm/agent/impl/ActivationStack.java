@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * The stack of the spans which are active on a particular thread.
+ * This is the only per-thread state of the {@link ElasticApmTracer},
+ * so that threads cost a single small object and only if they actually interact with the tracer.
+ * <p>
+ * Compared to an {@link java.util.ArrayDeque}, the spans are stored in a plain array which only grows
+ * when spans are nested deeper than ever before on this thread.
+ * Both the top of the stack (the active span) and the bottom of the stack (usually the transaction) can be accessed with
+ * a single array read.
+ * </p>
+ * <p>
+ * Instances are confined to a single thread and are therefore not thread safe.
+ * </p>
+ */
+final class ActivationStack {
+
+    private static final int INITIAL_CAPACITY = 4;
+    private static final AbstractSpan<?>[] EMPTY = new AbstractSpan<?>[0];
+
+    /**
+     * Only allocated once a span gets activated on this thread,
+     * as many threads only ever check whether there's an active span or disable wrapping
+     */
+    private AbstractSpan<?>[] spans = EMPTY;
+    private int size;
+    private boolean wrappingAllowed = true;
+
+    void push(AbstractSpan<?> span) {
+        if (size == spans.length) {
+            spans = Arrays.copyOf(spans, Math.max(INITIAL_CAPACITY, size * 2));
+        }
+        spans[size++] = span;
+    }
+
+    /**
+     * Removes the top of the stack.
+     *
+     * @return the previous top of the stack, or {@code null} if the stack is empty
+     */
+    @Nullable
+    AbstractSpan<?> pop() {
+        if (size == 0) {
+            return null;
+        }
+        AbstractSpan<?> span = spans[--size];
+        // don't prevent the span from being recycled
+        spans[size] = null;
+        return span;
+    }
+
+    /**
+     * @return the top of the stack, which is the currently active span, or {@code null} if the stack is empty
+     */
+    @Nullable
+    AbstractSpan<?> peek() {
+        return size == 0 ? null : spans[size - 1];
+    }
+
+    /**
+     * @return the bottom of the stack, or {@code null} if the stack is empty
+     */
+    @Nullable
+    AbstractSpan<?> peekLast() {
+        return size == 0 ? null : spans[0];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isWrappingAllowed() {
+        return wrappingAllowed;
+    }
+
+    void setWrappingAllowed(boolean wrappingAllowed) {
+        this.wrappingAllowed = wrappingAllowed;
+    }
+}
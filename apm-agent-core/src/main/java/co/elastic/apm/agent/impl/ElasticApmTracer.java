@@ -26,12 +26,15 @@ package co.elastic.apm.agent.impl;
 
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.configuration.ServiceNameUtil;
+import co.elastic.apm.agent.configuration.StartupInfo;
 import co.elastic.apm.agent.context.LifecycleListener;
 import co.elastic.apm.agent.impl.async.SpanInScopeCallableWrapper;
 import co.elastic.apm.agent.impl.async.SpanInScopeRunnableWrapper;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.sampling.AdaptiveSampler;
 import co.elastic.apm.agent.impl.sampling.ProbabilitySampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.sampling.TailSamplingReporter;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.BinaryHeaderGetter;
@@ -56,8 +59,7 @@ import org.stagemonitor.configuration.ConfigurationOptionProvider;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nullable;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -86,6 +88,12 @@ public class ElasticApmTracer {
     private final StacktraceConfiguration stacktraceConfiguration;
     private final ApmServerClient apmServerClient;
     private final List<LifecycleListener> lifecycleListeners = new CopyOnWriteArrayList<>();
+    /**
+     * The listeners which have been started, in the order they have been started.
+     * Deferred listeners are only added once they have been started, so that they don't receive pause, resume or stop events before.
+     */
+    private final List<LifecycleListener> startedLifecycleListeners = new CopyOnWriteArrayList<>();
+    private final StartupScheduler startupScheduler;
     private final ObjectPool<Transaction> transactionPool;
     private final ObjectPool<Span> spanPool;
     private final ObjectPool<ErrorCapture> errorPool;
@@ -96,19 +104,8 @@ public class ElasticApmTracer {
     // Maintains a stack of all the activated spans
     // This way its easy to retrieve the bottom of the stack (the transaction)
     // Also, the caller does not have to keep a reference to the previously active span, as that is maintained by the stack
-    private final ThreadLocal<Deque<AbstractSpan<?>>> activeStack = new ThreadLocal<Deque<AbstractSpan<?>>>() {
-        @Override
-        protected Deque<AbstractSpan<?>> initialValue() {
-            return new ArrayDeque<AbstractSpan<?>>();
-        }
-    };
-
-    private final ThreadLocal<Boolean> allowWrappingOnThread = new ThreadLocal<Boolean>() {
-        @Override
-        protected Boolean initialValue() {
-            return Boolean.TRUE;
-        }
-    };
+    // The stack is only created when a thread writes to it, reads on threads without a stack don't allocate
+    private final ThreadLocal<ActivationStack> activeStack = new ThreadLocal<ActivationStack>();
 
     private final CoreConfiguration coreConfiguration;
     private final List<ActivationListener> activationListeners;
@@ -130,12 +127,15 @@ public class ElasticApmTracer {
     ElasticApmTracer(ConfigurationRegistry configurationRegistry, Reporter reporter, ObjectPoolFactory poolFactory, ApmServerClient apmServerClient, MetaData metaData) {
         this.metricRegistry = new MetricRegistry(configurationRegistry.getConfig(ReporterConfiguration.class));
         this.configurationRegistry = configurationRegistry;
-        this.reporter = reporter;
         this.stacktraceConfiguration = configurationRegistry.getConfig(StacktraceConfiguration.class);
         this.apmServerClient = apmServerClient;
         this.metaData = metaData;
         int maxPooledElements = configurationRegistry.getConfig(ReporterConfiguration.class).getMaxQueueSize() * 2;
         coreConfiguration = configurationRegistry.getConfig(CoreConfiguration.class);
+        if (coreConfiguration.isTailSampling()) {
+            reporter = new TailSamplingReporter(reporter, coreConfiguration);
+        }
+        this.reporter = reporter;
 
         TracerConfiguration tracerConfiguration = configurationRegistry.getConfig(TracerConfiguration.class);
         recordingConfigOptionSet = tracerConfiguration.getRecordingConfig().get();
@@ -156,14 +156,30 @@ public class ElasticApmTracer {
         runnableSpanWrapperObjectPool = poolFactory.createRunnableWrapperPool(MAX_POOLED_RUNNABLES, this);
         callableSpanWrapperObjectPool = poolFactory.createCallableWrapperPool(MAX_POOLED_RUNNABLES, this);
 
-        sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
-        coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
-            @Override
-            public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
-                sampler = ProbabilitySampler.of(newValue);
-            }
-        });
-        this.activationListeners = DependencyInjectingServiceLoader.load(ActivationListener.class, this);
+        // with tail sampling, this is the head-based sampling decision which is propagated to downstream services
+        // all root transactions are recorded nevertheless, the TailSamplingReporter decides which ones to keep
+        if (coreConfiguration.getSampledTransactionsPerSecond() > 0) {
+            final AdaptiveSampler adaptiveSampler = new AdaptiveSampler(coreConfiguration.getSampledTransactionsPerSecond(), coreConfiguration.getSampleRate().get());
+            adaptiveSampler.bindTo(metricRegistry);
+            sampler = adaptiveSampler;
+            coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
+                @Override
+                public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
+                    adaptiveSampler.setMaxSampleRate(newValue);
+                }
+            });
+        } else {
+            sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
+            coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
+                @Override
+                public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
+                    sampler = ProbabilitySampler.of(newValue);
+                }
+            });
+        }
+        // deferred listeners, like the profiler, may register activation listeners after the tracer has been started
+        this.activationListeners = new CopyOnWriteArrayList<>(DependencyInjectingServiceLoader.load(ActivationListener.class, this));
+        startupScheduler = new StartupScheduler(this, coreConfiguration.getStartupThreads(), coreConfiguration.getDeferredStartupDelay().getMillis());
         reporter.scheduleMetricReporting(metricRegistry, configurationRegistry.getConfig(ReporterConfiguration.class).getMetricsIntervalMs(), this);
 
         // sets the assertionsEnabled flag to true if indeed enabled
@@ -299,18 +315,23 @@ public class ElasticApmTracer {
         if (serviceName != null) {
             transaction.getTraceContext().setServiceName(serviceName);
         }
+        startupScheduler.onTransactionStart();
     }
 
     public void avoidWrappingOnThread() {
-        allowWrappingOnThread.set(Boolean.FALSE);
+        getOrCreateActivationStack().setWrappingAllowed(false);
     }
 
     public void allowWrappingOnThread() {
-        allowWrappingOnThread.set(Boolean.TRUE);
+        ActivationStack stack = activeStack.get();
+        if (stack != null) {
+            stack.setWrappingAllowed(true);
+        }
     }
 
     public boolean isWrappingAllowedOnThread() {
-        return allowWrappingOnThread.get() == Boolean.TRUE;
+        ActivationStack stack = activeStack.get();
+        return stack == null || stack.isWrappingAllowed();
     }
 
     public Transaction noopTransaction() {
@@ -328,7 +349,8 @@ public class ElasticApmTracer {
 
     @Nullable
     public Transaction currentTransaction() {
-        final AbstractSpan<?> bottomOfStack = activeStack.get().peekLast();
+        final ActivationStack stack = activeStack.get();
+        final AbstractSpan<?> bottomOfStack = stack != null ? stack.peekLast() : null;
         return bottomOfStack != null ? bottomOfStack.getTransaction() : null;
     }
 
@@ -413,6 +435,10 @@ public class ElasticApmTracer {
                 error.asChildOf(parent);
                 // don't discard spans leading up to an error, otherwise they'd point to an invalid parent
                 parent.setNonDiscardable();
+                Transaction parentTransaction = parent.getTransaction();
+                if (parentTransaction != null) {
+                    parentTransaction.getTailSamplingBuffer().markError();
+                }
             } else {
                 error.getTraceContext().getId().setToRandomValue();
                 error.getTraceContext().setServiceName(getServiceName(initiatingClassLoader));
@@ -464,9 +490,56 @@ public class ElasticApmTracer {
             span.decrementReferences();
             return;
         }
+        AbstractSpan<?> parent = span.getParent();
+        if (parent != null && coreConfiguration.isSpanCompressionEnabled()) {
+            if (span.isCompressionEligible()) {
+                compressOrBuffer(parent, span);
+                return;
+            }
+            // only consecutive siblings are compressed
+            reportBufferedSpan(parent);
+        }
         reportSpan(span);
     }
 
+    /**
+     * Compresses the ended span into its buffered sibling, if possible.
+     * Otherwise, the sibling is reported and the ended span takes its place in the buffer of the parent.
+     * The buffered span is reported at the latest when the parent ends.
+     */
+    private void compressOrBuffer(AbstractSpan<?> parent, Span span) {
+        long exactMatchMaxDurationUs = coreConfiguration.getSpanCompressionExactMatchMaxDuration().getMillis() * 1000;
+        long sameKindMaxDurationUs = coreConfiguration.getSpanCompressionSameKindMaxDuration().getMillis() * 1000;
+        while (true) {
+            Span buffered = parent.getBufferedSpan();
+            if (buffered != null && buffered.tryToCompress(span, exactMatchMaxDurationUs, sameKindMaxDurationUs)) {
+                logger.debug("Compressed span {} into {}", span, buffered);
+                span.decrementReferences();
+                return;
+            }
+            if (parent.compareAndSetBufferedSpan(buffered, span)) {
+                if (buffered != null) {
+                    reportSpan(buffered);
+                }
+                if (parent.isFinished()) {
+                    // the parent has ended concurrently and may not have seen the buffered span
+                    reportBufferedSpan(parent);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reports the buffered compression-eligible child span of the provided span, if there is one.
+     */
+    public void reportBufferedSpan(AbstractSpan<?> parent) {
+        Span buffered = parent.getBufferedSpan();
+        if (buffered != null && parent.compareAndSetBufferedSpan(buffered, null)) {
+            reportSpan(buffered);
+        }
+    }
+
     private void reportSpan(Span span) {
         AbstractSpan<?> parent = span.getParent();
         if (parent != null && parent.isDiscarded()) {
@@ -532,6 +605,7 @@ public class ElasticApmTracer {
     public synchronized void stop() {
         tracerState = TracerState.STOPPED;
         logger.info("Tracer switched to STOPPED state");
+        startupScheduler.stop();
         try {
             configurationRegistry.close();
             reporter.close();
@@ -539,7 +613,7 @@ public class ElasticApmTracer {
             logger.warn("Suppressed exception while calling stop()", e);
         }
 
-        for (LifecycleListener lifecycleListener : lifecycleListeners) {
+        for (LifecycleListener lifecycleListener : startedLifecycleListeners) {
             try {
                 lifecycleListener.stop();
             } catch (Exception e) {
@@ -562,7 +636,47 @@ public class ElasticApmTracer {
 
     @Nullable
     public AbstractSpan<?> getActive() {
-        return activeStack.get().peek();
+        final ActivationStack stack = activeStack.get();
+        return stack != null ? stack.peek() : null;
+    }
+
+    private ActivationStack getOrCreateActivationStack() {
+        ActivationStack stack = activeStack.get();
+        if (stack == null) {
+            stack = new ActivationStack();
+            activeStack.set(stack);
+        }
+        return stack;
+    }
+
+    /**
+     * Returns the number of spans which are currently active on this thread.
+     * <p>
+     * Together with {@link #restoreActivationDepth(int)}, this acts as an allocation-free snapshot of the active spans,
+     * which makes sure that no span stays active on a thread after a unit of work has been executed,
+     * even if some of the spans have not been deactivated properly.
+     * </p>
+     *
+     * @return the number of spans which are currently active on this thread
+     */
+    public int getActivationDepth() {
+        final ActivationStack stack = activeStack.get();
+        return stack != null ? stack.size() : 0;
+    }
+
+    /**
+     * Deactivates all spans which have been activated on this thread since {@link #getActivationDepth()} returned the provided depth.
+     *
+     * @param depth the depth to restore, as returned by {@link #getActivationDepth()}
+     */
+    public void restoreActivationDepth(int depth) {
+        final ActivationStack stack = activeStack.get();
+        if (stack == null) {
+            return;
+        }
+        for (AbstractSpan<?> span = stack.peek(); stack.size() > depth && span != null; span = stack.peek()) {
+            deactivate(span, stack);
+        }
     }
 
     public void registerSpanListener(ActivationListener activationListener) {
@@ -579,13 +693,17 @@ public class ElasticApmTracer {
             return;
         }
         this.lifecycleListeners.addAll(lifecycleListeners);
+        List<LifecycleListener> immediateListeners = new ArrayList<>(lifecycleListeners.size());
+        List<LifecycleListener> deferredListeners = new ArrayList<>();
         for (LifecycleListener lifecycleListener : lifecycleListeners) {
-            try {
-                lifecycleListener.start(this);
-            } catch (Exception e) {
-                logger.error("Failed to start " + lifecycleListener.getClass().getName(), e);
+            if (startupScheduler.isDeferred(lifecycleListener)) {
+                deferredListeners.add(lifecycleListener);
+            } else {
+                immediateListeners.add(lifecycleListener);
             }
         }
+        startedLifecycleListeners.addAll(immediateListeners);
+        startupScheduler.start(immediateListeners, deferredListeners);
         tracerState = TracerState.RUNNING;
         if (recordingConfigOptionSet) {
             logger.info("Tracer switched to RUNNING state");
@@ -594,6 +712,40 @@ public class ElasticApmTracer {
         }
     }
 
+    /**
+     * Starts a single listener.
+     * May be called concurrently by {@link StartupScheduler} and must therefore not acquire the lock of the tracer.
+     */
+    void startLifecycleListener(LifecycleListener lifecycleListener) {
+        long start = System.nanoTime();
+        try {
+            lifecycleListener.start(this);
+        } catch (Exception e) {
+            logger.error("Failed to start " + lifecycleListener.getClass().getName(), e);
+        }
+        StartupInfo.recordPhase(lifecycleListener.getClass().getSimpleName(), start);
+    }
+
+    /**
+     * Starts the listeners whose start has been deferred by {@link StartupScheduler} and aligns them with the current state of the tracer.
+     */
+    synchronized void startDeferredLifecycleListeners(List<LifecycleListener> deferredListeners) {
+        if (tracerState == TracerState.STOPPED) {
+            return;
+        }
+        for (LifecycleListener lifecycleListener : deferredListeners) {
+            startedLifecycleListeners.add(lifecycleListener);
+            startLifecycleListener(lifecycleListener);
+            if (tracerState == TracerState.PAUSED) {
+                try {
+                    lifecycleListener.pause();
+                } catch (Exception e) {
+                    logger.warn("Suppressed exception while calling pause()", e);
+                }
+            }
+        }
+    }
+
     public synchronized void onStressDetected() {
         currentlyUnderStress = true;
         if (tracerState == TracerState.RUNNING) {
@@ -630,7 +782,7 @@ public class ElasticApmTracer {
         }
         tracerState = TracerState.PAUSED;
         logger.info("Tracer switched to PAUSED state");
-        for (LifecycleListener lifecycleListener : lifecycleListeners) {
+        for (LifecycleListener lifecycleListener : startedLifecycleListeners) {
             try {
                 lifecycleListener.pause();
             } catch (Exception e) {
@@ -644,7 +796,7 @@ public class ElasticApmTracer {
             logger.warn("Attempting to resume the agent when it is in a {} state", tracerState);
             return;
         }
-        for (LifecycleListener lifecycleListener : lifecycleListeners) {
+        for (LifecycleListener lifecycleListener : startedLifecycleListeners) {
             try {
                 lifecycleListener.resume();
             } catch (Exception e) {
@@ -688,16 +840,19 @@ public class ElasticApmTracer {
                 logger.warn("Exception while calling {}#beforeActivate", activationListeners.get(i).getClass().getSimpleName(), t);
             }
         }
-        activeStack.get().push(span);
+        getOrCreateActivationStack().push(span);
     }
 
     public void deactivate(AbstractSpan<?> span) {
+        deactivate(span, getOrCreateActivationStack());
+    }
+
+    private void deactivate(AbstractSpan<?> span, ActivationStack stack) {
         if (logger.isDebugEnabled()) {
             logger.debug("Deactivating {} on thread {}", span, Thread.currentThread().getId());
         }
         try {
-            final Deque<AbstractSpan<?>> stack = activeStack.get();
-            assertIsActive(span, stack.poll());
+            assertIsActive(span, stack.pop());
             List<ActivationListener> activationListeners = getActivationListeners();
             for (int i = 0, size = activationListeners.size(); i < size; i++) {
                     try {
@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.context.DeferrableLifecycleListener;
+import co.elastic.apm.agent.context.LifecycleListener;
+import co.elastic.apm.agent.util.ExecutorUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Starts the {@link LifecycleListener}s of the {@link ElasticApmTracer}.
+ * <p>
+ * When configured with more than one thread, the listeners are started in parallel on a bounded pool
+ * and {@link #start(List, List)} waits until all of them have been started.
+ * The listeners must therefore not call synchronized methods of the {@link ElasticApmTracer} in {@link LifecycleListener#start}.
+ * </p>
+ * <p>
+ * {@link DeferrableLifecycleListener}s are started later, as soon as the first transaction starts
+ * or when the deferred startup delay elapsed, whichever comes first.
+ * </p>
+ */
+class StartupScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupScheduler.class);
+
+    private final ElasticApmTracer tracer;
+    private final int threads;
+    private final long deferredStartupDelayMs;
+    private final AtomicBoolean deferredStartTriggered = new AtomicBoolean();
+    /**
+     * Checked on every transaction start, so that triggering the deferred start is cheap once it has been done.
+     */
+    private volatile boolean deferredStartPending;
+    private List<LifecycleListener> deferredListeners = Collections.emptyList();
+    @Nullable
+    private ScheduledThreadPoolExecutor executor;
+
+    StartupScheduler(ElasticApmTracer tracer, int threads, long deferredStartupDelayMs) {
+        this.tracer = tracer;
+        this.threads = threads;
+        this.deferredStartupDelayMs = deferredStartupDelayMs;
+    }
+
+    boolean isDeferred(LifecycleListener lifecycleListener) {
+        return deferredStartupDelayMs > 0 && lifecycleListener instanceof DeferrableLifecycleListener;
+    }
+
+    /**
+     * Starts the provided listeners and schedules the start of the deferred listeners.
+     *
+     * @param lifecycleListeners the listeners to start immediately
+     * @param deferredListeners  the listeners to start when the first transaction starts or after the deferred startup delay
+     */
+    synchronized void start(List<LifecycleListener> lifecycleListeners, List<LifecycleListener> deferredListeners) {
+        if (threads > 1 && lifecycleListeners.size() > 1 || !deferredListeners.isEmpty()) {
+            executor = ExecutorUtils.createSchedulingDeamonPool("startup", threads);
+        }
+        if (executor != null && threads > 1 && lifecycleListeners.size() > 1) {
+            startInParallel(executor, lifecycleListeners);
+        } else {
+            for (LifecycleListener lifecycleListener : lifecycleListeners) {
+                tracer.startLifecycleListener(lifecycleListener);
+            }
+        }
+        if (executor != null) {
+            if (deferredListeners.isEmpty()) {
+                executor.shutdown();
+            } else {
+                this.deferredListeners = new ArrayList<>(deferredListeners);
+                deferredStartPending = true;
+                executor.schedule(new DeferredStart(), deferredStartupDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void startInParallel(ScheduledThreadPoolExecutor executor, List<LifecycleListener> lifecycleListeners) {
+        List<Callable<Void>> tasks = new ArrayList<>(lifecycleListeners.size());
+        for (final LifecycleListener lifecycleListener : lifecycleListeners) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    tracer.startLifecycleListener(lifecycleListener);
+                    return null;
+                }
+            });
+        }
+        try {
+            // exceptions are handled by ElasticApmTracer#startLifecycleListener
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the agent components to start");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Triggers the start of the deferred listeners, if that has not already happened.
+     * <p>
+     * Called on every transaction start, so this method has to be cheap if there's nothing left to do.
+     * </p>
+     */
+    void onTransactionStart() {
+        if (deferredStartPending && deferredStartTriggered.compareAndSet(false, true)) {
+            ScheduledThreadPoolExecutor executor;
+            synchronized (this) {
+                executor = this.executor;
+            }
+            if (executor != null && !executor.isShutdown()) {
+                executor.execute(new DeferredStart());
+            }
+        }
+    }
+
+    /**
+     * Cancels the start of the deferred listeners, if they have not been started yet, and shuts down the startup threads.
+     */
+    synchronized void stop() {
+        deferredStartPending = false;
+        deferredStartTriggered.set(true);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private class DeferredStart implements Runnable {
+
+        @Override
+        public void run() {
+            // either the delay elapsed or the first transaction started, whichever comes first wins
+            if (!deferredStartPending) {
+                return;
+            }
+            deferredStartTriggered.set(true);
+            List<LifecycleListener> listeners;
+            synchronized (StartupScheduler.this) {
+                listeners = deferredListeners;
+                deferredListeners = Collections.emptyList();
+                deferredStartPending = false;
+            }
+            if (listeners.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            tracer.startDeferredLifecycleListeners(listeners);
+            logger.debug("Started deferred agent components in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            synchronized (StartupScheduler.this) {
+                if (executor != null) {
+                    executor.shutdown();
+                }
+            }
+        }
+    }
+}
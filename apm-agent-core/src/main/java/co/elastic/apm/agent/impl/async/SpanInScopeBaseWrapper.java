@@ -38,14 +38,21 @@ abstract class SpanInScopeBaseWrapper {
         this.tracer = tracer;
     }
 
-    protected boolean beforeDelegation(final AbstractSpan<?> localSpan) {
-        boolean activated = false;
+    /**
+     * Activates the span, unless it is already active on this thread.
+     *
+     * @param localSpan the span to activate
+     * @return the {@linkplain ElasticApmTracer#getActivationDepth() activation depth} before the span has been activated,
+     * or {@code -1} if the span has not been activated
+     */
+    protected int beforeDelegation(final AbstractSpan<?> localSpan) {
+        int activationDepth = -1;
         if (localSpan != null) {
             try {
                 if (tracer.getActive() != localSpan) {
                     // activate only if the corresponding span is not already activated on this thread
+                    activationDepth = tracer.getActivationDepth();
                     localSpan.activate();
-                    activated = true;
                 }
             } catch (Throwable t) {
                 try {
@@ -54,14 +61,22 @@ abstract class SpanInScopeBaseWrapper {
                 }
             }
         }
-        return activated;
+        return activationDepth;
     }
 
-    protected void afterDelegation(final AbstractSpan<?> localSpan, boolean activated) {
+    /**
+     * Deactivates the span if it has been activated by {@link #beforeDelegation(AbstractSpan)}.
+     * Spans which have been activated by the delegate but not deactivated are deactivated as well,
+     * so that they don't leak into the next task which is executed on this thread.
+     *
+     * @param localSpan       the span which has been passed to {@link #beforeDelegation(AbstractSpan)}
+     * @param activationDepth the return value of {@link #beforeDelegation(AbstractSpan)}
+     */
+    protected void afterDelegation(final AbstractSpan<?> localSpan, int activationDepth) {
         try {
             if (localSpan != null) {
-                if (activated) {
-                    localSpan.deactivate();
+                if (activationDepth >= 0) {
+                    tracer.restoreActivationDepth(activationDepth);
                 }
                 localSpan.decrementReferences();
             }
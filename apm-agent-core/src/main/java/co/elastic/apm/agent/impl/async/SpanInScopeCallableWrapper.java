@@ -59,13 +59,13 @@ public class SpanInScopeCallableWrapper<V> extends SpanInScopeBaseWrapper implem
     public V call() throws Exception {
         // minimize volatile reads
         AbstractSpan<?> localSpan = span;
-        boolean activated = beforeDelegation(localSpan);
+        int activationDepth = beforeDelegation(localSpan);
         try {
             //noinspection ConstantConditions
             return delegate.call();
             // the span may be ended at this point
         } finally {
-            afterDelegation(localSpan, activated);
+            afterDelegation(localSpan, activationDepth);
         }
     }
 
@@ -58,13 +58,13 @@ public class SpanInScopeRunnableWrapper extends SpanInScopeBaseWrapper implement
     public void run() {
         // minimize volatile reads
         AbstractSpan<?> localSpan = span;
-        boolean activated = beforeDelegation(localSpan);
+        int activationDepth = beforeDelegation(localSpan);
         try {
             //noinspection ConstantConditions
             delegate.run();
             // the span may be ended at this point
         } finally {
-            afterDelegation(localSpan, activated);
+            afterDelegation(localSpan, activationDepth);
         }
     }
 
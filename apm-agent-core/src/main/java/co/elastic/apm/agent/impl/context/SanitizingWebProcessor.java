@@ -75,13 +75,13 @@ public class SanitizingWebProcessor implements Processor {
 
     private void sanitizeMap(PotentiallyMultiValuedMap map) {
         for (int i = 0; i < map.size(); i++) {
-            if (isSensitive(map.getKey(i))) {
+            if (isSensitive(map.getKeyChars(i))) {
                 map.set(i, REDACTED_CONTEXT_STRING);
             }
         }
     }
 
-    private boolean isSensitive(String key) {
+    private boolean isSensitive(CharSequence key) {
         assert config != null;
         return WildcardMatcher.anyMatch(config.getSanitizeFieldNames(), key) != null;
     }
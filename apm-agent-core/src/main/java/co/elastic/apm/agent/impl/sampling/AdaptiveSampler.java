@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.util.StripedCounter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Sampler} which aims to sample a fixed number of transactions per second,
+ * regardless of the actual throughput.
+ * <p>
+ * The sampling decision is made based on the trace id, like in the {@link ProbabilitySampler}.
+ * But instead of having a static sampling rate,
+ * the rate is adjusted once per interval, based on the throughput observed in the previous intervals.
+ * The throughput is smoothed with an exponentially weighted moving average so that short spikes don't cause the rate to oscillate.
+ * The effective rate never exceeds the configured maximum rate.
+ * </p>
+ * <p>
+ * Implementation notes:
+ * </p>
+ * {@link #isSampled(Id)} is called for every root transaction.
+ * To keep it allocation-free and free of contention,
+ * the number of seen transactions is tracked by a {@link StripedCounter}.
+ * There's no dedicated thread which adjusts the rate.
+ * Instead, the first thread which calls {@link #isSampled(Id)} after the interval has elapsed adjusts it.
+ */
+public class AdaptiveSampler implements Sampler {
+
+    private static final long DEFAULT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * The weight of the throughput of the most recent interval
+     */
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    private final StripedCounter seen = new StripedCounter();
+    private final AtomicLong nextAdjustmentNanos;
+    private final long intervalNanos;
+    private final double targetPerSecond;
+    private volatile double maxSampleRate;
+    private volatile double sampleRate;
+    private volatile long higherBound;
+    // only accessed by the thread which adjusts the rate
+    private long lastAdjustmentNanos;
+    private long lastSeen;
+    private double averagePerSecond = -1;
+
+    /**
+     * @param targetPerSecond the number of transactions per second which should be sampled
+     * @param maxSampleRate   the upper bound of the effective sampling rate
+     */
+    public AdaptiveSampler(double targetPerSecond, double maxSampleRate) {
+        this(targetPerSecond, maxSampleRate, DEFAULT_INTERVAL_NANOS, System.nanoTime());
+    }
+
+    AdaptiveSampler(double targetPerSecond, double maxSampleRate, long intervalNanos, long nowNanos) {
+        this.targetPerSecond = targetPerSecond;
+        this.intervalNanos = intervalNanos;
+        this.lastAdjustmentNanos = nowNanos;
+        this.nextAdjustmentNanos = new AtomicLong(nowNanos + intervalNanos);
+        this.maxSampleRate = maxSampleRate;
+        setSampleRate(maxSampleRate);
+    }
+
+    @Override
+    public boolean isSampled(Id traceId) {
+        seen.increment();
+        long now = System.nanoTime();
+        long next = nextAdjustmentNanos.get();
+        if (now - next >= 0 && nextAdjustmentNanos.compareAndSet(next, now + intervalNanos)) {
+            adjust(now);
+        }
+        final long leastSignificantBits = traceId.getLeastSignificantBits();
+        final long higherBound = this.higherBound;
+        return higherBound == Long.MAX_VALUE || leastSignificantBits > -higherBound && leastSignificantBits < higherBound;
+    }
+
+    /**
+     * Adjusts the effective sampling rate based on the throughput since the last adjustment
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     */
+    synchronized void adjust(long nowNanos) {
+        long elapsedNanos = nowNanos - lastAdjustmentNanos;
+        if (elapsedNanos <= 0) {
+            return;
+        }
+        long seen = this.seen.sum();
+        double perSecond = (seen - lastSeen) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        lastSeen = seen;
+        lastAdjustmentNanos = nowNanos;
+        if (averagePerSecond < 0) {
+            averagePerSecond = perSecond;
+        } else {
+            averagePerSecond = SMOOTHING_FACTOR * perSecond + (1 - SMOOTHING_FACTOR) * averagePerSecond;
+        }
+        updateSampleRate();
+    }
+
+    private void updateSampleRate() {
+        if (averagePerSecond <= targetPerSecond) {
+            setSampleRate(maxSampleRate);
+        } else {
+            setSampleRate(Math.min(maxSampleRate, targetPerSecond / averagePerSecond));
+        }
+    }
+
+    private void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+        if (sampleRate >= 1) {
+            // samples all ids, see isSampled
+            higherBound = Long.MAX_VALUE;
+        } else {
+            higherBound = (long) (Long.MAX_VALUE * sampleRate);
+        }
+    }
+
+    /**
+     * Sets the upper bound of the effective sampling rate
+     *
+     * @param maxSampleRate the upper bound of the effective sampling rate
+     */
+    public synchronized void setMaxSampleRate(double maxSampleRate) {
+        this.maxSampleRate = maxSampleRate;
+        updateSampleRate();
+    }
+
+    /**
+     * Returns the current effective sampling rate
+     *
+     * @return the current effective sampling rate
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public void bindTo(MetricRegistry metricRegistry) {
+        metricRegistry.add("agent.sampling.rate", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return sampleRate;
+            }
+        });
+    }
+}
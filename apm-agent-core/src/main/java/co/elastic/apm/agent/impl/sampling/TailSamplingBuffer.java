@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds back the spans of a {@link Transaction} until the tail-based sampling decision has been made.
+ * <p>
+ * Except for {@link #markError()} and {@link #hasError()},
+ * the methods of this class must only be called while holding the monitor lock of the buffer.
+ * </p>
+ *
+ * @see TailSamplingReporter
+ */
+public class TailSamplingBuffer implements Recyclable {
+
+    private final List<Span> spans = new ArrayList<>();
+    private boolean decided;
+    private boolean sampled;
+    private volatile boolean error;
+
+    /**
+     * Records that an error has been captured during the transaction
+     */
+    public void markError() {
+        error = true;
+    }
+
+    boolean hasError() {
+        return error;
+    }
+
+    boolean isDecided() {
+        return decided;
+    }
+
+    boolean isSampled() {
+        return sampled;
+    }
+
+    int size() {
+        return spans.size();
+    }
+
+    void add(Span span) {
+        spans.add(span);
+    }
+
+    /**
+     * Makes the sampling decision and hands out the spans that have been held back
+     *
+     * @param sampled whether the transaction and its spans should be kept
+     * @param spans   the list the held back spans are moved to
+     */
+    void decide(boolean sampled, List<Span> spans) {
+        this.decided = true;
+        this.sampled = sampled;
+        spans.addAll(this.spans);
+        this.spans.clear();
+    }
+
+    @Override
+    public void resetState() {
+        spans.clear();
+        decided = false;
+        sampled = false;
+        error = false;
+    }
+}
@@ -0,0 +1,196 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.Reporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Defers the sampling decision until the end of a transaction (tail-based sampling).
+ * <p>
+ * Spans are held back in the {@link TailSamplingBuffer} of their transaction.
+ * When the transaction ends, it is decided whether to keep the transaction including all of its spans,
+ * based on its duration, result, name and whether an error has been captured.
+ * Transactions that don't match any of these rules are kept according to the head-based sampling decision,
+ * which is also the decision that has been propagated to downstream services.
+ * </p>
+ * <p>
+ * If the total number of held back spans exceeds {@link CoreConfiguration#getTailSamplingMaxBufferedSpans()},
+ * the decision for the transaction which is about to exceed the limit is made immediately,
+ * based on the head-based sampling decision.
+ * </p>
+ */
+public class TailSamplingReporter implements Reporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TailSamplingReporter.class);
+
+    private final Reporter reporter;
+    private final CoreConfiguration coreConfiguration;
+    private final int maxBufferedSpans;
+    private final AtomicInteger bufferedSpans = new AtomicInteger();
+
+    public TailSamplingReporter(Reporter reporter, CoreConfiguration coreConfiguration) {
+        this.reporter = reporter;
+        this.coreConfiguration = coreConfiguration;
+        this.maxBufferedSpans = coreConfiguration.getTailSamplingMaxBufferedSpans();
+    }
+
+    @Override
+    public void report(Transaction transaction) {
+        TailSamplingBuffer buffer = transaction.getTailSamplingBuffer();
+        List<Span> spans = new ArrayList<>(0);
+        boolean sampled;
+        synchronized (buffer) {
+            if (!buffer.isDecided()) {
+                decide(buffer, transaction.isSampled() && shouldKeep(transaction, buffer), spans);
+            }
+            sampled = buffer.isSampled();
+        }
+        reportOrDrop(spans, sampled);
+        if (!sampled && transaction.isSampled()) {
+            transaction.markNotSampled();
+        }
+        reporter.report(transaction);
+    }
+
+    @Override
+    public void report(Span span) {
+        Transaction transaction = span.getTransaction();
+        if (transaction == null) {
+            reporter.report(span);
+            return;
+        }
+        TailSamplingBuffer buffer = transaction.getTailSamplingBuffer();
+        List<Span> spans = null;
+        boolean sampled;
+        synchronized (buffer) {
+            if (!buffer.isDecided()) {
+                if (buffer.size() < coreConfiguration.getTransactionMaxSpans() && tryReserveBufferSlot()) {
+                    buffer.add(span);
+                    return;
+                }
+                logger.debug("Tail sampling buffer full, falling back to head-based sampling for {}", transaction);
+                spans = new ArrayList<>(buffer.size());
+                decide(buffer, transaction.getTraceContext().isSampledFlagSet(), spans);
+            }
+            sampled = buffer.isSampled();
+        }
+        if (spans != null) {
+            reportOrDrop(spans, sampled);
+        }
+        if (sampled) {
+            reporter.report(span);
+        } else {
+            span.decrementReferences();
+        }
+    }
+
+    private boolean tryReserveBufferSlot() {
+        if (bufferedSpans.incrementAndGet() > maxBufferedSpans) {
+            bufferedSpans.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void decide(TailSamplingBuffer buffer, boolean sampled, List<Span> spans) {
+        buffer.decide(sampled, spans);
+        bufferedSpans.addAndGet(-spans.size());
+    }
+
+    private boolean shouldKeep(Transaction transaction, TailSamplingBuffer buffer) {
+        if (coreConfiguration.isTailSamplingErrors() && buffer.hasError()) {
+            return true;
+        }
+        long minDurationMs = coreConfiguration.getTailSamplingMinDuration().getMillis();
+        if (minDurationMs >= 0 && transaction.getDuration() >= minDurationMs * 1000) {
+            return true;
+        }
+        String result = transaction.getResult();
+        if (result != null && WildcardMatcher.isAnyMatch(coreConfiguration.getTailSamplingResults(), result)) {
+            return true;
+        }
+        if (WildcardMatcher.isAnyMatch(coreConfiguration.getTailSamplingTransactionNames(), transaction.getNameAsString())) {
+            return true;
+        }
+        // the sampled flag may already have been propagated to downstream services
+        // dropping the transaction would leave their transactions without a parent
+        return transaction.getTraceContext().isSampledFlagSet();
+    }
+
+    private void reportOrDrop(List<Span> spans, boolean sampled) {
+        for (int i = 0, size = spans.size(); i < size; i++) {
+            Span span = spans.get(i);
+            if (sampled) {
+                reporter.report(span);
+            } else {
+                span.decrementReferences();
+            }
+        }
+    }
+
+    @Override
+    public void report(ErrorCapture error) {
+        reporter.report(error);
+    }
+
+    @Override
+    public long getDropped() {
+        return reporter.getDropped();
+    }
+
+    @Override
+    public long getReported() {
+        return reporter.getReported();
+    }
+
+    @Override
+    public Future<Void> flush() {
+        return reporter.flush();
+    }
+
+    @Override
+    public void close() {
+        reporter.close();
+    }
+
+    @Override
+    public void scheduleMetricReporting(MetricRegistry metricRegistry, long intervalMs, ElasticApmTracer tracer) {
+        reporter.scheduleMetricReporting(metricRegistry, intervalMs, tracer);
+    }
+}
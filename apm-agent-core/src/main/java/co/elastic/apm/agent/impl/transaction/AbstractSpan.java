@@ -40,6 +40,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recyclable {
     public static final int PRIO_USER_SUPPLIED = 1000;
@@ -96,6 +97,11 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
      */
     @Nullable
     private LongList childIds;
+    /**
+     * The last ended, compression-eligible child span which has not been reported yet.
+     * It is reported as soon as a sibling can't be compressed into it or when this span ends.
+     */
+    private final AtomicReference<Span> bufferedSpan = new AtomicReference<>();
 
     public int getReferenceCount() {
         return references.get();
@@ -326,6 +332,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         discardRequested = false;
         isExit = false;
         childIds = null;
+        bufferedSpan.set(null);
     }
 
     public Span createSpan() {
@@ -420,6 +427,8 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
             childDurations.onSpanEnd(epochMicros);
             beforeEnd(epochMicros);
             this.finished = true;
+            // a buffered child has to be reported before this span is reported and potentially recycled
+            tracer.reportBufferedSpan(this);
             afterEnd();
         } else {
             logger.warn("End has already been called: {}", this);
@@ -429,6 +438,33 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     protected abstract void beforeEnd(long epochMicros);
 
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Nullable
+    public Span getBufferedSpan() {
+        return bufferedSpan.get();
+    }
+
+    /**
+     * Atomically replaces the buffered child span if it is the expected one.
+     * The replaced span is about to be reported so that no more siblings can be compressed into it.
+     *
+     * @param expected the expected currently buffered child span
+     * @param span     the new buffered child span
+     * @return {@code true} if successful, {@code false} if the buffered child span has been concurrently replaced
+     */
+    public boolean compareAndSetBufferedSpan(@Nullable Span expected, @Nullable Span span) {
+        if (bufferedSpan.compareAndSet(expected, span)) {
+            if (expected != null) {
+                expected.freezeCompression();
+            }
+            return true;
+        }
+        return false;
+    }
+
     protected abstract void afterEnd();
 
     public boolean isChildOf(AbstractSpan<?> parent) {
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import javax.annotation.Nullable;
+
+/**
+ * Holds the information about the spans which have been compressed into a composite span.
+ */
+public class Composite implements Recyclable {
+
+    public static final String EXACT_MATCH = "exact_match";
+    public static final String SAME_KIND = "same_kind";
+
+    /**
+     * The number of compressed spans, including the composite span itself.
+     * Zero if the span is not a composite span.
+     */
+    private int count;
+
+    /**
+     * The sum of the durations of all compressed spans in microseconds
+     */
+    private long sum;
+
+    /**
+     * Either {@link #EXACT_MATCH} or {@link #SAME_KIND}
+     */
+    @Nullable
+    private String compressionStrategy;
+
+    void init(long duration, String compressionStrategy) {
+        this.count = 1;
+        this.sum = duration;
+        this.compressionStrategy = compressionStrategy;
+    }
+
+    void add(long duration) {
+        count++;
+        sum += duration;
+    }
+
+    public boolean hasContent() {
+        return count > 0;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the sum of the durations of all compressed spans in microseconds
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    @Nullable
+    public String getCompressionStrategy() {
+        return compressionStrategy;
+    }
+
+    @Override
+    public void resetState() {
+        count = 0;
+        sum = 0;
+        compressionStrategy = null;
+    }
+}
@@ -33,6 +33,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 public class Span extends AbstractSpan<Span> implements Recyclable {
@@ -74,6 +75,12 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
     private Transaction transaction;
     @Nullable
     private List<StackFrame> stackFrames;
+    private final Composite composite = new Composite();
+    /**
+     * Set when this span is about to be reported so that no more siblings are compressed into it.
+     * Guarded by {@code this}.
+     */
+    private boolean compressionFrozen;
 
     /**
      * If a span is non-discardable, all the spans leading up to it are non-discardable as well
@@ -239,19 +246,104 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         }
         if (parent != null) {
             parent.onChildEnd(epochMicros);
-            parent.decrementReferences();
         }
     }
 
     @Override
     protected void afterEnd() {
+        // the parent is only released after this span has been handed over to the tracer,
+        // as the tracer may buffer this span in the parent for compression
+        AbstractSpan<?> parent = this.parent;
         this.tracer.endSpan(this);
+        if (parent != null) {
+            parent.decrementReferences();
+        }
+    }
+
+    /**
+     * Compression-eligible spans are exit spans that did not propagate the trace context downstream,
+     * as the propagated span id would otherwise be lost when the span is compressed into a sibling.
+     */
+    public boolean isCompressionEligible() {
+        return isExit() && isDiscardable();
+    }
+
+    /**
+     * Tries to compress an ended sibling into this span, turning this span into a composite span.
+     *
+     * @param sibling                  an ended, compression-eligible span with the same parent
+     * @param exactMatchMaxDurationUs  the maximum duration of spans which have the same name
+     * @param sameKindMaxDurationUs    the maximum duration of spans which have the same type, subtype and destination
+     * @return {@code true}, if the sibling has been compressed into this span and doesn't have to be reported,
+     * {@code false} if this span has to be reported before the sibling
+     */
+    public synchronized boolean tryToCompress(Span sibling, long exactMatchMaxDurationUs, long sameKindMaxDurationUs) {
+        if (compressionFrozen || !isSameKind(sibling)) {
+            return false;
+        }
+        if (!composite.hasContent()) {
+            if (duration <= exactMatchMaxDurationUs && sibling.duration <= exactMatchMaxDurationUs && contentEquals(name, sibling.name)) {
+                composite.init(duration, Composite.EXACT_MATCH);
+            } else if (duration <= sameKindMaxDurationUs && sibling.duration <= sameKindMaxDurationUs) {
+                composite.init(duration, Composite.SAME_KIND);
+                name.setLength(0);
+                name.append("Calls to ");
+                if (context.getDestination().getService().getResource().length() > 0) {
+                    name.append(context.getDestination().getService().getResource());
+                } else {
+                    name.append(subtype != null ? subtype : type);
+                }
+            } else {
+                return false;
+            }
+        } else if (Composite.EXACT_MATCH.equals(composite.getCompressionStrategy())) {
+            if (sibling.duration > exactMatchMaxDurationUs || !contentEquals(name, sibling.name)) {
+                return false;
+            }
+        } else if (sibling.duration > sameKindMaxDurationUs) {
+            return false;
+        }
+        composite.add(sibling.duration);
+        // a composite span lasts from the start of the first to the end of the last compressed span
+        duration = Math.max(duration, sibling.getTimestamp() + sibling.duration - getTimestamp());
+        return true;
+    }
+
+    private boolean isSameKind(Span other) {
+        return Objects.equals(type, other.type)
+            && Objects.equals(subtype, other.subtype)
+            && contentEquals(context.getDestination().getService().getResource(), other.context.getDestination().getService().getResource());
+    }
+
+    private static boolean contentEquals(StringBuilder sb1, StringBuilder sb2) {
+        if (sb1.length() != sb2.length()) {
+            return false;
+        }
+        for (int i = 0; i < sb1.length(); i++) {
+            if (sb1.charAt(i) != sb2.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called when this span has been removed from its parent's buffer, right before it's reported.
+     */
+    synchronized void freezeCompression() {
+        compressionFrozen = true;
+    }
+
+    public Composite getComposite() {
+        return composite;
     }
 
     @Override
     public void resetState() {
         super.resetState();
         context.resetState();
+        composite.resetState();
+        compressionFrozen = false;
         stacktrace = null;
         type = null;
         subtype = null;
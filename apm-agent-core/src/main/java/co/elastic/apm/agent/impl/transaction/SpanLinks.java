@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Links to the trace contexts of the messages which have been processed by a single transaction,
+ * for example the records of a Kafka poll.
+ * <p>
+ * A batch may consist of thousands of messages so only up to {@code maxLinks} links are recorded.
+ * They are a uniform sample of all messages carrying a trace context (reservoir sampling).
+ * The IDs are copied to pre-allocated {@link Id}s so that adding a link does not allocate memory,
+ * once the transaction object has been recycled.
+ * </p>
+ * <p>
+ * This class is not thread safe, links are expected to be added by the thread which processes the batch.
+ * </p>
+ */
+public class SpanLinks implements Recyclable {
+
+    private static final Id[] EMPTY = new Id[0];
+
+    private Id[] traceIds = EMPTY;
+    private Id[] spanIds = EMPTY;
+    private int size;
+    /**
+     * The number of valid trace contexts offered, including those which have not been sampled
+     */
+    private int seen;
+
+    /**
+     * Adds a link to the trace context contained in the binary headers of the carrier,
+     * if the carrier has a valid trace context and if it gets sampled.
+     *
+     * @param carrier      the message
+     * @param headerGetter the getter for the binary trace context headers
+     * @param maxLinks     the maximum number of links to keep
+     * @param <C>          the type of the carrier
+     * @return {@code true}, if the link has been added
+     */
+    public <C> boolean addLink(@Nullable C carrier, BinaryHeaderGetter<C> headerGetter, int maxLinks) {
+        if (carrier == null || maxLinks <= 0) {
+            return false;
+        }
+        byte[] traceParent = headerGetter.getFirstHeader(TraceContext.TRACE_PARENT_BINARY_HEADER_NAME, carrier);
+        if (traceParent == null || !TraceContext.isValidBinaryHeader(traceParent)) {
+            return false;
+        }
+        seen++;
+        int slot;
+        if (size < maxLinks) {
+            ensureCapacity(maxLinks);
+            slot = size++;
+        } else {
+            slot = ThreadLocalRandom.current().nextInt(seen);
+            if (slot >= size) {
+                return false;
+            }
+        }
+        TraceContext.copyIdsFromBinaryHeader(traceParent, traceIds[slot], spanIds[slot]);
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (traceIds.length < capacity) {
+            Id[] newTraceIds = new Id[capacity];
+            Id[] newSpanIds = new Id[capacity];
+            System.arraycopy(traceIds, 0, newTraceIds, 0, traceIds.length);
+            System.arraycopy(spanIds, 0, newSpanIds, 0, spanIds.length);
+            for (int i = traceIds.length; i < capacity; i++) {
+                newTraceIds[i] = Id.new128BitId();
+                newSpanIds[i] = Id.new64BitId();
+            }
+            traceIds = newTraceIds;
+            spanIds = newSpanIds;
+        }
+    }
+
+    /**
+     * @return the number of recorded links
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of messages with a valid trace context that have been offered via {@link #addLink}
+     */
+    public int getSeen() {
+        return seen;
+    }
+
+    public Id getTraceId(int index) {
+        return traceIds[index];
+    }
+
+    public Id getSpanId(int index) {
+        return spanIds[index];
+    }
+
+    @Override
+    public void resetState() {
+        // keeps the IDs so that they can be reused
+        for (int i = 0; i < size; i++) {
+            traceIds[i].resetState();
+            spanIds[i].resetState();
+        }
+        size = 0;
+        seen = 0;
+    }
+}
@@ -81,6 +81,8 @@ public class TraceContext implements Recyclable {
     public static final String W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME = "traceparent";
     public static final String TRACESTATE_HEADER_NAME = "tracestate";
     public static final int SERIALIZED_LENGTH = 42;
+    private static final byte SERIALIZED_DISCARDABLE = 0b0000_0001;
+    private static final byte SERIALIZED_RECORDED_LOCALLY = 0b0000_0010;
     private static final int TEXT_HEADER_EXPECTED_LENGTH = 55;
     private static final int TEXT_HEADER_TRACE_ID_OFFSET = 3;
     private static final int TEXT_HEADER_PARENT_ID_OFFSET = 36;
@@ -224,6 +226,12 @@ public class TraceContext implements Recyclable {
     private final Id transactionId = Id.new64BitId();
     private final StringBuilder outgoingTextHeader = new StringBuilder(TEXT_HEADER_EXPECTED_LENGTH);
     private byte flags;
+    /**
+     * Set for transactions which are recorded regardless of {@link #flags},
+     * as the sampling decision is deferred until the transaction has ended (tail-based sampling).
+     * Contrary to {@link #flags}, this is not propagated to downstream services.
+     */
+    private boolean recordedLocally;
     private boolean discardable = true;
     // weakly referencing to avoid CL leaks in case of leaked spans
     @Nullable
@@ -399,6 +407,24 @@ public class TraceContext implements Recyclable {
         }
     }
 
+    /**
+     * Checks the length and the field identifiers of a binary traceparent header, without parsing its IDs.
+     */
+    static boolean isValidBinaryHeader(byte[] traceParentHeader) {
+        return traceParentHeader.length >= BINARY_FORMAT_EXPECTED_LENGTH
+            && traceParentHeader[BINARY_FORMAT_TRACE_ID_OFFSET] == BINARY_FORMAT_TRACE_ID_FIELD_ID
+            && traceParentHeader[BINARY_FORMAT_PARENT_ID_OFFSET] == BINARY_FORMAT_PARENT_ID_FIELD_ID
+            && traceParentHeader[BINARY_FORMAT_FLAGS_OFFSET] == BINARY_FORMAT_FLAGS_FIELD_ID;
+    }
+
+    /**
+     * Copies the trace-id and the parent-id of a binary traceparent header that has been validated with {@link #isValidBinaryHeader(byte[])}
+     */
+    static void copyIdsFromBinaryHeader(byte[] traceParentHeader, Id traceId, Id parentId) {
+        traceId.fromBytes(traceParentHeader, BINARY_FORMAT_TRACE_ID_OFFSET + 1);
+        parentId.fromBytes(traceParentHeader, BINARY_FORMAT_PARENT_ID_OFFSET + 1);
+    }
+
     private boolean noDashAtPosition(String traceParentHeader, int index) {
         return traceParentHeader.charAt(index) != '-';
     }
@@ -419,6 +445,7 @@ public class TraceContext implements Recyclable {
         parentId.copyFrom(parent.id);
         transactionId.copyFrom(parent.transactionId);
         flags = parent.flags;
+        recordedLocally = parent.recordedLocally;
         id.setToRandomValue();
         clock.init(parent.clock);
         serviceName = parent.serviceName;
@@ -438,6 +465,7 @@ public class TraceContext implements Recyclable {
         transactionId.resetState();
         outgoingTextHeader.setLength(0);
         flags = 0;
+        recordedLocally = false;
         discardable = true;
         clock.resetState();
         serviceName = null;
@@ -490,14 +518,36 @@ public class TraceContext implements Recyclable {
      * @return {@code true} when this span should be recorded, {@code false} otherwise
      */
     boolean isRecorded() {
+        return recordedLocally || isSampledFlagSet();
+    }
+
+    /**
+     * Returns the sampling decision which is propagated to downstream services via the {@code traceparent} header.
+     * <p>
+     * This is usually the same as {@link #isSampled()}.
+     * With tail-based sampling, transactions are recorded even if this returns {@code false},
+     * but the trace is propagated as non-sampled.
+     * </p>
+     *
+     * @return {@code true} when the sampled flag is propagated to downstream services, {@code false} otherwise
+     */
+    public boolean isSampledFlagSet() {
         return (flags & FLAG_RECORDED) == FLAG_RECORDED;
     }
 
+    /**
+     * Records this span regardless of the sampled flag, which is propagated to downstream services unchanged.
+     */
+    void setRecordedLocally() {
+        recordedLocally = true;
+    }
+
     void setRecorded(boolean recorded) {
         if (recorded) {
             flags |= FLAG_RECORDED;
         } else {
             flags &= ~FLAG_RECORDED;
+            recordedLocally = false;
         }
     }
 
@@ -569,7 +619,7 @@ public class TraceContext implements Recyclable {
             // for unsampled traces, propagate the ID of the transaction in calls to downstream services
             // such that the parentID of those transactions point to a transaction that exists
             // remember that we do report unsampled transactions
-            fillTraceParentHeader(outgoingTextHeader, isSampled() ? id : transactionId);
+            fillTraceParentHeader(outgoingTextHeader, isSampledFlagSet() ? id : transactionId);
         }
         return outgoingTextHeader;
     }
@@ -601,7 +651,7 @@ public class TraceContext implements Recyclable {
         // for unsampled traces, propagate the ID of the transaction in calls to downstream services
         // such that the parentID of those transactions point to a transaction that exists
         // remember that we do report unsampled transactions
-        Id parentId = isSampled() ? id : transactionId;
+        Id parentId = isSampledFlagSet() ? id : transactionId;
         parentId.toBytes(buffer, BINARY_FORMAT_PARENT_ID_OFFSET + 1);
         buffer[BINARY_FORMAT_FLAGS_OFFSET] = BINARY_FORMAT_FLAGS_FIELD_ID;
         buffer[BINARY_FORMAT_FLAGS_OFFSET + 1] = flags;
@@ -622,6 +672,7 @@ public class TraceContext implements Recyclable {
         parentId.copyFrom(other.parentId);
         transactionId.copyFrom(other.transactionId);
         flags = other.flags;
+        recordedLocally = other.recordedLocally;
         discardable = other.discardable;
         clock.init(other.clock);
         serviceName = other.serviceName;
@@ -721,7 +772,7 @@ public class TraceContext implements Recyclable {
         offset = id.toBytes(buffer, offset);
         offset = transactionId.toBytes(buffer, offset);
         buffer[offset++] = flags;
-        buffer[offset++] = (byte) (discardable ? 1 : 0);
+        buffer[offset++] = (byte) ((discardable ? SERIALIZED_DISCARDABLE : 0) | (recordedLocally ? SERIALIZED_RECORDED_LOCALLY : 0));
         ByteUtils.putLong(buffer, offset, clock.getOffset());
     }
 
@@ -732,7 +783,8 @@ public class TraceContext implements Recyclable {
         offset += transactionId.fromBytes(buffer, offset);
         id.setToRandomValue();
         flags = buffer[offset++];
-        discardable = buffer[offset++] == (byte) 1;
+        discardable = (buffer[offset] & SERIALIZED_DISCARDABLE) != 0;
+        recordedLocally = (buffer[offset++] & SERIALIZED_RECORDED_LOCALLY) != 0;
         clock.init(ByteUtils.getLong(buffer, offset));
         this.serviceName = serviceName;
         onMutation();
@@ -744,7 +796,8 @@ public class TraceContext implements Recyclable {
         offset += id.fromBytes(buffer, offset);
         offset += transactionId.fromBytes(buffer, offset);
         flags = buffer[offset++];
-        discardable = buffer[offset++] == (byte) 1;
+        discardable = (buffer[offset] & SERIALIZED_DISCARDABLE) != 0;
+        recordedLocally = (buffer[offset++] & SERIALIZED_RECORDED_LOCALLY) != 0;
         clock.init(ByteUtils.getLong(buffer, offset));
         this.serviceName = serviceName;
         onMutation();
@@ -28,6 +28,7 @@ import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.context.TransactionContext;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.sampling.TailSamplingBuffer;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.metrics.Timer;
@@ -72,6 +73,14 @@ public class Transaction extends AbstractSpan<Transaction> {
      */
     private final KeyListConcurrentHashMap<String, KeyListConcurrentHashMap<String, Timer>> timerBySpanTypeAndSubtype = new KeyListConcurrentHashMap<>();
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+    /**
+     * Only used when {@link CoreConfiguration#isTailSampling()} is enabled
+     */
+    private final TailSamplingBuffer tailSamplingBuffer = new TailSamplingBuffer();
+    /**
+     * The messages processed by this transaction, if it handles a batch of messages
+     */
+    private final SpanLinks spanLinks = new SpanLinks();
 
     /**
      * The result of the transaction. HTTP status code for HTTP-related
@@ -121,9 +130,15 @@ public class Transaction extends AbstractSpan<Transaction> {
     }
 
     private void onTransactionStart(boolean startedAsChild, long epochMicros, Sampler sampler) {
-        maxSpans = tracer.getConfig(CoreConfiguration.class).getTransactionMaxSpans();
+        CoreConfiguration coreConfiguration = tracer.getConfig(CoreConfiguration.class);
+        maxSpans = coreConfiguration.getTransactionMaxSpans();
         if (!startedAsChild) {
             traceContext.asRootSpan(sampler);
+            if (coreConfiguration.isTailSampling()) {
+                // the TailSamplingReporter decides whether to keep the transaction
+                // downstream services still get the head-based sampling decision
+                traceContext.setRecordedLocally();
+            }
         }
         if (epochMicros >= 0) {
             setStartTimestamp(epochMicros);
@@ -229,6 +244,25 @@ public class Transaction extends AbstractSpan<Transaction> {
         return spanCount;
     }
 
+    public TailSamplingBuffer getTailSamplingBuffer() {
+        return tailSamplingBuffer;
+    }
+
+    public SpanLinks getSpanLinks() {
+        return spanLinks;
+    }
+
+    /**
+     * Reverts the sampling decision of an ended transaction, which is used by tail-based sampling.
+     * Like other non-sampled transactions, it will be reported without context and spans.
+     */
+    public void markNotSampled() {
+        traceContext.setRecorded(false);
+        context.resetState();
+        spanCount.resetState();
+        spanLinks.resetState();
+    }
+
     boolean isSpanLimitReached() {
         return getSpanCount().isSpanLimitReached(maxSpans);
     }
@@ -243,6 +277,8 @@ public class Transaction extends AbstractSpan<Transaction> {
         context.resetState();
         result = null;
         spanCount.resetState();
+        tailSamplingBuffer.resetState();
+        spanLinks.resetState();
         type = null;
         noop = false;
         maxSpans = 0;
@@ -359,6 +395,7 @@ public class Transaction extends AbstractSpan<Transaction> {
             long criticalValueAtEnter = metricRegistry.writerCriticalSectionEnter();
             try {
                 metricRegistry.updateTimer("transaction.duration", labels, getDuration());
+                metricRegistry.updateHistogram("transaction.duration.histogram", labels, getDuration());
                 if (collectBreakdownMetrics) {
                     metricRegistry.incrementCounter("transaction.breakdown.count", labels);
                     List<String> types = timerBySpanTypeAndSubtype.keyList();
@@ -178,6 +178,10 @@ public abstract class WildcardMatcher {
 
     /**
      * Returns the first {@link WildcardMatcher} {@linkplain WildcardMatcher#matches(CharSequence) matching} the provided partitioned string.
+     * <p>
+     * If the matchers are a {@link WildcardMatcherSet}, the string is scanned once, regardless of the number of matchers.
+     * Otherwise, the matchers are evaluated one after another.
+     * </p>
      *
      * @param matchers   the matchers which should be used to match the provided string
      * @param firstPart  The first part of the string to match against.
@@ -187,6 +191,9 @@ public abstract class WildcardMatcher {
      */
     @Nullable
     public static WildcardMatcher anyMatch(List<WildcardMatcher> matchers, CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (matchers instanceof WildcardMatcherSet) {
+            return ((WildcardMatcherSet) matchers).anyMatch(firstPart, secondPart);
+        }
         for (int i = 0; i < matchers.size(); i++) {
             if (matchers.get(i).matches(firstPart, secondPart)) {
                 return matchers.get(i);
@@ -335,6 +342,10 @@ public abstract class WildcardMatcher {
         public String getMatcher() {
             return matcher;
         }
+
+        List<SimpleWildcardMatcher> getWildcardMatchers() {
+            return wildcardMatchers;
+        }
     }
 
     /**
@@ -402,5 +413,17 @@ public abstract class WildcardMatcher {
         public String getMatcher() {
             return matcher;
         }
+
+        boolean isWildcardAtBeginning() {
+            return wildcardAtBeginning;
+        }
+
+        boolean isWildcardAtEnd() {
+            return wildcardAtEnd;
+        }
+
+        boolean isIgnoreCase() {
+            return ignoreCase;
+        }
     }
 }
@@ -0,0 +1,48 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.matcher;
+
+import co.elastic.apm.agent.configuration.converter.ListValueConverter;
+
+import java.util.List;
+
+/**
+ * Converts a comma separated list of wildcard strings into a {@link WildcardMatcherSet},
+ * so that matching against the value of a {@link org.stagemonitor.configuration.ConfigurationOption} scans the input once.
+ * <p>
+ * Default values should also be {@link WildcardMatcherSet}s, see {@link WildcardMatcherSet#of(List)}.
+ * </p>
+ */
+public class WildcardMatcherListValueConverter extends ListValueConverter<WildcardMatcher> {
+
+    public WildcardMatcherListValueConverter() {
+        super(new WildcardMatcherValueConverter());
+    }
+
+    @Override
+    public List<WildcardMatcher> convert(String s) {
+        return WildcardMatcherSet.of(super.convert(s));
+    }
+}
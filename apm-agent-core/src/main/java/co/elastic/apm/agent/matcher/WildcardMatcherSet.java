@@ -0,0 +1,425 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.matcher;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static co.elastic.apm.agent.matcher.WildcardMatcher.charAt;
+
+/**
+ * An immutable list of {@link WildcardMatcher}s which is compiled into case-folded automata,
+ * so that finding the first matching {@link WildcardMatcher} scans the input once,
+ * instead of evaluating each matcher one after another.
+ * <p>
+ * For every matcher, a literal is derived which is necessary for the matcher to match:
+ * </p>
+ * <ul>
+ *     <li>{@code foo*} and {@code foo} (exact) are added to a prefix trie which is walked from the start of the input</li>
+ *     <li>{@code *foo} is added to a suffix trie which is walked from the end of the input</li>
+ *     <li>{@code *foo*} is added to an Aho-Corasick automaton which scans the whole input</li>
+ * </ul>
+ * <p>
+ * Matchers with wildcards in the middle, like {@code /foo/*}{@code /bar}, contribute their leading, trailing or longest literal.
+ * A hit of such a literal, as well as a hit of a case sensitive matcher, is verified by calling {@link WildcardMatcher#matches}.
+ * Hence, the result is always the same as calling {@link WildcardMatcher#anyMatch(List, CharSequence, CharSequence)} on a regular list.
+ * </p>
+ * <p>
+ * As this class implements {@link List}, it can be used as the value of configuration options
+ * (see {@link WildcardMatcherListValueConverter}),
+ * so that {@link WildcardMatcher#anyMatch} and {@link WildcardMatcher#isAnyMatch} use the automata transparently.
+ * </p>
+ */
+// don't use for-each as it allocates memory by instantiating an iterator
+@SuppressWarnings("ForLoopReplaceableByForEach")
+public class WildcardMatcherSet extends AbstractList<WildcardMatcher> implements RandomAccess {
+
+    private final WildcardMatcher[] matchers;
+    /**
+     * Whether a hit of the literal of a matcher has to be verified by calling {@link WildcardMatcher#matches}
+     */
+    private final boolean[] verify;
+    /**
+     * The matchers for which no literal could be derived, in ascending order
+     */
+    private final int[] alwaysCandidates;
+    private final Automaton prefixes;
+    private final Automaton suffixes;
+    private final Automaton infixes;
+
+    private WildcardMatcherSet(List<WildcardMatcher> matchers) {
+        this.matchers = matchers.toArray(new WildcardMatcher[0]);
+        this.verify = new boolean[this.matchers.length];
+        AutomatonBuilder prefixes = new AutomatonBuilder();
+        AutomatonBuilder suffixes = new AutomatonBuilder();
+        AutomatonBuilder infixes = new AutomatonBuilder();
+        List<Integer> alwaysCandidates = new ArrayList<>();
+        for (int i = 0; i < this.matchers.length; i++) {
+            WildcardMatcher matcher = this.matchers[i];
+            WildcardMatcher.SimpleWildcardMatcher literal = getNecessaryLiteral(matcher);
+            if (literal == null || literal.getMatcher().isEmpty()) {
+                verify[i] = true;
+                alwaysCandidates.add(i);
+                continue;
+            }
+            verify[i] = literal != matcher || !literal.isIgnoreCase();
+            String folded = toLowerCase(literal.getMatcher());
+            if (literal.isWildcardAtBeginning() && literal.isWildcardAtEnd()) {
+                infixes.add(folded, i, false);
+            } else if (literal.isWildcardAtEnd()) {
+                prefixes.add(folded, i, false);
+            } else if (literal.isWildcardAtBeginning()) {
+                suffixes.add(new StringBuilder(folded).reverse().toString(), i, false);
+            } else {
+                prefixes.add(folded, i, true);
+            }
+        }
+        this.alwaysCandidates = toArray(alwaysCandidates);
+        this.prefixes = prefixes.build(false);
+        this.suffixes = suffixes.build(false);
+        this.infixes = infixes.build(true);
+    }
+
+    /**
+     * Compiles the provided matchers
+     *
+     * @param matchers the matchers to compile
+     * @return a {@link WildcardMatcherSet} which contains the provided matchers in the same order
+     */
+    public static WildcardMatcherSet of(List<WildcardMatcher> matchers) {
+        if (matchers instanceof WildcardMatcherSet) {
+            return (WildcardMatcherSet) matchers;
+        }
+        return new WildcardMatcherSet(matchers);
+    }
+
+    /**
+     * Derives a literal which is contained in every string the matcher matches.
+     * The position of the literal is expressed by its wildcard flags.
+     *
+     * @return the literal, or {@code null} if the matcher is not one of the built-in implementations
+     */
+    @Nullable
+    private static WildcardMatcher.SimpleWildcardMatcher getNecessaryLiteral(WildcardMatcher matcher) {
+        if (matcher instanceof WildcardMatcher.SimpleWildcardMatcher) {
+            return (WildcardMatcher.SimpleWildcardMatcher) matcher;
+        } else if (matcher instanceof WildcardMatcher.CompoundWildcardMatcher) {
+            List<WildcardMatcher.SimpleWildcardMatcher> parts = ((WildcardMatcher.CompoundWildcardMatcher) matcher).getWildcardMatchers();
+            if (parts.isEmpty()) {
+                return null;
+            }
+            WildcardMatcher.SimpleWildcardMatcher first = parts.get(0);
+            if (!first.isWildcardAtBeginning() && !first.getMatcher().isEmpty()) {
+                return first;
+            }
+            WildcardMatcher.SimpleWildcardMatcher last = parts.get(parts.size() - 1);
+            if (!last.isWildcardAtEnd() && !last.getMatcher().isEmpty()) {
+                return last;
+            }
+            WildcardMatcher.SimpleWildcardMatcher longest = first;
+            for (int i = 1; i < parts.size(); i++) {
+                if (parts.get(i).getMatcher().length() > longest.getMatcher().length()) {
+                    longest = parts.get(i);
+                }
+            }
+            // the literal may occur anywhere
+            return new WildcardMatcher.SimpleWildcardMatcher(longest.getMatcher(), true, true, longest.isIgnoreCase());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first {@link WildcardMatcher} {@linkplain WildcardMatcher#matches(CharSequence) matching} the provided string.
+     *
+     * @param s the string to match against
+     * @return the first matching {@link WildcardMatcher}, or {@code null} if none match.
+     */
+    @Nullable
+    public WildcardMatcher anyMatch(@Nullable CharSequence s) {
+        if (s == null) {
+            return null;
+        }
+        return anyMatch(s, null);
+    }
+
+    /**
+     * Returns the first {@link WildcardMatcher} {@linkplain WildcardMatcher#matches(CharSequence, CharSequence) matching}
+     * the provided partitioned string.
+     *
+     * @param firstPart  The first part of the string to match against.
+     * @param secondPart The second part of the string to match against.
+     * @return the first matching {@link WildcardMatcher}, or {@code null} if none match.
+     */
+    @Nullable
+    public WildcardMatcher anyMatch(CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (secondPart == null) {
+            secondPart = "";
+        }
+        final int firstPartLength = firstPart.length();
+        final int length = firstPartLength + secondPart.length();
+        int best = matchers.length;
+        if (prefixes.minMatcher < best) {
+            best = matchPrefixes(firstPart, secondPart, firstPartLength, length, best);
+        }
+        if (suffixes.minMatcher < best) {
+            best = matchSuffixes(firstPart, secondPart, firstPartLength, length, best);
+        }
+        if (infixes.minMatcher < best) {
+            best = matchInfixes(firstPart, secondPart, firstPartLength, length, best);
+        }
+        best = evaluate(alwaysCandidates, best, firstPart, secondPart);
+        return best < matchers.length ? matchers[best] : null;
+    }
+
+    public boolean isAnyMatch(@Nullable CharSequence s) {
+        return anyMatch(s) != null;
+    }
+
+    private int matchPrefixes(CharSequence firstPart, CharSequence secondPart, int firstPartLength, int length, int best) {
+        if (length == 0) {
+            return evaluate(prefixes.exactOutputs[0], best, firstPart, secondPart);
+        }
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            state = prefixes.transition(state, Character.toLowerCase(charAt(i, firstPart, secondPart, firstPartLength)));
+            if (state < 0) {
+                break;
+            }
+            best = evaluate(prefixes.outputs[state], best, firstPart, secondPart);
+            if (i == length - 1) {
+                best = evaluate(prefixes.exactOutputs[state], best, firstPart, secondPart);
+            }
+        }
+        return best;
+    }
+
+    private int matchSuffixes(CharSequence firstPart, CharSequence secondPart, int firstPartLength, int length, int best) {
+        int state = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            state = suffixes.transition(state, Character.toLowerCase(charAt(i, firstPart, secondPart, firstPartLength)));
+            if (state < 0) {
+                break;
+            }
+            best = evaluate(suffixes.outputs[state], best, firstPart, secondPart);
+        }
+        return best;
+    }
+
+    private int matchInfixes(CharSequence firstPart, CharSequence secondPart, int firstPartLength, int length, int best) {
+        int state = 0;
+        for (int i = 0; i < length && infixes.minMatcher < best; i++) {
+            char c = Character.toLowerCase(charAt(i, firstPart, secondPart, firstPartLength));
+            int next = infixes.transition(state, c);
+            while (next < 0 && state != 0) {
+                state = infixes.failure[state];
+                next = infixes.transition(state, c);
+            }
+            state = next < 0 ? 0 : next;
+            best = evaluate(infixes.outputs[state], best, firstPart, secondPart);
+        }
+        return best;
+    }
+
+    /**
+     * @param candidates the indexes of the candidate matchers, in ascending order
+     * @param best       the index of the first matcher which is known to match
+     * @return the index of the first matching matcher
+     */
+    private int evaluate(int[] candidates, int best, CharSequence firstPart, CharSequence secondPart) {
+        for (int i = 0; i < candidates.length; i++) {
+            int candidate = candidates[i];
+            if (candidate >= best) {
+                return best;
+            }
+            if (!verify[candidate] || matchers[candidate].matches(firstPart, secondPart)) {
+                return candidate;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public WildcardMatcher get(int index) {
+        return matchers[index];
+    }
+
+    @Override
+    public int size() {
+        return matchers.length;
+    }
+
+    private static String toLowerCase(String s) {
+        // folds char by char, the same way as WildcardMatcher#indexOfIgnoreCase does
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private static int[] toArray(Iterable<Integer> integers) {
+        List<Integer> list = new ArrayList<>();
+        for (Integer integer : integers) {
+            list.add(integer);
+        }
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * A trie, optionally with the failure links of an Aho-Corasick automaton, indexed by state
+     */
+    private static class Automaton {
+        private final char[][] transitionChars;
+        private final int[][] transitionTargets;
+        private final int[] failure;
+        /**
+         * The matchers whose literal ends in a state, in ascending order.
+         * For an Aho-Corasick automaton, this includes the matchers of the failure states.
+         */
+        private final int[][] outputs;
+        /**
+         * The matchers whose literal ends in a state and which only match if the literal is the whole input
+         */
+        private final int[][] exactOutputs;
+        /**
+         * The smallest index of all matchers of this automaton, used to skip the automaton if an earlier matcher already matched
+         */
+        private final int minMatcher;
+
+        private Automaton(char[][] transitionChars, int[][] transitionTargets, int[] failure, int[][] outputs, int[][] exactOutputs, int minMatcher) {
+            this.transitionChars = transitionChars;
+            this.transitionTargets = transitionTargets;
+            this.failure = failure;
+            this.outputs = outputs;
+            this.exactOutputs = exactOutputs;
+            this.minMatcher = minMatcher;
+        }
+
+        private int transition(int state, char c) {
+            int index = Arrays.binarySearch(transitionChars[state], c);
+            return index < 0 ? -1 : transitionTargets[state][index];
+        }
+    }
+
+    private static class AutomatonBuilder {
+        private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+        private final List<Set<Integer>> outputs = new ArrayList<>();
+        private final List<Set<Integer>> exactOutputs = new ArrayList<>();
+        private int minMatcher = Integer.MAX_VALUE;
+
+        private AutomatonBuilder() {
+            addState();
+        }
+
+        private int addState() {
+            transitions.add(new HashMap<Character, Integer>());
+            outputs.add(new TreeSet<Integer>());
+            exactOutputs.add(new TreeSet<Integer>());
+            return transitions.size() - 1;
+        }
+
+        private void add(String literal, int matcher, boolean exact) {
+            int state = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                char c = literal.charAt(i);
+                Integer next = transitions.get(state).get(c);
+                if (next == null) {
+                    next = addState();
+                    transitions.get(state).put(c, next);
+                }
+                state = next;
+            }
+            if (exact) {
+                exactOutputs.get(state).add(matcher);
+            } else {
+                outputs.get(state).add(matcher);
+            }
+            minMatcher = Math.min(minMatcher, matcher);
+        }
+
+        private Automaton build(boolean withFailureLinks) {
+            int states = transitions.size();
+            char[][] transitionChars = new char[states][];
+            int[][] transitionTargets = new int[states][];
+            for (int state = 0; state < states; state++) {
+                List<Character> chars = new ArrayList<>(transitions.get(state).keySet());
+                Collections.sort(chars);
+                transitionChars[state] = new char[chars.size()];
+                transitionTargets[state] = new int[chars.size()];
+                for (int i = 0; i < chars.size(); i++) {
+                    transitionChars[state][i] = chars.get(i);
+                    transitionTargets[state][i] = transitions.get(state).get(chars.get(i));
+                }
+            }
+            int[] failure = new int[states];
+            if (withFailureLinks) {
+                Automaton trie = new Automaton(transitionChars, transitionTargets, failure, new int[0][], new int[0][], minMatcher);
+                // breadth-first, so that the failure state of a state's parent and its outputs are already complete
+                int[] queue = new int[states];
+                int head = 0;
+                int tail = 0;
+                for (int child : transitionTargets[0]) {
+                    queue[tail++] = child;
+                }
+                while (head < tail) {
+                    int state = queue[head++];
+                    for (int i = 0; i < transitionChars[state].length; i++) {
+                        char c = transitionChars[state][i];
+                        int child = transitionTargets[state][i];
+                        int fallback = failure[state];
+                        int next = trie.transition(fallback, c);
+                        while (next < 0 && fallback != 0) {
+                            fallback = failure[fallback];
+                            next = trie.transition(fallback, c);
+                        }
+                        failure[child] = next < 0 ? 0 : next;
+                        outputs.get(child).addAll(outputs.get(failure[child]));
+                        queue[tail++] = child;
+                    }
+                }
+            }
+            int[][] outputs = new int[states][];
+            int[][] exactOutputs = new int[states][];
+            for (int state = 0; state < states; state++) {
+                outputs[state] = toArray(this.outputs.get(state));
+                exactOutputs[state] = toArray(this.exactOutputs.get(state));
+            }
+            return new Automaton(transitionChars, transitionTargets, failure, outputs, exactOutputs, minMatcher);
+        }
+    }
+}
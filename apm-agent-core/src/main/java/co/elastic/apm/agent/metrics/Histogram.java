@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.util.MathUtils;
+import co.elastic.apm.agent.util.ThreadUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A histogram of durations in microseconds with log-linear buckets, similar to HdrHistogram.
+ * <p>
+ * Values up to {@link #LINEAR_RANGE} are recorded exactly.
+ * Above that, each power of two is divided into {@link #SUB_BUCKETS} linear sub-buckets,
+ * which means that the relative error of a recorded value is at most {@code 1/SUB_BUCKETS} (~6%).
+ * Values greater than {@link #MAX_VALUE} (one hour) are recorded in the highest bucket.
+ * </p>
+ * <p>
+ * The bucket counts are striped by the id of the recording thread, similar to {@link co.elastic.apm.agent.util.StripedCounter}.
+ * Each stripe has its own array of counts which is padded so that it does not share a cache line with other stripes.
+ * That way, concurrent transactions with similar durations don't contend on the same counter.
+ * A stripe is only allocated when a thread which maps to it records a value for the first time,
+ * so that histograms which are only updated by a few threads stay small.
+ * Reading a bucket sums up the counts of all stripes.
+ * </p>
+ * <p>
+ * Like {@link Timer}s, histograms are part of a {@link MetricSet} and are therefore double-buffered by {@link MetricRegistry}:
+ * they are only read and reset when they are not being written to.
+ * </p>
+ */
+public class Histogram implements Recyclable {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int LINEAR_RANGE = 2 * SUB_BUCKETS;
+    static final long MAX_VALUE = TimeUnit.HOURS.toMicros(1);
+    private static final int BUCKETS = getBucketIndex(MAX_VALUE) + 1;
+    /**
+     * 8 longs are 64 bytes, which is the size of a cache line on most architectures
+     */
+    private static final int PADDING = 8;
+    /**
+     * Limits the memory of a histogram which is updated by many threads
+     */
+    private static final int MAX_STRIPES = 16;
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes;
+    private final int mask;
+
+    public Histogram() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    Histogram(int concurrency) {
+        int stripeCount = Math.min(MathUtils.getNextPowerOf2(concurrency), MAX_STRIPES);
+        mask = stripeCount - 1;
+        stripes = new AtomicReferenceArray<>(stripeCount);
+    }
+
+    public void update(long durationUs) {
+        if (durationUs < 0) {
+            durationUs = 0;
+        }
+        getStripe(ThreadUtils.getThreadIdHash() & mask).incrementAndGet(PADDING + getBucketIndex(Math.min(durationUs, MAX_VALUE)));
+    }
+
+    private AtomicLongArray getStripe(int stripeIndex) {
+        AtomicLongArray stripe = stripes.get(stripeIndex);
+        if (stripe == null) {
+            // padded at both ends so that the counts of adjacent stripes are not on the same cache line
+            stripes.compareAndSet(stripeIndex, null, new AtomicLongArray(PADDING + BUCKETS + PADDING));
+            stripe = stripes.get(stripeIndex);
+        }
+        return stripe;
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < LINEAR_RANGE) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        // value >>> shift is in the range [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the lowest value which is recorded in the bucket with the provided index
+     *
+     * @param bucketIndex the index of the bucket
+     * @return the lowest value of the bucket
+     */
+    static long getLowestValue(int bucketIndex) {
+        if (bucketIndex < LINEAR_RANGE) {
+            return bucketIndex;
+        }
+        int shift = bucketIndex / SUB_BUCKETS - 1;
+        return (long) (bucketIndex - shift * SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * Returns the value which represents all values recorded in the bucket with the provided index,
+     * which is the middle of the bucket.
+     *
+     * @param bucketIndex the index of the bucket
+     * @return the value representing the bucket
+     */
+    public static long getBucketValue(int bucketIndex) {
+        long lowestValue = getLowestValue(bucketIndex);
+        return lowestValue + (getLowestValue(bucketIndex + 1) - lowestValue) / 2;
+    }
+
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    public long getCount(int bucketIndex) {
+        long count = 0;
+        for (int i = 0; i < stripes.length(); i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null) {
+                count += stripe.get(PADDING + bucketIndex);
+            }
+        }
+        return count;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += getCount(i);
+        }
+        return count;
+    }
+
+    public boolean hasContent() {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (getCount(i) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void resetState() {
+        // the stripes are retained so that they don't have to be allocated again when the histogram is reused
+        for (int i = 0; i < stripes.length(); i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null) {
+                for (int j = PADDING; j < PADDING + BUCKETS; j++) {
+                    stripe.set(j, 0);
+                }
+            }
+        }
+    }
+}
@@ -39,8 +39,7 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * A registry for metrics.
  * <p>
- * Currently only holds gauges.
- * There are plans to add support for histogram-based timers.
+ * Holds gauges, counters, timers and histograms.
  * </p>
  */
 public class MetricRegistry {
@@ -188,6 +187,30 @@ public class MetricRegistry {
         }
     }
 
+    /**
+     * Records a value in a {@link Histogram}.
+     * Histograms are only recorded if {@link ReporterConfiguration#histogramMetrics histogram_metrics} is enabled
+     * and can be disabled individually via {@link ReporterConfiguration#disableMetrics disable_metrics}.
+     *
+     * @param histogramName the name of the histogram
+     * @param labels        labels for the histogram
+     * @param durationUs    the duration to record, in microseconds
+     */
+    public void updateHistogram(String histogramName, Labels labels, long durationUs) {
+        if (!config.isHistogramMetrics() || isDisabled(histogramName)) {
+            return;
+        }
+        long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+        try {
+            final MetricSet metricSet = getOrCreateMetricSet(labels);
+            if (metricSet != null) {
+                metricSet.histogram(histogramName).update(durationUs);
+            }
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
     /*
      * Must always be executed in context of a critical section so that the
      * activeMetricSets and inactiveMetricSets reference can't swap while this method runs
@@ -225,11 +248,15 @@ public class MetricRegistry {
     }
 
     public void incrementCounter(String name, Labels labels) {
+        incrementCounter(name, labels, 1);
+    }
+
+    public void incrementCounter(String name, Labels labels, long delta) {
         long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
         try {
             final MetricSet metricSet = getOrCreateMetricSet(labels);
             if (metricSet != null) {
-                metricSet.incrementCounter(name);
+                metricSet.incrementCounter(name, delta);
             }
         } finally {
             phaser.writerCriticalSectionExit(criticalValueAtEnter);
@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Provides the memory and CPU limits of the cgroup (v1 or v2) of the current process,
+ * which are the limits of the container when running in a container, for example in a Kubernetes pod.
+ * <p>
+ * The cgroup files are discovered once, based on {@code /proc/self/cgroup} and {@code /proc/self/mountinfo}.
+ * Their values are read on every call, without allocations.
+ * </p>
+ */
+class CGroup {
+
+    private static final Logger logger = LoggerFactory.getLogger(CGroup.class);
+    /**
+     * cgroup v1 reports a very large, page aligned number when there is no memory limit
+     */
+    private static final long UNLIMITED_V1_MEMORY = Long.MAX_VALUE / 2;
+
+    private final ProcFile memoryLimit;
+    private final ProcFile memoryUsage;
+    /**
+     * {@code cpu.max} for v2, {@code cpu.cfs_quota_us} for v1
+     */
+    @Nullable
+    private final ProcFile cpuQuota;
+    /**
+     * {@code null} for v2 as {@code cpu.max} contains both the quota and the period
+     */
+    @Nullable
+    private final ProcFile cpuPeriod;
+
+    private CGroup(ProcFile memoryLimit, ProcFile memoryUsage, @Nullable ProcFile cpuQuota, @Nullable ProcFile cpuPeriod) {
+        this.memoryLimit = memoryLimit;
+        this.memoryUsage = memoryUsage;
+        this.cpuQuota = cpuQuota;
+        this.cpuPeriod = cpuPeriod;
+    }
+
+    @Nullable
+    static CGroup find() {
+        return find(new File("/proc/self/cgroup"), new File("/proc/self/mountinfo"));
+    }
+
+    /**
+     * Discovers the cgroup files of the current process
+     *
+     * @param procSelfCgroup the {@code /proc/self/cgroup} file
+     * @param mountInfo      the {@code /proc/self/mountinfo} file
+     * @return the cgroup of the current process, or {@code null} if the process does not run in a cgroup with a memory controller
+     */
+    @Nullable
+    static CGroup find(File procSelfCgroup, File mountInfo) {
+        if (!procSelfCgroup.canRead() || !mountInfo.canRead()) {
+            return null;
+        }
+        try {
+            String v1MemoryPath = null;
+            String v1CpuPath = null;
+            String v2Path = null;
+            try (BufferedReader reader = new BufferedReader(new FileReader(procSelfCgroup))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    // hierarchy-ID:controller-list:cgroup-path
+                    String[] parts = line.split(":", 3);
+                    if (parts.length != 3) {
+                        continue;
+                    }
+                    if (parts[0].equals("0") && parts[1].isEmpty()) {
+                        v2Path = parts[2];
+                    } else {
+                        List<String> controllers = Arrays.asList(parts[1].split(","));
+                        if (controllers.contains("memory")) {
+                            v1MemoryPath = parts[2];
+                        }
+                        if (controllers.contains("cpu")) {
+                            v1CpuPath = parts[2];
+                        }
+                    }
+                }
+            }
+            File v1MemoryDir = null;
+            File v1CpuDir = null;
+            File v2Dir = null;
+            try (BufferedReader reader = new BufferedReader(new FileReader(mountInfo))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    // 36 32 0:32 / /sys/fs/cgroup/memory rw,relatime - cgroup cgroup rw,memory
+                    int separator = line.indexOf(" - ");
+                    if (separator < 0) {
+                        continue;
+                    }
+                    String[] mount = line.substring(0, separator).split(" ");
+                    String[] fileSystem = line.substring(separator + 3).split(" ");
+                    if (mount.length < 5 || fileSystem.length < 3) {
+                        continue;
+                    }
+                    String root = mount[3];
+                    String mountPoint = mount[4];
+                    if (fileSystem[0].equals("cgroup2") && v2Path != null) {
+                        v2Dir = getCGroupDir(root, mountPoint, v2Path);
+                    } else if (fileSystem[0].equals("cgroup")) {
+                        List<String> options = Arrays.asList(fileSystem[2].split(","));
+                        if (options.contains("memory") && v1MemoryPath != null) {
+                            v1MemoryDir = getCGroupDir(root, mountPoint, v1MemoryPath);
+                        }
+                        if (options.contains("cpu") && v1CpuPath != null) {
+                            v1CpuDir = getCGroupDir(root, mountPoint, v1CpuPath);
+                        }
+                    }
+                }
+            }
+            // in the hybrid mode, the controllers are attached to v1 hierarchies and the v2 hierarchy has no controllers
+            if (v1MemoryDir != null && new File(v1MemoryDir, "memory.limit_in_bytes").canRead()) {
+                logger.debug("Found cgroup v1 memory controller at {}", v1MemoryDir);
+                ProcFile cpuQuota = null;
+                ProcFile cpuPeriod = null;
+                if (v1CpuDir != null && new File(v1CpuDir, "cpu.cfs_quota_us").canRead()) {
+                    cpuQuota = new ProcFile(new File(v1CpuDir, "cpu.cfs_quota_us"));
+                    cpuPeriod = new ProcFile(new File(v1CpuDir, "cpu.cfs_period_us"));
+                }
+                return new CGroup(new ProcFile(new File(v1MemoryDir, "memory.limit_in_bytes")),
+                    new ProcFile(new File(v1MemoryDir, "memory.usage_in_bytes")), cpuQuota, cpuPeriod);
+            }
+            if (v2Dir != null && new File(v2Dir, "memory.max").canRead()) {
+                logger.debug("Found cgroup v2 memory controller at {}", v2Dir);
+                File cpuMax = new File(v2Dir, "cpu.max");
+                return new CGroup(new ProcFile(new File(v2Dir, "memory.max")), new ProcFile(new File(v2Dir, "memory.current")),
+                    cpuMax.canRead() ? new ProcFile(cpuMax) : null, null);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Failed to discover the cgroup of the current process", e);
+        }
+        return null;
+    }
+
+    /**
+     * The cgroup path in {@code /proc/self/cgroup} is relative to the root of the hierarchy,
+     * which may not be the root of the mount, for example when running in a container without a cgroup namespace.
+     */
+    private static File getCGroupDir(String root, String mountPoint, String cgroupPath) {
+        String relativePath = cgroupPath;
+        if (!root.equals("/") && cgroupPath.startsWith(root)) {
+            relativePath = cgroupPath.substring(root.length());
+        }
+        File cgroupDir = new File(mountPoint, relativePath);
+        if (cgroupDir.isDirectory()) {
+            return cgroupDir;
+        }
+        // the process' cgroup is the root of the mount
+        return new File(mountPoint);
+    }
+
+    /**
+     * @return the memory limit in bytes, or {@code -1} if the memory is not limited
+     */
+    long getMemoryLimit() {
+        if (!memoryLimit.refresh(this)) {
+            return -1;
+        }
+        long limit = memoryLimit.getFirstValue();
+        return limit < UNLIMITED_V1_MEMORY ? limit : -1;
+    }
+
+    /**
+     * @return the memory usage in bytes, or {@code -1} if it can't be read
+     */
+    long getMemoryUsage() {
+        if (!memoryUsage.refresh(this)) {
+            return -1;
+        }
+        return memoryUsage.getFirstValue();
+    }
+
+    /**
+     * @return the number of CPUs the cgroup is allowed to use, which may be fractional, or {@link Double#NaN} if there is no CPU quota
+     */
+    double getCpuLimit() {
+        if (cpuQuota == null || !cpuQuota.refresh(this)) {
+            return Double.NaN;
+        }
+        long quota;
+        long period;
+        synchronized (cpuQuota) {
+            quota = cpuQuota.getFirstValue();
+            if (cpuPeriod == null) {
+                // v2: "<quota> <period>" or "max <period>", in which case the quota is -1
+                period = cpuQuota.getField(0, 1);
+            } else if (cpuPeriod.refresh(this)) {
+                period = cpuPeriod.getFirstValue();
+            } else {
+                period = -1;
+            }
+        }
+        if (quota <= 0 || period <= 0) {
+            return Double.NaN;
+        }
+        return (double) quota / period;
+    }
+
+    void close() {
+        memoryLimit.close();
+        memoryUsage.close();
+        if (cpuQuota != null) {
+            cpuQuota.close();
+        }
+        if (cpuPeriod != null) {
+            cpuPeriod.close();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Reads small, text based files like the ones in {@code /proc} or in the cgroup file system into a reusable direct {@link ByteBuffer}
+ * and parses numbers directly from the buffer, without creating {@link String}s.
+ * <p>
+ * The file is kept open and re-read from the start on every {@link #refresh(Object)},
+ * which makes the kernel regenerate the content of pseudo files.
+ * </p>
+ * <p>
+ * Multiple metrics can be based on the same file.
+ * As every metric is read once per reporting cycle,
+ * the file is only read again when a metric which has already consumed the current content refreshes it.
+ * Metrics which read multiple values of the same file should synchronize on the {@link ProcFile}
+ * so that all values are parsed from the same content.
+ * </p>
+ */
+class ProcFile {
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    private final File file;
+    /**
+     * The metrics which have read the content since the last read
+     */
+    private final Set<Object> readers = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    @Nullable
+    private FileChannel channel;
+    private boolean valid;
+
+    ProcFile(File file) {
+        this.file = file;
+    }
+
+    ProcFile(String path) {
+        this(new File(path));
+    }
+
+    boolean canRead() {
+        return file.canRead();
+    }
+
+    /**
+     * Makes sure the content of the file is up to date for the provided reader.
+     *
+     * @param reader the metric which reads values of this file
+     * @return {@code true} if the content could be read, {@code false} otherwise
+     */
+    synchronized boolean refresh(Object reader) {
+        if (!readers.add(reader) || !valid) {
+            // the reader has already consumed the current content
+            readers.clear();
+            readers.add(reader);
+            valid = read();
+        }
+        return valid;
+    }
+
+    private boolean read() {
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+            ((Buffer) buffer).clear();
+            long position = 0;
+            for (int read = channel.read(buffer, position); read > 0; read = channel.read(buffer, position)) {
+                position += read;
+                if (!buffer.hasRemaining()) {
+                    if (buffer.capacity() >= MAX_BUFFER_SIZE) {
+                        break;
+                    }
+                    ByteBuffer newBuffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                    ((Buffer) buffer).flip();
+                    newBuffer.put(buffer);
+                    buffer = newBuffer;
+                }
+            }
+            ((Buffer) buffer).flip();
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number which follows the first line starting with the provided key,
+     * for example the value of {@code MemTotal:} in {@code MemTotal:  16324740 kB}.
+     *
+     * @param key the start of the line, including the separator
+     * @return the number following the key, or {@code -1} if there is no such line or the value is not a number
+     */
+    synchronized long getValue(byte[] key) {
+        int limit = buffer.limit();
+        for (int lineStart = 0; lineStart < limit; lineStart = nextLine(lineStart)) {
+            if (startsWith(lineStart, key)) {
+                return parseLong(lineStart + key.length);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number at the start of the file, as found in files containing a single value.
+     *
+     * @return the first number of the file, or {@code -1} if the file does not start with a number, for example {@code max}
+     */
+    synchronized long getFirstValue() {
+        return parseLong(0);
+    }
+
+    /**
+     * Returns a whitespace separated number of the first line
+     *
+     * @param offset the position to start from
+     * @param index  the zero based index of the field, counted from {@code offset}
+     * @return the number, or {@code -1} if there is no such field or the field is not a number
+     */
+    synchronized long getField(int offset, int index) {
+        int position = skipWhitespace(offset);
+        for (int i = 0; i < index; i++) {
+            position = skipWhitespace(skipToken(position));
+        }
+        return parseLong(position);
+    }
+
+    /**
+     * Returns the position after the last occurrence of the provided byte in the first line,
+     * which is used to skip the command name in {@code /proc/self/stat} which may contain whitespace or parentheses.
+     *
+     * @return the position after the last occurrence of the byte, or {@code 0} if the line does not contain the byte
+     */
+    synchronized int indexAfterLast(byte b) {
+        int result = 0;
+        for (int i = 0, limit = buffer.limit(); i < limit; i++) {
+            byte current = buffer.get(i);
+            if (current == '\n') {
+                break;
+            } else if (current == b) {
+                result = i + 1;
+            }
+        }
+        return result;
+    }
+
+    synchronized void close() {
+        valid = false;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            channel = null;
+        }
+    }
+
+    private boolean startsWith(int position, byte[] prefix) {
+        if (position + prefix.length > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(position + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int nextLine(int position) {
+        int limit = buffer.limit();
+        while (position < limit && buffer.get(position) != '\n') {
+            position++;
+        }
+        return position + 1;
+    }
+
+    private int skipWhitespace(int position) {
+        int limit = buffer.limit();
+        while (position < limit && (buffer.get(position) == ' ' || buffer.get(position) == '\t')) {
+            position++;
+        }
+        return position;
+    }
+
+    private int skipToken(int position) {
+        int limit = buffer.limit();
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b == ' ' || b == '\t' || b == '\n') {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    private long parseLong(int position) {
+        position = skipWhitespace(position);
+        int limit = buffer.limit();
+        long result = 0;
+        int digits = 0;
+        for (; position < limit; position++, digits++) {
+            int digit = buffer.get(position) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            if (result > (Long.MAX_VALUE - digit) / 10) {
+                // overflow, for example an unsigned 64 bit value
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return digits > 0 ? result : -1;
+    }
+}
@@ -26,29 +26,24 @@ package co.elastic.apm.agent.metrics.builtin;
 
 import co.elastic.apm.agent.context.AbstractLifecycleListener;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
-import co.elastic.apm.agent.matcher.WildcardMatcher;
 import co.elastic.apm.agent.metrics.DoubleSupplier;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.util.JmxUtils;
-import org.stagemonitor.util.StringUtils;
 
 import javax.annotation.Nullable;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-import static co.elastic.apm.agent.matcher.WildcardMatcher.caseSensitiveMatcher;
+import java.nio.charset.StandardCharsets;
 
 /**
- * Record metrics related to the CPU and memory, gathered by the JVM.
+ * Record metrics related to the CPU and memory.
+ * <p>
+ * On Linux, the metrics are read from {@code /proc} and from the cgroup file system, see {@link ProcFile} and {@link CGroup}.
+ * Otherwise, the metrics are gathered by the JVM.
+ * </p>
  * <p>
  * Supported JVM implementations:
  * <ul>
@@ -61,6 +56,18 @@ import static co.elastic.apm.agent.matcher.WildcardMatcher.caseSensitiveMatcher;
  */
 public class SystemMetrics extends AbstractLifecycleListener {
 
+    /**
+     * The kernel reports CPU times in clock ticks ({@code USER_HZ}), which is 100 per second on all common architectures
+     */
+    private static final double CLOCK_TICKS_PER_SECOND = 100;
+    private static final byte[] MEM_TOTAL = ascii("MemTotal:");
+    private static final byte[] MEM_AVAILABLE = ascii("MemAvailable:");
+    private static final byte[] MEM_FREE = ascii("MemFree:");
+    private static final byte[] BUFFERS = ascii("Buffers:");
+    private static final byte[] CACHED = ascii("Cached:");
+    private static final byte[] VM_SIZE = ascii("VmSize:");
+    private static final byte[] VM_RSS = ascii("VmRSS:");
+
     private final OperatingSystemMXBean operatingSystemBean;
 
     @Nullable
@@ -77,20 +84,33 @@ public class SystemMetrics extends AbstractLifecycleListener {
 
     @Nullable
     private final Method virtualProcessMemory;
-    private final File memInfoFile;
+    private final ProcFile memInfo;
+    private final ProcFile stat;
+    private final ProcFile selfStat;
+    private final ProcFile selfStatus;
+    @Nullable
+    private final CGroup cgroup;
 
     public SystemMetrics() {
         this(new File("/proc/meminfo"));
     }
 
     SystemMetrics(File memInfoFile) {
+        this(memInfoFile, new File("/proc/stat"), new File("/proc/self/stat"), new File("/proc/self/status"), CGroup.find());
+    }
+
+    SystemMetrics(File memInfoFile, File statFile, File selfStatFile, File selfStatusFile, @Nullable CGroup cgroup) {
         this.operatingSystemBean = ManagementFactory.getOperatingSystemMXBean();
         this.systemCpuUsage = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getSystemCpuLoad");
         this.processCpuUsage = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getProcessCpuLoad");
         this.freeMemory = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getFreePhysicalMemorySize");
         this.totalMemory = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getTotalPhysicalMemorySize");
         this.virtualProcessMemory = JmxUtils.getOperatingSystemMBeanMethod(operatingSystemBean, "getCommittedVirtualMemorySize");
-        this.memInfoFile = memInfoFile;
+        this.memInfo = new ProcFile(memInfoFile);
+        this.stat = new ProcFile(statFile);
+        this.selfStat = new ProcFile(selfStatFile);
+        this.selfStatus = new ProcFile(selfStatusFile);
+        this.cgroup = cgroup;
     }
 
     @Override
@@ -98,48 +118,58 @@ public class SystemMetrics extends AbstractLifecycleListener {
         bindTo(tracer.getMetricRegistry());
     }
 
+    @Override
+    public void stop() {
+        memInfo.close();
+        stat.close();
+        selfStat.close();
+        selfStatus.close();
+        if (cgroup != null) {
+            cgroup.close();
+        }
+    }
+
     void bindTo(MetricRegistry metricRegistry) {
-        // J9 always returns -1 on the first call
-        metricRegistry.addUnlessNan("system.cpu.total.norm.pct", Labels.EMPTY, new DoubleSupplier() {
-            @Override
-            public double get() {
-                return invoke(systemCpuUsage);
-            }
-        });
+        if (stat.canRead()) {
+            metricRegistry.add("system.cpu.total.norm.pct", Labels.EMPTY, new SystemCpuUsage());
+        } else {
+            // J9 always returns -1 on the first call
+            metricRegistry.addUnlessNan("system.cpu.total.norm.pct", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return invoke(systemCpuUsage);
+                }
+            });
+        }
 
-        metricRegistry.addUnlessNan("system.process.cpu.total.norm.pct", Labels.EMPTY, new DoubleSupplier() {
-            @Override
-            public double get() {
-                return invoke(processCpuUsage);
-            }
-        });
+        if (selfStat.canRead()) {
+            metricRegistry.add("system.process.cpu.total.norm.pct", Labels.EMPTY, new ProcessCpuUsage());
+        } else {
+            metricRegistry.addUnlessNan("system.process.cpu.total.norm.pct", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return invoke(processCpuUsage);
+                }
+            });
+        }
 
-        if (memInfoFile.canRead()) {
+        if (memInfo.canRead()) {
             metricRegistry.addUnlessNan("system.memory.actual.free", Labels.EMPTY, new DoubleSupplier() {
-                final List<WildcardMatcher> relevantLines = Arrays.asList(
-                    caseSensitiveMatcher("MemAvailable:*kB"),
-                    caseSensitiveMatcher("MemFree:*kB"),
-                    caseSensitiveMatcher("Buffers:*kB"),
-                    caseSensitiveMatcher("Cached:*kB"));
-
                 @Override
                 public double get() {
-                    Map<String, Long> memInfo = new HashMap<>();
-                    try (BufferedReader fileReader = new BufferedReader(new FileReader(memInfoFile))) {
-                        for (String memInfoLine = fileReader.readLine(); memInfoLine != null && !memInfoLine.isEmpty(); memInfoLine = fileReader.readLine()) {
-                            if (WildcardMatcher.isAnyMatch(relevantLines, memInfoLine)) {
-                                final String[] memInfoSplit = StringUtils.split(memInfoLine, ' ');
-                                memInfo.put(memInfoSplit[0], Long.parseLong(memInfoSplit[1]) * 1024);
-                            }
-                        }
-                        if (memInfo.containsKey("MemAvailable:")) {
-                            return memInfo.get("MemAvailable:");
-                        } else if (memInfo.containsKey("MemFree:")) {
-                            return memInfo.get("MemFree:") + memInfo.get("Buffers:") + memInfo.get("Cached:");
-                        } else {
+                    synchronized (memInfo) {
+                        if (!memInfo.refresh(this)) {
                             return Double.NaN;
                         }
-                    } catch (Exception e) {
+                        long available = memInfo.getValue(MEM_AVAILABLE);
+                        if (available >= 0) {
+                            return available * 1024;
+                        }
+                        long free = memInfo.getValue(MEM_FREE);
+                        if (free >= 0) {
+                            // kernels older than 3.14 don't report the available memory
+                            return (free + Math.max(0, memInfo.getValue(BUFFERS)) + Math.max(0, memInfo.getValue(CACHED))) * 1024;
+                        }
                         return Double.NaN;
                     }
                 }
@@ -148,17 +178,7 @@ public class SystemMetrics extends AbstractLifecycleListener {
             metricRegistry.addUnlessNan("system.memory.total", Labels.EMPTY, new DoubleSupplier() {
                 @Override
                 public double get() {
-                    try (BufferedReader fileReader = new BufferedReader(new FileReader(memInfoFile))) {
-                        for (String memInfoLine = fileReader.readLine(); memInfoLine != null && !memInfoLine.isEmpty(); memInfoLine = fileReader.readLine()) {
-                            if (memInfoLine.startsWith("MemTotal:")) {
-                                final String[] memInfoSplit = StringUtils.split(memInfoLine, ' ');
-                                return Long.parseLong(memInfoSplit[1]) * 1024;
-                            }
-                        }
-                        return Double.NaN;
-                    } catch (Exception e) {
-                        return Double.NaN;
-                    }
+                    return getKiloBytes(memInfo, MEM_TOTAL, this);
                 }
             });
         } else {
@@ -176,12 +196,54 @@ public class SystemMetrics extends AbstractLifecycleListener {
             });
         }
 
-        metricRegistry.addUnlessNegative("system.process.memory.size", Labels.EMPTY, new DoubleSupplier() {
-            @Override
-            public double get() {
-                return invoke(virtualProcessMemory);
+        if (selfStatus.canRead()) {
+            metricRegistry.addUnlessNan("system.process.memory.size", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return getKiloBytes(selfStatus, VM_SIZE, this);
+                }
+            });
+            metricRegistry.addUnlessNan("system.process.memory.rss.bytes", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return getKiloBytes(selfStatus, VM_RSS, this);
+                }
+            });
+        } else {
+            metricRegistry.addUnlessNegative("system.process.memory.size", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return invoke(virtualProcessMemory);
+                }
+            });
+        }
+
+        if (cgroup != null) {
+            final CGroup cgroup = this.cgroup;
+            // not added if the memory is not limited
+            metricRegistry.addUnlessNegative("system.process.cgroup.memory.mem.limit.bytes", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return cgroup.getMemoryLimit();
+                }
+            });
+            metricRegistry.addUnlessNegative("system.process.cgroup.memory.mem.usage.bytes", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return cgroup.getMemoryUsage();
+                }
+            });
+        }
+    }
+
+    private static double getKiloBytes(ProcFile file, byte[] key, Object reader) {
+        synchronized (file) {
+            if (!file.refresh(reader)) {
+                return Double.NaN;
             }
-        });
+            long kiloBytes = file.getValue(key);
+            return kiloBytes >= 0 ? kiloBytes * 1024 : Double.NaN;
+        }
     }
 
     private double invoke(@Nullable Method method) {
@@ -191,4 +253,92 @@ public class SystemMetrics extends AbstractLifecycleListener {
             return Double.NaN;
         }
     }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Calculates the CPU usage of the whole system since the last invocation,
+     * based on the first line of {@code /proc/stat}:
+     * {@code cpu user nice system idle iowait irq softirq steal guest guest_nice}
+     */
+    private class SystemCpuUsage implements DoubleSupplier {
+
+        private long lastTotal;
+        private long lastIdle;
+
+        private SystemCpuUsage() {
+            get();
+        }
+
+        @Override
+        public double get() {
+            long total = 0;
+            long idle;
+            synchronized (stat) {
+                if (!stat.refresh(this)) {
+                    return Double.NaN;
+                }
+                // guest and guest_nice are already accounted for in user and nice
+                for (int i = 1; i <= 8; i++) {
+                    total += Math.max(0, stat.getField(0, i));
+                }
+                idle = Math.max(0, stat.getField(0, 4)) + Math.max(0, stat.getField(0, 5));
+            }
+            long totalDelta = total - lastTotal;
+            long idleDelta = idle - lastIdle;
+            lastTotal = total;
+            lastIdle = idle;
+            if (totalDelta <= 0) {
+                return Double.NaN;
+            }
+            return Math.min(1, Math.max(0, 1 - (double) idleDelta / totalDelta));
+        }
+    }
+
+    /**
+     * Calculates the CPU usage of this process since the last invocation, based on {@code utime} and {@code stime} of {@code /proc/self/stat},
+     * normalized by the number of CPUs the process can use.
+     * When the cgroup of the process has a CPU quota, the quota limits the number of usable CPUs.
+     */
+    private class ProcessCpuUsage implements DoubleSupplier {
+
+        private long lastTicks;
+        private long lastNanos;
+
+        private ProcessCpuUsage() {
+            get();
+        }
+
+        @Override
+        public double get() {
+            long ticks;
+            synchronized (selfStat) {
+                if (!selfStat.refresh(this)) {
+                    return Double.NaN;
+                }
+                // the fields are counted from the state, which is the first field after the command name
+                int offset = selfStat.indexAfterLast((byte) ')');
+                ticks = Math.max(0, selfStat.getField(offset, 11)) + Math.max(0, selfStat.getField(offset, 12));
+            }
+            long nanos = System.nanoTime();
+            long ticksDelta = ticks - lastTicks;
+            long nanosDelta = nanos - lastNanos;
+            lastTicks = ticks;
+            lastNanos = nanos;
+            if (nanosDelta <= 0) {
+                return Double.NaN;
+            }
+            double cpus = Runtime.getRuntime().availableProcessors();
+            if (cgroup != null) {
+                double cpuLimit = cgroup.getCpuLimit();
+                if (cpuLimit > 0 && cpuLimit < cpus) {
+                    cpus = cpuLimit;
+                }
+            }
+            double cpuSeconds = ticksDelta / CLOCK_TICKS_PER_SECOND;
+            return Math.min(1, Math.max(0, cpuSeconds / (nanosDelta / 1e9 * cpus)));
+        }
+    }
 }
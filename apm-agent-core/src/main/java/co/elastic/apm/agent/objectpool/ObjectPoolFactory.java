@@ -30,6 +30,7 @@ import co.elastic.apm.agent.impl.async.SpanInScopeRunnableWrapper;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.impl.MagazineObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import org.jctools.queues.atomic.AtomicQueueFactory;
 
@@ -38,6 +39,19 @@ import static org.jctools.queues.spec.ConcurrentQueueSpec.createBoundedMpmc;
 public class ObjectPoolFactory {
 
     protected <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
+        return MagazineObjectPool.ofRecyclable(maxCapacity, allocator);
+    }
+
+    /**
+     * Creates a pool without any per-thread state, for objects which are almost always recycled on a different thread
+     * than the one they have been created on.
+     * <p>
+     * For these objects, per-thread magazines don't help but cost memory for every thread which recycles objects.
+     * Objects which are in the magazine of a thread when the thread terminates are lost,
+     * which adds up when there are many short-lived threads.
+     * </p>
+     */
+    protected <T extends Recyclable> ObjectPool<T> createSharedRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
         return QueueBasedObjectPool.ofRecyclable(AtomicQueueFactory.<T>newQueue(createBoundedMpmc(maxCapacity)), false, allocator);
     }
 
@@ -69,7 +83,8 @@ public class ObjectPoolFactory {
     }
 
     public ObjectPool<SpanInScopeRunnableWrapper> createRunnableWrapperPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<SpanInScopeRunnableWrapper>() {
+        // wrappers are created on the thread which submits a task and recycled on the thread which executes it
+        return createSharedRecyclableObjectPool(maxCapacity, new Allocator<SpanInScopeRunnableWrapper>() {
             @Override
             public SpanInScopeRunnableWrapper createInstance() {
                 return new SpanInScopeRunnableWrapper(tracer);
@@ -78,7 +93,7 @@ public class ObjectPoolFactory {
     }
 
     public ObjectPool<SpanInScopeCallableWrapper<?>> createCallableWrapperPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<SpanInScopeCallableWrapper<?>>() {
+        return createSharedRecyclableObjectPool(maxCapacity, new Allocator<SpanInScopeCallableWrapper<?>>() {
             @Override
             public SpanInScopeCallableWrapper<?> createInstance() {
                 return new SpanInScopeCallableWrapper(tracer);
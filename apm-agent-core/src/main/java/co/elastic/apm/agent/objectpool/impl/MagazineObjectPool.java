@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.util.MathUtils;
+import co.elastic.apm.agent.util.ThreadUtils;
+import com.blogspot.mydailyjava.weaklockfree.WeakConcurrentMap;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * An object pool which avoids contention on a single shared queue by using two tiers:
+ * <ul>
+ *     <li>
+ *         A small, per-thread magazine which is accessed without any synchronization.
+ *         Most objects are allocated and recycled on the same thread which means that they never leave the magazine.
+ *     </li>
+ *     <li>
+ *         A set of shared bounded queues (stripes) which back the magazines.
+ *         When the magazine of a thread is full, the recycled object goes to one of the stripes, rotating through them.
+ *         This makes sure that objects which are recycled on a different thread than they have been allocated on,
+ *         for example spans which are recycled by the reporter thread, find their way back to the application threads.
+ *         When the magazine of a thread is empty, the thread first polls its own stripe and then the other ones.
+ *     </li>
+ * </ul>
+ * <p>
+ * The objects in a magazine are only available to the thread owning it.
+ * When a thread terminates, the objects in its magazine are not returned to the pool but are garbage collected.
+ * </p>
+ *
+ * @param <T> pooled object type
+ */
+public class MagazineObjectPool<T> extends AbstractObjectPool<T> {
+
+    private static final int DEFAULT_MAGAZINE_SIZE = 8;
+
+    private final MpmcAtomicArrayQueue<T>[] stripes;
+    private final int mask;
+    private final int magazineSize;
+    /**
+     * Keeps track of the magazines of all threads so that {@link #getObjectsInPool()} can take them into account
+     */
+    private final WeakConcurrentMap<Thread, Magazine<T>> magazines = new WeakConcurrentMap.WithInlinedExpunction<Thread, Magazine<T>>();
+    private final ThreadLocal<Magazine<T>> magazine = new ThreadLocal<Magazine<T>>() {
+        @Override
+        protected Magazine<T> initialValue() {
+            Magazine<T> magazine = new Magazine<T>(magazineSize);
+            magazines.put(Thread.currentThread(), magazine);
+            return magazine;
+        }
+    };
+
+    /**
+     * Creates a magazine based pool for types that implement {@link Recyclable}
+     *
+     * @param maxCapacity the capacity of the shared stripes, not including the per-thread magazines
+     * @param allocator   a factory used to create new instances of the recyclable object
+     */
+    public static <T extends Recyclable> MagazineObjectPool<T> ofRecyclable(int maxCapacity, Allocator<T> allocator) {
+        int stripes = MathUtils.getNextPowerOf2(Runtime.getRuntime().availableProcessors());
+        return new MagazineObjectPool<T>(DEFAULT_MAGAZINE_SIZE, stripes, maxCapacity / stripes, allocator, Resetter.ForRecyclable.<T>get());
+    }
+
+    @SuppressWarnings("unchecked")
+    MagazineObjectPool(int magazineSize, int stripes, int stripeCapacity, Allocator<T> allocator, Resetter<T> resetter) {
+        super(allocator, resetter);
+        if (Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("The number of stripes must be a power of 2, but was " + stripes);
+        }
+        this.magazineSize = magazineSize;
+        this.mask = stripes - 1;
+        this.stripes = new MpmcAtomicArrayQueue[stripes];
+        for (int i = 0; i < stripes; i++) {
+            // the capacity of MpmcAtomicArrayQueue has to be at least 2
+            this.stripes[i] = new MpmcAtomicArrayQueue<T>(Math.max(2, stripeCapacity));
+        }
+    }
+
+    @Nullable
+    @Override
+    public T tryCreateInstance() {
+        T obj = magazine.get().pop();
+        if (obj != null) {
+            return obj;
+        }
+        int stripe = ThreadUtils.getThreadIdHash() & mask;
+        for (int i = 0; i < stripes.length; i++) {
+            obj = stripes[(stripe + i) & mask].poll();
+            if (obj != null) {
+                return obj;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected boolean returnToPool(T obj) {
+        Magazine<T> magazine = this.magazine.get();
+        if (magazine.push(obj)) {
+            return true;
+        }
+        int stripe = magazine.nextStripe++;
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripes[(stripe + i) & mask].offer(obj)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * As the magazines of other threads are read without synchronization, the result is only an estimate while
+     * other threads are concurrently using the pool.
+     * </p>
+     */
+    @Override
+    public int getObjectsInPool() {
+        int size = 0;
+        for (MpmcAtomicArrayQueue<T> stripe : stripes) {
+            size += stripe.size();
+        }
+        for (Map.Entry<Thread, Magazine<T>> entry : magazines) {
+            size += entry.getValue().size;
+        }
+        return size;
+    }
+
+    /**
+     * Clears the shared stripes and the magazine of the current thread.
+     * The magazines of other threads can't safely be cleared from this thread.
+     */
+    @Override
+    public void clear() {
+        for (MpmcAtomicArrayQueue<T> stripe : stripes) {
+            stripe.clear();
+        }
+        magazine.get().clear();
+    }
+
+    /**
+     * A simple array-based stack which is only ever modified by the thread owning it
+     */
+    private static class Magazine<T> {
+        private final Object[] objects;
+        private int size;
+        /**
+         * Rotates through the stripes when the magazine overflows so that recycled objects are evenly distributed
+         */
+        private int nextStripe;
+
+        private Magazine(int capacity) {
+            objects = new Object[capacity];
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        private T pop() {
+            if (size == 0) {
+                return null;
+            }
+            T obj = (T) objects[--size];
+            objects[size] = null;
+            return obj;
+        }
+
+        private boolean push(T obj) {
+            if (size == objects.length) {
+                return false;
+            }
+            objects[size++] = obj;
+            return true;
+        }
+
+        private void clear() {
+            while (size > 0) {
+                objects[--size] = null;
+            }
+        }
+    }
+}
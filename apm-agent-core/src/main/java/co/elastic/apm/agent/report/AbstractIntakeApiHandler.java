@@ -27,6 +27,9 @@ package co.elastic.apm.agent.report;
 import co.elastic.apm.agent.impl.MetaData;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.report.serialize.PayloadSerializer;
+import co.elastic.apm.agent.report.transport.IntakeRequest;
+import co.elastic.apm.agent.report.transport.IntakeTransport;
+import co.elastic.apm.agent.report.transport.ResponseHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.util.IOUtils;
@@ -35,7 +38,7 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.Deflater;
@@ -54,14 +57,24 @@ public class AbstractIntakeApiHandler {
     protected long currentlyTransmitting = 0;
     protected long reported = 0;
     protected long dropped = 0;
+    protected final IntakeTransport transport;
     @Nullable
-    protected HttpURLConnection connection;
+    protected IntakeRequest request;
     @Nullable
     protected OutputStream os;
     protected int errorCount;
     protected volatile boolean shutDown;
+    @Nullable
+    private PendingResponse pendingResponse;
+    private int serverUrlOffset;
 
     public AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, MetaData metaData, PayloadSerializer payloadSerializer, ApmServerClient apmServerClient) {
+        this(reporterConfiguration, metaData, payloadSerializer, apmServerClient, new HttpUrlConnectionTransport(apmServerClient));
+    }
+
+    public AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, MetaData metaData, PayloadSerializer payloadSerializer,
+                                    ApmServerClient apmServerClient, IntakeTransport transport) {
+        this.transport = transport;
         this.reporterConfiguration = reporterConfiguration;
         this.payloadSerializer = payloadSerializer;
         this.apmServerClient = apmServerClient;
@@ -99,25 +112,32 @@ public class AbstractIntakeApiHandler {
         return endRequest;
     }
 
-    protected HttpURLConnection startRequest(String endpoint) throws IOException {
-        final HttpURLConnection connection = apmServerClient.startRequest(endpoint);
+    /**
+     * Makes this handler send its requests to a different APM Server than the other handlers,
+     * see {@link ApmServerClient#appendPathToCurrentUrl(String, int)}.
+     */
+    void setServerUrlOffset(int serverUrlOffset) {
+        this.serverUrlOffset = serverUrlOffset;
+    }
+
+    protected IntakeRequest startRequest(String endpoint) throws IOException {
+        // a non-blocking transport might have received the response to the previous request in the meantime
+        handlePendingResponse(false);
+        final IntakeRequest request = transport.startRequest(apmServerClient.appendPathToCurrentUrl(endpoint, serverUrlOffset));
         if (logger.isDebugEnabled()) {
-            logger.debug("Starting new request to {}", connection.getURL());
-        }
-        connection.setRequestMethod("POST");
-        connection.setDoOutput(true);
-        connection.setChunkedStreamingMode(DslJsonSerializer.BUFFER_SIZE);
-        connection.setRequestProperty("Content-Encoding", "deflate");
-        connection.setRequestProperty("Content-Type", "application/x-ndjson");
-        connection.setUseCaches(false);
-        connection.connect();
-        os = new DeflaterOutputStream(connection.getOutputStream(), deflater);
+            logger.debug("Starting new request to {}", request.getUrl());
+        }
+        os = new DeflaterOutputStream(request.getOutputStream(), deflater);
         os.write(metaData);
-        return connection;
+        return request;
     }
 
     public void endRequest() {
-        if (connection != null) {
+        if (request != null) {
+            // there's at most one request awaiting its response
+            handlePendingResponse(true);
+            final PendingResponse response = new PendingResponse(request, currentlyTransmitting);
+            pendingResponse = response;
             try {
                 payloadSerializer.flush();
                 if (os != null) {
@@ -126,41 +146,60 @@ public class AbstractIntakeApiHandler {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Flushing {} uncompressed {} compressed bytes", deflater.getBytesRead(), deflater.getBytesWritten());
                 }
-                InputStream inputStream = connection.getInputStream();
-                final int responseCode = connection.getResponseCode();
-                if (responseCode >= 400) {
-                    onRequestError(responseCode, inputStream, null);
-                } else {
-                    onRequestSuccess();
-                }
+                request.end(response);
             } catch (IOException e) {
-                try {
-                    onRequestError(connection.getResponseCode(), connection.getErrorStream(), e);
-                } catch (IOException e1) {
-                    onRequestError(-1, connection.getErrorStream(), e);
-                }
+                request.abort();
+                response.onFailure(e);
             } finally {
-                HttpUtils.consumeAndClose(connection);
-                connection = null;
+                request = null;
                 deflater.reset();
                 currentlyTransmitting = 0;
             }
+            // a blocking transport has already received the response at this point
+            handlePendingResponse(false);
         }
     }
 
-    protected void onRequestError(Integer responseCode, InputStream inputStream, @Nullable IOException e) {
+    /**
+     * Applies the outcome of the last request, if its response has already been received.
+     * <p>
+     * This makes sure that {@link #onRequestSuccess} and {@link #onRequestError} (including the backoff)
+     * are always executed on the reporter thread, even if the transport receives responses asynchronously.
+     * </p>
+     *
+     * @param await whether to wait for the response if it has not been received yet
+     */
+    protected void handlePendingResponse(boolean await) {
+        final PendingResponse response = pendingResponse;
+        if (response == null) {
+            return;
+        }
+        if (await) {
+            response.await(reporterConfiguration.getServerTimeout().getMillis());
+        } else if (!response.isDone()) {
+            return;
+        }
+        pendingResponse = null;
+        if (response.exception != null) {
+            onRequestError(null, null, response.exception, response.events);
+        } else if (response.statusCode >= 400) {
+            onRequestError(response.statusCode, response.body, null, response.events);
+        } else {
+            onRequestSuccess(response.events);
+        }
+    }
+
+    protected void onRequestError(@Nullable Integer responseCode, @Nullable String responseBody, @Nullable IOException e, long transmittedEvents) {
         // TODO read accepted, dropped and invalid
-        onConnectionError(responseCode, currentlyTransmitting, 0);
+        onConnectionError(responseCode, transmittedEvents, 0);
         if (e != null) {
             logger.error("Error sending data to APM server: {}, response code is {}", e.getMessage(), responseCode);
             logger.debug("Sending payload to APM server failed", e);
+        } else {
+            logger.error("Error sending data to APM server, response code is {}", responseCode);
         }
-        if (logger.isWarnEnabled()) {
-            try {
-                logger.warn(IOUtils.toString(inputStream));
-            } catch (IOException e1) {
-                logger.warn(e1.getMessage(), e);
-            }
+        if (responseBody != null) {
+            logger.warn(responseBody);
         }
     }
 
@@ -201,13 +240,96 @@ public class AbstractIntakeApiHandler {
 
     public void close() {
         shutDown = true;
+        transport.close();
         synchronized (WAIT_LOCK) {
             WAIT_LOCK.notifyAll();
         }
     }
 
-    protected void onRequestSuccess() {
+    protected void onRequestSuccess(long transmittedEvents) {
         errorCount = 0;
-        reported += currentlyTransmitting;
+        reported += transmittedEvents;
+    }
+
+    /**
+     * Receives the response of an {@link IntakeRequest}, potentially on the I/O thread of a non-blocking transport,
+     * and hands it over to the reporter thread.
+     */
+    private static class PendingResponse implements ResponseHandler {
+
+        private final IntakeRequest request;
+        private final long events;
+        private volatile boolean done;
+        private int statusCode = -1;
+        @Nullable
+        private String body;
+        @Nullable
+        private IOException exception;
+
+        private PendingResponse(IntakeRequest request, long events) {
+            this.request = request;
+            this.events = events;
+        }
+
+        @Override
+        public synchronized void onResponse(int statusCode, @Nullable InputStream body) {
+            if (done) {
+                return;
+            }
+            this.statusCode = statusCode;
+            if (statusCode >= 400 && body != null) {
+                try {
+                    this.body = IOUtils.toString(body);
+                } catch (IOException e) {
+                    this.body = e.getMessage();
+                }
+            }
+            done = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onFailure(IOException e) {
+            if (done) {
+                return;
+            }
+            exception = e;
+            done = true;
+            notifyAll();
+        }
+
+        private boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Waits for the response and fails the request if it has not been received within the provided timeout.
+         *
+         * @param timeoutMillis the maximum time to wait, {@code 0} means to wait indefinitely
+         */
+        private void await(long timeoutMillis) {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            synchronized (this) {
+                try {
+                    while (!done) {
+                        if (timeoutMillis == 0) {
+                            wait();
+                        } else {
+                            final long remaining = deadline - System.currentTimeMillis();
+                            if (remaining <= 0) {
+                                break;
+                            }
+                            wait(remaining);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (!done) {
+                onFailure(new SocketTimeoutException("Timed out waiting for the response of the APM Server"));
+                request.abort();
+            }
+        }
     }
 }
@@ -43,7 +43,9 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -123,12 +125,8 @@ public class ApmServerClient {
         return copy;
     }
 
-    HttpURLConnection startRequest(String relativePath) throws IOException {
-        return startRequestToUrl(appendPathToCurrentUrl(relativePath));
-    }
-
     @Nonnull
-    private HttpURLConnection startRequestToUrl(URL url) throws IOException {
+    HttpURLConnection startRequestToUrl(URL url) throws IOException {
         final URLConnection connection = url.openConnection();
 
         // change SSL socket factory to support both TLS fallback and disabling certificate validation
@@ -145,29 +143,45 @@ public class ApmServerClient {
             }
         }
 
+        for (Map.Entry<String, String> header : getRequestHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setConnectTimeout((int) reporterConfiguration.getServerTimeout().getMillis());
+        connection.setReadTimeout((int) reporterConfiguration.getServerTimeout().getMillis());
+        return (HttpURLConnection) connection;
+    }
+
+    /**
+     * Returns the headers which are sent with every request to the APM Server,
+     * such as the {@code User-Agent} and the {@code Authorization} header.
+     *
+     * @return the headers which are sent with every request to the APM Server
+     */
+    public Map<String, String> getRequestHeaders() {
+        Map<String, String> headers = new LinkedHashMap<>();
         String secretToken = reporterConfiguration.getSecretToken();
         String apiKey = reporterConfiguration.getApiKey();
-        String authHeaderValue = null;
-
         if (apiKey != null) {
-            authHeaderValue = String.format("ApiKey %s", apiKey);
+            headers.put("Authorization", String.format("ApiKey %s", apiKey));
         } else if (secretToken != null) {
-            authHeaderValue = String.format("Bearer %s", secretToken);
+            headers.put("Authorization", String.format("Bearer %s", secretToken));
         }
-
-        if (authHeaderValue != null) {
-            connection.setRequestProperty("Authorization", authHeaderValue);
-        }
-
-        connection.setRequestProperty("User-Agent", USER_AGENT);
-        connection.setConnectTimeout((int) reporterConfiguration.getServerTimeout().getMillis());
-        connection.setReadTimeout((int) reporterConfiguration.getServerTimeout().getMillis());
-        return (HttpURLConnection) connection;
+        headers.put("User-Agent", USER_AGENT);
+        return headers;
     }
 
     @Nonnull
     URL appendPathToCurrentUrl(String apmServerPath) throws MalformedURLException {
-        return appendPath(getCurrentUrl(), apmServerPath);
+        return appendPathToCurrentUrl(apmServerPath, 0);
+    }
+
+    /**
+     * Like {@link #appendPathToCurrentUrl(String)} but starts at the URL which is {@code offset} positions after the current URL.
+     * This lets multiple reporter threads spread their requests across the configured APM Servers.
+     */
+    @Nonnull
+    URL appendPathToCurrentUrl(String apmServerPath, int offset) throws MalformedURLException {
+        return appendPath(getCurrentUrl(offset), apmServerPath);
     }
 
     @Nonnull
@@ -273,7 +287,12 @@ public class ApmServerClient {
     }
 
     URL getCurrentUrl() {
-        return serverUrls.get(errorCount.get() % serverUrls.size());
+        return getCurrentUrl(0);
+    }
+
+    private URL getCurrentUrl(int offset) {
+        List<URL> serverUrls = this.serverUrls;
+        return serverUrls.get((errorCount.get() + offset) % serverUrls.size());
     }
 
     /**
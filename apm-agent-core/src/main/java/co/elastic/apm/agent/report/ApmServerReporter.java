@@ -30,10 +30,12 @@ import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy;
+import co.elastic.apm.agent.report.spill.DiskSpillQueue;
 import co.elastic.apm.agent.util.ExecutorUtils;
 import co.elastic.apm.agent.util.MathUtils;
 import co.elastic.apm.agent.util.ThreadUtils;
 import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.EventHandler;
 import com.lmax.disruptor.EventTranslator;
 import com.lmax.disruptor.EventTranslatorOneArg;
 import com.lmax.disruptor.IgnoreExceptionHandler;
@@ -43,6 +45,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
@@ -55,6 +59,11 @@ import java.util.concurrent.atomic.AtomicLong;
  * <p>
  * It uses a Disruptor/ring buffer to decouple the {@link Transaction} producing threads from the thread that actually sends the payload
  * </p>
+ * <p>
+ * When there are multiple {@link ReportingEventHandler}s, each of them runs on its own thread and handles a disjoint subset of the
+ * ring buffer's sequences (see {@link ShardingEventHandler}).
+ * Flush and shutdown events are handled by all of them.
+ * </p>
  */
 public class ApmServerReporter implements Reporter {
 
@@ -94,14 +103,38 @@ public class ApmServerReporter implements Reporter {
     private final Disruptor<ReportingEvent> disruptor;
     private final AtomicLong dropped = new AtomicLong();
     private final boolean dropTransactionIfQueueFull;
-    private final ReportingEventHandler reportingEventHandler;
+    private final List<ReportingEventHandler> reportingEventHandlers;
+    private final ShardingEventHandler[] shards;
     private final boolean syncReport;
     @Nullable
+    private final DiskSpillQueue spillQueue;
+    @Nullable
     private ScheduledThreadPoolExecutor metricsReportingScheduler;
 
     public ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
                              ReportingEventHandler reportingEventHandler) {
+        this(dropTransactionIfQueueFull, reporterConfiguration, reportingEventHandler, null);
+    }
+
+    /**
+     * @param spillQueue if not {@code null}, events which don't fit into the ring buffer are spilled to this queue instead of being dropped
+     */
+    public ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
+                             ReportingEventHandler reportingEventHandler, @Nullable DiskSpillQueue spillQueue) {
+        this(dropTransactionIfQueueFull, reporterConfiguration, Collections.singletonList(reportingEventHandler), spillQueue);
+    }
+
+    /**
+     * @param reportingEventHandlers the handlers which process the events in parallel, each on its own thread
+     * @param spillQueue             if not {@code null}, events which don't fit into the ring buffer are spilled to this queue instead of being dropped
+     */
+    public ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
+                             List<ReportingEventHandler> reportingEventHandlers, @Nullable DiskSpillQueue spillQueue) {
+        if (reportingEventHandlers.isEmpty()) {
+            throw new IllegalArgumentException("At least one reporting event handler is required");
+        }
         this.dropTransactionIfQueueFull = dropTransactionIfQueueFull;
+        this.spillQueue = spillQueue;
         this.syncReport = reporterConfiguration.isReportSynchronously();
         disruptor = new Disruptor<>(new TransactionEventFactory(), MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()), new ThreadFactory() {
             @Override
@@ -112,11 +145,17 @@ public class ApmServerReporter implements Reporter {
                 return thread;
             }
         }, ProducerType.MULTI, new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000));
-        this.reportingEventHandler = reportingEventHandler;
+        this.reportingEventHandlers = reportingEventHandlers;
+        this.shards = new ShardingEventHandler[reportingEventHandlers.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new ShardingEventHandler(reportingEventHandlers.get(i), i, shards.length);
+        }
         disruptor.setDefaultExceptionHandler(new IgnoreExceptionHandler());
-        disruptor.handleEventsWith(this.reportingEventHandler);
+        disruptor.handleEventsWith(shards);
         disruptor.start();
-        reportingEventHandler.init(this);
+        for (ReportingEventHandler reportingEventHandler : reportingEventHandlers) {
+            reportingEventHandler.init(this);
+        }
     }
 
     @Override
@@ -149,12 +188,21 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public long getDropped() {
-        return dropped.get() + reportingEventHandler.getDropped();
+        long evicted = spillQueue != null ? spillQueue.getEvicted() : 0;
+        long dropped = this.dropped.get() + evicted;
+        for (ReportingEventHandler reportingEventHandler : reportingEventHandlers) {
+            dropped += reportingEventHandler.getDropped();
+        }
+        return dropped;
     }
 
     @Override
     public long getReported() {
-        return reportingEventHandler.getReported();
+        long reported = 0;
+        for (ReportingEventHandler reportingEventHandler : reportingEventHandlers) {
+            reported += reportingEventHandler.getReported();
+        }
+        return reported;
     }
 
     /**
@@ -221,7 +269,12 @@ public class ApmServerReporter implements Reporter {
     }
 
     private boolean isEventProcessed(long sequence) {
-        return disruptor.getSequenceValueFor(reportingEventHandler) >= sequence;
+        for (ShardingEventHandler shard : shards) {
+            if (disruptor.getSequenceValueFor(shard) < sequence) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -233,7 +286,12 @@ public class ApmServerReporter implements Reporter {
         } catch (com.lmax.disruptor.TimeoutException e) {
             logger.warn("Timeout while shutting down disruptor");
         }
-        reportingEventHandler.close();
+        for (ReportingEventHandler reportingEventHandler : reportingEventHandlers) {
+            reportingEventHandler.close();
+        }
+        if (spillQueue != null) {
+            spillQueue.close();
+        }
         if (metricsReportingScheduler != null) {
             metricsReportingScheduler.shutdown();
         }
@@ -252,6 +310,12 @@ public class ApmServerReporter implements Reporter {
     @Override
     public void scheduleMetricReporting(final MetricRegistry metricRegistry, long intervalMs, final ElasticApmTracer tracer) {
         if (intervalMs > 0 && metricsReportingScheduler == null) {
+            if (spillQueue != null) {
+                spillQueue.bindTo(metricRegistry);
+            }
+            for (ReportingEventHandler reportingEventHandler : reportingEventHandlers) {
+                reportingEventHandler.bindTo(metricRegistry);
+            }
             metricsReportingScheduler = ExecutorUtils.createSingleThreadSchedulingDeamonPool("metrics-reporter");
             metricsReportingScheduler.scheduleAtFixedRate(new Runnable() {
                 @Override
@@ -274,6 +338,10 @@ public class ApmServerReporter implements Reporter {
         if (dropTransactionIfQueueFull) {
             boolean queueFull = !disruptor.getRingBuffer().tryPublishEvent(eventTranslator, event);
             if (queueFull) {
+                if (spillQueue != null && spillQueue.spill(event, eventTranslator)) {
+                    // the event has been serialized and can be recycled by the caller
+                    return false;
+                }
                 if (logger.isDebugEnabled()) {
                     logger.debug("Could not add {} {} to ring buffer as no slots are available", event.getClass().getSimpleName(), event);
                 }
@@ -286,6 +354,35 @@ public class ApmServerReporter implements Reporter {
         return true;
     }
 
+    /**
+     * Lets multiple {@link ReportingEventHandler}s consume the same ring buffer in parallel.
+     * <p>
+     * Each shard only handles the sequences which are assigned to it,
+     * except for {@linkplain ReportingEvent#isBroadcastEvent() broadcast events} like flush and shutdown which are handled by all shards.
+     * As opposed to a {@link com.lmax.disruptor.WorkerPool},
+     * this makes sure that a flush applies to the requests of all handlers and that all of them are shut down.
+     * </p>
+     */
+    static class ShardingEventHandler implements EventHandler<ReportingEvent> {
+
+        private final ReportingEventHandler reportingEventHandler;
+        private final int shard;
+        private final int numShards;
+
+        ShardingEventHandler(ReportingEventHandler reportingEventHandler, int shard, int numShards) {
+            this.reportingEventHandler = reportingEventHandler;
+            this.shard = shard;
+            this.numShards = numShards;
+        }
+
+        @Override
+        public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) throws Exception {
+            if (numShards == 1 || sequence % numShards == shard || event.isBroadcastEvent()) {
+                reportingEventHandler.onEvent(event, sequence, endOfBatch);
+            }
+        }
+    }
+
     static class TransactionEventFactory implements EventFactory<ReportingEvent> {
         @Override
         public ReportingEvent newInstance() {
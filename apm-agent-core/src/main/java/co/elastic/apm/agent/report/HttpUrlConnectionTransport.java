@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.transport.IntakeRequest;
+import co.elastic.apm.agent.report.transport.IntakeTransport;
+import co.elastic.apm.agent.report.transport.ResponseHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The default {@link IntakeTransport} which is based on {@link HttpURLConnection}.
+ * <p>
+ * Waits for the response of the APM Server when {@linkplain IntakeRequest#end ending} a request,
+ * which means the reporter thread is blocked until the APM Server has responded.
+ * </p>
+ */
+public class HttpUrlConnectionTransport implements IntakeTransport {
+
+    private final ApmServerClient apmServerClient;
+
+    public HttpUrlConnectionTransport(ApmServerClient apmServerClient) {
+        this.apmServerClient = apmServerClient;
+    }
+
+    @Override
+    public IntakeRequest startRequest(URL url) throws IOException {
+        final HttpURLConnection connection = apmServerClient.startRequestToUrl(url);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(DslJsonSerializer.BUFFER_SIZE);
+        connection.setRequestProperty("Content-Encoding", "deflate");
+        connection.setRequestProperty("Content-Type", "application/x-ndjson");
+        connection.setUseCaches(false);
+        connection.connect();
+        return new Request(connection);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static class Request implements IntakeRequest {
+
+        private final HttpURLConnection connection;
+        private final OutputStream outputStream;
+
+        private Request(HttpURLConnection connection) throws IOException {
+            this.connection = connection;
+            this.outputStream = connection.getOutputStream();
+        }
+
+        @Override
+        public URL getUrl() {
+            return connection.getURL();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public void end(ResponseHandler responseHandler) {
+            try {
+                InputStream inputStream = connection.getInputStream();
+                responseHandler.onResponse(connection.getResponseCode(), inputStream);
+            } catch (IOException e) {
+                // HttpURLConnection throws an exception for all status codes >= 400
+                int responseCode = -1;
+                try {
+                    responseCode = connection.getResponseCode();
+                } catch (IOException ignore) {
+                    // the server did not send a response
+                }
+                if (responseCode > 0) {
+                    responseHandler.onResponse(responseCode, connection.getErrorStream());
+                } else {
+                    responseHandler.onFailure(e);
+                }
+            } finally {
+                HttpUtils.consumeAndClose(connection);
+            }
+        }
+
+        @Override
+        public void abort() {
+            connection.disconnect();
+        }
+    }
+}
@@ -25,15 +25,19 @@
 package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.impl.MetaData;
+import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.report.serialize.PayloadSerializer;
+import co.elastic.apm.agent.report.spill.DiskSpillQueue;
+import co.elastic.apm.agent.report.transport.IntakeRequest;
+import co.elastic.apm.agent.report.transport.IntakeTransport;
 import co.elastic.apm.agent.util.ThreadUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Future;
@@ -44,17 +48,43 @@ import java.util.concurrent.Future;
 public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler implements ReportingEventHandler {
 
     public static final String INTAKE_V2_URL = "/intake/v2/events";
+    private static final int MAX_REPLAY_BYTES_PER_BATCH = 4 * DslJsonSerializer.BUFFER_SIZE;
     private final ProcessorEventHandler processorEventHandler;
     private final Timer timeoutTimer;
     @Nullable
+    private final DiskSpillQueue spillQueue;
+    @Nullable
     private ApmServerReporter reporter;
     @Nullable
     private TimerTask timeoutTask;
+    /**
+     * The number of spilled events which have been replayed into the current request
+     */
+    private int replayedInCurrentRequest;
+    /**
+     * The number of spilled events which have been replayed into the request whose response is pending.
+     * They are only acknowledged after the APM Server has accepted the request.
+     */
+    private int replayedAwaitingResponse;
 
     public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
                                          PayloadSerializer payloadSerializer, MetaData metaData, ApmServerClient apmServerClient) {
-        super(reporterConfiguration, metaData, payloadSerializer, apmServerClient);
+        this(reporterConfiguration, processorEventHandler, payloadSerializer, metaData, apmServerClient, null);
+    }
+
+    public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
+                                         PayloadSerializer payloadSerializer, MetaData metaData, ApmServerClient apmServerClient,
+                                         @Nullable DiskSpillQueue spillQueue) {
+        this(reporterConfiguration, processorEventHandler, payloadSerializer, metaData, apmServerClient, spillQueue,
+            new HttpUrlConnectionTransport(apmServerClient));
+    }
+
+    public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
+                                         PayloadSerializer payloadSerializer, MetaData metaData, ApmServerClient apmServerClient,
+                                         @Nullable DiskSpillQueue spillQueue, IntakeTransport transport) {
+        super(reporterConfiguration, metaData, payloadSerializer, apmServerClient, transport);
         this.processorEventHandler = processorEventHandler;
+        this.spillQueue = spillQueue;
         this.timeoutTimer = new Timer(ThreadUtils.addElasticApmThreadPrefix("request-timeout-timer"), true);
     }
 
@@ -63,6 +93,11 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         this.reporter = reporter;
     }
 
+    @Override
+    public void bindTo(MetricRegistry metricRegistry) {
+        payloadSerializer.bindTo(metricRegistry);
+    }
+
     @Override
     public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
         if (logger.isDebugEnabled()) {
@@ -73,7 +108,10 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
                 handleEvent(event, sequence, endOfBatch);
             }
         } finally {
-            event.resetState();
+            if (!event.isBroadcastEvent()) {
+                // the other reporter threads still have to see broadcast events
+                event.resetState();
+            }
         }
     }
 
@@ -82,19 +120,28 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         if (event.getType() == null) {
             return;
         } else if (event.getType() == ReportingEvent.ReportingEventType.FLUSH) {
+            replaySpilledEvents();
             endRequest();
+            // the request timeout triggers another flush,
+            // which keeps replaying spilled events even if no new events are reported
+            replaySpilledEvents();
             return;
         } else if (event.getType() == ReportingEvent.ReportingEventType.SHUTDOWN) {
             shutDown = true;
             endRequest();
+            // make sure the last request is accounted for, even when using a non-blocking transport
+            handlePendingResponse(true);
             return;
         }
         processorEventHandler.onEvent(event, sequence, endOfBatch);
         try {
-            if (connection == null) {
-                connection = startRequest(INTAKE_V2_URL);
+            if (request == null) {
+                request = startRequest(INTAKE_V2_URL);
             }
             writeEvent(event);
+            if (endOfBatch) {
+                replaySpilledEvents();
+            }
         } catch (Exception e) {
             logger.error("Failed to handle event of type {} with this error: {}", event.getType(), e.getMessage());
             logger.debug("Event handling failure", e);
@@ -133,6 +180,53 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         }
     }
 
+    /**
+     * Appends previously spilled events to the current request, starting a new request if necessary.
+     * <p>
+     * Only replays once the ring buffer has been drained (end of batch) or on flush,
+     * and if the previous request has been accepted by the APM Server, so that the replay does not add to the backlog.
+     * Replayed events are only removed from the spill queue once the request containing them has been accepted.
+     * Therefore, no events are replayed while a previous request containing replayed events awaits its response.
+     * </p>
+     */
+    private void replaySpilledEvents() {
+        if (spillQueue == null || errorCount > 0 || replayedAwaitingResponse > 0 || !spillQueue.canReplay(this)) {
+            return;
+        }
+        try {
+            if (request == null) {
+                request = startRequest(INTAKE_V2_URL);
+            }
+            int replayed = spillQueue.replay(this, payloadSerializer.getJsonWriter(), MAX_REPLAY_BYTES_PER_BATCH);
+            currentlyTransmitting += replayed;
+            replayedInCurrentRequest += replayed;
+        } catch (Exception e) {
+            logger.error("Failed to replay spilled events with this error: {}", e.getMessage());
+            logger.debug("Replay failure", e);
+            endRequest();
+        }
+    }
+
+    @Override
+    protected void onRequestSuccess(long transmittedEvents) {
+        super.onRequestSuccess(transmittedEvents);
+        if (spillQueue != null && replayedAwaitingResponse > 0) {
+            replayedAwaitingResponse = 0;
+            spillQueue.acknowledgeReplay(this);
+        }
+    }
+
+    @Override
+    protected void onRequestError(@Nullable Integer responseCode, @Nullable String responseBody, @Nullable IOException e, long transmittedEvents) {
+        if (spillQueue != null && replayedAwaitingResponse > 0) {
+            // the replayed events are not dropped, they are replayed again later on
+            transmittedEvents -= replayedAwaitingResponse;
+            replayedAwaitingResponse = 0;
+            spillQueue.rewindReplay(this);
+        }
+        super.onRequestError(responseCode, responseBody, e, transmittedEvents);
+    }
+
     private void cancelTimeout() {
         if (timeoutTask != null) {
             timeoutTask.cancel();
@@ -141,8 +235,8 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     }
 
     @Override
-    protected HttpURLConnection startRequest(String endpoint) throws IOException {
-        HttpURLConnection connection = super.startRequest(endpoint);
+    protected IntakeRequest startRequest(String endpoint) throws IOException {
+        IntakeRequest request = super.startRequest(endpoint);
         if (os != null) {
             payloadSerializer.setOutputStream(os);
         }
@@ -153,12 +247,18 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
             }
             timeoutTimer.schedule(timeoutTask, reporterConfiguration.getApiRequestTime().getMillis());
         }
-        return connection;
+        return request;
     }
 
     @Override
     public void endRequest() {
         cancelTimeout();
+        if (request != null) {
+            // applies the response of the previous request before the replayed events of this one are awaiting their response
+            handlePendingResponse(true);
+            replayedAwaitingResponse = replayedInCurrentRequest;
+            replayedInCurrentRequest = 0;
+        }
         super.endRequest();
     }
 
@@ -29,10 +29,10 @@ import co.elastic.apm.agent.configuration.converter.ByteValueConverter;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.configuration.converter.TimeDurationValueConverter;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherListValueConverter;
+import co.elastic.apm.agent.report.transport.IntakeTransportType;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 import org.stagemonitor.configuration.converter.UrlValueConverter;
 
 import javax.annotation.Nullable;
@@ -40,6 +40,7 @@ import java.net.URL;
 import java.util.Collections;
 import java.util.List;
 
+import static co.elastic.apm.agent.configuration.validation.RangeValidator.isInRange;
 import static co.elastic.apm.agent.configuration.validation.RangeValidator.isNotInRange;
 
 public class ReporterConfiguration extends ConfigurationOptionProvider {
@@ -169,7 +170,7 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(TimeDuration.of("30s"));
 
     private final ConfigurationOption<List<WildcardMatcher>> disableMetrics = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("disable_metrics")
         .tags("added[1.3.0]")
         .configurationCategory(REPORTER_CATEGORY)
@@ -181,6 +182,113 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         .dynamic(false)
         .buildWithDefault(Collections.<WildcardMatcher>emptyList());
 
+    private final ConfigurationOption<Boolean> histogramMetrics = ConfigurationOption.booleanOption()
+        .key("histogram_metrics")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Enables the collection of histogram metrics, such as `transaction.duration.histogram`.\n" +
+            "\n" +
+            "NOTE: Histogram metrics require APM Server 7.11+.\n" +
+            "Older APM Server versions reject the whole metricset containing a histogram,\n" +
+            "including the `transaction.duration` and breakdown metrics which are part of the same metricset.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Boolean> spillToDisk = ConfigurationOption.booleanOption()
+        .key("spill_to_disk")
+        .tags("added[1.17.0]", "performance", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("When enabled, events which don't fit into the queue (see <<config-max-queue-size>>) are not dropped\n" +
+            "but serialized to memory-mapped files in the <<config-spill-directory>>.\n" +
+            "Once the APM Server accepts events again, the spilled events are sent in addition to the regular events.\n" +
+            "\n" +
+            "This helps to bridge temporary APM Server outages or slow-downs without losing data.\n" +
+            "Note that the spilled events are serialized on the application threads,\n" +
+            "which adds latency to the requests while the queue is full.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<String> spillDirectory = ConfigurationOption.stringOption()
+        .key("spill_directory")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The directory where spilled events are stored when <<config-spill-to-disk>> is enabled.\n" +
+            "Spilled events which have not been sent before the JVM shuts down are sent after the next start.\n" +
+            "\n" +
+            "If not set, the agent uses a directory named after the <<config-service-name>>\n" +
+            "within the `elastic-apm-spill-<user name>` directory in `java.io.tmpdir`.\n" +
+            "This directory can only be accessed by the user running the agent.\n" +
+            "If it exists but is owned by another user, spilling events to disk is disabled.\n" +
+            "\n" +
+            "A directory can only be used by one agent at a time.")
+        .dynamic(false)
+        .build();
+
+    private final ConfigurationOption<ByteValue> spillMaxSize = ByteValueConverter.byteOption()
+        .key("spill_max_size")
+        .tags("added[1.17.0]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum amount of disk space spilled events can use when <<config-spill-to-disk>> is enabled.\n" +
+            "When this limit is reached, the oldest spilled events are discarded.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("100mb"));
+
+    private final ConfigurationOption<IntakeTransportType> intakeTransport = ConfigurationOption.enumOption(IntakeTransportType.class)
+        .key("intake_transport")
+        .tags("added[1.17.0]", "performance", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The transport used to send events to the APM Server.\n" +
+            "\n" +
+            "`HTTP_URL_CONNECTION` is based on `java.net.HttpURLConnection`.\n" +
+            "The reporter thread waits for the APM Server to respond before sending the next request.\n" +
+            "\n" +
+            "`NIO` performs all network I/O on a separate, non-blocking thread.\n" +
+            "The next request is streamed while the response to the previous request is still pending,\n" +
+            "and connections to the APM Server are kept alive and reused.\n" +
+            "Note that this transport does not support HTTP proxies.")
+        .dynamic(false)
+        .buildWithDefault(IntakeTransportType.HTTP_URL_CONNECTION);
+
+    private final ConfigurationOption<Integer> reporterThreads = ConfigurationOption.integerOption()
+        .key("reporter_threads")
+        .tags("added[1.17.0]", "performance", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of threads which serialize events and send them to the APM Server.\n" +
+            "\n" +
+            "Each thread has its own serializer, compression buffer and connection to the APM Server.\n" +
+            "Events are distributed evenly across the threads.\n" +
+            "Increase this value if a single thread can't keep up with serializing and sending the events,\n" +
+            "which manifests in events being dropped because of a full queue.\n" +
+            "Note that each thread opens a separate connection to the APM Server.")
+        .addValidator(isInRange(1, 16))
+        .dynamic(false)
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<Boolean> spreadAcrossServerUrls = ConfigurationOption.booleanOption()
+        .key("spread_across_server_urls")
+        .tags("added[1.17.0]", "performance", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("When <<config-reporter-threads>> is greater than `1` and multiple <<config-server-urls>> are configured,\n" +
+            "setting this to `true` makes each reporter thread send its events to a different APM Server.\n" +
+            "When disabled, all reporter threads send their events to the same APM Server\n" +
+            "and only switch to the next URL on connection errors.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    public IntakeTransportType getIntakeTransport() {
+        return intakeTransport.get();
+    }
+
+    public int getReporterThreads() {
+        return reporterThreads.get();
+    }
+
+    public boolean isSpreadAcrossServerUrls() {
+        return spreadAcrossServerUrls.get();
+    }
+
     @Nullable
     public String getSecretToken() {
         return secretToken.get();
@@ -231,8 +339,25 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return disableMetrics.get();
     }
 
+    public boolean isHistogramMetrics() {
+        return histogramMetrics.get();
+    }
+
     public ConfigurationOption<List<URL>> getServerUrlsOption() {
         return this.serverUrl;
     }
 
+    public boolean isSpillToDisk() {
+        return spillToDisk.get();
+    }
+
+    @Nullable
+    public String getSpillDirectory() {
+        return spillDirectory.get();
+    }
+
+    public long getSpillMaxSize() {
+        return spillMaxSize.get().getBytes();
+    }
+
 }
@@ -24,34 +24,100 @@
  */
 package co.elastic.apm.agent.report;
 
+import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.MetaData;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.StackTraceCache;
+import co.elastic.apm.agent.report.spill.DiskSpillQueue;
+import co.elastic.apm.agent.report.transport.IntakeTransport;
+import co.elastic.apm.agent.report.transport.IntakeTransportType;
+import co.elastic.apm.agent.report.transport.NioIntakeTransport;
+import co.elastic.apm.agent.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ReporterFactory {
 
+    private static final Logger logger = LoggerFactory.getLogger(ReporterFactory.class);
+
     public Reporter createReporter(ConfigurationRegistry configurationRegistry,
                                    ApmServerClient apmServerClient,
                                    MetaData metaData) {
 
         ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
-        ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient);
-        return new ApmServerReporter(true, reporterConfiguration, reportingEventHandler);
+        DiskSpillQueue spillQueue = getSpillQueue(configurationRegistry, reporterConfiguration, apmServerClient);
+        int reporterThreads = reporterConfiguration.getReporterThreads();
+        // shared among all reporter threads
+        StackTraceCache stackTraceCache = new StackTraceCache();
+        List<ReportingEventHandler> reportingEventHandlers = new ArrayList<>(reporterThreads);
+        for (int i = 0; i < reporterThreads; i++) {
+            IntakeV2ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient, spillQueue, stackTraceCache);
+            if (reporterConfiguration.isSpreadAcrossServerUrls()) {
+                reportingEventHandler.setServerUrlOffset(i);
+            }
+            reportingEventHandlers.add(reportingEventHandler);
+        }
+        return new ApmServerReporter(true, reporterConfiguration, reportingEventHandlers, spillQueue);
+    }
+
+    @Nullable
+    private DiskSpillQueue getSpillQueue(ConfigurationRegistry configurationRegistry,
+                                         ReporterConfiguration reporterConfiguration,
+                                         ApmServerClient apmServerClient) {
+        if (!reporterConfiguration.isSpillToDisk()) {
+            return null;
+        }
+        String spillDirectory = reporterConfiguration.getSpillDirectory();
+        File directory;
+        if (spillDirectory != null) {
+            directory = new File(spillDirectory);
+        } else {
+            try {
+                // the spilled events are replayed to the APM Server, so other users must not be able to plant or read them
+                directory = IOUtils.createPrivateTempDirectory("elastic-apm-spill", configurationRegistry.getConfig(CoreConfiguration.class).getServiceName());
+            } catch (IOException e) {
+                logger.warn("Can't use the default spill directory, spilling events to disk is disabled: {}", e.getMessage());
+                return null;
+            }
+        }
+        return DiskSpillQueue.create(directory, reporterConfiguration.getSpillMaxSize(),
+            new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class), apmServerClient),
+            ProcessorEventHandler.loadProcessors(configurationRegistry));
     }
 
     @Nonnull
-    private ReportingEventHandler getReportingEventHandler(ConfigurationRegistry configurationRegistry,
+    private IntakeV2ReportingEventHandler getReportingEventHandler(ConfigurationRegistry configurationRegistry,
                                                            ReporterConfiguration reporterConfiguration,
                                                            MetaData metaData,
-                                                           ApmServerClient apmServerClient) {
+                                                           ApmServerClient apmServerClient,
+                                                           @Nullable DiskSpillQueue spillQueue,
+                                                           StackTraceCache stackTraceCache) {
 
-        DslJsonSerializer payloadSerializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class), apmServerClient);
+        DslJsonSerializer payloadSerializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class), apmServerClient, stackTraceCache);
         ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(configurationRegistry);
-        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, metaData, apmServerClient);
+        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, metaData, apmServerClient,
+            spillQueue, getIntakeTransport(reporterConfiguration, apmServerClient));
+    }
+
+    private IntakeTransport getIntakeTransport(ReporterConfiguration reporterConfiguration, ApmServerClient apmServerClient) {
+        if (reporterConfiguration.getIntakeTransport() == IntakeTransportType.NIO) {
+            try {
+                return new NioIntakeTransport(reporterConfiguration, apmServerClient);
+            } catch (IOException e) {
+                logger.warn("Could not create the NIO transport, falling back to HttpURLConnection", e);
+            }
+        }
+        return new HttpUrlConnectionTransport(apmServerClient);
     }
 
 }
@@ -111,6 +111,16 @@ public class ReportingEvent {
         return metricRegistry;
     }
 
+    /**
+     * Flush and shutdown events are handled by every reporter thread, whereas all other events are only handled by one of them.
+     * As they don't hold references to any objects, they don't have to be reset after being handled.
+     *
+     * @return {@code true} if this event has to be handled by all reporter threads
+     */
+    boolean isBroadcastEvent() {
+        return type == FLUSH || type == SHUTDOWN;
+    }
+
     enum ReportingEventType {
         FLUSH, TRANSACTION, SPAN, ERROR, METRICS, SHUTDOWN
     }
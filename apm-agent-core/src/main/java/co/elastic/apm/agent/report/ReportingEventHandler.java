@@ -24,6 +24,7 @@
  */
 package co.elastic.apm.agent.report;
 
+import co.elastic.apm.agent.metrics.MetricRegistry;
 import com.lmax.disruptor.EventHandler;
 
 public interface ReportingEventHandler extends EventHandler<ReportingEvent> {
@@ -34,5 +35,7 @@ public interface ReportingEventHandler extends EventHandler<ReportingEvent> {
 
     long getDropped();
 
+    void bindTo(MetricRegistry metricRegistry);
+
     void close();
 }
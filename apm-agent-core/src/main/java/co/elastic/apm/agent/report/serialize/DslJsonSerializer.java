@@ -49,9 +49,11 @@ import co.elastic.apm.agent.impl.payload.RuntimeInfo;
 import co.elastic.apm.agent.impl.payload.Service;
 import co.elastic.apm.agent.impl.payload.SystemInfo;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Composite;
 import co.elastic.apm.agent.impl.transaction.Id;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.SpanCount;
+import co.elastic.apm.agent.impl.transaction.SpanLinks;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
@@ -65,7 +67,6 @@ import com.dslplatform.json.BoolConverter;
 import com.dslplatform.json.DslJson;
 import com.dslplatform.json.JsonWriter;
 import com.dslplatform.json.NumberConverter;
-import com.dslplatform.json.StringConverter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -109,12 +110,21 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
     private final StringBuilder replaceBuilder = new StringBuilder(MAX_LONG_STRING_VALUE_LENGTH + 1);
     private final StacktraceConfiguration stacktraceConfiguration;
     private final ApmServerClient apmServerClient;
+    private final StackTraceCache stackTraceCache;
     @Nullable
     private OutputStream os;
 
     public DslJsonSerializer(StacktraceConfiguration stacktraceConfiguration, ApmServerClient apmServerClient) {
+        this(stacktraceConfiguration, apmServerClient, new StackTraceCache());
+    }
+
+    /**
+     * @param stackTraceCache the cache for serialized span stack traces, which may be shared among multiple serializers
+     */
+    public DslJsonSerializer(StacktraceConfiguration stacktraceConfiguration, ApmServerClient apmServerClient, StackTraceCache stackTraceCache) {
         this.stacktraceConfiguration = stacktraceConfiguration;
         this.apmServerClient = apmServerClient;
+        this.stackTraceCache = stackTraceCache;
         jw = new DslJson<>(new DslJson.Settings<>()).newWriter(BUFFER_SIZE);
     }
 
@@ -358,6 +368,11 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         return jw.toString();
     }
 
+    @Override
+    public void bindTo(MetricRegistry metricRegistry) {
+        stackTraceCache.bindTo(metricRegistry);
+    }
+
     private void serializeService(final Service service) {
         writeFieldName("service");
         jw.writeByte(JsonWriter.OBJECT_START);
@@ -520,6 +535,7 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         writeField("result", transaction.getResult());
         serializeContext(transaction.getContext(), transaction.getTraceContext());
         serializeSpanCount(transaction.getSpanCount());
+        serializeSpanLinks(transaction.getSpanLinks());
         writeLastField("sampled", transaction.isSampled());
         jw.writeByte(OBJECT_END);
     }
@@ -558,8 +574,11 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         writeTimestamp(span.getTimestamp());
         serializeTraceContext(span.getTraceContext(), true);
         writeField("duration", span.getDurationMs());
+        if (span.getComposite().hasContent()) {
+            serializeComposite(span.getComposite());
+        }
         if (span.getStacktrace() != null) {
-            serializeStacktrace(span.getStacktrace().getStackTrace());
+            serializeCachedStacktrace(span.getStacktrace().getStackTrace());
         } else if (span.getStackFrames() != null) {
             serializeStackTrace(span.getStackFrames());
         }
@@ -569,6 +588,16 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         jw.writeByte(OBJECT_END);
     }
 
+    private void serializeComposite(Composite composite) {
+        writeFieldName("composite");
+        jw.writeByte(OBJECT_START);
+        writeField("count", composite.getCount());
+        writeField("sum", composite.getSum() / 1000.0);
+        writeLastField("compression_strategy", composite.getCompressionStrategy());
+        jw.writeByte(OBJECT_END);
+        jw.writeByte(COMMA);
+    }
+
     private void serializeServiceName(TraceContext traceContext) {
         String serviceName = traceContext.getServiceName();
         if (serviceName != null) {
@@ -625,6 +654,35 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         }
     }
 
+    /**
+     * Like {@link #serializeStacktrace(StackTraceElement[])} but copies the serialized stack frames from the {@link StackTraceCache}
+     * if the same stack trace has been serialized before.
+     */
+    private void serializeCachedStacktrace(StackTraceElement[] stacktrace) {
+        if (stacktrace.length == 0) {
+            return;
+        }
+        int hash = Arrays.hashCode(stacktrace);
+        int stackTraceLimit = stacktraceConfiguration.getStackTraceLimit();
+        Collection<String> applicationPackages = stacktraceConfiguration.getApplicationPackages();
+        writeFieldName("stacktrace");
+        jw.writeByte(ARRAY_START);
+        byte[] serializedStackFrames = stackTraceCache.get(stacktrace, hash, stackTraceLimit, applicationPackages);
+        if (serializedStackFrames != null) {
+            jw.writeAscii(serializedStackFrames);
+        } else {
+            long flushedBefore = jw.flushed();
+            int start = jw.size();
+            serializeStackTraceArrayElements(stacktrace);
+            // if the buffer has been flushed in the meantime, the serialized stack frames are not in the buffer anymore
+            if (jw.flushed() == flushedBefore) {
+                stackTraceCache.put(stacktrace, hash, stackTraceLimit, applicationPackages, Arrays.copyOfRange(jw.getByteBuffer(), start, jw.size()));
+            }
+        }
+        jw.writeByte(ARRAY_END);
+        jw.writeByte(COMMA);
+    }
+
     private void serializeStackTraceArrayElements(StackTraceElement[] stacktrace) {
 
         boolean topMostElasticApmPackagesSkipped = false;
@@ -868,6 +926,29 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         jw.writeByte(COMMA);
     }
 
+    private void serializeSpanLinks(final SpanLinks spanLinks) {
+        int size = spanLinks.size();
+        if (size == 0) {
+            return;
+        }
+        writeFieldName("links");
+        jw.writeByte(ARRAY_START);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                jw.writeByte(COMMA);
+            }
+            jw.writeByte(OBJECT_START);
+            writeHexField("trace_id", spanLinks.getTraceId(i));
+            writeFieldName("span_id");
+            jw.writeByte(JsonWriter.QUOTE);
+            spanLinks.getSpanId(i).writeAsHex(jw);
+            jw.writeByte(JsonWriter.QUOTE);
+            jw.writeByte(OBJECT_END);
+        }
+        jw.writeByte(ARRAY_END);
+        jw.writeByte(COMMA);
+    }
+
     private void serializeContext(final TransactionContext context, TraceContext traceContext) {
         writeFieldName("context");
         jw.writeByte(OBJECT_START);
@@ -1085,10 +1166,10 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
             jw.writeByte(OBJECT_START);
             final int size = map.size();
             if (size > 0) {
-                serializePotentiallyMultiValuedEntry(map.getKey(0), map.getValue(0));
+                serializePotentiallyMultiValuedEntry(map, 0);
                 for (int i = 1; i < size; i++) {
                     jw.writeByte(COMMA);
-                    serializePotentiallyMultiValuedEntry(map.getKey(i), map.getValue(i));
+                    serializePotentiallyMultiValuedEntry(map, i);
                 }
             }
             jw.writeByte(OBJECT_END);
@@ -1096,21 +1177,30 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         }
     }
 
-    private void serializePotentiallyMultiValuedEntry(String key, @Nullable Object value) {
-        jw.writeString(key);
+    /**
+     * Writes the i-th entry straight from the character buffer of the map, without creating {@link String}s
+     */
+    private void serializePotentiallyMultiValuedEntry(final PotentiallyMultiValuedMap map, final int i) {
+        jw.writeString(map.getKeyChars(i));
         jw.writeByte(JsonWriter.SEMI);
-        if (value instanceof String) {
-            StringConverter.serialize((String) value, jw);
-        } else if (value instanceof List) {
+        int value = map.getFirstValue(i);
+        if (map.getValueCount(i) == 1) {
+            writePotentiallyMultiValuedValue(map.getValueChars(value));
+        } else {
             jw.writeByte(ARRAY_START);
-            final List<String> values = (List<String>) value;
-            jw.writeString(values.get(0));
-            for (int i = 1; i < values.size(); i++) {
+            writePotentiallyMultiValuedValue(map.getValueChars(value));
+            for (value = map.getNextValue(value); value != PotentiallyMultiValuedMap.NO_MORE_VALUES; value = map.getNextValue(value)) {
                 jw.writeByte(COMMA);
-                jw.writeString(values.get(i));
+                writePotentiallyMultiValuedValue(map.getValueChars(value));
             }
             jw.writeByte(ARRAY_END);
-        } else if (value == null) {
+        }
+    }
+
+    private void writePotentiallyMultiValuedValue(@Nullable CharSequence value) {
+        if (value != null) {
+            jw.writeString(value);
+        } else {
             jw.writeNull();
         }
     }
@@ -25,6 +25,7 @@
 package co.elastic.apm.agent.report.serialize;
 
 import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
@@ -64,7 +65,8 @@ public class MetricRegistrySerializer {
                 jw.writeByte(JsonWriter.OBJECT_START);
                 boolean hasSamples = serializeGauges(metricSet.getGauges(), jw);
                 hasSamples |= serializeTimers(metricSet.getTimers(), hasSamples, jw);
-                serializeCounters(metricSet.getCounters(), hasSamples, jw);
+                hasSamples |= serializeCounters(metricSet.getCounters(), hasSamples, jw);
+                serializeHistograms(metricSet.getHistograms(), hasSamples, jw);
                 jw.writeByte(JsonWriter.OBJECT_END);
             }
             jw.writeByte(JsonWriter.OBJECT_END);
@@ -133,7 +135,7 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
-    private static void serializeCounters(Map<String, AtomicLong> counters, boolean hasSamples, JsonWriter jw) {
+    private static boolean serializeCounters(Map<String, AtomicLong> counters, boolean hasSamples, JsonWriter jw) {
         final int size = counters.size();
         if (size > 0) {
             final Iterator<Map.Entry<String, AtomicLong>> iterator = counters.entrySet().iterator();
@@ -147,6 +149,7 @@ public class MetricRegistrySerializer {
                     if (hasSamples) {
                         jw.writeByte(JsonWriter.COMMA);
                     }
+                    hasSamples = true;
                     serializeCounter(kv.getKey(), value, jw);
                 }
             }
@@ -161,6 +164,65 @@ public class MetricRegistrySerializer {
                 }
             }
         }
+        return hasSamples;
+    }
+
+    private static void serializeHistograms(Map<String, Histogram> histograms, boolean hasSamples, JsonWriter jw) {
+        for (Map.Entry<String, Histogram> kv : histograms.entrySet()) {
+            Histogram histogram = kv.getValue();
+            if (histogram.hasContent()) {
+                if (hasSamples) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                hasSamples = true;
+                serializeHistogram(kv.getKey(), histogram, jw);
+            }
+        }
+    }
+
+    /**
+     * Serializes a histogram in a compact format which only includes the non-empty buckets, for example
+     * <pre>
+     * "transaction.duration.histogram":{"values":[1500,2250],"counts":[3,1],"type":"histogram"}
+     * </pre>
+     * The values are the midpoints of the buckets.
+     */
+    private static void serializeHistogram(String key, Histogram histogram, JsonWriter jw) {
+        DslJsonSerializer.writeFieldName(key, jw);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonSerializer.writeFieldName("values", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        boolean first = true;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            if (histogram.getCount(i) > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                first = false;
+                NumberConverter.serialize(Histogram.getBucketValue(i), jw);
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("counts", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        first = true;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            long count = histogram.getCount(i);
+            if (count > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                first = false;
+                NumberConverter.serialize(count, jw);
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("type", jw);
+        jw.writeAscii("\"histogram\"");
+        jw.writeByte(JsonWriter.OBJECT_END);
+        histogram.resetState();
     }
 
     private static void serializeCounter(String key, AtomicLong value, JsonWriter jw) {
@@ -69,6 +69,13 @@ public interface PayloadSerializer {
 
     void serializeMetrics(MetricRegistry metricRegistry);
 
+    /**
+     * Registers metrics about this serializer, such as cache statistics.
+     *
+     * @param metricRegistry the registry to register the metrics with
+     */
+    void bindTo(MetricRegistry metricRegistry);
+
     void serializeFileMetaData(File file);
 
     JsonWriter getJsonWriter();
@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of already serialized stack traces.
+ * <p>
+ * Most span stack traces are captured at a few hundred distinct call sites.
+ * Instead of filtering and encoding the same {@link StackTraceElement}s over and over again,
+ * the JSON representation of the stack frames is cached, keyed by the stack trace.
+ * </p>
+ * <p>
+ * The cache is direct-mapped:
+ * each stack trace can only be stored in a single slot, determined by its hash code.
+ * On collisions, the most recently serialized stack trace wins.
+ * This keeps lookups lock- and allocation-free and bounds the memory usage by the number of slots.
+ * </p>
+ * <p>
+ * As the serialized stack frames depend on {@code stack_trace_limit} and {@code application_packages},
+ * cached entries are only used if these options have not changed since the entry has been created.
+ * </p>
+ */
+public class StackTraceCache {
+
+    private static final int DEFAULT_SIZE = 256;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public StackTraceCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    StackTraceCache(int size) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("The size must be a power of 2, but was " + size);
+        }
+        entries = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the serialized stack frames of the provided stack trace.
+     *
+     * @param stackTrace          the stack trace
+     * @param hash                the hash code of the stack trace, as computed by {@link Arrays#hashCode(Object[])}
+     * @param stackTraceLimit     the current value of {@code stack_trace_limit}
+     * @param applicationPackages the current value of {@code application_packages}
+     * @return the serialized stack frames or {@code null} if they are not cached
+     */
+    @Nullable
+    byte[] get(StackTraceElement[] stackTrace, int hash, int stackTraceLimit, Collection<String> applicationPackages) {
+        Entry entry = entries.get(hash & mask);
+        if (entry != null
+            && entry.hash == hash
+            && entry.stackTraceLimit == stackTraceLimit
+            && entry.applicationPackages == applicationPackages
+            && Arrays.equals(entry.stackTrace, stackTrace)) {
+            hits.incrementAndGet();
+            return entry.serializedStackFrames;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(StackTraceElement[] stackTrace, int hash, int stackTraceLimit, Collection<String> applicationPackages, byte[] serializedStackFrames) {
+        entries.set(hash & mask, new Entry(stackTrace, hash, stackTraceLimit, applicationPackages, serializedStackFrames));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void bindTo(MetricRegistry metricRegistry) {
+        metricRegistry.add("agent.stacktrace.cache.hits", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return hits.get();
+            }
+        });
+        metricRegistry.add("agent.stacktrace.cache.misses", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return misses.get();
+            }
+        });
+    }
+
+    private static class Entry {
+        private final StackTraceElement[] stackTrace;
+        private final int hash;
+        private final int stackTraceLimit;
+        private final Collection<String> applicationPackages;
+        private final byte[] serializedStackFrames;
+
+        private Entry(StackTraceElement[] stackTrace, int hash, int stackTraceLimit, Collection<String> applicationPackages, byte[] serializedStackFrames) {
+            this.stackTrace = stackTrace;
+            this.hash = hash;
+            this.stackTraceLimit = stackTraceLimit;
+            this.applicationPackages = applicationPackages;
+            this.serializedStackFrames = serializedStackFrames;
+        }
+    }
+}
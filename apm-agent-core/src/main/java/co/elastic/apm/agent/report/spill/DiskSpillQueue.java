@@ -0,0 +1,600 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.spill;
+
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.ReportingEvent;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.PayloadSerializer;
+import com.dslplatform.json.JsonWriter;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores events which don't fit into the ring buffer of the {@link co.elastic.apm.agent.report.ApmServerReporter}
+ * in memory-mapped segment files, so that they can be sent to the APM Server later on.
+ * <p>
+ * Events are spilled by the application threads which would otherwise have to drop the event.
+ * They are serialized to NDJSON and appended to the most recent segment.
+ * The reporter thread replays the spilled events by copying the serialized bytes into the current intake request.
+ * </p>
+ * <p>
+ * Replayed events are only removed from the queue once the APM Server has accepted the request
+ * ({@link #acknowledgeReplay(Object)}).
+ * If the request fails, they are replayed again ({@link #rewindReplay(Object)}).
+ * Only one reporter thread at a time may have replayed events awaiting a response.
+ * </p>
+ * <p>
+ * Each record within a segment is prefixed by its length.
+ * After a replayed record has been acknowledged, the sign of its length is flipped so that it's skipped after a restart.
+ * Records which have been replayed but not acknowledged before a shutdown are replayed again after a restart.
+ * A length of {@code 0} marks the end of the records of a segment.
+ * </p>
+ * <p>
+ * The disk usage is bounded by evicting the oldest segment when a new one would exceed the configured maximum size.
+ * </p>
+ */
+public class DiskSpillQueue implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskSpillQueue.class);
+    private static final String SEGMENT_PREFIX = "spill-";
+    private static final String SEGMENT_SUFFIX = ".ndjson";
+    private static final String LOCK_FILE = "spill.lock";
+    private static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+    static final int RECORD_HEADER_SIZE = 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final PayloadSerializer serializer;
+    private final ProcessorEventHandler processorEventHandler;
+    private final ReportingEvent spillEvent = new ReportingEvent();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicLong replayedBytes = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private byte[] replayBuffer = new byte[0];
+    /**
+     * The reporter thread whose replayed events await a response, if any
+     */
+    @Nullable
+    private Object replayOwner;
+    private long nextSegmentId;
+    private boolean closed;
+
+    DiskSpillQueue(File directory, FileChannel lockChannel, FileLock lock, long maxSize, PayloadSerializer serializer,
+                   ProcessorEventHandler processorEventHandler) {
+        this.directory = directory;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        this.segmentSize = (int) Math.max(Math.min(MAX_SEGMENT_SIZE, maxSize / 4), 1024);
+        this.maxSegments = (int) Math.max(maxSize / segmentSize, 1);
+        this.serializer = serializer;
+        this.processorEventHandler = processorEventHandler;
+        loadExistingSegments();
+    }
+
+    /**
+     * Creates a spill queue in the provided directory.
+     *
+     * @param directory             the directory containing the segment files
+     * @param maxSize               the maximum number of bytes all segments may occupy
+     * @param serializer            the serializer used to serialize the spilled events (exclusively owned by the spill queue)
+     * @param processorEventHandler the processors which are applied to the events before they are spilled
+     * @return the spill queue or {@code null} if the directory can't be used, for example because another agent uses it
+     */
+    @Nullable
+    public static DiskSpillQueue create(File directory, long maxSize, PayloadSerializer serializer, ProcessorEventHandler processorEventHandler) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("Can't create spill directory {}, spilling events to disk is disabled", directory);
+            return null;
+        }
+        FileChannel lockChannel = null;
+        try {
+            lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // the lock is held by another spill queue within this JVM
+                lock = null;
+            }
+            if (lock == null) {
+                logger.warn("Spill directory {} is used by another agent, spilling events to disk is disabled", directory);
+                lockChannel.close();
+                return null;
+            }
+            logger.info("Spilling events which don't fit into the queue to {}", directory);
+            return new DiskSpillQueue(directory, lockChannel, lock, maxSize, serializer, processorEventHandler);
+        } catch (Exception e) {
+            logger.warn("Failed to initialize spill directory {}, spilling events to disk is disabled", directory, e);
+            if (lockChannel != null) {
+                try {
+                    lockChannel.close();
+                } catch (IOException ignore) {
+                }
+            }
+            return null;
+        }
+    }
+
+    private void loadExistingSegments() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(getSegmentId(o1), getSegmentId(o2));
+            }
+        });
+        for (File file : files) {
+            long id = getSegmentId(file);
+            if (id < 0) {
+                continue;
+            }
+            try {
+                Segment segment = Segment.open(file, (int) Math.min(file.length(), Integer.MAX_VALUE));
+                segment.seekWritePosition();
+                if (segment.hasUnreadRecords()) {
+                    segments.add(segment);
+                } else {
+                    segment.delete();
+                }
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+            } catch (IOException e) {
+                logger.warn("Failed to load spill segment {}", file, e);
+            }
+        }
+        // we never append to segments of a previous run as they may have a different size
+        if (!segments.isEmpty()) {
+            logger.info("Found {} spill segments of a previous run which are going to be replayed", segments.size());
+            segments.getLast().sealed = true;
+        }
+    }
+
+    private static long getSegmentId(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Serializes the event and appends it to the spill queue.
+     * <p>
+     * The caller stays responsible for recycling the event.
+     * </p>
+     *
+     * @param event      the transaction, span or error to spill
+     * @param translator the translator which is also used to add the event to the ring buffer
+     * @param <E>        the type of the event
+     * @return {@code true} if the event has been spilled, {@code false} if it should be counted as dropped
+     */
+    public <E> boolean spill(E event, EventTranslatorOneArg<ReportingEvent, E> translator) {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            JsonWriter jw = serializer.getJsonWriter();
+            try {
+                translator.translateTo(spillEvent, -1, event);
+                processorEventHandler.onEvent(spillEvent, -1, true);
+                if (spillEvent.getTransaction() != null) {
+                    serializer.serializeTransactionNdJson(spillEvent.getTransaction());
+                } else if (spillEvent.getSpan() != null) {
+                    serializer.serializeSpanNdJson(spillEvent.getSpan());
+                } else if (spillEvent.getError() != null) {
+                    serializer.serializeErrorNdJson(spillEvent.getError());
+                } else {
+                    return false;
+                }
+                return append(jw.getByteBuffer(), jw.size());
+            } catch (Exception e) {
+                logger.debug("Failed to spill event {}", event, e);
+                return false;
+            } finally {
+                jw.reset();
+                spillEvent.resetState();
+            }
+        }
+    }
+
+    private boolean append(byte[] bytes, int length) throws IOException {
+        if (length + RECORD_HEADER_SIZE > segmentSize) {
+            return false;
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.sealed || !segment.hasCapacity(length)) {
+            if (segment != null) {
+                segment.sealed = true;
+                if (segment.isDone()) {
+                    segments.removeLast();
+                    segment.delete();
+                }
+            }
+            segment = newSegment();
+        }
+        segment.append(bytes, length);
+        spilledBytes.addAndGet(length);
+        return true;
+    }
+
+    private Segment newSegment() throws IOException {
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.removeFirst();
+            evictedBytes.addAndGet(oldest.getUnreadBytes());
+            evicted.addAndGet(oldest.getUnreadRecords());
+            logger.debug("Evicting spill segment {}", oldest.file);
+            oldest.delete();
+        }
+        Segment segment = Segment.open(new File(directory, SEGMENT_PREFIX + nextSegmentId++ + SEGMENT_SUFFIX), segmentSize);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Copies spilled events into the provided {@link JsonWriter}.
+     * <p>
+     * The events stay in the queue until the owner either acknowledges or rewinds the replay.
+     * Until then, other owners can't replay events and this owner can only replay events into the same request.
+     * </p>
+     *
+     * @param owner    the reporter thread which sends the events, typically the {@link co.elastic.apm.agent.report.ReportingEventHandler}
+     * @param jw       the writer of the current intake request
+     * @param maxBytes the soft limit of bytes to replay, at least one event is replayed if available
+     * @return the number of replayed events
+     */
+    public int replay(Object owner, JsonWriter jw, int maxBytes) {
+        int length = 0;
+        int events = 0;
+        synchronized (this) {
+            if (replayOwner != null && replayOwner != owner) {
+                return 0;
+            }
+            segments:
+            for (Segment segment : segments) {
+                int recordLength;
+                while (length < maxBytes && (recordLength = segment.nextRecordLength()) != 0) {
+                    if (length > 0 && length + recordLength > maxBytes) {
+                        break segments;
+                    }
+                    if (replayBuffer.length < length + recordLength) {
+                        replayBuffer = Arrays.copyOf(replayBuffer, Math.max(length + recordLength, replayBuffer.length * 2));
+                    }
+                    segment.read(replayBuffer, length, recordLength);
+                    length += recordLength;
+                    events++;
+                }
+                if (length >= maxBytes) {
+                    break;
+                }
+            }
+            if (events > 0) {
+                replayOwner = owner;
+            }
+        }
+        if (length > 0) {
+            // writing outside of the lock so that spilling is not blocked by I/O
+            // the replay buffer can't be modified concurrently as other owners can't replay until this replay is acknowledged or rewound
+            jw.writeAscii(replayBuffer, length);
+        }
+        return events;
+    }
+
+    /**
+     * Removes the events which have been replayed by the provided owner from the queue,
+     * after the APM Server has accepted the request containing them.
+     *
+     * @param owner the owner which has been passed to {@link #replay(Object, JsonWriter, int)}
+     */
+    public synchronized void acknowledgeReplay(Object owner) {
+        if (replayOwner != owner) {
+            return;
+        }
+        replayOwner = null;
+        for (Iterator<Segment> iterator = segments.iterator(); iterator.hasNext(); ) {
+            Segment segment = iterator.next();
+            replayedBytes.addAndGet(segment.acknowledge());
+            if (segment.sealed && segment.isDone()) {
+                iterator.remove();
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * Makes the events which have been replayed by the provided owner available for replay again,
+     * after the request containing them has failed.
+     *
+     * @param owner the owner which has been passed to {@link #replay(Object, JsonWriter, int)}
+     */
+    public synchronized void rewindReplay(Object owner) {
+        if (replayOwner != owner) {
+            return;
+        }
+        replayOwner = null;
+        for (Segment segment : segments) {
+            segment.rewind();
+        }
+    }
+
+    /**
+     * Returns whether the provided owner would be able to replay events.
+     *
+     * @param owner the reporter thread which sends the events
+     * @return {@code true} if there are events which the provided owner can replay
+     */
+    public synchronized boolean canReplay(Object owner) {
+        return (replayOwner == null || replayOwner == owner) && !isEmpty();
+    }
+
+    /**
+     * Returns whether there are events which have not been replayed yet.
+     * Events which have been replayed but not yet acknowledged are not taken into account.
+     *
+     * @return {@code true} if all events have been replayed
+     */
+    public synchronized boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (segment.hasUnreadRecords()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of spilled events which have been discarded because the maximum disk usage has been reached.
+     *
+     * @return the number of evicted events
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    public void bindTo(MetricRegistry metricRegistry) {
+        metricRegistry.add("agent.spill.bytes.written", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return spilledBytes.get();
+            }
+        });
+        metricRegistry.add("agent.spill.bytes.replayed", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return replayedBytes.get();
+            }
+        });
+        metricRegistry.add("agent.spill.bytes.evicted", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return evictedBytes.get();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            logger.debug("Failed to release spill directory lock", e);
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int readPosition;
+        /**
+         * The position up to which all records have been replayed and acknowledged
+         */
+        private int acknowledgedPosition;
+        private int unreadRecords;
+        private int unreadBytes;
+        private int inFlightRecords;
+        private int inFlightBytes;
+        /**
+         * A sealed segment does not accept new records and can be deleted once all records are replayed.
+         */
+        private boolean sealed;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                // the mapping stays valid after the channel is closed
+                return new Segment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Determines the write position and the number of unread records of a segment created in a previous run
+         */
+        void seekWritePosition() {
+            int position = 0;
+            int length;
+            while (position + RECORD_HEADER_SIZE <= buffer.capacity() && (length = buffer.getInt(position)) != 0) {
+                int absLength = Math.abs(length);
+                if (absLength > buffer.capacity() - position - RECORD_HEADER_SIZE) {
+                    // corrupted or partially written record
+                    buffer.putInt(position, 0);
+                    break;
+                }
+                if (length > 0) {
+                    unreadRecords++;
+                    unreadBytes += length;
+                }
+                position += RECORD_HEADER_SIZE + absLength;
+            }
+            writePosition = position;
+        }
+
+        boolean hasCapacity(int length) {
+            return writePosition + RECORD_HEADER_SIZE + length <= buffer.capacity();
+        }
+
+        void append(byte[] bytes, int length) {
+            ((Buffer) buffer).position(writePosition + RECORD_HEADER_SIZE);
+            buffer.put(bytes, 0, length);
+            // writing the length last makes sure a partially written record is never read
+            buffer.putInt(writePosition, length);
+            writePosition += RECORD_HEADER_SIZE + length;
+            unreadRecords++;
+            unreadBytes += length;
+        }
+
+        /**
+         * Skips already replayed records and returns the length of the next unread record
+         *
+         * @return the length of the next record or {@code 0} if there is none
+         */
+        int nextRecordLength() {
+            while (readPosition < writePosition) {
+                int length = buffer.getInt(readPosition);
+                if (length > 0) {
+                    return length;
+                }
+                readPosition += RECORD_HEADER_SIZE - length;
+            }
+            return 0;
+        }
+
+        void read(byte[] target, int offset, int length) {
+            ((Buffer) buffer).position(readPosition + RECORD_HEADER_SIZE);
+            buffer.get(target, offset, length);
+            readPosition += RECORD_HEADER_SIZE + length;
+            unreadRecords--;
+            unreadBytes -= length;
+            inFlightRecords++;
+            inFlightBytes += length;
+        }
+
+        /**
+         * Marks the records which have been read as replayed
+         *
+         * @return the number of acknowledged bytes
+         */
+        int acknowledge() {
+            int position = acknowledgedPosition;
+            while (position < readPosition) {
+                int length = buffer.getInt(position);
+                if (length > 0) {
+                    buffer.putInt(position, -length);
+                }
+                position += RECORD_HEADER_SIZE + Math.abs(length);
+            }
+            acknowledgedPosition = readPosition;
+            int acknowledgedBytes = inFlightBytes;
+            inFlightRecords = 0;
+            inFlightBytes = 0;
+            return acknowledgedBytes;
+        }
+
+        /**
+         * Resets the read position so that the records which have been read but not acknowledged are read again
+         */
+        void rewind() {
+            readPosition = acknowledgedPosition;
+            unreadRecords += inFlightRecords;
+            unreadBytes += inFlightBytes;
+            inFlightRecords = 0;
+            inFlightBytes = 0;
+        }
+
+        /**
+         * @return {@code true} if all records have been replayed and acknowledged
+         */
+        boolean isDone() {
+            return unreadRecords == 0 && inFlightRecords == 0;
+        }
+
+        boolean hasUnreadRecords() {
+            return unreadRecords > 0;
+        }
+
+        int getUnreadRecords() {
+            return unreadRecords;
+        }
+
+        int getUnreadBytes() {
+            return unreadBytes;
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                // on some platforms, mapped files can't be deleted until the mapping is garbage collected
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -45,6 +45,12 @@ public class SslUtils {
 
     private static final HostnameVerifier hostnameVerifier;
 
+    @Nullable
+    private static final SSLContext validateSslContext;
+
+    @Nullable
+    private static final SSLContext trustAllSslContext;
+
     @Nullable
     private static final SSLSocketFactory validateSocketFactory;
 
@@ -53,10 +59,12 @@ public class SslUtils {
 
     static {
         X509TrustManager trustAllTrustManager = createTrustAllTrustManager();
-        // default factory with certificate validation
-        validateSocketFactory = TLSFallbackSSLSocketFactory.wrapFactory(createSocketFactory(null));
+        // default context with certificate validation
+        validateSslContext = createSslContext(null);
+        validateSocketFactory = TLSFallbackSSLSocketFactory.wrapFactory(getSocketFactory(validateSslContext));
         // without certificate validation
-        trustAllSocketFactory = TLSFallbackSSLSocketFactory.wrapFactory(createSocketFactory(new TrustManager[]{trustAllTrustManager}));
+        trustAllSslContext = createSslContext(new TrustManager[]{trustAllTrustManager});
+        trustAllSocketFactory = TLSFallbackSSLSocketFactory.wrapFactory(getSocketFactory(trustAllSslContext));
         hostnameVerifier = new HostnameVerifier() {
             @Override
             public boolean verify(String hostname, SSLSession session) {
@@ -74,19 +82,29 @@ public class SslUtils {
         return validateCertificates ? validateSocketFactory : trustAllSocketFactory;
     }
 
+    /**
+     * Returns the {@link SSLContext} for transports which can't use the TLS fallback provided by {@link #getSSLSocketFactory(boolean)},
+     * for example because they are based on {@link javax.net.ssl.SSLEngine}.
+     *
+     * @param validateCertificates whether the server certificate should be validated
+     * @return the SSL context, or {@code null} if it could not be created
+     */
     @Nullable
-    private static SSLSocketFactory createTrustAllSocketFactory(X509TrustManager trustAllTrustManager) {
-        // Create a trust manager that does not validate certificate chains
+    public static SSLContext getSSLContext(boolean validateCertificates) {
+        return validateCertificates ? validateSslContext : trustAllSslContext;
+    }
 
-        return createSocketFactory(new TrustManager[]{trustAllTrustManager});
+    @Nullable
+    private static SSLSocketFactory getSocketFactory(@Nullable SSLContext sslContext) {
+        return sslContext != null ? sslContext.getSocketFactory() : null;
     }
 
     @Nullable
-    private static SSLSocketFactory createSocketFactory(TrustManager[] trustAllCerts) {
+    private static SSLContext createSslContext(@Nullable TrustManager[] trustAllCerts) {
         try {
             SSLContext sslContext = SSLContext.getInstance("SSL");
             sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
-            return sslContext.getSocketFactory();
+            return sslContext;
         } catch (NoSuchAlgorithmException | KeyManagementException e) {
             logger.warn(e.getMessage(), e);
             return null;
@@ -0,0 +1,61 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.transport;
+
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * A single streaming request to the intake API, created by {@link IntakeTransport#startRequest(URL)}.
+ */
+public interface IntakeRequest {
+
+    URL getUrl();
+
+    /**
+     * Returns the stream the (already compressed) request body is written to.
+     * Closing the stream completes the body.
+     *
+     * @return the stream the request body is written to
+     */
+    OutputStream getOutputStream();
+
+    /**
+     * Completes the request body and registers the handler which gets notified about the response.
+     * <p>
+     * Blocking transports invoke the handler before returning from this method.
+     * Non-blocking transports may invoke it at a later point in time on an arbitrary thread.
+     * In any case, the handler is invoked exactly once.
+     * </p>
+     *
+     * @param responseHandler the handler to notify about the response
+     */
+    void end(ResponseHandler responseHandler);
+
+    /**
+     * Cancels this request without waiting for a response.
+     */
+    void abort();
+}
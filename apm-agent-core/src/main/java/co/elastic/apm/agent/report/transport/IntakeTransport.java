@@ -0,0 +1,52 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.transport;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Sends the deflate compressed nd-json payloads of the intake API to the APM Server.
+ * <p>
+ * Implementations are allowed to process the response of the APM Server asynchronously,
+ * which means that a new request may be started before the response of the previous one has been received.
+ * </p>
+ */
+public interface IntakeTransport {
+
+    /**
+     * Starts a streaming {@code POST} request to the provided URL.
+     *
+     * @param url the intake API URL, for example {@code http://localhost:8200/intake/v2/events}
+     * @return the request whose body can be written to via {@link IntakeRequest#getOutputStream()}
+     * @throws IOException if the request could not be started, for example because the APM Server is not reachable
+     */
+    IntakeRequest startRequest(URL url) throws IOException;
+
+    /**
+     * Releases all resources held by this transport, such as kept-alive connections or I/O threads.
+     */
+    void close();
+}
@@ -0,0 +1,1112 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.transport;
+
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.ssl.SslUtils;
+import co.elastic.apm.agent.util.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking {@link IntakeTransport} which performs all network I/O on a single selector thread.
+ * <p>
+ * The reporter thread only hands over chunks of the compressed request body and does not wait for the APM Server to respond.
+ * That means that the next request can already be streamed while the response to the previous one is still pending.
+ * Connections are kept alive and reused for subsequent requests to the same APM Server.
+ * </p>
+ * <p>
+ * TLS is implemented with a {@link SSLEngine}.
+ * If the handshake fails with TLS 1.3 enabled, it is transparently retried without TLS 1.3
+ * as some servers are not able to handle TLS 1.3 handshakes properly.
+ * HTTP proxies are not supported.
+ * </p>
+ */
+public class NioIntakeTransport implements IntakeTransport, Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioIntakeTransport.class);
+
+    /**
+     * Room for the chunk size line in front of the chunk data (up to 6 hex digits + CRLF)
+     */
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int CHUNK_DATA_SIZE = DslJsonSerializer.BUFFER_SIZE;
+    private static final int CHUNK_BUFFER_SIZE = CHUNK_HEADER_SIZE + CHUNK_DATA_SIZE + 2;
+    /**
+     * The maximum number of chunks per request which have been written by the reporter thread but not sent yet.
+     * When exceeded, the reporter thread is blocked until the I/O thread catches up.
+     */
+    private static final int MAX_PENDING_CHUNKS = 16;
+    private static final int MAX_IDLE_CONNECTIONS_PER_SERVER = 2;
+    /**
+     * Closes idle connections before the APM Server does (its {@code idle_timeout} defaults to 45s)
+     */
+    private static final long MAX_IDLE_TIME_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long SELECT_TIMEOUT_MILLIS = 500;
+    private static final int MAX_RESPONSE_SIZE = 1024 * 1024;
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ReporterConfiguration reporterConfiguration;
+    private final ApmServerClient apmServerClient;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final Queue<NioRequest> newRequests = new ConcurrentLinkedQueue<>();
+    private final BlockingQueue<ByteBuffer> chunkBufferPool = new ArrayBlockingQueue<>(2 * MAX_PENDING_CHUNKS);
+    /**
+     * All open connections, only accessed by the {@link #ioThread}
+     */
+    private final List<Connection> connections = new ArrayList<>();
+    /**
+     * Kept-alive connections per APM Server, only accessed by the {@link #ioThread}
+     */
+    private final Map<String, ArrayDeque<Connection>> idleConnections = new HashMap<>();
+    /**
+     * Set after a failed TLS 1.3 handshake, similar to the TLS fallback of {@link SslUtils#getSSLSocketFactory(boolean)}.
+     * Only accessed by the {@link #ioThread}.
+     */
+    private boolean skipTls13;
+    private volatile boolean closed;
+
+    public NioIntakeTransport(ReporterConfiguration reporterConfiguration, ApmServerClient apmServerClient) throws IOException {
+        this.reporterConfiguration = reporterConfiguration;
+        this.apmServerClient = apmServerClient;
+        this.selector = Selector.open();
+        this.ioThread = new Thread(this, ThreadUtils.addElasticApmThreadPrefix("intake-io"));
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    @Override
+    public IntakeRequest startRequest(URL url) throws IOException {
+        if (closed) {
+            throw new IOException("The transport has already been closed");
+        }
+        final String protocol = url.getProtocol();
+        if (!"http".equals(protocol) && !"https".equals(protocol)) {
+            throw new IOException("Unsupported protocol " + protocol);
+        }
+        final NioRequest request = new NioRequest(url, createRequestHead(url));
+        newRequests.add(request);
+        selector.wakeup();
+        return request;
+    }
+
+    private ByteBuffer createRequestHead(URL url) {
+        final StringBuilder head = new StringBuilder();
+        head.append("POST ").append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        for (Map.Entry<String, String> header : apmServerClient.getRequestHeaders().entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Encoding: deflate\r\n")
+            .append("Content-Type: application/x-ndjson\r\n")
+            .append("Transfer-Encoding: chunked\r\n")
+            .append("\r\n");
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                // all connections are processed anyway, so there's no need to look at the individual keys
+                selector.selectedKeys().clear();
+                startNewRequests();
+                final long now = System.nanoTime();
+                // iterating backwards as processing a connection may close and remove it
+                for (int i = connections.size() - 1; i >= 0; i--) {
+                    final Connection connection = connections.get(i);
+                    connection.process();
+                    connection.checkTimeout(now);
+                }
+            } catch (Exception e) {
+                logger.error("Unexpected exception in the intake I/O thread", e);
+            }
+        }
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            connections.get(i).close(new IOException("The transport has been closed"));
+        }
+        NioRequest request;
+        while ((request = newRequests.poll()) != null) {
+            request.fail(new IOException("The transport has been closed"));
+        }
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void startNewRequests() {
+        NioRequest request;
+        while ((request = newRequests.poll()) != null) {
+            if (request.isDone()) {
+                // aborted before it has even been started
+                continue;
+            }
+            try {
+                Connection connection = pollIdleConnection(request.connectionKey);
+                if (connection == null) {
+                    connection = new Connection(request.url, request.connectionKey);
+                }
+                connection.start(request);
+            } catch (IOException e) {
+                request.fail(e);
+            }
+        }
+    }
+
+    @Nullable
+    private Connection pollIdleConnection(String connectionKey) {
+        final ArrayDeque<Connection> idle = idleConnections.get(connectionKey);
+        return idle != null ? idle.pollLast() : null;
+    }
+
+    private ByteBuffer acquireChunkBuffer() {
+        final ByteBuffer buffer = chunkBufferPool.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(CHUNK_BUFFER_SIZE);
+    }
+
+    private void recycleChunkBuffer(ByteBuffer buffer) {
+        // the request head and the last chunk are heap buffers with a different size
+        if (buffer.capacity() == CHUNK_BUFFER_SIZE && buffer.isDirect()) {
+            ((Buffer) buffer).clear();
+            chunkBufferPool.offer(buffer);
+        }
+    }
+
+    private long getTimeoutNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(reporterConfiguration.getServerTimeout().getMillis());
+    }
+
+    /**
+     * A HTTP/1.1 connection to an APM Server.
+     * Only accessed by the {@link #ioThread}.
+     */
+    private class Connection {
+
+        private final String connectionKey;
+        private final SocketChannel channel;
+        private final SelectionKey selectionKey;
+        @Nullable
+        private final SSLEngine sslEngine;
+        /**
+         * Encrypted bytes received from the APM Server, in write mode
+         */
+        private ByteBuffer netIn;
+        /**
+         * Encrypted bytes to be sent to the APM Server, in write mode
+         */
+        private ByteBuffer netOut;
+        /**
+         * Plain bytes received from the APM Server, in write mode
+         */
+        private ByteBuffer appIn;
+        private final HttpResponseParser response = new HttpResponseParser();
+        private boolean connected;
+        private boolean handshakeCompleted;
+        @Nullable
+        private NioRequest request;
+        @Nullable
+        private ByteBuffer currentChunk;
+        private boolean requestSent;
+        private boolean progress;
+        /**
+         * The {@link System#nanoTime()} until which the APM Server has to make progress, or {@code 0} if there's no deadline
+         */
+        private long deadline;
+        private long idleSince;
+
+        private Connection(URL url, String connectionKey) throws IOException {
+            this.connectionKey = connectionKey;
+            final String host = getHost(url);
+            final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            if ("https".equals(url.getProtocol())) {
+                final boolean verifyServerCert = reporterConfiguration.isVerifyServerCert();
+                final SSLContext sslContext = SslUtils.getSSLContext(verifyServerCert);
+                if (sslContext == null) {
+                    throw new SSLException("Could not create SSL context");
+                }
+                sslEngine = sslContext.createSSLEngine(host, port);
+                sslEngine.setUseClientMode(true);
+                if (skipTls13) {
+                    sslEngine.setEnabledProtocols(withoutTls13(sslEngine.getEnabledProtocols()));
+                }
+                if (verifyServerCert) {
+                    final SSLParameters sslParameters = sslEngine.getSSLParameters();
+                    sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslEngine.setSSLParameters(sslParameters);
+                }
+                netIn = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+                netOut = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+                appIn = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+            } else {
+                sslEngine = null;
+                netIn = EMPTY;
+                netOut = EMPTY;
+                appIn = ByteBuffer.allocate(4096);
+            }
+            final InetSocketAddress address = new InetSocketAddress(host, port);
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(host);
+            }
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                selectionKey = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                if (channel.connect(address)) {
+                    onConnected();
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            connections.add(this);
+        }
+
+        private String getHost(URL url) {
+            final String host = url.getHost();
+            // IPv6 literals
+            if (host.startsWith("[") && host.endsWith("]")) {
+                return host.substring(1, host.length() - 1);
+            }
+            return host;
+        }
+
+        private void onConnected() throws IOException {
+            connected = true;
+            if (sslEngine != null) {
+                sslEngine.beginHandshake();
+            }
+        }
+
+        private void start(NioRequest request) {
+            this.request = request;
+            requestSent = false;
+            response.reset();
+            deadline = 0;
+        }
+
+        private void process() {
+            progress = false;
+            try {
+                if (request != null && request.isDone()) {
+                    // aborted by the reporter thread
+                    close(null);
+                    return;
+                }
+                if (!connected) {
+                    if (!channel.finishConnect()) {
+                        updateState();
+                        return;
+                    }
+                    progress = true;
+                    onConnected();
+                }
+                if (sslEngine != null && !handshake(sslEngine)) {
+                    updateState();
+                    return;
+                }
+                handshakeCompleted = true;
+                if (request != null) {
+                    writeRequest(request);
+                }
+                read();
+                if (channel.isOpen()) {
+                    updateState();
+                }
+            } catch (IOException e) {
+                if (sslEngine != null && !handshakeCompleted && !skipTls13 && isTls13Enabled(sslEngine)) {
+                    retryWithoutTls13(e);
+                } else {
+                    close(e);
+                }
+            }
+        }
+
+        private void retryWithoutTls13(IOException e) {
+            logger.debug("TLS handshake failed, retrying without TLSv1.3", e);
+            skipTls13 = true;
+            final NioRequest request = this.request;
+            this.request = null;
+            close(null);
+            if (request != null) {
+                try {
+                    final Connection connection = new Connection(request.url, connectionKey);
+                    connection.start(request);
+                    connection.process();
+                } catch (IOException retryException) {
+                    request.fail(retryException);
+                }
+            }
+        }
+
+        private void writeRequest(NioRequest request) throws IOException {
+            while (!requestSent) {
+                if (currentChunk == null) {
+                    currentChunk = request.pollChunk();
+                    if (currentChunk == null) {
+                        // waiting for the reporter thread to write more data
+                        return;
+                    }
+                }
+                if (!write(currentChunk)) {
+                    // the socket's send buffer is full
+                    return;
+                }
+                if (currentChunk == request.lastChunk) {
+                    requestSent = true;
+                }
+                recycleChunkBuffer(currentChunk);
+                currentChunk = null;
+            }
+        }
+
+        /**
+         * Writes the provided buffer to the channel
+         *
+         * @return {@code true}, if the buffer has been written completely
+         */
+        private boolean write(ByteBuffer src) throws IOException {
+            if (sslEngine == null) {
+                if (channel.write(src) > 0) {
+                    progress = true;
+                }
+                return !src.hasRemaining();
+            }
+            while (true) {
+                if (!flushNetOut()) {
+                    return false;
+                }
+                if (!src.hasRemaining()) {
+                    return true;
+                }
+                final SSLEngineResult result = sslEngine.wrap(src, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = enlarge(netOut, sslEngine.getSession().getPacketBufferSize());
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("The SSL engine has been closed");
+                }
+            }
+        }
+
+        private boolean flushNetOut() throws IOException {
+            if (netOut.position() == 0) {
+                return true;
+            }
+            ((Buffer) netOut).flip();
+            if (channel.write(netOut) > 0) {
+                progress = true;
+            }
+            netOut.compact();
+            return netOut.position() == 0;
+        }
+
+        /**
+         * Drives the TLS handshake as far as possible without blocking.
+         * Also handles handshake messages after the initial handshake, for example TLS 1.3 key updates.
+         *
+         * @return {@code true}, if the handshake has finished and application data can be exchanged
+         */
+        private boolean handshake(SSLEngine sslEngine) throws IOException {
+            while (true) {
+                switch (sslEngine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = sslEngine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        break;
+                    case NEED_WRAP:
+                        if (!flushNetOut()) {
+                            return false;
+                        }
+                        final SSLEngineResult wrapResult = sslEngine.wrap(EMPTY, netOut);
+                        if (wrapResult.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            netOut = enlarge(netOut, sslEngine.getSession().getPacketBufferSize());
+                        } else if (wrapResult.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("The SSL engine has been closed during the handshake");
+                        }
+                        break;
+                    case NEED_UNWRAP:
+                        ((Buffer) netIn).flip();
+                        final SSLEngineResult unwrapResult = sslEngine.unwrap(netIn, appIn);
+                        netIn.compact();
+                        if (unwrapResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            if (!flushNetOut()) {
+                                return false;
+                            }
+                            if (!netIn.hasRemaining()) {
+                                netIn = enlarge(netIn, sslEngine.getSession().getPacketBufferSize());
+                            }
+                            final int read = channel.read(netIn);
+                            if (read < 0) {
+                                throw new EOFException("The connection has been closed during the TLS handshake");
+                            } else if (read == 0) {
+                                return false;
+                            }
+                            progress = true;
+                        } else if (unwrapResult.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            appIn = enlarge(appIn, sslEngine.getSession().getApplicationBufferSize());
+                        } else if (unwrapResult.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("The SSL engine has been closed during the handshake");
+                        }
+                        break;
+                    default:
+                        // FINISHED or NOT_HANDSHAKING
+                        return flushNetOut();
+                }
+            }
+        }
+
+        private void read() throws IOException {
+            while (true) {
+                final int read = sslEngine != null ? readTls(sslEngine) : channel.read(appIn);
+                if (appIn.position() > 0) {
+                    final NioRequest request = this.request;
+                    if (request == null) {
+                        // the APM Server is not supposed to send anything without a request
+                        close(null);
+                        return;
+                    }
+                    progress = true;
+                    ((Buffer) appIn).flip();
+                    response.append(appIn);
+                    ((Buffer) appIn).clear();
+                    if (response.isComplete()) {
+                        onResponse(request, response.isKeepAlive());
+                        return;
+                    }
+                }
+                if (read < 0) {
+                    final NioRequest request = this.request;
+                    if (request != null && response.completeOnEndOfStream()) {
+                        onResponse(request, false);
+                    } else {
+                        close(new EOFException("The connection has been closed by the APM Server"));
+                    }
+                    return;
+                } else if (read == 0) {
+                    return;
+                }
+            }
+        }
+
+        private int readTls(SSLEngine sslEngine) throws IOException {
+            final int read = channel.read(netIn);
+            ((Buffer) netIn).flip();
+            try {
+                while (netIn.hasRemaining()) {
+                    final SSLEngineResult result = sslEngine.unwrap(netIn, appIn);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        appIn = enlarge(appIn, sslEngine.getSession().getApplicationBufferSize());
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        return -1;
+                    } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                        || result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                        // needs more data or a post-handshake message has to be handled by handshake()
+                        break;
+                    }
+                }
+            } finally {
+                netIn.compact();
+            }
+            return read;
+        }
+
+        private void onResponse(NioRequest request, boolean keepAlive) {
+            final boolean reusable = keepAlive && requestSent;
+            this.request = null;
+            requestSent = false;
+            deadline = 0;
+            request.complete(response.getStatusCode(), response.getBody());
+            response.reset();
+            if (reusable) {
+                release();
+            } else {
+                // the APM Server has responded before the whole body has been sent, or does not keep the connection alive
+                close(null);
+            }
+        }
+
+        private void release() {
+            ArrayDeque<Connection> idle = idleConnections.get(connectionKey);
+            if (idle == null) {
+                idle = new ArrayDeque<>();
+                idleConnections.put(connectionKey, idle);
+            }
+            if (idle.size() < MAX_IDLE_CONNECTIONS_PER_SERVER) {
+                idleSince = System.nanoTime();
+                idle.addLast(this);
+            } else {
+                close(null);
+            }
+        }
+
+        /**
+         * Sets the interest ops and the deadline according to what the connection is waiting for
+         */
+        private void updateState() {
+            int ops;
+            if (!connected) {
+                ops = SelectionKey.OP_CONNECT;
+            } else {
+                // always reading, also to detect when the APM Server closes idle connections
+                ops = SelectionKey.OP_READ;
+                if (netOut.position() > 0 || currentChunk != null) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            if (selectionKey.interestOps() != ops) {
+                selectionKey.interestOps(ops);
+            }
+            // there's no deadline while waiting for the reporter thread to write more data
+            final boolean waitingForServer = request != null && (!connected || requestSent || (ops & SelectionKey.OP_WRITE) != 0
+                || sslEngine != null && sslEngine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING);
+            final long timeoutNanos = getTimeoutNanos();
+            if (!waitingForServer || timeoutNanos == 0) {
+                deadline = 0;
+            } else if (progress || deadline == 0) {
+                deadline = System.nanoTime() + timeoutNanos;
+            }
+        }
+
+        private void checkTimeout(long now) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            if (request != null) {
+                if (deadline != 0 && now - deadline > 0) {
+                    close(new SocketTimeoutException("Timed out waiting for the APM Server"));
+                }
+            } else if (now - idleSince > MAX_IDLE_TIME_NANOS) {
+                close(null);
+            }
+        }
+
+        private void close(@Nullable IOException cause) {
+            selectionKey.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            connections.remove(this);
+            final ArrayDeque<Connection> idle = idleConnections.get(connectionKey);
+            if (idle != null) {
+                idle.remove(this);
+            }
+            if (request != null) {
+                if (cause != null) {
+                    logger.debug("Closing connection to APM Server because of an error", cause);
+                }
+                request.fail(cause != null ? cause : new EOFException("The connection to the APM Server has been closed"));
+                request = null;
+            }
+        }
+    }
+
+    private static boolean isTls13Enabled(SSLEngine sslEngine) {
+        return Arrays.asList(sslEngine.getEnabledProtocols()).contains("TLSv1.3");
+    }
+
+    private static String[] withoutTls13(String[] protocols) {
+        final List<String> enabled = new ArrayList<>(Arrays.asList(protocols));
+        enabled.remove("TLSv1.3");
+        return enabled.toArray(new String[0]);
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minCapacity) {
+        final ByteBuffer enlarged = ByteBuffer.allocate(buffer.capacity() + Math.max(buffer.capacity(), minCapacity));
+        ((Buffer) buffer).flip();
+        enlarged.put(buffer);
+        return enlarged;
+    }
+
+    /**
+     * A request which is written to by the reporter thread and sent by the {@link #ioThread}
+     */
+    private class NioRequest implements IntakeRequest {
+
+        private final URL url;
+        private final String connectionKey;
+        private final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+        private final ByteBuffer lastChunk = ByteBuffer.wrap(LAST_CHUNK);
+        private final ChunkedOutputStream outputStream = new ChunkedOutputStream(this);
+        private volatile boolean done;
+        // guarded by this
+        @Nullable
+        private ResponseHandler responseHandler;
+        private int statusCode;
+        @Nullable
+        private byte[] body;
+        @Nullable
+        private IOException exception;
+
+        private NioRequest(URL url, ByteBuffer head) {
+            this.url = url;
+            this.connectionKey = url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+            chunks.add(head);
+        }
+
+        @Override
+        public URL getUrl() {
+            return url;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public void end(ResponseHandler responseHandler) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+            synchronized (this) {
+                this.responseHandler = responseHandler;
+                if (!done) {
+                    return;
+                }
+            }
+            notifyResponseHandler(responseHandler);
+        }
+
+        @Override
+        public void abort() {
+            fail(new IOException("The request has been aborted"));
+            // the I/O thread closes the connection
+            selector.wakeup();
+        }
+
+        private boolean isDone() {
+            return done;
+        }
+
+        private void send(ByteBuffer chunk) throws IOException {
+            if (done) {
+                // the APM Server has already responded or the request has failed
+                recycleChunkBuffer(chunk);
+                return;
+            }
+            final long timeoutMillis = reporterConfiguration.getServerTimeout().getMillis();
+            try {
+                if (timeoutMillis == 0) {
+                    chunks.put(chunk);
+                } else if (!chunks.offer(chunk, timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    final IOException e = new SocketTimeoutException("Timed out writing to the APM Server");
+                    fail(e);
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            selector.wakeup();
+        }
+
+        @Nullable
+        private ByteBuffer pollChunk() {
+            return chunks.poll();
+        }
+
+        private void complete(int statusCode, @Nullable byte[] body) {
+            onDone(statusCode, body, null);
+        }
+
+        private void fail(IOException exception) {
+            onDone(-1, null, exception);
+        }
+
+        private void onDone(int statusCode, @Nullable byte[] body, @Nullable IOException exception) {
+            final ResponseHandler responseHandler;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                this.statusCode = statusCode;
+                this.body = body;
+                this.exception = exception;
+                this.done = true;
+                responseHandler = this.responseHandler;
+            }
+            // unblocks the reporter thread in case it's waiting for the I/O thread to catch up
+            chunks.clear();
+            if (responseHandler != null) {
+                notifyResponseHandler(responseHandler);
+            }
+        }
+
+        private void notifyResponseHandler(ResponseHandler responseHandler) {
+            if (exception != null) {
+                responseHandler.onFailure(exception);
+            } else {
+                responseHandler.onResponse(statusCode, body != null ? new ByteArrayInputStream(body) : null);
+            }
+        }
+    }
+
+    /**
+     * Frames the request body with the chunked transfer encoding.
+     * Only accessed by the reporter thread.
+     */
+    private class ChunkedOutputStream extends OutputStream {
+
+        private final NioRequest request;
+        @Nullable
+        private ByteBuffer chunk;
+        private boolean closed;
+
+        private ChunkedOutputStream(NioRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            getChunk().put((byte) b);
+            if (getChunk().position() == CHUNK_HEADER_SIZE + CHUNK_DATA_SIZE) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final ByteBuffer chunk = getChunk();
+                final int length = Math.min(len, CHUNK_HEADER_SIZE + CHUNK_DATA_SIZE - chunk.position());
+                chunk.put(b, off, length);
+                off += length;
+                len -= length;
+                if (chunk.position() == CHUNK_HEADER_SIZE + CHUNK_DATA_SIZE) {
+                    sendChunk();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            sendChunk();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                sendChunk();
+                closed = true;
+                request.send(request.lastChunk);
+            }
+        }
+
+        private ByteBuffer getChunk() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (chunk == null) {
+                chunk = acquireChunkBuffer();
+                ((Buffer) chunk).position(CHUNK_HEADER_SIZE);
+            }
+            return chunk;
+        }
+
+        private void sendChunk() throws IOException {
+            final ByteBuffer chunk = this.chunk;
+            if (chunk == null || chunk.position() == CHUNK_HEADER_SIZE) {
+                return;
+            }
+            this.chunk = null;
+            final int size = chunk.position() - CHUNK_HEADER_SIZE;
+            chunk.put((byte) '\r').put((byte) '\n');
+            ((Buffer) chunk).limit(chunk.position());
+            // writes the hex encoded size line right in front of the data
+            int index = CHUNK_HEADER_SIZE - 2;
+            chunk.put(index, (byte) '\r').put(index + 1, (byte) '\n');
+            int remaining = size;
+            do {
+                chunk.put(--index, HEX_DIGITS[remaining & 0xf]);
+                remaining >>>= 4;
+            } while (remaining != 0);
+            ((Buffer) chunk).position(index);
+            request.send(chunk);
+        }
+    }
+
+    /**
+     * A minimal HTTP/1.1 response parser which supports {@code Content-Length}, chunked, and connection delimited bodies.
+     * Responses of the intake API are small so that they are buffered completely.
+     */
+    static class HttpResponseParser {
+
+        private static final byte[] CRLF = {'\r', '\n'};
+        private static final byte[] END_OF_HEAD = {'\r', '\n', '\r', '\n'};
+
+        private byte[] buffer = new byte[1024];
+        private int length;
+        private int headEnd;
+        private int statusCode;
+        private long contentLength;
+        private boolean chunked;
+        private boolean keepAlive;
+        @Nullable
+        private byte[] body;
+        private boolean complete;
+
+        HttpResponseParser() {
+            reset();
+        }
+
+        void reset() {
+            length = 0;
+            resetHead();
+        }
+
+        private void resetHead() {
+            headEnd = -1;
+            statusCode = -1;
+            contentLength = -1;
+            chunked = false;
+            keepAlive = true;
+            body = null;
+            complete = false;
+        }
+
+        void append(ByteBuffer src) throws IOException {
+            final int remaining = src.remaining();
+            if (length + remaining > buffer.length) {
+                if (length + remaining > MAX_RESPONSE_SIZE) {
+                    throw new IOException("The response of the APM Server exceeds " + MAX_RESPONSE_SIZE + " bytes");
+                }
+                buffer = Arrays.copyOf(buffer, Math.max(length + remaining, buffer.length * 2));
+            }
+            src.get(buffer, length, remaining);
+            length += remaining;
+            parse();
+        }
+
+        private void parse() throws IOException {
+            while (headEnd < 0) {
+                final int end = indexOf(END_OF_HEAD, 0);
+                if (end < 0) {
+                    return;
+                }
+                parseHead(end);
+                if (statusCode / 100 == 1) {
+                    // skipping informational responses like 100 Continue
+                    length -= end + END_OF_HEAD.length;
+                    System.arraycopy(buffer, end + END_OF_HEAD.length, buffer, 0, length);
+                    resetHead();
+                } else {
+                    headEnd = end + END_OF_HEAD.length;
+                }
+            }
+            if (chunked) {
+                parseChunkedBody();
+            } else if (contentLength >= 0) {
+                if (length - headEnd >= contentLength) {
+                    body = Arrays.copyOfRange(buffer, headEnd, headEnd + (int) contentLength);
+                    complete = true;
+                }
+            } else if (statusCode == 204 || statusCode == 304) {
+                complete = true;
+            }
+            // otherwise, the body is delimited by the end of the connection
+        }
+
+        private void parseHead(int end) throws IOException {
+            final String[] lines = new String(buffer, 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+            final String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + lines[0]);
+            }
+            try {
+                statusCode = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + lines[0]);
+            }
+            keepAlive = !"HTTP/1.0".equals(statusLine[0]);
+            for (int i = 1; i < lines.length; i++) {
+                final int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                final String name = lines[i].substring(0, colon).trim();
+                final String value = lines[i].substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid Content-Length: " + value);
+                    }
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    if ("close".equalsIgnoreCase(value)) {
+                        keepAlive = false;
+                    } else if ("keep-alive".equalsIgnoreCase(value)) {
+                        keepAlive = true;
+                    }
+                }
+            }
+        }
+
+        private void parseChunkedBody() throws IOException {
+            final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            int position = headEnd;
+            while (true) {
+                final int lineEnd = indexOf(CRLF, position);
+                if (lineEnd < 0) {
+                    return;
+                }
+                String sizeLine = new String(buffer, position, lineEnd - position, StandardCharsets.ISO_8859_1);
+                final int extension = sizeLine.indexOf(';');
+                if (extension >= 0) {
+                    sizeLine = sizeLine.substring(0, extension);
+                }
+                final int size;
+                try {
+                    size = Integer.parseInt(sizeLine.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + sizeLine);
+                }
+                position = lineEnd + CRLF.length;
+                if (size == 0) {
+                    // the last chunk is followed by optional trailers and an empty line
+                    if (indexOf(CRLF, position) == position || indexOf(END_OF_HEAD, position - CRLF.length) >= 0) {
+                        body = decoded.toByteArray();
+                        complete = true;
+                    }
+                    return;
+                }
+                if (length < position + size + CRLF.length) {
+                    return;
+                }
+                decoded.write(buffer, position, size);
+                position += size + CRLF.length;
+            }
+        }
+
+        /**
+         * Completes responses whose body is delimited by the end of the connection
+         *
+         * @return {@code true}, if the response is complete
+         */
+        boolean completeOnEndOfStream() {
+            if (headEnd >= 0 && !chunked && contentLength < 0) {
+                body = Arrays.copyOfRange(buffer, headEnd, length);
+                keepAlive = false;
+                complete = true;
+            }
+            return complete;
+        }
+
+        private int indexOf(byte[] pattern, int fromIndex) {
+            outer:
+            for (int i = Math.max(fromIndex, 0); i <= length - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (buffer[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        boolean isKeepAlive() {
+            return keepAlive;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+
+        @Nullable
+        byte[] getBody() {
+            return body;
+        }
+    }
+}
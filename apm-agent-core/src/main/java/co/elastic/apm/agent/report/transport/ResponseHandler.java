@@ -0,0 +1,54 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.transport;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Gets notified about the outcome of an {@link IntakeRequest}.
+ */
+public interface ResponseHandler {
+
+    /**
+     * Called when the APM Server has responded, regardless of the status code.
+     * <p>
+     * NOTE: the body is only readable until this method returns
+     * </p>
+     *
+     * @param statusCode the HTTP status code of the response
+     * @param body       the response body, or {@code null} if there is none
+     */
+    void onResponse(int statusCode, @Nullable InputStream body);
+
+    /**
+     * Called when the request has failed without a response of the APM Server,
+     * for example because of a connection error or a timeout.
+     *
+     * @param e the cause of the failure
+     */
+    void onFailure(IOException e);
+}
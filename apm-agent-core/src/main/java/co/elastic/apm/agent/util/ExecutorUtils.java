@@ -46,6 +46,13 @@ public final class ExecutorUtils {
         return executor;
     }
 
+    public static ScheduledThreadPoolExecutor createSchedulingDeamonPool(final String threadPurpose, int poolSize) {
+        final ThreadFactory daemonThreadFactory = new NamedThreadFactory(ThreadUtils.addElasticApmThreadPrefix(threadPurpose));
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(poolSize, daemonThreadFactory);
+        executor.setMaximumPoolSize(poolSize);
+        return executor;
+    }
+
     public static ThreadPoolExecutor createSingleThreadDeamonPool(final String threadPurpose, int queueCapacity) {
         String threadName = ThreadUtils.addElasticApmThreadPrefix(threadPurpose);
         final ThreadFactory daemonThreadFactory = new NamedThreadFactory(threadName);
@@ -39,13 +39,22 @@ import java.nio.CharBuffer;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Set;
 
 @VisibleForAdvice
 public class IOUtils {
     static final int BYTE_BUFFER_CAPACITY = 2048;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
     private static ThreadLocal<ByteBuffer> threadLocalByteBuffer = new ThreadLocal<ByteBuffer>() {
         @Override
         protected ByteBuffer initialValue() {
@@ -241,4 +250,81 @@ public class IOUtils {
             return String.format("%032x", new BigInteger(1, md.digest()));
         }
     }
+
+    /**
+     * Returns a directory within {@code java.io.tmpdir} which can only be accessed by the current user.
+     * <p>
+     * As the temp directory is shared by all users, the name of the current user is part of the path.
+     * </p>
+     *
+     * @param name         the name of the directory within the temp directory
+     * @param subDirectory the name of the directory within the per-user directory, for example the service name
+     * @return the directory, which has been created if it did not exist already
+     * @throws IOException if the directory can't be created or is owned by another user
+     * @see #createPrivateDirectory(File)
+     */
+    public static File createPrivateTempDirectory(String name, String subDirectory) throws IOException {
+        File userDirectory = new File(System.getProperty("java.io.tmpdir"), name + "-" + System.getProperty("user.name"));
+        createPrivateDirectory(userDirectory);
+        File directory = new File(userDirectory, subDirectory);
+        createPrivateDirectory(directory);
+        return directory;
+    }
+
+    /**
+     * Creates a directory which can only be accessed by the current user ({@code 0700}).
+     * <p>
+     * An existing directory is only used if it is owned by the current user,
+     * as the files within a directory owned by someone else may have been planted.
+     * In that case, the permissions are restricted to the current user.
+     * On file systems which don't support POSIX permissions, the directory is created with the default permissions.
+     * </p>
+     *
+     * @param directory the directory to create
+     * @throws IOException if the directory can't be created, is a symbolic link or is owned by another user
+     */
+    public static void createPrivateDirectory(File directory) throws IOException {
+        Path path = directory.toPath();
+        boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                if (posix) {
+                    Files.createDirectory(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                } else {
+                    Files.createDirectory(path);
+                }
+            } catch (FileAlreadyExistsException ignore) {
+                // created concurrently, the ownership is verified below
+            }
+        }
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(directory + " is not a directory");
+        }
+        if (posix) {
+            if (!isOwnedByCurrentUser(directory)) {
+                throw new IOException(directory + " is owned by " + Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName() +
+                    " instead of " + System.getProperty("user.name"));
+            }
+            Files.setPosixFilePermissions(path, OWNER_ONLY);
+        }
+    }
+
+    /**
+     * Returns whether the provided file is owned by the current user.
+     * Symbolic links are not followed, so a link is only considered to be owned by the current user if the link itself is.
+     * On file systems which don't support POSIX permissions, the ownership is not checked.
+     *
+     * @param file the file to check
+     * @return {@code true} if the file is owned by the current user or if the ownership can't be checked
+     * @throws IOException if the owner can't be determined, for example because the file doesn't exist
+     */
+    public static boolean isOwnedByCurrentUser(File file) throws IOException {
+        Path path = file.toPath();
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return true;
+        }
+        UserPrincipal owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal currentUser = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        return owner.equals(currentUser);
+    }
 }
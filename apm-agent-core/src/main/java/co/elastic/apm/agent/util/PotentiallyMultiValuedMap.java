@@ -25,8 +25,11 @@
 package co.elastic.apm.agent.util;
 
 import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 
 import javax.annotation.Nullable;
+import java.nio.Buffer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -39,11 +42,65 @@ import java.util.List;
  * But when {@link #add(String, String)} has been called multiple times for a given key,
  * {@link #get(String)} will return a collection of values.
  * </p>
+ * <p>
+ * Keys and values are not stored as {@link String}s.
+ * Instead, their characters are appended to a single {@code char[]} which is reused when this map is recycled.
+ * The keys and values are referenced by offset and length index arrays.
+ * That means that adding entries does not allocate once the map is warmed up
+ * and that the {@link String}s of the caller (for example the ones created by the servlet container)
+ * don't have to be retained until the transaction is reported.
+ * </p>
+ * <p>
+ * The {@link #getKeyChars(int)} and {@link #getValueChars(int)} methods provide a garbage free read access to the entries.
+ * The other read methods, like {@link #get(String)} or {@link #getKey(int)}, create a {@link String} on each invocation.
+ * </p>
+ * <p>
+ * This map does not support any form of concurrency.
+ * </p>
  */
 public class PotentiallyMultiValuedMap implements Recyclable {
 
-    private final List<String> keys = new ArrayList<>();
-    private final List<Object> values = new ArrayList<>();
+    /**
+     * Returned by {@link #getNextValue(int)} if there are no more values
+     */
+    public static final int NO_MORE_VALUES = -1;
+    /**
+     * If the character buffer grows beyond this size, it's shrunk to this size when this map is recycled
+     * so that pooled maps don't hold on to unusually large buffers.
+     */
+    static final int MAX_POOLED_BUFFER_SIZE = DslJsonSerializer.MAX_VALUE_LENGTH * 2;
+    /**
+     * The same as {@link #MAX_POOLED_BUFFER_SIZE} but for the number of keys and values
+     */
+    static final int MAX_POOLED_CAPACITY = 64;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final int INITIAL_CAPACITY = 8;
+    private static final char[] EMPTY_CHARS = new char[0];
+    private static final int[] EMPTY_INTS = new int[0];
+    private static final int NULL_VALUE = -1;
+    private static final int NO_VALUE = NO_MORE_VALUES;
+
+    private char[] chars = EMPTY_CHARS;
+    private int charsLength;
+
+    // one element per key
+    private int size;
+    private int[] keyOffsets = EMPTY_INTS;
+    private int[] keyLengths = EMPTY_INTS;
+    private int[] firstValues = EMPTY_INTS;
+    private int[] lastValues = EMPTY_INTS;
+    private int[] valueCounts = EMPTY_INTS;
+
+    // one element per value
+    private int valuesSize;
+    private int[] valueOffsets = EMPTY_INTS;
+    private int[] valueLengths = EMPTY_INTS;
+    private int[] nextValues = EMPTY_INTS;
+
+    @Nullable
+    private CharBuffer keyView;
+    @Nullable
+    private CharBuffer valueView;
 
     /**
      * Adds a value to this map.
@@ -56,43 +113,127 @@ public class PotentiallyMultiValuedMap implements Recyclable {
      * @param key   The key.
      * @param value The value.
      */
-    public void add(String key, String value) {
-        final int index = indexOfIgnoreCase(key);
-        if (index >= 0) {
-            Object previousValue = values.get(index);
-            if (previousValue instanceof List) {
-                addValueToValueList(value, (List<String>) previousValue);
-            } else {
-                convertValueToMultiValue(index, (String) previousValue, value);
-            }
-        } else {
-            keys.add(key);
-            values.add(value);
+    public void add(String key, @Nullable String value) {
+        int index = indexOfIgnoreCase(key);
+        if (index == -1) {
+            index = addKey(key);
         }
+        addValue(index, value);
     }
 
-
     public void set(String key, String[] values) {
         if (values.length > 0) {
-            if (values.length == 1) {
-                keys.add(key);
-                this.values.add(values[0]);
-            } else {
-                keys.add(key);
-                this.values.add(Arrays.asList(values));
+            int index = addKey(key);
+            for (String value : values) {
+                addValue(index, value);
             }
         }
     }
 
     private int indexOfIgnoreCase(String key) {
-        for (int i = 0; i < keys.size(); i++) {
-            if (keys.get(i).equalsIgnoreCase(key)) {
+        for (int i = 0; i < size; i++) {
+            if (regionMatchesIgnoreCase(keyOffsets[i], keyLengths[i], key)) {
                 return i;
             }
         }
         return -1;
     }
 
+    private boolean regionMatchesIgnoreCase(int offset, int length, String s) {
+        if (length != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c1 = chars[offset + i];
+            char c2 = s.charAt(i);
+            if (c1 != c2 && Character.toUpperCase(c1) != Character.toUpperCase(c2)
+                && Character.toLowerCase(c1) != Character.toLowerCase(c2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int addKey(String key) {
+        return addKey(append(key), key.length());
+    }
+
+    private int addKey(int offset, int length) {
+        if (size == keyOffsets.length) {
+            int newCapacity = Math.max(INITIAL_CAPACITY, size * 2);
+            keyOffsets = Arrays.copyOf(keyOffsets, newCapacity);
+            keyLengths = Arrays.copyOf(keyLengths, newCapacity);
+            firstValues = Arrays.copyOf(firstValues, newCapacity);
+            lastValues = Arrays.copyOf(lastValues, newCapacity);
+            valueCounts = Arrays.copyOf(valueCounts, newCapacity);
+        }
+        int index = size++;
+        keyOffsets[index] = offset;
+        keyLengths[index] = length;
+        firstValues[index] = NO_VALUE;
+        lastValues[index] = NO_VALUE;
+        valueCounts[index] = 0;
+        return index;
+    }
+
+    private void addValue(int index, @Nullable String value) {
+        if (value != null) {
+            addValue(index, append(value), value.length());
+        } else {
+            addValue(index, charsLength, NULL_VALUE);
+        }
+    }
+
+    private void addValue(int index, int offset, int length) {
+        if (valuesSize == valueOffsets.length) {
+            int newCapacity = Math.max(INITIAL_CAPACITY, valuesSize * 2);
+            valueOffsets = Arrays.copyOf(valueOffsets, newCapacity);
+            valueLengths = Arrays.copyOf(valueLengths, newCapacity);
+            nextValues = Arrays.copyOf(nextValues, newCapacity);
+        }
+        int valueIndex = valuesSize++;
+        valueOffsets[valueIndex] = offset;
+        valueLengths[valueIndex] = length;
+        nextValues[valueIndex] = NO_VALUE;
+        if (lastValues[index] == NO_VALUE) {
+            firstValues[index] = valueIndex;
+        } else {
+            nextValues[lastValues[index]] = valueIndex;
+        }
+        lastValues[index] = valueIndex;
+        valueCounts[index]++;
+    }
+
+    /**
+     * Appends the characters of the provided string to the character buffer
+     *
+     * @return the offset of the first appended character
+     */
+    private int append(String s) {
+        int offset = charsLength;
+        ensureCharsCapacity(offset + s.length());
+        s.getChars(0, s.length(), chars, offset);
+        charsLength += s.length();
+        return offset;
+    }
+
+    private int append(char[] src, int srcOffset, int length) {
+        int offset = charsLength;
+        ensureCharsCapacity(offset + length);
+        System.arraycopy(src, srcOffset, chars, offset, length);
+        charsLength += length;
+        return offset;
+    }
+
+    private void ensureCharsCapacity(int minCapacity) {
+        if (minCapacity > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(minCapacity, Math.max(INITIAL_BUFFER_SIZE, chars.length * 2)));
+            // the views are bound to the previous array
+            keyView = null;
+            valueView = null;
+        }
+    }
+
     /**
      * Gets the first value which is associated with a given key.
      *
@@ -101,12 +242,11 @@ public class PotentiallyMultiValuedMap implements Recyclable {
      */
     @Nullable
     public String getFirst(String key) {
-        Object valueOrValueList = get(key);
-        if (valueOrValueList instanceof List) {
-            return (String) ((List) valueOrValueList).get(0);
-        } else {
-            return (String) valueOrValueList;
+        final int index = indexOfIgnoreCase(key);
+        if (index == -1) {
+            return null;
         }
+        return valueToString(firstValues[index]);
     }
 
     @Nullable
@@ -115,7 +255,7 @@ public class PotentiallyMultiValuedMap implements Recyclable {
         if (index == -1) {
             return null;
         }
-        return values.get(index);
+        return getValue(index);
     }
 
     /**
@@ -133,62 +273,209 @@ public class PotentiallyMultiValuedMap implements Recyclable {
         if (index == -1) {
             return Collections.emptyList();
         }
-        Object valueOrValueList = values.get(index);
-        if (valueOrValueList instanceof List) {
-            return (List<String>) valueOrValueList;
-        } else {
-            return Collections.singletonList((String) valueOrValueList);
+        if (valueCounts[index] == 1) {
+            return Collections.singletonList(valueToString(firstValues[index]));
         }
+        return getValueList(index);
     }
 
-    private void addValueToValueList(String value, List<String> valueList) {
-        valueList.add(value);
+    private List<String> getValueList(int index) {
+        List<String> valueList = new ArrayList<>(valueCounts[index]);
+        for (int v = firstValues[index]; v != NO_VALUE; v = nextValues[v]) {
+            valueList.add(valueToString(v));
+        }
+        return valueList;
     }
 
-    private void convertValueToMultiValue(int index, String previousValue, String value) {
-        List<String> valueList = new ArrayList<>(4);
-        valueList.add(previousValue);
-        valueList.add(value);
-        values.set(index, valueList);
+    @Nullable
+    private String valueToString(int valueIndex) {
+        if (valueLengths[valueIndex] == NULL_VALUE) {
+            return null;
+        }
+        return new String(chars, valueOffsets[valueIndex], valueLengths[valueIndex]);
     }
 
     public boolean isEmpty() {
-        return keys.isEmpty();
+        return size == 0;
     }
 
     @Override
     public void resetState() {
-        keys.clear();
-        values.clear();
+        if (chars.length > MAX_POOLED_BUFFER_SIZE) {
+            chars = new char[MAX_POOLED_BUFFER_SIZE];
+            keyView = null;
+            valueView = null;
+        }
+        if (keyOffsets.length > MAX_POOLED_CAPACITY) {
+            keyOffsets = new int[MAX_POOLED_CAPACITY];
+            keyLengths = new int[MAX_POOLED_CAPACITY];
+            firstValues = new int[MAX_POOLED_CAPACITY];
+            lastValues = new int[MAX_POOLED_CAPACITY];
+            valueCounts = new int[MAX_POOLED_CAPACITY];
+        }
+        if (valueOffsets.length > MAX_POOLED_CAPACITY) {
+            valueOffsets = new int[MAX_POOLED_CAPACITY];
+            valueLengths = new int[MAX_POOLED_CAPACITY];
+            nextValues = new int[MAX_POOLED_CAPACITY];
+        }
+        charsLength = 0;
+        size = 0;
+        valuesSize = 0;
     }
 
     public String getKey(int i) {
-        return keys.get(i);
+        checkIndex(i);
+        return new String(chars, keyOffsets[i], keyLengths[i]);
     }
 
+    /**
+     * Returns the value(s) of the i-th key.
+     *
+     * @param i the index of the key
+     * @return a {@link String} if there's exactly one value associated with the key, a {@link List} of {@link String}s otherwise
+     */
+    @Nullable
     public Object getValue(int i) {
-        return values.get(i);
+        checkIndex(i);
+        if (valueCounts[i] == 1) {
+            return valueToString(firstValues[i]);
+        }
+        return getValueList(i);
+    }
+
+    /**
+     * Returns a view of the characters of the i-th key, without allocating a {@link String}.
+     * <p>
+     * NOTE: the returned {@link CharSequence} is reused and only valid until the next invocation of this method.
+     * </p>
+     *
+     * @param i the index of the key
+     * @return a view of the characters of the i-th key
+     */
+    public CharSequence getKeyChars(int i) {
+        checkIndex(i);
+        if (keyView == null) {
+            keyView = CharBuffer.wrap(chars);
+        }
+        return setView(keyView, keyOffsets[i], keyLengths[i]);
+    }
+
+    /**
+     * Returns the number of values associated with the i-th key.
+     *
+     * @param i the index of the key
+     * @return the number of values associated with the i-th key, at least {@code 1}
+     */
+    public int getValueCount(int i) {
+        checkIndex(i);
+        return valueCounts[i];
+    }
+
+    /**
+     * Returns a cursor to the first value of the i-th key.
+     * <p>
+     * The values of a key can be iterated without allocations like this:
+     * </p>
+     * <pre>
+     * for (int v = map.getFirstValue(i); v != NO_MORE_VALUES; v = map.getNextValue(v)) {
+     *     CharSequence value = map.getValueChars(v);
+     * }
+     * </pre>
+     *
+     * @param i the index of the key
+     * @return a cursor to the first value of the i-th key
+     */
+    public int getFirstValue(int i) {
+        checkIndex(i);
+        return firstValues[i];
+    }
+
+    /**
+     * Returns a cursor to the value which follows the given one.
+     *
+     * @param valueCursor a cursor returned by {@link #getFirstValue(int)} or by this method
+     * @return a cursor to the next value of the same key or {@link #NO_MORE_VALUES}
+     */
+    public int getNextValue(int valueCursor) {
+        return nextValues[valueCursor];
+    }
+
+    /**
+     * Returns a view of the characters of a value, without allocating a {@link String}.
+     * <p>
+     * NOTE: the returned {@link CharSequence} is reused and only valid until the next invocation of this method.
+     * </p>
+     *
+     * @param valueCursor a cursor returned by {@link #getFirstValue(int)} or {@link #getNextValue(int)}
+     * @return a view of the characters of the value, or {@code null} if a {@code null} value has been added
+     */
+    @Nullable
+    public CharSequence getValueChars(int valueCursor) {
+        if (valueLengths[valueCursor] == NULL_VALUE) {
+            return null;
+        }
+        if (valueView == null) {
+            valueView = CharBuffer.wrap(chars);
+        }
+        return setView(valueView, valueOffsets[valueCursor], valueLengths[valueCursor]);
+    }
+
+    private static CharBuffer setView(CharBuffer view, int offset, int length) {
+        // setting the limit first makes sure the position is always within the limit
+        ((Buffer) view).limit(offset + length);
+        ((Buffer) view).position(offset);
+        return view;
+    }
+
+    private void checkIndex(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+        }
     }
 
     public int size() {
-        return keys.size();
+        return size;
+    }
+
+    // for testing
+    int getBufferSize() {
+        return chars.length;
     }
 
     public void copyFrom(PotentiallyMultiValuedMap other) {
-        this.keys.addAll(other.keys);
-        this.values.addAll(other.values);
+        for (int i = 0; i < other.size; i++) {
+            int index = addKey(append(other.chars, other.keyOffsets[i], other.keyLengths[i]), other.keyLengths[i]);
+            for (int v = other.firstValues[i]; v != NO_VALUE; v = other.nextValues[v]) {
+                if (other.valueLengths[v] == NULL_VALUE) {
+                    addValue(index, charsLength, NULL_VALUE);
+                } else {
+                    addValue(index, append(other.chars, other.valueOffsets[v], other.valueLengths[v]), other.valueLengths[v]);
+                }
+            }
+        }
     }
 
     public void removeIgnoreCase(String key) {
         final int index = indexOfIgnoreCase(key);
         if (index != -1) {
-            keys.remove(index);
-            values.remove(index);
+            // the characters and values of the removed key are left in the buffers until this map is recycled
+            int numMoved = size - index - 1;
+            if (numMoved > 0) {
+                System.arraycopy(keyOffsets, index + 1, keyOffsets, index, numMoved);
+                System.arraycopy(keyLengths, index + 1, keyLengths, index, numMoved);
+                System.arraycopy(firstValues, index + 1, firstValues, index, numMoved);
+                System.arraycopy(lastValues, index + 1, lastValues, index, numMoved);
+                System.arraycopy(valueCounts, index + 1, valueCounts, index, numMoved);
+            }
+            size--;
         }
     }
 
     public void set(int index, String value) {
-        values.set(index, value);
+        checkIndex(index);
+        lastValues[index] = NO_VALUE;
+        valueCounts[index] = 0;
+        addValue(index, value);
     }
 
     public boolean containsIgnoreCase(String key) {
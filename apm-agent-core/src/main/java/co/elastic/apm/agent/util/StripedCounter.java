@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which is optimized for frequent concurrent increments and infrequent reads.
+ * <p>
+ * Instead of having all threads contend on a single {@link java.util.concurrent.atomic.AtomicLong},
+ * the count is striped across multiple cells, based on the id of the incrementing thread.
+ * The number of cells is derived from the number of available processors.
+ * Each cell is padded to its own cache line in order to avoid false sharing.
+ * </p>
+ * <p>
+ * This is similar to {@code java.util.concurrent.atomic.LongAdder} which is not available in Java 7.
+ * </p>
+ */
+public class StripedCounter {
+
+    /**
+     * 8 longs are 64 bytes, which is the size of a cache line on most architectures
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    StripedCounter(int concurrency) {
+        int stripes = MathUtils.getNextPowerOf2(concurrency);
+        mask = stripes - 1;
+        cells = new AtomicLongArray(stripes * PADDING);
+    }
+
+    public void increment() {
+        cells.incrementAndGet((ThreadUtils.getThreadIdHash() & mask) * PADDING);
+    }
+
+    /**
+     * Returns the current sum of all cells.
+     * Concurrent increments may or may not be reflected in the result.
+     *
+     * @return the current sum of all cells
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
@@ -34,4 +34,19 @@ public final class ThreadUtils {
     public static String addElasticApmThreadPrefix(String purpose) {
         return ELASTIC_APM_THREAD_PREFIX + purpose;
     }
+
+    /**
+     * Returns a well-distributed hash of the current thread's id,
+     * which can be used to select the stripe of a striped data structure.
+     *
+     * @return a hash of the current thread's id
+     */
+    public static int getThreadIdHash() {
+        long id = Thread.currentThread().getId();
+        // spreads sequentially assigned thread ids (see murmur3's fmix64)
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        return (int) id;
+    }
 }
@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClassMatchIndexTest {
+
+    private final ClassMatchIndex.ClassFileHasher hasher = new ClassMatchIndex.ClassFileHasher();
+    private final TypeDescription type = TypeDescription.ForLoadedType.of(ClassMatchIndexTest.class);
+    private final String internalName = ClassMatchIndexTest.class.getName().replace('.', '/');
+    private File directory;
+
+    @BeforeEach
+    void setUp(@TempDir Path tempDir) {
+        directory = tempDir.toFile();
+    }
+
+    @Test
+    void testSkipKnownMismatchAfterRestart() {
+        ClassMatchIndex index = ClassMatchIndex.load(directory, "key", 70);
+        transform(new byte[]{1, 2, 3});
+        assertThat(index.isKnownMismatch(type, 0)).isFalse();
+        index.record(type, 0, false);
+        index.record(type, 1, true);
+        index.record(type, 65, false);
+        index.save();
+
+        index = ClassMatchIndex.load(directory, "key", 70);
+        assertThat(index.size()).isEqualTo(1);
+        assertThat(index.isKnownMismatch(type, 0)).isTrue();
+        assertThat(index.isKnownMismatch(type, 65)).isTrue();
+        // matches are always evaluated
+        assertThat(index.isKnownMismatch(type, 1)).isFalse();
+        // not evaluated before
+        assertThat(index.isKnownMismatch(type, 2)).isFalse();
+        assertThat(index.getSkipped()).isEqualTo(2);
+    }
+
+    @Test
+    void testChangedClassFile() {
+        ClassMatchIndex index = ClassMatchIndex.load(directory, "key", 1);
+        transform(new byte[]{1, 2, 3});
+        index.record(type, 0, false);
+        index.save();
+
+        index = ClassMatchIndex.load(directory, "key", 1);
+        transform(new byte[]{1, 2, 4});
+        assertThat(index.isKnownMismatch(type, 0)).isFalse();
+        index.record(type, 0, true);
+        assertThat(index.isKnownMismatch(type, 0)).isFalse();
+    }
+
+    @Test
+    void testDifferentKey() {
+        ClassMatchIndex index = ClassMatchIndex.load(directory, "key", 1);
+        transform(new byte[]{1, 2, 3});
+        index.record(type, 0, false);
+        index.save();
+
+        assertThat(ClassMatchIndex.load(directory, "other-key", 1).size()).isZero();
+        assertThat(ClassMatchIndex.load(directory, "key", 2).size()).isZero();
+        assertThat(ClassMatchIndex.load(directory, "key", 1).size()).isOne();
+    }
+
+    @Test
+    void testNoHashOutsideOfTransformation() {
+        ClassMatchIndex index = ClassMatchIndex.load(directory, "key", 1);
+        transform(new byte[]{1, 2, 3});
+        index.record(type, 0, false);
+        assertThat(index.isKnownMismatch(type, 0)).isTrue();
+
+        // another class is being transformed
+        hasher.transform(null, "foo/Bar", null, null, new byte[]{1, 2, 3});
+        assertThat(index.isKnownMismatch(type, 0)).isFalse();
+        hasher.transform(null, null, null, null, new byte[]{1, 2, 3});
+        assertThat(index.isKnownMismatch(type, 0)).isFalse();
+    }
+
+    @Test
+    void testIgnoresSymbolicLink() throws Exception {
+        Path otherDir = Files.createDirectory(directory.toPath().resolve("other"));
+        ClassMatchIndex index = ClassMatchIndex.load(otherDir.toFile(), "key", 1);
+        transform(new byte[]{1, 2, 3});
+        index.record(type, 0, false);
+        index.save();
+        Files.createSymbolicLink(directory.toPath().resolve("class-match-index.bin"), otherDir.resolve("class-match-index.bin"));
+
+        assertThat(ClassMatchIndex.load(directory, "key", 1).size()).isZero();
+    }
+
+    @Test
+    void testDoesNotWriteToPlantedTempFile() throws Exception {
+        Path target = Files.write(directory.toPath().resolve("target"), new byte[]{42});
+        Files.createSymbolicLink(directory.toPath().resolve("class-match-index.bin.tmp"), target);
+        ClassMatchIndex index = ClassMatchIndex.load(directory, "key", 1);
+        transform(new byte[]{1, 2, 3});
+        index.record(type, 0, false);
+
+        index.save();
+
+        assertThat(Files.readAllBytes(target)).containsExactly(42);
+        assertThat(ClassMatchIndex.load(directory, "key", 1).size()).isOne();
+    }
+
+    private void transform(byte[] classFile) {
+        assertThat(hasher.transform(null, internalName, null, null, classFile)).isNull();
+    }
+}
@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.ElementMatchers;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static co.elastic.apm.agent.bci.bytebuddy.CustomElementMatchers.isInAnyPackage;
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.nameContains;
+import static net.bytebuddy.matcher.ElementMatchers.nameContainsIgnoreCase;
+import static net.bytebuddy.matcher.ElementMatchers.nameEndsWith;
+import static net.bytebuddy.matcher.ElementMatchers.nameMatches;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CombinedNamePreFilterTest {
+
+    private final List<ElementMatcher<? super NamedElement>> preFilters = Arrays.<ElementMatcher<? super NamedElement>>asList(
+        nameContains("Servlet").or(nameContainsIgnoreCase("jsp")),
+        nameStartsWith("io.grpc").and(nameContains("Unary")),
+        nameStartsWith("com.lambdaworks.redis").and(nameContains("Command")),
+        nameEndsWith("ApplicationContext"),
+        nameContains("Statement").or(nameStartsWith("com.ibm.db2.jcc")),
+        named("java.lang.ProcessBuilder"),
+        nameContains("Exec").and(not(nameContains("Test"))),
+        any(),
+        nameMatches(".*Handler"),
+        isInAnyPackage(Arrays.asList("com.example"), ElementMatchers.<NamedElement>any()),
+        nameContains("Connection").or(nameMatches(".*Pool"))
+    );
+
+    @Test
+    void testSameResultAsIndividualPreFilters() {
+        CombinedNamePreFilter combined = CombinedNamePreFilter.of(preFilters);
+        List<String> names = Arrays.asList(
+            "javax.servlet.http.HttpServlet",
+            "org.apache.jasper.runtime.HttpJspBase",
+            "org.apache.JSPServlet",
+            "io.grpc.stub.ClientCalls$UnaryStreamToFuture",
+            "io.grpc.Channel",
+            "com.lambdaworks.redis.protocol.Command",
+            "org.springframework.context.support.GenericApplicationContext",
+            "org.springframework.context.ApplicationContextAware",
+            "com.mysql.jdbc.PreparedStatement",
+            "com.ibm.db2.jcc.am.Agent",
+            "java.lang.ProcessBuilder",
+            "java.lang.ProcessBuilderX",
+            "java.util.concurrent.ThreadPoolExecutor",
+            "com.example.ExecutorTest",
+            "com.example.RequestHandler",
+            "com.zaxxer.hikari.HikariPool",
+            "java.sql.Connection",
+            "",
+            "a",
+            "Servle");
+        for (String name : names) {
+            for (int i = 0; i < preFilters.size(); i++) {
+                assertThat(combined.matches(element(name), i))
+                    .describedAs("%s with %s", name, preFilters.get(i))
+                    .isEqualTo(preFilters.get(i).matches(element(name)));
+            }
+        }
+    }
+
+    @Test
+    void testNonCandidates() {
+        CombinedNamePreFilter combined = CombinedNamePreFilter.of(preFilters);
+        assertThat(combined.isCandidate("org.example.Foo", 0)).isFalse();
+        assertThat(combined.isCandidate("org.example.FooServlet", 0)).isTrue();
+        // only the more selective operand of a conjunction is taken into account
+        assertThat(combined.isCandidate("org.example.UnaryCall", 1)).isFalse();
+        assertThat(combined.isCandidate("io.grpc.Channel", 1)).isTrue();
+        // pre-filters which can't be analyzed are always candidates
+        assertThat(combined.isCandidate("org.example.Foo", 7)).isTrue();
+        assertThat(combined.isCandidate("org.example.Foo", 8)).isTrue();
+        assertThat(combined.isCandidate("org.example.Foo", 10)).isTrue();
+    }
+
+    @Test
+    void testNecessaryLiterals() {
+        assertThat(CombinedNamePreFilter.getNecessaryLiterals(nameContainsIgnoreCase("jsp"))).hasSize(8);
+        assertThat(CombinedNamePreFilter.getNecessaryLiterals(nameContainsIgnoreCase("ServletContext"))).isNull();
+        assertThat(CombinedNamePreFilter.getNecessaryLiterals(nameStartsWith(""))).isNull();
+        assertThat(CombinedNamePreFilter.getNecessaryLiterals(not(nameStartsWith("foo")))).isNull();
+        assertThat(CombinedNamePreFilter.getNecessaryLiterals(nameStartsWith("foo").or(nameMatches("bar")))).isNull();
+        assertThat(CombinedNamePreFilter.getNecessaryLiterals(nameStartsWith("foo").or(nameEndsWith("bar")).or(named("baz")))).hasSize(3);
+    }
+
+    @Test
+    void testManyInstrumentations() {
+        ElementMatcher<? super NamedElement>[] manyPreFilters = new ElementMatcher[130];
+        for (int i = 0; i < manyPreFilters.length; i++) {
+            manyPreFilters[i] = nameEndsWith("Type" + i);
+        }
+        CombinedNamePreFilter combined = CombinedNamePreFilter.of(Arrays.asList(manyPreFilters));
+        for (int i = 0; i < manyPreFilters.length; i++) {
+            assertThat(combined.matches(element("org.example.Type" + i), i)).isTrue();
+            assertThat(combined.matches(element("org.example.Type" + i), (i + 1) % manyPreFilters.length)).isFalse();
+        }
+    }
+
+    private static NamedElement element(String name) {
+        return () -> name;
+    }
+}
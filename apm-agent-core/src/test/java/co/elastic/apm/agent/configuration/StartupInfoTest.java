@@ -40,7 +40,10 @@ import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class StartupInfoTest {
 
@@ -81,6 +84,29 @@ class StartupInfoTest {
             "duration", "1", SimpleSource.NAME);
     }
 
+    @Test
+    void testLogTimeline() {
+        StartupInfo.clearTimeline();
+        long start = System.nanoTime();
+        StartupInfo.recordPhase("first", start);
+        StartupInfo.recordPhase("second", System.nanoTime());
+
+        assertThat(StartupInfo.getTimeline())
+            .extracting(StartupInfo.Phase::getName)
+            .containsExactly("first", "second");
+        assertThat(StartupInfo.getTimeline())
+            .extracting(StartupInfo.Phase::getThreadName)
+            .containsOnly(Thread.currentThread().getName());
+
+        when(logger.isDebugEnabled()).thenReturn(true);
+        StartupInfo.logTimeline(logger);
+        verify(logger).info(eq("Elastic APM agent started in {} ms"), anyLong());
+        verify(logger).debug(eq("Startup phase {} on thread {}: started at +{} ms, took {} ms"),
+            eq("first"), eq(Thread.currentThread().getName()), eq(0L), anyLong());
+        verify(logger).debug(eq("Startup phase {} on thread {}: started at +{} ms, took {} ms"),
+            eq("second"), eq(Thread.currentThread().getName()), anyLong(), anyLong());
+    }
+
     private static class TestConfig extends ConfigurationOptionProvider {
         final ConfigurationOption<String> testOption = ConfigurationOption.<String>stringOption()
             .key("test")
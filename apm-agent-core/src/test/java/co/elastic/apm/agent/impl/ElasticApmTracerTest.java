@@ -35,6 +35,7 @@ import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.objectpool.TestObjectPoolFactory;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -328,6 +329,21 @@ class ElasticApmTracerTest {
         assertThat(reporter.getFirstTransaction()).isSameAs(transaction);
     }
 
+    @Test
+    void testAdaptiveSampling() throws IOException {
+        CoreConfiguration coreConfiguration = config.getConfig(CoreConfiguration.class);
+        when(coreConfiguration.getSampledTransactionsPerSecond()).thenReturn(10.0);
+        ElasticApmTracer tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(reporter)
+            .withObjectPoolFactory(objectPoolFactory)
+            .build();
+        assertThat(tracer.getMetricRegistry().getGaugeValue("agent.sampling.rate", Labels.EMPTY)).isEqualTo(1.0);
+
+        coreConfiguration.getSampleRate().update(0.5, SpyConfiguration.CONFIG_SOURCE_NAME);
+        assertThat(tracer.getMetricRegistry().getGaugeValue("agent.sampling.rate", Labels.EMPTY)).isEqualTo(0.5);
+    }
+
     @Test
     void testSamplingNone() throws IOException {
         config.getConfig(CoreConfiguration.class).getSampleRate().update(0.0, SpyConfiguration.CONFIG_SOURCE_NAME);
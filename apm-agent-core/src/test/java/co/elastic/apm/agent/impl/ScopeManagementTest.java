@@ -36,6 +36,7 @@ import org.stagemonitor.configuration.ConfigurationRegistry;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -108,6 +109,79 @@ class ScopeManagementTest {
         });
     }
 
+    @Test
+    void testRestoreActivationDepth() {
+        final Transaction transaction = tracer.startRootTransaction(null).activate();
+        int depth = tracer.getActivationDepth();
+        assertThat(depth).isEqualTo(1);
+
+        final Span span = transaction.createSpan().activate();
+        span.createSpan().activate();
+        assertThat(tracer.getActivationDepth()).isEqualTo(3);
+
+        tracer.restoreActivationDepth(depth);
+        assertThat(tracer.getActivationDepth()).isEqualTo(1);
+        assertThat(tracer.getActive()).isSameAs(transaction);
+
+        // restoring a depth which is greater than the current one is a noop
+        tracer.restoreActivationDepth(2);
+        assertThat(tracer.getActive()).isSameAs(transaction);
+
+        transaction.deactivate().end();
+        assertThat(tracer.getActivationDepth()).isZero();
+    }
+
+    @Test
+    void testRunnableWrapperDeactivatesLeakedSpans() {
+        final Transaction transaction = tracer.startRootTransaction(null);
+        transaction.withActive((Runnable) () -> {
+            assertThat(tracer.getActive()).isSameAs(transaction);
+            // not deactivated
+            transaction.createSpan().activate();
+        }).run();
+
+        assertThat(tracer.getActivationDepth()).isZero();
+        transaction.end();
+    }
+
+    @Test
+    void testWrappingAllowedOnNewThread() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                assertThat(tracer.getActive()).isNull();
+                assertThat(tracer.currentTransaction()).isNull();
+                assertThat(tracer.getActivationDepth()).isZero();
+                assertThat(tracer.isWrappingAllowedOnThread()).isTrue();
+                tracer.avoidWrappingOnThread();
+                assertThat(tracer.isWrappingAllowedOnThread()).isFalse();
+                tracer.allowWrappingOnThread();
+                assertThat(tracer.isWrappingAllowedOnThread()).isTrue();
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertThat(failure.get()).isNull();
+        assertThat(tracer.isWrappingAllowedOnThread()).isTrue();
+    }
+
+    @Test
+    void testWrapperRecycledOnOtherThreadIsReused() throws Exception {
+        final Transaction transaction = tracer.startRootTransaction(null);
+        Runnable wrapper = tracer.wrapRunnable(() -> assertThat(tracer.getActive()).isSameAs(transaction), transaction);
+        Thread thread = new Thread(wrapper);
+        thread.start();
+        thread.join();
+
+        // the wrapper has been recycled on the other thread and is available to this thread
+        Runnable reused = tracer.wrapRunnable(() -> {}, transaction);
+        assertThat(reused).isSameAs(wrapper);
+        reused.run();
+        transaction.end();
+    }
+
     @Test
     void testContextAndSpanRunnableActivation() {
         runTestWithAssertionsDisabled(() -> {
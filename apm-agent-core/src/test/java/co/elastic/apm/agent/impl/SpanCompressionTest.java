@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Composite;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+class SpanCompressionTest {
+
+    private ElasticApmTracer tracer;
+    private MockReporter reporter;
+    private Transaction transaction;
+
+    @BeforeEach
+    void setUp() {
+        reporter = new MockReporter();
+        tracer = MockTracer.createRealTracer(reporter);
+        when(tracer.getConfig(CoreConfiguration.class).isSpanCompressionEnabled()).thenReturn(true);
+        transaction = tracer.startRootTransaction(null);
+        assertThat(transaction).isNotNull();
+    }
+
+    @AfterEach
+    void cleanupAndCheck() {
+        reporter.assertRecycledAfterDecrementingReferences();
+        tracer.stop();
+    }
+
+    @Test
+    void testCompressExactMatch() {
+        createExitSpan(transaction, "SELECT FROM foo", 0, 1000);
+        createExitSpan(transaction, "SELECT FROM foo", 2000, 1000);
+        createExitSpan(transaction, "SELECT FROM foo", 4000, 1000);
+        transaction.end();
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        Span span = reporter.getFirstSpan();
+        assertThat(span.getNameAsString()).isEqualTo("SELECT FROM foo");
+        assertThat(span.getDuration()).isEqualTo(5000);
+        Composite composite = span.getComposite();
+        assertThat(composite.getCount()).isEqualTo(3);
+        assertThat(composite.getSum()).isEqualTo(3000);
+        assertThat(composite.getCompressionStrategy()).isEqualTo(Composite.EXACT_MATCH);
+        assertThat(transaction.getSpanCount().getTotal()).hasValue(3);
+        assertThat(transaction.getSpanCount().getReported()).hasValue(1);
+    }
+
+    @Test
+    void testCompressSameKind() {
+        createExitSpan(transaction, "SELECT FROM foo", 0, 1000);
+        createExitSpan(transaction, "SELECT FROM bar", 2000, 1000);
+        transaction.end();
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        Span span = reporter.getFirstSpan();
+        assertThat(span.getNameAsString()).isEqualTo("Calls to mysql");
+        assertThat(span.getComposite().getCount()).isEqualTo(2);
+        assertThat(span.getComposite().getCompressionStrategy()).isEqualTo(Composite.SAME_KIND);
+    }
+
+    @Test
+    void testDoNotCompressSlowSpans() {
+        createExitSpan(transaction, "SELECT FROM foo", 0, 1000);
+        createExitSpan(transaction, "SELECT FROM foo", 2000, 100_000);
+        createExitSpan(transaction, "SELECT FROM bar", 200_000, 1000);
+        createExitSpan(transaction, "SELECT FROM baz", 300_000, 10_000);
+        transaction.end();
+
+        assertThat(reporter.getSpans()).hasSize(4);
+        assertThat(reporter.getSpans()).allMatch(span -> !span.getComposite().hasContent());
+    }
+
+    @Test
+    void testOnlyCompressConsecutiveSpans() {
+        createExitSpan(transaction, "SELECT FROM foo", 0, 1000);
+        transaction.createSpan(transaction.getTimestamp() + 2000).appendToName("internal").end(transaction.getTimestamp() + 3000);
+        createExitSpan(transaction, "SELECT FROM foo", 4000, 1000);
+        createExitSpan(transaction, "SELECT FROM foo", 6000, 1000);
+        transaction.end();
+
+        assertThat(reporter.getSpans()).extracting(Span::getNameAsString).containsExactly("SELECT FROM foo", "internal", "SELECT FROM foo");
+        assertThat(reporter.getSpans().get(0).getComposite().hasContent()).isFalse();
+        assertThat(reporter.getSpans().get(2).getComposite().getCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testBufferedSpanIsReportedWhenParentEnds() {
+        Span parent = transaction.createSpan().appendToName("parent");
+        createExitSpan(parent, "SELECT FROM foo", 0, 1000);
+        assertThat(reporter.getSpans()).isEmpty();
+
+        parent.end();
+        assertThat(reporter.getSpans()).extracting(Span::getNameAsString).containsExactly("SELECT FROM foo", "parent");
+        transaction.end();
+    }
+
+    @Test
+    void testDoNotCompressContextPropagatingSpans() {
+        createExitSpan(transaction, "GET /foo", 0, 1000);
+        Span span = transaction.createSpan(transaction.getTimestamp() + 2000).asExit().appendToName("GET /foo").withType("db").withSubtype("mysql");
+        span.propagateTraceContext(new HashMap<>(), TextHeaderMapAccessor.INSTANCE);
+        setDestination(span);
+        span.end(transaction.getTimestamp() + 3000);
+        transaction.end();
+
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    void testCompressionDisabled() {
+        when(tracer.getConfig(CoreConfiguration.class).isSpanCompressionEnabled()).thenReturn(false);
+        createExitSpan(transaction, "SELECT FROM foo", 0, 1000);
+        createExitSpan(transaction, "SELECT FROM foo", 2000, 1000);
+        transaction.end();
+
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    private void createExitSpan(AbstractSpan<?> parent, String name, long startOffsetUs, long durationUs) {
+        long start = transaction.getTimestamp() + startOffsetUs;
+        Span span = parent.createSpan(start).asExit().appendToName(name).withType("db").withSubtype("mysql").withAction("query");
+        setDestination(span);
+        span.end(start + durationUs);
+    }
+
+    private static void setDestination(Span span) {
+        span.getContext().getDestination().withAddress("localhost").withPort(3306)
+            .getService().withName("mysql").withResource("mysql").withType("db");
+    }
+}
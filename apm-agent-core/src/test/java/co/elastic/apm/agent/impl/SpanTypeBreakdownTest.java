@@ -32,9 +32,11 @@ import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
+import co.elastic.apm.agent.report.ReporterConfiguration;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -402,6 +404,35 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    @Test
+    void testDurationHistogram_disabledByDefault() {
+        tracer.startRootTransaction(ConstantSampler.of(true), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request")
+            .end(30);
+        tracer.getMetricRegistry().report(metricSets -> assertThat(metricSets.get(Labels.Mutable.of().transactionName("test").transactionType("request"))
+            .getHistograms()).isEmpty());
+    }
+
+    @Test
+    void testDurationHistogram_unsampledTransaction() {
+        when(tracer.getConfig(ReporterConfiguration.class).isHistogramMetrics()).thenReturn(true);
+        tracer.startRootTransaction(ConstantSampler.of(false), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request")
+            .end(30);
+        tracer.getMetricRegistry().report(metricSets -> {
+            final Histogram histogram = metricSets.get(Labels.Mutable.of().transactionName("test").transactionType("request"))
+                .getHistograms().get("transaction.duration.histogram");
+            assertThat(histogram.getCount()).isEqualTo(1);
+            for (int i = 0; i < histogram.getBucketCount(); i++) {
+                if (histogram.getCount(i) > 0) {
+                    assertThat(Histogram.getBucketValue(i)).isEqualTo(30);
+                }
+            }
+        });
+    }
+
     private void assertThatTransactionBreakdownCounterCreated(Map<? extends Labels, MetricSet> metricSets) {
         assertThat(metricSets.get(Labels.Mutable.of().transactionName("test").transactionType("request")).getCounters().get("transaction.breakdown.count").get()).isEqualTo(1);
     }
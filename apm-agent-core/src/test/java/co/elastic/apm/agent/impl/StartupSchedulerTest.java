@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.context.DeferrableLifecycleListener;
+import co.elastic.apm.agent.context.LifecycleListener;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.doReturn;
+
+class StartupSchedulerTest {
+
+    private ConfigurationRegistry config;
+    private ElasticApmTracer tracer;
+
+    @BeforeEach
+    void setUp() {
+        config = SpyConfiguration.createSpyConfig();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (tracer != null) {
+            tracer.stop();
+        }
+    }
+
+    @Test
+    void testStartListenersInParallel() {
+        doReturn(4).when(config.getConfig(CoreConfiguration.class)).getStartupThreads();
+        // each listener waits for the others, which only succeeds if they are started concurrently
+        CountDownLatch allStarted = new CountDownLatch(4);
+        ConcurrentListener[] listeners = new ConcurrentListener[4];
+        ElasticApmTracerBuilder builder = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(new MockReporter());
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new ConcurrentListener(allStarted);
+            builder.withLifecycleListener(listeners[i]);
+        }
+        tracer = builder.build();
+
+        assertThat(tracer.isRunning()).isTrue();
+        for (ConcurrentListener listener : listeners) {
+            assertThat(listener.startedConcurrently).isTrue();
+            assertThat(listener.threadName).contains("startup");
+        }
+    }
+
+    @Test
+    void testStartSequentiallyByDefault() {
+        TestListener listener = new TestListener();
+        TestDeferrableListener deferrableListener = new TestDeferrableListener();
+        tracer = createTracer(listener, deferrableListener);
+
+        assertThat(listener.start.get()).isEqualTo(1);
+        assertThat(deferrableListener.start.get()).isEqualTo(1);
+        assertThat(deferrableListener.threadName).isEqualTo(Thread.currentThread().getName());
+    }
+
+    @Test
+    void testDeferredStartOnFirstTransaction() {
+        doReturn(TimeDuration.of("1m")).when(config.getConfig(CoreConfiguration.class)).getDeferredStartupDelay();
+        TestListener listener = new TestListener();
+        TestDeferrableListener deferrableListener = new TestDeferrableListener();
+        tracer = createTracer(listener, deferrableListener);
+
+        assertThat(listener.start.get()).isEqualTo(1);
+        assertThat(deferrableListener.start.get()).isEqualTo(0);
+        assertThat(tracer.getLifecycleListener(TestDeferrableListener.class)).isSameAs(deferrableListener);
+
+        Transaction transaction = tracer.startRootTransaction(null);
+        assertThat(transaction).isNotNull();
+        transaction.end();
+
+        await().untilAsserted(() -> assertThat(deferrableListener.start.get()).isEqualTo(1));
+        assertThat(deferrableListener.threadName).contains("startup");
+
+        // further transactions don't start the listener again
+        tracer.startRootTransaction(null).end();
+        tracer.stop();
+        assertThat(deferrableListener.start.get()).isEqualTo(1);
+        assertThat(deferrableListener.stop.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testDeferredStartAfterDelay() {
+        doReturn(TimeDuration.of("10ms")).when(config.getConfig(CoreConfiguration.class)).getDeferredStartupDelay();
+        TestDeferrableListener deferrableListener = new TestDeferrableListener();
+        tracer = createTracer(deferrableListener);
+
+        await().untilAsserted(() -> assertThat(deferrableListener.start.get()).isEqualTo(1));
+    }
+
+    @Test
+    void testDeferredListenerIsPausedWhenTracerIsPaused() {
+        doReturn(TimeDuration.of("1m")).when(config.getConfig(CoreConfiguration.class)).getDeferredStartupDelay();
+        TestDeferrableListener deferrableListener = new TestDeferrableListener();
+        tracer = createTracer(deferrableListener);
+
+        tracer.pause();
+        assertThat(deferrableListener.pause.get()).isEqualTo(0);
+
+        tracer.startDeferredLifecycleListeners(Collections.<LifecycleListener>singletonList(deferrableListener));
+        assertThat(deferrableListener.start.get()).isEqualTo(1);
+        assertThat(deferrableListener.pause.get()).isEqualTo(1);
+
+        tracer.resume();
+        assertThat(deferrableListener.resume.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testStopCancelsDeferredStart() throws Exception {
+        doReturn(TimeDuration.of("20ms")).when(config.getConfig(CoreConfiguration.class)).getDeferredStartupDelay();
+        TestDeferrableListener deferrableListener = new TestDeferrableListener();
+        tracer = createTracer(deferrableListener);
+        tracer.stop();
+
+        Thread.sleep(100);
+        assertThat(deferrableListener.start.get()).isEqualTo(0);
+        assertThat(deferrableListener.stop.get()).isEqualTo(0);
+    }
+
+    private ElasticApmTracer createTracer(AbstractLifecycleListener... listeners) {
+        ElasticApmTracerBuilder builder = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(new MockReporter());
+        for (AbstractLifecycleListener listener : listeners) {
+            builder.withLifecycleListener(listener);
+        }
+        return builder.build();
+    }
+
+    private static class ConcurrentListener extends AbstractLifecycleListener {
+        private final CountDownLatch allStarted;
+        private volatile boolean startedConcurrently;
+        private volatile String threadName;
+
+        private ConcurrentListener(CountDownLatch allStarted) {
+            this.allStarted = allStarted;
+        }
+
+        @Override
+        public void start(ElasticApmTracer tracer) throws Exception {
+            threadName = Thread.currentThread().getName();
+            allStarted.countDown();
+            startedConcurrently = allStarted.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static class TestListener extends AbstractLifecycleListener {
+        final AtomicInteger start = new AtomicInteger();
+        final AtomicInteger pause = new AtomicInteger();
+        final AtomicInteger resume = new AtomicInteger();
+        final AtomicInteger stop = new AtomicInteger();
+        volatile String threadName;
+
+        @Override
+        public void start(ElasticApmTracer tracer) {
+            threadName = Thread.currentThread().getName();
+            start.incrementAndGet();
+        }
+
+        @Override
+        public void pause() {
+            pause.incrementAndGet();
+        }
+
+        @Override
+        public void resume() {
+            resume.incrementAndGet();
+        }
+
+        @Override
+        public void stop() {
+            stop.incrementAndGet();
+        }
+    }
+
+    private static class TestDeferrableListener extends TestListener implements DeferrableLifecycleListener {
+    }
+}
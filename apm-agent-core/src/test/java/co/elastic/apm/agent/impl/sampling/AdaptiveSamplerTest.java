@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Id;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class AdaptiveSamplerTest {
+
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private AdaptiveSampler sampler;
+    private long now;
+
+    @BeforeEach
+    void setUp() {
+        now = System.nanoTime();
+        // the interval is long enough so that the rate is only adjusted when explicitly calling adjust
+        sampler = new AdaptiveSampler(100, 0.5, TimeUnit.HOURS.toNanos(1), now);
+    }
+
+    @Test
+    void testInitialRateIsMaxRate() {
+        assertThat(sampler.getSampleRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    void testRateAdaptsToThroughput() {
+        simulateSecond(1000);
+        assertThat(sampler.getSampleRate()).isCloseTo(0.1, within(0.001));
+
+        simulateSecond(1000);
+        assertThat(sampler.getSampleRate()).isCloseTo(0.1, within(0.001));
+    }
+
+    @Test
+    void testRateDoesNotExceedMaxRate() {
+        simulateSecond(10);
+        assertThat(sampler.getSampleRate()).isEqualTo(0.5);
+
+        sampler.setMaxSampleRate(0.2);
+        assertThat(sampler.getSampleRate()).isEqualTo(0.2);
+    }
+
+    @Test
+    void testRateRecoversAfterSpike() {
+        simulateSecond(100);
+        simulateSecond(10_000);
+        double rateDuringSpike = sampler.getSampleRate();
+        assertThat(rateDuringSpike).isLessThan(0.5);
+
+        for (int i = 0; i < 20; i++) {
+            simulateSecond(100);
+        }
+        assertThat(sampler.getSampleRate()).isGreaterThan(rateDuringSpike);
+        assertThat(sampler.getSampleRate()).isCloseTo(0.5, within(0.1));
+    }
+
+    @Test
+    void testSampledTransactionsMatchTarget() {
+        simulateSecond(10_000);
+        int sampled = simulateSecond(10_000);
+        assertThat(sampled).isBetween(80, 120);
+    }
+
+    @Test
+    void testMaxRateOfOneSamplesEverything() {
+        sampler = new AdaptiveSampler(100, 1.0, TimeUnit.HOURS.toNanos(1), now);
+        assertThat(simulateSecond(100)).isEqualTo(100);
+    }
+
+    private int simulateSecond(int transactions) {
+        int sampled = 0;
+        Id id = Id.new128BitId();
+        for (int i = 0; i < transactions; i++) {
+            id.setToRandomValue();
+            if (sampler.isSampled(id)) {
+                sampled++;
+            }
+        }
+        now += ONE_SECOND;
+        sampler.adjust(now);
+        return sampled;
+    }
+}
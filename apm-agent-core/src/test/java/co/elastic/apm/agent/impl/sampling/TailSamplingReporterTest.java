@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.TextHeaderMapAccessor;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.TestObjectPoolFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+class TailSamplingReporterTest {
+
+    private ElasticApmTracer tracer;
+    private MockReporter reporter;
+    private ConfigurationRegistry config;
+    private TestObjectPoolFactory objectPoolFactory;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        objectPoolFactory = new TestObjectPoolFactory();
+        reporter = new MockReporter();
+        config = SpyConfiguration.createSpyConfig();
+        CoreConfiguration coreConfiguration = config.getConfig(CoreConfiguration.class);
+        when(coreConfiguration.isTailSampling()).thenReturn(true);
+        when(coreConfiguration.getTailSamplingMaxBufferedSpans()).thenReturn(2);
+        coreConfiguration.getSampleRate().update(0.0, SpyConfiguration.CONFIG_SOURCE_NAME);
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(reporter)
+            .withObjectPoolFactory(objectPoolFactory)
+            .build();
+    }
+
+    @AfterEach
+    void cleanupAndCheck() {
+        reporter.assertRecycledAfterDecrementingReferences();
+        objectPoolFactory.checkAllPooledObjectsHaveBeenRecycled();
+    }
+
+    @Test
+    void testFastTransactionIsNotKept() {
+        Transaction transaction = startTransaction();
+        startSpan(transaction).end();
+        assertThat(reporter.getSpans()).isEmpty();
+
+        transaction.end();
+
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+        assertThat(reporter.getFirstTransaction().getSpanCount().getReported().get()).isZero();
+        assertThat(reporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    void testSlowTransactionIsKept() {
+        Transaction transaction = startTransaction();
+        Span span = startSpan(transaction);
+        span.end(span.getTimestamp() + 10);
+        assertThat(reporter.getSpans()).isEmpty();
+
+        transaction.end(transaction.getTimestamp() + 2_000_000);
+
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(reporter.getSpans()).containsExactly(span);
+    }
+
+    @Test
+    void testTransactionWithMatchingResultIsKept() {
+        Transaction transaction = startTransaction().withResult("HTTP 5xx");
+        startSpan(transaction).end();
+
+        transaction.end();
+
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    void testTransactionWithErrorIsKept() {
+        Transaction transaction = startTransaction();
+        Span span = startSpan(transaction);
+        span.captureException(new Exception("test"));
+        span.end();
+
+        transaction.end();
+
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getErrors()).hasSize(1);
+    }
+
+    @Test
+    void testSpanEndingAfterTransactionFollowsDecision() {
+        Transaction transaction = startTransaction();
+        Span span = startSpan(transaction);
+        transaction.end(transaction.getTimestamp() + 2_000_000);
+
+        span.end();
+
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(reporter.getSpans()).containsExactly(span);
+    }
+
+    @Test
+    void testFallBackToHeadBasedSamplingWhenBufferIsFull() {
+        Transaction transaction = startTransaction();
+        for (int i = 0; i < 3; i++) {
+            startSpan(transaction).end();
+        }
+        startSpan(transaction).end();
+
+        // even though the transaction is slow, the decision has already been made when the buffer was full
+        transaction.end(transaction.getTimestamp() + 2_000_000);
+
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+        assertThat(reporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    void testBufferIsReleasedAfterDecision() {
+        for (int i = 0; i < 3; i++) {
+            Transaction transaction = startTransaction();
+            startSpan(transaction).end();
+            startSpan(transaction).end();
+            transaction.end(transaction.getTimestamp() + 2_000_000);
+        }
+
+        assertThat(reporter.getTransactions()).allMatch(Transaction::isSampled);
+        assertThat(reporter.getSpans()).hasSize(6);
+    }
+
+    @Test
+    void testPropagatesHeadBasedSamplingDecision() {
+        Transaction transaction = startTransaction();
+        Span span = startSpan(transaction);
+        Map<String, String> headers = new HashMap<>();
+        span.propagateTraceContext(headers, TextHeaderMapAccessor.INSTANCE);
+        span.end();
+        transaction.end(transaction.getTimestamp() + 2_000_000);
+
+        // the transaction is kept locally but downstream services don't record the trace
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(reporter.getSpans()).containsExactly(span);
+        String traceParent = headers.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME);
+        assertThat(traceParent).endsWith("-00");
+        // the transaction is reported in any case, so downstream services reference it rather than the span
+        assertThat(traceParent).contains(transaction.getTraceContext().getId().toString());
+    }
+
+    @Test
+    void testHeadSampledTransactionIsKept() throws Exception {
+        config.getConfig(CoreConfiguration.class).getSampleRate().update(1.0, SpyConfiguration.CONFIG_SOURCE_NAME);
+        Transaction transaction = startTransaction();
+        Span span = startSpan(transaction);
+        Map<String, String> headers = new HashMap<>();
+        span.propagateTraceContext(headers, TextHeaderMapAccessor.INSTANCE);
+        span.end();
+        transaction.end();
+
+        // as downstream services record the trace, the fast transaction has to be kept as well
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(reporter.getSpans()).containsExactly(span);
+        String traceParent = headers.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME);
+        assertThat(traceParent).endsWith("-01");
+        assertThat(traceParent).contains(span.getTraceContext().getId().toString());
+    }
+
+    private Transaction startTransaction() {
+        Transaction transaction = tracer.startRootTransaction(getClass().getClassLoader());
+        assertThat(transaction).isNotNull();
+        assertThat(transaction.isSampled()).isTrue();
+        return transaction;
+    }
+
+    private Span startSpan(Transaction transaction) {
+        return transaction.createSpan();
+    }
+}
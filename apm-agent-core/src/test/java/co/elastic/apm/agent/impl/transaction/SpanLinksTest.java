@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.BinaryHeaderMapAccessor;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpanLinksTest {
+
+    private ElasticApmTracer tracer;
+    private SpanLinks spanLinks;
+
+    @BeforeEach
+    void setUp() {
+        tracer = MockTracer.createRealTracer();
+        spanLinks = new SpanLinks();
+    }
+
+    @Test
+    void testAddLink() {
+        Transaction producer = startTransaction();
+        Map<String, byte[]> headers = createHeaders(producer);
+
+        assertThat(spanLinks.addLink(headers, BinaryHeaderMapAccessor.INSTANCE, 10)).isTrue();
+
+        assertThat(spanLinks.size()).isEqualTo(1);
+        assertThat(spanLinks.getTraceId(0)).isEqualTo(producer.getTraceContext().getTraceId());
+        assertThat(spanLinks.getSpanId(0)).isEqualTo(producer.getTraceContext().getId());
+    }
+
+    @Test
+    void testInvalidHeaders() {
+        Map<String, byte[]> headers = new HashMap<>();
+        assertThat(spanLinks.addLink(headers, BinaryHeaderMapAccessor.INSTANCE, 10)).isFalse();
+        headers.put(TraceContext.TRACE_PARENT_BINARY_HEADER_NAME, new byte[TraceContext.BINARY_FORMAT_EXPECTED_LENGTH]);
+        assertThat(spanLinks.addLink(headers, BinaryHeaderMapAccessor.INSTANCE, 10)).isFalse();
+        assertThat(spanLinks.addLink(null, BinaryHeaderMapAccessor.INSTANCE, 10)).isFalse();
+        assertThat(spanLinks.size()).isZero();
+        assertThat(spanLinks.getSeen()).isZero();
+    }
+
+    @Test
+    void testMaxLinks() {
+        Set<Id> traceIds = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            Transaction producer = startTransaction();
+            traceIds.add(producer.getTraceContext().getTraceId());
+            spanLinks.addLink(createHeaders(producer), BinaryHeaderMapAccessor.INSTANCE, 3);
+        }
+        assertThat(spanLinks.size()).isEqualTo(3);
+        assertThat(spanLinks.getSeen()).isEqualTo(100);
+        Set<Id> linkedTraceIds = new HashSet<>();
+        for (int i = 0; i < spanLinks.size(); i++) {
+            linkedTraceIds.add(spanLinks.getTraceId(i));
+        }
+        assertThat(linkedTraceIds).hasSize(3);
+        assertThat(traceIds).containsAll(linkedTraceIds);
+    }
+
+    @Test
+    void testResetState() {
+        Transaction producer = startTransaction();
+        spanLinks.addLink(createHeaders(producer), BinaryHeaderMapAccessor.INSTANCE, 10);
+
+        spanLinks.resetState();
+
+        assertThat(spanLinks.size()).isZero();
+        assertThat(spanLinks.getSeen()).isZero();
+        assertThat(spanLinks.addLink(createHeaders(producer), BinaryHeaderMapAccessor.INSTANCE, 10)).isTrue();
+        assertThat(spanLinks.getTraceId(0)).isEqualTo(producer.getTraceContext().getTraceId());
+    }
+
+    private Transaction startTransaction() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        assertThat(transaction).isNotNull();
+        return transaction;
+    }
+
+    private static Map<String, byte[]> createHeaders(Transaction producer) {
+        Map<String, byte[]> headers = new HashMap<>();
+        producer.propagateTraceContext(headers, BinaryHeaderMapAccessor.INSTANCE);
+        return headers;
+    }
+}
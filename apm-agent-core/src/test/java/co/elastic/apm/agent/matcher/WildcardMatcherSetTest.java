@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.matcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WildcardMatcherSetTest {
+
+    @Test
+    void testReturnsFirstMatchingMatcher() {
+        WildcardMatcherSet set = WildcardMatcherSet.of(matchers("*bar*", "foo*", "*baz", "foobarbaz"));
+        assertThat(set.anyMatch("foobarbaz")).hasToString("*bar*");
+        assertThat(set.anyMatch("foobaz")).hasToString("foo*");
+        assertThat(set.anyMatch("baz")).hasToString("*baz");
+        assertThat(set.anyMatch("qux")).isNull();
+        assertThat(set.anyMatch(null)).isNull();
+    }
+
+    @Test
+    void testExactMatch() {
+        WildcardMatcherSet set = WildcardMatcherSet.of(matchers("/favicon.ico", "/favicon.ico*x"));
+        assertThat(set.anyMatch("/FAVICON.ico")).hasToString("/favicon.ico");
+        assertThat(set.anyMatch("/favicon.ico.x")).hasToString("/favicon.ico*x");
+        assertThat(set.anyMatch("/favicon.ic")).isNull();
+        assertThat(set.anyMatch("/favicon.icon")).isNull();
+    }
+
+    @Test
+    void testCaseSensitive() {
+        WildcardMatcherSet set = WildcardMatcherSet.of(matchers("(?-i)java.*", "(?-i)*Exception", "(?-i)*Nested*"));
+        assertThat(set.anyMatch("java.lang.String")).hasToString("(?-i)java.*");
+        assertThat(set.anyMatch("Java.lang.String")).isNull();
+        assertThat(set.anyMatch("IOException")).hasToString("(?-i)*Exception");
+        assertThat(set.anyMatch("IOEXCEPTION")).isNull();
+        assertThat(set.anyMatch("aNestedB")).hasToString("(?-i)*Nested*");
+        assertThat(set.anyMatch("anestedb")).isNull();
+    }
+
+    @Test
+    void testWildcardInTheMiddle() {
+        WildcardMatcherSet set = WildcardMatcherSet.of(matchers("/foo/*/baz", "*/bar/*/qux*", "*a*b*"));
+        assertThat(set.anyMatch("/foo/bar", "/baz")).hasToString("/foo/*/baz");
+        assertThat(set.anyMatch("/x/bar/y/quxx")).hasToString("*/bar/*/qux*");
+        assertThat(set.anyMatch("xaxbx")).hasToString("*a*b*");
+        assertThat(set.anyMatch("xbxax")).isNull();
+    }
+
+    @Test
+    void testMatchAll() {
+        WildcardMatcherSet set = WildcardMatcherSet.of(matchers("foo*", "*"));
+        assertThat(set.anyMatch("foo")).hasToString("foo*");
+        assertThat(set.anyMatch("bar")).hasToString("*");
+        assertThat(set.anyMatch("")).hasToString("*");
+    }
+
+    @Test
+    void testPartitionedString() {
+        WildcardMatcherSet set = WildcardMatcherSet.of(matchers("/foo/bar", "*.js", "*/api/*"));
+        assertThat(set.anyMatch("/foo", "/bar")).hasToString("/foo/bar");
+        assertThat(set.anyMatch("/static/app", ".js")).hasToString("*.js");
+        assertThat(set.anyMatch("/v1/ap", "i/users")).hasToString("*/api/*");
+        assertThat(set.anyMatch("/foo", null)).isNull();
+    }
+
+    @Test
+    void testStaticMethodsUseTheSet() {
+        WildcardMatcherSet set = WildcardMatcherSet.of(matchers("foo*", "*bar"));
+        assertThat(WildcardMatcher.anyMatch(set, "foobar")).isSameAs(set.get(0));
+        assertThat(WildcardMatcher.isAnyMatch(set, "xbar")).isTrue();
+        assertThat(WildcardMatcher.isNoneMatch(set, "baz")).isTrue();
+        assertThat(WildcardMatcherSet.of(set)).isSameAs(set);
+    }
+
+    @Test
+    void testListValueConverter() {
+        List<WildcardMatcher> list = new WildcardMatcherListValueConverter().convert("foo*, *bar");
+        assertThat(list).isInstanceOf(WildcardMatcherSet.class);
+        assertThat(list).containsExactly(WildcardMatcher.valueOf("foo*"), WildcardMatcher.valueOf("*bar"));
+        assertThat(new WildcardMatcherListValueConverter().toString(list)).isEqualTo("foo*,*bar");
+    }
+
+    @Test
+    void testSameResultAsLinearEvaluation() {
+        Random random = new Random(42);
+        String alphabet = "abAB/.*";
+        for (int round = 0; round < 200; round++) {
+            List<WildcardMatcher> matchers = new ArrayList<>();
+            int numberOfMatchers = 1 + random.nextInt(8);
+            for (int i = 0; i < numberOfMatchers; i++) {
+                String pattern = randomString(random, alphabet, 1 + random.nextInt(5));
+                matchers.add(WildcardMatcher.valueOf(random.nextBoolean() ? pattern : "(?-i)" + pattern));
+            }
+            WildcardMatcherSet set = WildcardMatcherSet.of(matchers);
+            for (int i = 0; i < 50; i++) {
+                String first = randomString(random, "abAB/.", random.nextInt(6));
+                String second = randomString(random, "abAB/.", random.nextInt(3));
+                assertThat(set.anyMatch(first, second))
+                    .describedAs("%s matching %s + %s", matchers, first, second)
+                    .isEqualTo(WildcardMatcher.anyMatch(matchers, first, second));
+                assertThat(set.anyMatch(first))
+                    .describedAs("%s matching %s", matchers, first)
+                    .isEqualTo(WildcardMatcher.anyMatch(matchers, first));
+            }
+        }
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    private static List<WildcardMatcher> matchers(String... wildcardStrings) {
+        List<WildcardMatcher> matchers = new ArrayList<>();
+        for (String wildcardString : wildcardStrings) {
+            matchers.add(WildcardMatcher.valueOf(wildcardString));
+        }
+        return matchers;
+    }
+}
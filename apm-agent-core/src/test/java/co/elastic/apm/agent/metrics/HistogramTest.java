@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
+
+class HistogramTest {
+
+    private final Histogram histogram = new Histogram();
+
+    @Test
+    void testBucketBoundariesAreContinuous() {
+        for (int i = 1; i < histogram.getBucketCount(); i++) {
+            long lowestValue = Histogram.getLowestValue(i);
+            assertThat(lowestValue).isGreaterThan(Histogram.getLowestValue(i - 1));
+            assertThat(Histogram.getBucketIndex(lowestValue)).isEqualTo(i);
+            assertThat(Histogram.getBucketIndex(lowestValue - 1)).isEqualTo(i - 1);
+        }
+        assertThat(Histogram.getBucketIndex(Histogram.MAX_VALUE)).isEqualTo(histogram.getBucketCount() - 1);
+    }
+
+    @Test
+    void testRelativeError() {
+        for (long value = 1; value < Histogram.MAX_VALUE; value = value * 3 + 1) {
+            long bucketValue = Histogram.getBucketValue(Histogram.getBucketIndex(value));
+            assertThat(bucketValue).isCloseTo(value, withinPercentage(100.0 / Histogram.SUB_BUCKETS));
+        }
+    }
+
+    @Test
+    void testCount() {
+        for (int i = 1; i <= 100; i++) {
+            histogram.update(TimeUnit.MILLISECONDS.toMicros(i));
+        }
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getCount(Histogram.getBucketIndex(TimeUnit.MILLISECONDS.toMicros(1)))).isEqualTo(1);
+    }
+
+    @Test
+    void testConcurrentUpdatesAreSummedAcrossStripes() throws Exception {
+        Histogram histogram = new Histogram(4);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    histogram.update(42);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(histogram.getCount(Histogram.getBucketIndex(42))).isEqualTo(8000);
+        assertThat(histogram.getCount()).isEqualTo(8000);
+    }
+
+    @Test
+    void testOutOfRangeValues() {
+        histogram.update(-1);
+        histogram.update(Long.MAX_VALUE);
+        assertThat(histogram.getCount(0)).isEqualTo(1);
+        assertThat(histogram.getCount(histogram.getBucketCount() - 1)).isEqualTo(1);
+    }
+
+    @Test
+    void testReset() {
+        assertThat(histogram.hasContent()).isFalse();
+        histogram.update(42);
+        assertThat(histogram.hasContent()).isTrue();
+        histogram.resetState();
+        assertThat(histogram.hasContent()).isFalse();
+        assertThat(histogram.getCount()).isZero();
+    }
+}
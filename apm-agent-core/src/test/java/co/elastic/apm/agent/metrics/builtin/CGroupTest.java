@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CGroupTest {
+
+    @Test
+    void testCGroupV1(@TempDir Path tempDir) throws Exception {
+        Path memory = Files.createDirectories(tempDir.resolve("memory/kubepods/pod1"));
+        Path cpu = Files.createDirectories(tempDir.resolve("cpu,cpuacct/kubepods/pod1"));
+        write(memory.resolve("memory.limit_in_bytes"), "536870912\n");
+        write(memory.resolve("memory.usage_in_bytes"), "123456789\n");
+        write(cpu.resolve("cpu.cfs_quota_us"), "150000\n");
+        write(cpu.resolve("cpu.cfs_period_us"), "100000\n");
+        File procSelfCgroup = write(tempDir.resolve("cgroup"),
+            "12:memory:/kubepods/pod1\n" +
+            "11:cpu,cpuacct:/kubepods/pod1\n" +
+            "1:name=systemd:/kubepods/pod1\n" +
+            "0::/\n");
+        File mountInfo = write(tempDir.resolve("mountinfo"),
+            "33 32 0:29 / " + tempDir.resolve("cpu,cpuacct") + " rw,relatime - cgroup cgroup rw,cpu,cpuacct\n" +
+            "36 32 0:32 / " + tempDir.resolve("memory") + " rw,relatime - cgroup cgroup rw,memory\n" +
+            "42 32 0:38 / " + tempDir.resolve("unified") + " rw,relatime - cgroup2 cgroup2 rw\n");
+
+        CGroup cgroup = CGroup.find(procSelfCgroup, mountInfo);
+        assertThat(cgroup).isNotNull();
+        assertThat(cgroup.getMemoryLimit()).isEqualTo(536870912L);
+        assertThat(cgroup.getMemoryUsage()).isEqualTo(123456789L);
+        assertThat(cgroup.getCpuLimit()).isEqualTo(1.5);
+
+        write(memory.resolve("memory.usage_in_bytes"), "234567890\n");
+        assertThat(cgroup.getMemoryUsage()).isEqualTo(234567890L);
+    }
+
+    @Test
+    void testCGroupV1Unlimited(@TempDir Path tempDir) throws Exception {
+        write(tempDir.resolve("memory.limit_in_bytes"), "9223372036854771712\n");
+        write(tempDir.resolve("memory.usage_in_bytes"), "123456789\n");
+        write(tempDir.resolve("cpu.cfs_quota_us"), "-1\n");
+        write(tempDir.resolve("cpu.cfs_period_us"), "100000\n");
+        // without a cgroup namespace, the cgroup path of the host is not visible in the container
+        File procSelfCgroup = write(tempDir.resolve("cgroup"), "4:memory:/docker/0123456789abcdef\n3:cpu:/docker/0123456789abcdef\n");
+        File mountInfo = write(tempDir.resolve("mountinfo"),
+            "36 32 0:32 /docker/0123456789abcdef " + tempDir + " ro,nosuid - cgroup cgroup rw,memory\n" +
+            "33 32 0:29 /docker/0123456789abcdef " + tempDir + " ro,nosuid - cgroup cgroup rw,cpu\n");
+
+        CGroup cgroup = CGroup.find(procSelfCgroup, mountInfo);
+        assertThat(cgroup).isNotNull();
+        assertThat(cgroup.getMemoryLimit()).isEqualTo(-1);
+        assertThat(cgroup.getMemoryUsage()).isEqualTo(123456789L);
+        assertThat(cgroup.getCpuLimit()).isNaN();
+    }
+
+    @Test
+    void testCGroupV2(@TempDir Path tempDir) throws Exception {
+        Path cgroupDir = Files.createDirectories(tempDir.resolve("kubepods.slice/pod1"));
+        write(cgroupDir.resolve("memory.max"), "1073741824\n");
+        write(cgroupDir.resolve("memory.current"), "987654321\n");
+        write(cgroupDir.resolve("cpu.max"), "50000 100000\n");
+        File procSelfCgroup = write(tempDir.resolve("cgroup"), "0::/kubepods.slice/pod1\n");
+        File mountInfo = write(tempDir.resolve("mountinfo"), "30 23 0:26 / " + tempDir + " rw,nosuid - cgroup2 cgroup2 rw,nsdelegate\n");
+
+        CGroup cgroup = CGroup.find(procSelfCgroup, mountInfo);
+        assertThat(cgroup).isNotNull();
+        assertThat(cgroup.getMemoryLimit()).isEqualTo(1073741824L);
+        assertThat(cgroup.getMemoryUsage()).isEqualTo(987654321L);
+        assertThat(cgroup.getCpuLimit()).isEqualTo(0.5);
+
+        write(cgroupDir.resolve("memory.max"), "max\n");
+        write(cgroupDir.resolve("cpu.max"), "max 100000\n");
+        assertThat(cgroup.getMemoryLimit()).isEqualTo(-1);
+        assertThat(cgroup.getCpuLimit()).isNaN();
+    }
+
+    @Test
+    void testNoMemoryController(@TempDir Path tempDir) throws Exception {
+        File procSelfCgroup = write(tempDir.resolve("cgroup"), "0::/\n");
+        File mountInfo = write(tempDir.resolve("mountinfo"), "21 1 8:1 / / rw,relatime - ext4 /dev/sda1 rw\n");
+
+        assertThat(CGroup.find(procSelfCgroup, mountInfo)).isNull();
+        assertThat(CGroup.find(tempDir.resolve("missing").toFile(), mountInfo)).isNull();
+    }
+
+    private static File write(Path path, String content) throws IOException {
+        return Files.write(path, content.getBytes(StandardCharsets.US_ASCII)).toFile();
+    }
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ProcFileTest {
+
+    private static final byte[] MEM_TOTAL = "MemTotal:".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    void testReadOncePerCycle(@TempDir Path tempDir) throws Exception {
+        File file = write(tempDir.resolve("meminfo"), "MemTotal:        1000 kB\n");
+        ProcFile procFile = new ProcFile(file);
+        Object reader1 = new Object();
+        Object reader2 = new Object();
+
+        assertThat(procFile.refresh(reader1)).isTrue();
+        assertThat(procFile.getValue(MEM_TOTAL)).isEqualTo(1000);
+
+        write(tempDir.resolve("meminfo"), "MemTotal:        2000 kB\n");
+        // reader2 has not consumed the current content yet
+        assertThat(procFile.refresh(reader2)).isTrue();
+        assertThat(procFile.getValue(MEM_TOTAL)).isEqualTo(1000);
+
+        // reader1 reads again, which means a new cycle has started
+        assertThat(procFile.refresh(reader1)).isTrue();
+        assertThat(procFile.getValue(MEM_TOTAL)).isEqualTo(2000);
+        assertThat(procFile.refresh(reader2)).isTrue();
+        assertThat(procFile.getValue(MEM_TOTAL)).isEqualTo(2000);
+    }
+
+    @Test
+    void testParsing(@TempDir Path tempDir) throws Exception {
+        ProcFile procFile = new ProcFile(write(tempDir.resolve("stat"), "1 (a) b)) S  2\t3 18446744073709551615 x\nMemTotal:\t42 kB"));
+        assertThat(procFile.refresh(this)).isTrue();
+        int offset = procFile.indexAfterLast((byte) ')');
+        assertThat(procFile.getField(0, 0)).isEqualTo(1);
+        assertThat(procFile.getField(offset, 0)).isEqualTo(-1);
+        assertThat(procFile.getField(offset, 1)).isEqualTo(2);
+        assertThat(procFile.getField(offset, 2)).isEqualTo(3);
+        // does not fit into a long
+        assertThat(procFile.getField(offset, 3)).isEqualTo(-1);
+        assertThat(procFile.getField(offset, 10)).isEqualTo(-1);
+        assertThat(procFile.getValue(MEM_TOTAL)).isEqualTo(42);
+        assertThat(procFile.getValue("Missing:".getBytes(StandardCharsets.US_ASCII))).isEqualTo(-1);
+    }
+
+    @Test
+    void testLargeFile(@TempDir Path tempDir) throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append("Line").append(i).append(": ").append(i).append('\n');
+        }
+        ProcFile procFile = new ProcFile(write(tempDir.resolve("large"), content.toString()));
+        assertThat(procFile.refresh(this)).isTrue();
+        assertThat(procFile.getValue("Line999:".getBytes(StandardCharsets.US_ASCII))).isEqualTo(999);
+    }
+
+    @Test
+    void testMissingFile(@TempDir Path tempDir) {
+        ProcFile procFile = new ProcFile(tempDir.resolve("missing").toFile());
+        assertThat(procFile.canRead()).isFalse();
+        assertThat(procFile.refresh(this)).isFalse();
+    }
+
+    private static File write(Path path, String content) throws IOException {
+        return Files.write(path, content.getBytes(StandardCharsets.US_ASCII)).toFile();
+    }
+}
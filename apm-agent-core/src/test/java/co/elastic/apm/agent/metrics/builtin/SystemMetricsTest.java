@@ -30,10 +30,15 @@ import co.elastic.apm.agent.report.ReporterConfiguration;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.DisabledOnOs;
 import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -69,6 +74,40 @@ class SystemMetricsTest {
         assertThat(metricRegistry.getGaugeValue("system.memory.total", Labels.EMPTY)).isEqualTo(7964778496L);
     }
 
+    @Test
+    void testProcessMemoryProcSelfStatus() throws Exception {
+        SystemMetrics systemMetrics = new SystemMetrics(getResource("/proc/meminfo"), getResource("/proc/stat"),
+            getResource("/proc/self/stat"), getResource("/proc/self/status"), null);
+        systemMetrics.bindTo(metricRegistry);
+        assertThat(metricRegistry.getGaugeValue("system.process.memory.size", Labels.EMPTY)).isEqualTo(5242880L * 1024);
+        assertThat(metricRegistry.getGaugeValue("system.process.memory.rss.bytes", Labels.EMPTY)).isEqualTo(262144L * 1024);
+    }
+
+    @Test
+    void testProcessCpuProcSelfStat(@TempDir Path tempDir) throws Exception {
+        File stat = tempDir.resolve("stat").toFile();
+        writeSelfStat(stat, 1000, 200);
+        SystemMetrics systemMetrics = new SystemMetrics(getResource("/proc/meminfo"), getResource("/proc/stat"),
+            stat, getResource("/proc/self/status"), null);
+        systemMetrics.bindTo(metricRegistry);
+
+        Thread.sleep(100);
+        assertThat(metricRegistry.getGaugeValue("system.process.cpu.total.norm.pct", Labels.EMPTY)).isZero();
+
+        // 100 seconds of CPU time within a few milliseconds
+        writeSelfStat(stat, 10000, 1200);
+        assertThat(metricRegistry.getGaugeValue("system.process.cpu.total.norm.pct", Labels.EMPTY)).isEqualTo(1.0);
+    }
+
+    private static void writeSelfStat(File file, long utime, long stime) throws IOException {
+        String stat = "12345 (java (main) x) S 1 12345 12345 0 -1 4194560 140735 0 12 0 " + utime + " " + stime + " 0 0 20 0 42 0 977703\n";
+        Files.write(file.toPath(), stat.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private File getResource(String name) throws Exception {
+        return new File(getClass().getResource(name).toURI());
+    }
+
     private void consumeCpu() {
         int result = 1;
         for (int i = 0; i < 10000; i++) {
@@ -46,7 +46,15 @@ public class TestObjectPoolFactory extends ObjectPoolFactory {
 
     @Override
     protected <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
-        ObjectPool<T> pool = super.createRecyclableObjectPool(maxCapacity, allocator);
+        return track(super.createRecyclableObjectPool(maxCapacity, allocator));
+    }
+
+    @Override
+    protected <T extends Recyclable> ObjectPool<T> createSharedRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
+        return track(super.createSharedRecyclableObjectPool(maxCapacity, allocator));
+    }
+
+    private <T> BookkeeperObjectPool<T> track(ObjectPool<T> pool) {
         BookkeeperObjectPool<T> wrappedPool = new BookkeeperObjectPool<>(pool);
         createdPools.add(wrappedPool);
         return wrappedPool;
@@ -0,0 +1,65 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.ObjectPoolTest;
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.objectpool.TestRecyclable;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MagazineObjectPoolTest extends ObjectPoolTest<MagazineObjectPool<TestRecyclable>> {
+
+    @Override
+    protected MagazineObjectPool<TestRecyclable> createObjectPool(int maxSize) {
+        // half of the objects are kept in the magazine of the current thread, the other half in the shared stripe
+        return new MagazineObjectPool<>(maxSize / 2, 1, maxSize / 2, TestRecyclable::new, Resetter.ForRecyclable.get());
+    }
+
+    @Test
+    void testObjectsRecycledOnOtherThreadAreReused() throws Exception {
+        MagazineObjectPool<TestRecyclable> pool = new MagazineObjectPool<>(2, 4, 8, TestRecyclable::new, Resetter.ForRecyclable.get());
+        List<TestRecyclable> instances = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            instances.add(pool.createInstance());
+        }
+
+        Thread recycler = new Thread(() -> instances.forEach(pool::recycle));
+        recycler.start();
+        recycler.join();
+        assertThat(pool.getObjectsInPool()).isEqualTo(8);
+
+        // 2 objects stay in the magazine of the recycler thread, the rest is spread across the stripes
+        for (int i = 0; i < 6; i++) {
+            assertThat(instances).contains(pool.createInstance());
+        }
+        assertThat(pool.getObjectsInPool()).isEqualTo(2);
+        assertThat(instances).doesNotContain(pool.createInstance());
+    }
+}
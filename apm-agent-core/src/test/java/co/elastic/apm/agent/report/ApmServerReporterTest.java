@@ -32,6 +32,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
+import java.util.List;
 import java.util.Objects;
 import java.util.function.Function;
 
@@ -40,6 +41,7 @@ import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -47,11 +49,12 @@ class ApmServerReporterTest {
 
     private ApmServerReporter reporter;
     private ReportingEventHandler reportingEventHandler;
+    private ReporterConfiguration reporterConfiguration;
 
     @BeforeEach
     void setUp() {
         final ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
-        ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
         when(reporterConfiguration.getMaxQueueSize()).thenReturn(0);
         reportingEventHandler = mock(ReportingEventHandler.class);
         reporter = new ApmServerReporter(true, reporterConfiguration, reportingEventHandler);
@@ -75,6 +78,31 @@ class ApmServerReporterTest {
         verify(reportingEventHandler).onEvent(notNull(ReportingEvent::getError), anyLong(), anyBoolean());
     }
 
+    @Test
+    void testMultipleHandlers() throws Exception {
+        reporter.close();
+        when(reporterConfiguration.getMaxQueueSize()).thenReturn(16);
+        ReportingEventHandler first = mock(ReportingEventHandler.class);
+        ReportingEventHandler second = mock(ReportingEventHandler.class);
+        when(first.getReported()).thenReturn(1L);
+        when(second.getReported()).thenReturn(2L);
+        reporter = new ApmServerReporter(true, reporterConfiguration, List.of(first, second), null);
+
+        for (int i = 0; i < 4; i++) {
+            reporter.report(new Transaction(MockTracer.create()));
+        }
+        reporter.flush().get();
+
+        assertThat(reporter.getReported()).isEqualTo(3);
+        for (ReportingEventHandler handler : List.of(first, second)) {
+            verify(handler, times(2)).onEvent(notNull(ReportingEvent::getTransaction), anyLong(), anyBoolean());
+            verify(handler).onEvent(argThat(event -> event.getType() == ReportingEvent.ReportingEventType.FLUSH), anyLong(), anyBoolean());
+        }
+        reporter.close();
+        verify(first).close();
+        verify(second).close();
+    }
+
     private <T> T notNull(Function<T, ?> function) {
         return argThat(arg -> Objects.nonNull(function.apply(arg)));
     }
@@ -31,11 +31,15 @@ import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.payload.ProcessInfo;
 import co.elastic.apm.agent.impl.payload.Service;
 import co.elastic.apm.agent.impl.payload.SystemInfo;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.spill.DiskSpillQueue;
+import co.elastic.apm.agent.report.transport.NioIntakeTransport;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.WireMockServer;
@@ -45,6 +49,7 @@ import org.junit.Rule;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
@@ -54,6 +59,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -81,6 +87,7 @@ class IntakeV2ReportingEventHandlerTest {
     private IntakeV2ReportingEventHandler reportingEventHandler;
     private IntakeV2ReportingEventHandler nonConnectedReportingEventHandler;
     private ApmServerClient apmServerClient;
+    private ReporterConfiguration reporterConfiguration;
 
     @Nonnull
     private static JsonNode getReadTree(String s) {
@@ -97,7 +104,7 @@ class IntakeV2ReportingEventHandlerTest {
         mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(ok()));
         mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(ok()));
         final ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
-        final ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
         SystemInfo system = new SystemInfo("x64", "localhost", "platform");
         final ProcessInfo title = new ProcessInfo("title");
         final Service service = new Service();
@@ -191,6 +198,91 @@ class IntakeV2ReportingEventHandlerTest {
         mockApmServer2.verify(postRequestedFor(urlEqualTo(APM_SERVER_PATH + INTAKE_V2_URL)));
     }
 
+    @Test
+    void testReportWithNioTransport() throws Exception {
+        IntakeV2ReportingEventHandler nioReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(mock(StacktraceConfiguration.class), apmServerClient),
+            new MetaData(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", "platform"), Collections.emptyMap()),
+            apmServerClient,
+            null,
+            new NioIntakeTransport(reporterConfiguration, apmServerClient));
+
+        reportTransaction(nioReportingEventHandler);
+        nioReportingEventHandler.endRequest();
+        reportTransaction(nioReportingEventHandler);
+        // waits for the pending responses
+        final ReportingEvent shutdownEvent = new ReportingEvent();
+        shutdownEvent.shutdownEvent();
+        nioReportingEventHandler.onEvent(shutdownEvent, -1, true);
+        nioReportingEventHandler.close();
+
+        assertThat(nioReportingEventHandler.getReported()).isEqualTo(2);
+        assertThat(nioReportingEventHandler.getDropped()).isEqualTo(0);
+        mockApmServer1.verify(2, postRequestedFor(urlEqualTo(INTAKE_V2_URL)));
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(2);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+    }
+
+    @Test
+    void testReplaysSpilledEventsOnFlush(@TempDir Path tempDir) {
+        DiskSpillQueue spillQueue = createSpillQueueWithTransaction(tempDir);
+        IntakeV2ReportingEventHandler spillingReportingEventHandler = createReportingEventHandler(spillQueue);
+
+        sendFlushEvent(spillingReportingEventHandler);
+
+        assertThat(spillQueue.isEmpty()).isTrue();
+        assertThat(spillingReportingEventHandler.getReported()).isEqualTo(1);
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(2);
+        assertThat(ndJsonNodes.get(1).get("transaction").get("name").textValue()).isEqualTo("spilled");
+        spillQueue.close();
+    }
+
+    @Test
+    void testKeepsSpilledEventsIfRequestFails(@TempDir Path tempDir) {
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(serviceUnavailable()));
+        DiskSpillQueue spillQueue = createSpillQueueWithTransaction(tempDir);
+        IntakeV2ReportingEventHandler spillingReportingEventHandler = createReportingEventHandler(spillQueue);
+
+        sendFlushEvent(spillingReportingEventHandler);
+
+        mockApmServer1.verify(postRequestedFor(urlEqualTo(INTAKE_V2_URL)));
+        assertThat(spillQueue.isEmpty()).isFalse();
+        assertThat(spillingReportingEventHandler.getDropped()).isZero();
+        spillQueue.close();
+    }
+
+    private DiskSpillQueue createSpillQueueWithTransaction(Path directory) {
+        DiskSpillQueue spillQueue = DiskSpillQueue.create(directory.toFile(), 1024 * 1024,
+            new DslJsonSerializer(mock(StacktraceConfiguration.class), apmServerClient), mock(ProcessorEventHandler.class));
+        assertThat(spillQueue).isNotNull();
+        Transaction transaction = new Transaction(MockTracer.create());
+        transaction.start(TraceContext.asRoot(), null, 0, ConstantSampler.of(true), getClass().getClassLoader());
+        transaction.withName("spilled").withType("request");
+        assertThat(spillQueue.spill(transaction, (event, sequence, t) -> event.setTransaction(t))).isTrue();
+        return spillQueue;
+    }
+
+    private IntakeV2ReportingEventHandler createReportingEventHandler(DiskSpillQueue spillQueue) {
+        return new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(mock(StacktraceConfiguration.class), apmServerClient),
+            new MetaData(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", "platform"), Collections.emptyMap()),
+            apmServerClient,
+            spillQueue);
+    }
+
+    private void sendFlushEvent(IntakeV2ReportingEventHandler reportingEventHandler) {
+        final ReportingEvent reportingEvent = new ReportingEvent();
+        reportingEvent.setFlushEvent();
+        reportingEventHandler.onEvent(reportingEvent, -1, true);
+    }
+
     @Test
     void testExponentialBackoff() {
         assertThat(IntakeV2ReportingEventHandler.getBackoffTimeSeconds(0)).isEqualTo(0);
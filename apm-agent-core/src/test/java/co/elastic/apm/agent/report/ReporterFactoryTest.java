@@ -28,6 +28,7 @@ import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
 import co.elastic.apm.agent.impl.MetaData;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.transport.IntakeTransportType;
 import org.eclipse.jetty.http.HttpVersion;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
@@ -52,6 +53,7 @@ import java.util.Collections;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
 import static org.mockito.Mockito.when;
 
 // Jenkins fails with java.lang.IllegalStateException: no valid keystore
@@ -132,4 +134,33 @@ class ReporterFactoryTest {
             .describedAs("request should have produced a certificate validation error")
             .isFalse();
     }
+
+    @Test
+    void testNotValidatingSslCertificateWithNioTransport() throws Exception {
+        when(reporterConfiguration.isVerifyServerCert()).thenReturn(false);
+        when(reporterConfiguration.getIntakeTransport()).thenReturn(IntakeTransportType.NIO);
+        final Reporter reporter = reporterFactory.createReporter(configuration, new ApmServerClient(reporterConfiguration), MetaData.create(configuration, null));
+
+        reporter.report(new Transaction(MockTracer.create()));
+        reporter.flush().get();
+
+        // the NIO transport does not wait for the response when flushing
+        await().untilTrue(requestHandled);
+        reporter.close();
+    }
+
+    @Test
+    void testValidatingSslCertificateWithNioTransport() throws Exception {
+        when(reporterConfiguration.isVerifyServerCert()).thenReturn(true);
+        when(reporterConfiguration.getIntakeTransport()).thenReturn(IntakeTransportType.NIO);
+        final Reporter reporter = reporterFactory.createReporter(configuration, new ApmServerClient(reporterConfiguration), MetaData.create(configuration, null));
+
+        reporter.report(new Transaction(MockTracer.create()));
+        reporter.flush().get();
+        reporter.close();
+
+        assertThat(requestHandled)
+            .describedAs("request should have produced a certificate validation error")
+            .isFalse();
+    }
 }
@@ -29,6 +29,7 @@ import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.collections.LongList;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.BinaryHeaderMapAccessor;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.MetaData;
 import co.elastic.apm.agent.impl.context.AbstractContext;
@@ -67,6 +68,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -247,6 +249,53 @@ class DslJsonSerializerTest {
         assertThat(jsonNode.get("context").get("request").get("headers").get("bar").isNull()).isTrue();
     }
 
+    @Test
+    void testMultiValuedHeaders() {
+        Transaction transaction = new Transaction(MockTracer.create());
+        transaction.getContext().getRequest()
+            .addHeader("foo", "bar")
+            .addHeader("quote", "\"quoted\"")
+            .addHeader("FOO", "baz")
+            .addCookie("cookie", "value");
+        transaction.getContext().getResponse().addHeader("content-type", "application/json");
+        JsonNode context = readJsonString(serializer.toJsonString(transaction)).get("context");
+        JsonNode headers = context.get("request").get("headers");
+        assertThat(headers.get("foo").isArray()).isTrue();
+        assertThat(headers.get("foo").get(0).textValue()).isEqualTo("bar");
+        assertThat(headers.get("foo").get(1).textValue()).isEqualTo("baz");
+        assertThat(headers.get("quote").textValue()).isEqualTo("\"quoted\"");
+        assertThat(context.get("request").get("cookies").get("cookie").textValue()).isEqualTo("value");
+        assertThat(context.get("response").get("headers").get("content-type").textValue()).isEqualTo("application/json");
+    }
+
+    @Test
+    void testTransactionSpanLinksSerialization() {
+        Transaction transaction = new Transaction(MockTracer.create());
+        byte[] traceParent = new byte[TraceContext.BINARY_FORMAT_EXPECTED_LENGTH];
+        for (int i = 0; i < 16; i++) {
+            traceParent[2 + i] = (byte) (i + 1);
+        }
+        traceParent[18] = 1;
+        for (int i = 0; i < 8; i++) {
+            traceParent[19 + i] = (byte) (0xa0 + i);
+        }
+        traceParent[27] = 2;
+        traceParent[28] = 1;
+        transaction.getSpanLinks().addLink(Map.of(TraceContext.TRACE_PARENT_BINARY_HEADER_NAME, traceParent), BinaryHeaderMapAccessor.INSTANCE, 10);
+
+        JsonNode links = readJsonString(serializer.toJsonString(transaction)).get("links");
+
+        assertThat(links).hasSize(1);
+        assertThat(links.get(0).get("trace_id").textValue()).isEqualTo("0102030405060708090a0b0c0d0e0f10");
+        assertThat(links.get(0).get("span_id").textValue()).isEqualTo("a0a1a2a3a4a5a6a7");
+    }
+
+    @Test
+    void testTransactionWithoutSpanLinks() {
+        Transaction transaction = new Transaction(MockTracer.create());
+        assertThat(readJsonString(serializer.toJsonString(transaction)).get("links")).isNull();
+    }
+
     @Test
     void testSpanTypeSerialization() {
         Span span = new Span(MockTracer.create());
@@ -386,6 +435,31 @@ class DslJsonSerializerTest {
         assertThat(db.get("statement").textValue()).isEqualTo("SELECT * FROM TABLE");
     }
 
+    @Test
+    void testSpanStackTraceCache() {
+        StacktraceConfiguration stacktraceConfiguration = mock(StacktraceConfiguration.class);
+        when(stacktraceConfiguration.getStackTraceLimit()).thenReturn(15);
+        when(stacktraceConfiguration.getApplicationPackages()).thenReturn(List.of("co.elastic.apm"));
+        StackTraceCache stackTraceCache = new StackTraceCache();
+        DslJsonSerializer serializer = new DslJsonSerializer(stacktraceConfiguration, apmServerClient, stackTraceCache);
+        Span span = new Span(MockTracer.create());
+        span.withStacktrace(new Throwable());
+
+        String uncachedJson = serializer.toJsonString(span);
+        assertThat(stackTraceCache.getMisses()).isEqualTo(1);
+        assertThat(stackTraceCache.getHits()).isEqualTo(0);
+        JsonNode stacktrace = readJsonString(uncachedJson).get("stacktrace");
+        assertThat(stacktrace).hasSize(15);
+
+        assertThat(serializer.toJsonString(span)).isEqualTo(uncachedJson);
+        assertThat(stackTraceCache.getHits()).isEqualTo(1);
+
+        // the serialized stack trace depends on the stack trace limit
+        when(stacktraceConfiguration.getStackTraceLimit()).thenReturn(2);
+        assertThat(readJsonString(serializer.toJsonString(span)).get("stacktrace")).hasSize(2);
+        assertThat(stackTraceCache.getMisses()).isEqualTo(2);
+    }
+
     @Test
     void testSpanChildIdSerialization() {
         Id id1 = Id.new64BitId();
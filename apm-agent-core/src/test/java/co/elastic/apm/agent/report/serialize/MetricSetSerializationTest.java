@@ -37,13 +37,16 @@ import javax.annotation.Nonnull;
 import java.io.IOException;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 class MetricSetSerializationTest {
 
     private JsonWriter jw = new DslJson<>().newWriter();
     private ObjectMapper objectMapper = new ObjectMapper();
-    private MetricRegistry registry = new MetricRegistry(mock(ReporterConfiguration.class));
+    private ReporterConfiguration reporterConfiguration = mock(ReporterConfiguration.class);
+    private MetricRegistry registry = new MetricRegistry(reporterConfiguration);
 
     @Test
     void testSerializeGauges() throws IOException {
@@ -163,6 +166,15 @@ class MetricSetSerializationTest {
         assertThat(reportAsJson(Labels.EMPTY).get("metricset").get("samples")).hasSize(0);
     }
 
+    @Test
+    void testCounterDelta() throws IOException {
+        registry.incrementCounter("foo", Labels.EMPTY, 1024);
+        registry.incrementCounter("foo", Labels.EMPTY);
+
+        JsonNode samples = reportAsJson(Labels.EMPTY).get("metricset").get("samples");
+        assertThat(samples.get("foo").get("value").intValue()).isEqualTo(1025);
+    }
+
     @Test
     void testTimerReset() throws IOException {
         registry.updateTimer("foo", Labels.EMPTY, 1);
@@ -175,6 +187,58 @@ class MetricSetSerializationTest {
         assertThat(reportAsJson(Labels.EMPTY).get("metricset").get("samples")).hasSize(0);
     }
 
+    @Test
+    void testSerializeHistogram() throws IOException {
+        when(reporterConfiguration.isHistogramMetrics()).thenReturn(true);
+        registry.incrementCounter("foo", Labels.EMPTY);
+        registry.updateHistogram("bar", Labels.EMPTY, 10);
+        registry.updateHistogram("bar", Labels.EMPTY, 10);
+        registry.updateHistogram("bar", Labels.EMPTY, 1000);
+
+        JsonNode samples = reportAsJson(Labels.EMPTY).get("metricset").get("samples");
+        assertThat(samples.size()).isEqualTo(2);
+        JsonNode histogram = samples.get("bar");
+        assertThat(histogram.get("type").textValue()).isEqualTo("histogram");
+        assertThat(histogram.get("values")).hasSize(2);
+        assertThat(histogram.get("values").get(0).longValue()).isEqualTo(10);
+        assertThat(histogram.get("values").get(1).longValue()).isCloseTo(1000, withinPercentage(5));
+        assertThat(histogram.get("counts").get(0).longValue()).isEqualTo(2);
+        assertThat(histogram.get("counts").get(1).longValue()).isEqualTo(1);
+
+        assertThat(reportAsJson(Labels.EMPTY).get("metricset").get("samples")).hasSize(0);
+    }
+
+    @Test
+    void testHistogramsDisabledByDefault() throws IOException {
+        registry.incrementCounter("foo", Labels.EMPTY);
+        registry.updateHistogram("bar", Labels.EMPTY, 10);
+
+        JsonNode samples = reportAsJson(Labels.EMPTY).get("metricset").get("samples");
+        assertThat(samples.size()).isEqualTo(1);
+        assertThat(samples.get("foo").get("value").intValue()).isOne();
+    }
+
+    @Test
+    void testSerializeHistogramWithTimers() throws IOException {
+        when(reporterConfiguration.isHistogramMetrics()).thenReturn(true);
+        final Labels.Mutable labels = Labels.Mutable.of().transactionName("foo").transactionType("request");
+        registry.updateTimer("transaction.duration", labels, 42);
+        registry.incrementCounter("transaction.breakdown.count", labels);
+        registry.updateHistogram("transaction.duration.histogram", labels, 42);
+
+        final JsonNode metricset = reportAsJson(labels).get("metricset");
+        assertThat(metricset.get("transaction").get("name").textValue()).isEqualTo("foo");
+        final JsonNode samples = metricset.get("samples");
+        assertThat(samples.size()).isEqualTo(4);
+        assertThat(samples.get("transaction.duration.sum.us").get("value").intValue()).isEqualTo(42);
+        assertThat(samples.get("transaction.duration.count").get("value").intValue()).isOne();
+        assertThat(samples.get("transaction.breakdown.count").get("value").intValue()).isOne();
+        final JsonNode histogram = samples.get("transaction.duration.histogram");
+        assertThat(histogram.get("type").textValue()).isEqualTo("histogram");
+        assertThat(histogram.get("values").get(0).longValue()).isCloseTo(42, withinPercentage(5));
+        assertThat(histogram.get("counts").get(0).intValue()).isOne();
+    }
+
     @Nonnull
     private JsonNode reportAsJson(Labels labels) throws IOException {
         registry.report(metricSets -> MetricRegistrySerializer.serializeMetricSet(metricSets.get(labels), System.currentTimeMillis() * 1000, new StringBuilder(), jw));
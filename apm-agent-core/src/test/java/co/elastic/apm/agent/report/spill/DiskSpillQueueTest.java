@@ -0,0 +1,199 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.spill;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReportingEvent;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class DiskSpillQueueTest {
+
+    private static final EventTranslatorOneArg<ReportingEvent, Transaction> TRANSACTION_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, Transaction>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, Transaction transaction) {
+            event.setTransaction(transaction);
+        }
+    };
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    @Nullable
+    private DiskSpillQueue spillQueue;
+
+    @AfterEach
+    void tearDown() {
+        if (spillQueue != null) {
+            spillQueue.close();
+        }
+    }
+
+    @Test
+    void testSpillAndReplay(@TempDir Path tempDir) throws Exception {
+        spillQueue = createSpillQueue(tempDir.toFile(), 1024 * 1024);
+
+        assertThat(spillQueue.spill(createTransaction("foo"), TRANSACTION_TRANSLATOR)).isTrue();
+        assertThat(spillQueue.spill(createTransaction("bar"), TRANSACTION_TRANSLATOR)).isTrue();
+        assertThat(spillQueue.isEmpty()).isFalse();
+
+        assertThat(replayTransactionNames(spillQueue)).containsExactly("foo", "bar");
+        assertThat(spillQueue.isEmpty()).isTrue();
+        assertThat(replayTransactionNames(spillQueue)).isEmpty();
+    }
+
+    @Test
+    void testEvictsOldestSegment(@TempDir Path tempDir) throws Exception {
+        // results in 4 segments of 1kb
+        spillQueue = createSpillQueue(tempDir.toFile(), 4 * 1024);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(spillQueue.spill(createTransaction("transaction-" + i), TRANSACTION_TRANSLATOR)).isTrue();
+        }
+
+        assertThat(spillQueue.getEvicted()).isPositive();
+        List<String> names = replayTransactionNames(spillQueue);
+        assertThat(names).hasSize((int) (100 - spillQueue.getEvicted()));
+        assertThat(names).doesNotContain("transaction-0");
+        assertThat(names).endsWith("transaction-99");
+        assertThat(tempDir.toFile().listFiles()).hasSizeLessThanOrEqualTo(4 + 1);
+    }
+
+    @Test
+    void testReplaysSegmentsOfPreviousRun(@TempDir Path tempDir) throws Exception {
+        DiskSpillQueue previousRun = createSpillQueue(tempDir.toFile(), 1024 * 1024);
+        previousRun.spill(createTransaction("foo"), TRANSACTION_TRANSLATOR);
+        previousRun.spill(createTransaction("bar"), TRANSACTION_TRANSLATOR);
+        previousRun.replay(this, new DslJson<>().newWriter(), 1);
+        previousRun.acknowledgeReplay(this);
+        previousRun.close();
+
+        spillQueue = createSpillQueue(tempDir.toFile(), 1024 * 1024);
+        spillQueue.spill(createTransaction("baz"), TRANSACTION_TRANSLATOR);
+
+        assertThat(replayTransactionNames(spillQueue)).containsExactly("bar", "baz");
+    }
+
+    @Test
+    void testReplaysUnacknowledgedEventsAfterRestart(@TempDir Path tempDir) throws Exception {
+        DiskSpillQueue previousRun = createSpillQueue(tempDir.toFile(), 1024 * 1024);
+        previousRun.spill(createTransaction("foo"), TRANSACTION_TRANSLATOR);
+        previousRun.replay(this, new DslJson<>().newWriter(), Integer.MAX_VALUE);
+        previousRun.close();
+
+        spillQueue = createSpillQueue(tempDir.toFile(), 1024 * 1024);
+
+        assertThat(replayTransactionNames(spillQueue)).containsExactly("foo");
+    }
+
+    @Test
+    void testRewindReplay(@TempDir Path tempDir) throws Exception {
+        spillQueue = createSpillQueue(tempDir.toFile(), 1024 * 1024);
+        spillQueue.spill(createTransaction("foo"), TRANSACTION_TRANSLATOR);
+
+        assertThat(spillQueue.replay(this, new DslJson<>().newWriter(), Integer.MAX_VALUE)).isOne();
+        assertThat(spillQueue.isEmpty()).isTrue();
+        spillQueue.spill(createTransaction("bar"), TRANSACTION_TRANSLATOR);
+        spillQueue.rewindReplay(this);
+
+        assertThat(replayTransactionNames(spillQueue)).containsExactly("foo", "bar");
+        assertThat(spillQueue.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testOnlyOneOwnerCanReplay(@TempDir Path tempDir) throws Exception {
+        spillQueue = createSpillQueue(tempDir.toFile(), 1024 * 1024);
+        spillQueue.spill(createTransaction("foo"), TRANSACTION_TRANSLATOR);
+        spillQueue.spill(createTransaction("bar"), TRANSACTION_TRANSLATOR);
+        Object otherOwner = new Object();
+
+        assertThat(spillQueue.replay(otherOwner, new DslJson<>().newWriter(), 1)).isOne();
+        assertThat(spillQueue.canReplay(this)).isFalse();
+        assertThat(spillQueue.replay(this, new DslJson<>().newWriter(), Integer.MAX_VALUE)).isZero();
+
+        spillQueue.acknowledgeReplay(otherOwner);
+        assertThat(spillQueue.canReplay(this)).isTrue();
+        assertThat(replayTransactionNames(spillQueue)).containsExactly("bar");
+    }
+
+    @Test
+    void testDirectoryCanOnlyBeUsedByOneQueue(@TempDir Path tempDir) {
+        spillQueue = createSpillQueue(tempDir.toFile(), 1024 * 1024);
+
+        assertThat(DiskSpillQueue.create(tempDir.toFile(), 1024 * 1024, createSerializer(), mock(ProcessorEventHandler.class))).isNull();
+    }
+
+    private List<String> replayTransactionNames(DiskSpillQueue spillQueue) throws Exception {
+        JsonWriter jw = new DslJson<>().newWriter();
+        int replayed = spillQueue.replay(this, jw, Integer.MAX_VALUE);
+        spillQueue.acknowledgeReplay(this);
+        List<String> names = new ArrayList<>();
+        for (String line : jw.toString().split("\n")) {
+            if (!line.isEmpty()) {
+                JsonNode transaction = objectMapper.readTree(line).get("transaction");
+                names.add(transaction.get("name").textValue());
+            }
+        }
+        assertThat(names).hasSize(replayed);
+        return names;
+    }
+
+    private DiskSpillQueue createSpillQueue(File directory, long maxSize) {
+        DiskSpillQueue spillQueue = DiskSpillQueue.create(directory, maxSize, createSerializer(), mock(ProcessorEventHandler.class));
+        assertThat(spillQueue).isNotNull();
+        return spillQueue;
+    }
+
+    private DslJsonSerializer createSerializer() {
+        return new DslJsonSerializer(mock(StacktraceConfiguration.class), mock(ApmServerClient.class));
+    }
+
+    private Transaction createTransaction(String name) {
+        Transaction transaction = new Transaction(MockTracer.create());
+        transaction.start(TraceContext.asRoot(), null, 0, ConstantSampler.of(true), getClass().getClassLoader());
+        transaction.withName(name).withType("request");
+        return transaction;
+    }
+}
@@ -0,0 +1,262 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.transport;
+
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.http.Request;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class NioIntakeTransportTest {
+
+    private static final String INTAKE_PATH = "/intake/v2/events";
+
+    private final WireMockServer mockApmServer = new WireMockServer(wireMockConfig().dynamicPort());
+    private NioIntakeTransport transport;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        mockApmServer.start();
+        mockApmServer.stubFor(post(INTAKE_PATH).willReturn(ok()));
+        ReporterConfiguration reporterConfiguration = SpyConfiguration.createSpyConfig().getConfig(ReporterConfiguration.class);
+        doReturn("token").when(reporterConfiguration).getSecretToken();
+        transport = new NioIntakeTransport(reporterConfiguration, new ApmServerClient(reporterConfiguration, List.of(new URL("http://localhost:" + mockApmServer.port()))));
+    }
+
+    @AfterEach
+    void tearDown() {
+        transport.close();
+        mockApmServer.stop();
+    }
+
+    @Test
+    void testSendChunkedBody() throws Exception {
+        // larger than a single chunk
+        String body = createNdJson(10_000);
+
+        Response response = send(getUrl(), body);
+
+        assertThat(response.await().statusCode).isEqualTo(200);
+        mockApmServer.verify(postRequestedFor(urlEqualTo(INTAKE_PATH))
+            .withHeader("Authorization", equalTo("Bearer token"))
+            .withHeader("Content-Encoding", equalTo("deflate"))
+            .withHeader("Content-Type", equalTo("application/x-ndjson"))
+            .withHeader("Transfer-Encoding", equalTo("chunked")));
+        assertThat(getReceivedBodies()).containsExactly(body);
+    }
+
+    @Test
+    void testStreamNextRequestWhilePreviousResponseIsPending() throws Exception {
+        mockApmServer.stubFor(post(INTAKE_PATH).willReturn(ok().withFixedDelay(500)));
+
+        Response first = send(getUrl(), createNdJson(10));
+        Response second = send(getUrl(), createNdJson(20));
+        assertThat(first.isDone()).isFalse();
+
+        assertThat(first.await().statusCode).isEqualTo(200);
+        assertThat(second.await().statusCode).isEqualTo(200);
+        assertThat(getReceivedBodies()).containsExactlyInAnyOrder(createNdJson(10), createNdJson(20));
+
+        // the connections are kept alive
+        for (int i = 0; i < 5; i++) {
+            assertThat(send(getUrl(), createNdJson(i)).await().statusCode).isEqualTo(200);
+        }
+        assertThat(getReceivedBodies()).hasSize(7);
+    }
+
+    @Test
+    void testErrorResponse() throws Exception {
+        mockApmServer.stubFor(post(INTAKE_PATH).willReturn(serviceUnavailable().withBody("{\"error\":\"queue is full\"}")));
+
+        Response response = send(getUrl(), createNdJson(10));
+
+        assertThat(response.await().statusCode).isEqualTo(503);
+        assertThat(response.await().body).isEqualTo("{\"error\":\"queue is full\"}");
+    }
+
+    @Test
+    void testConnectionRefused() throws Exception {
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+
+        Response response = send(new URL("http://localhost:" + port + INTAKE_PATH), createNdJson(10));
+
+        assertThat(response.await().exception).isInstanceOf(ConnectException.class);
+    }
+
+    @Test
+    void testAbort() throws Exception {
+        IntakeRequest request = transport.startRequest(getUrl());
+        request.getOutputStream().write(new byte[]{1, 2, 3});
+        request.abort();
+
+        Response response = new Response();
+        request.end(response);
+
+        assertThat(response.await().exception).isNotNull();
+    }
+
+    @Test
+    void testParseContentLengthResponse() throws Exception {
+        NioIntakeTransport.HttpResponseParser parser = new NioIntakeTransport.HttpResponseParser();
+        parser.append(ascii("HTTP/1.1 400 Bad Request\r\nContent-Length: 7\r\n\r\n{\"a\""));
+        assertThat(parser.isComplete()).isFalse();
+        parser.append(ascii(":1}"));
+
+        assertThat(parser.isComplete()).isTrue();
+        assertThat(parser.getStatusCode()).isEqualTo(400);
+        assertThat(parser.isKeepAlive()).isTrue();
+        assertThat(new String(parser.getBody(), StandardCharsets.US_ASCII)).isEqualTo("{\"a\":1}");
+    }
+
+    @Test
+    void testParseChunkedResponse() throws Exception {
+        NioIntakeTransport.HttpResponseParser parser = new NioIntakeTransport.HttpResponseParser();
+        parser.append(ascii("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 202 Accepted\r\nTransfer-Encoding: chunked\r\nConnection: close\r\n\r\n3\r\nfoo\r\n"));
+        parser.append(ascii("3;ext=1\r\nbar\r\n0\r\n"));
+        assertThat(parser.isComplete()).isFalse();
+        parser.append(ascii("\r\n"));
+
+        assertThat(parser.isComplete()).isTrue();
+        assertThat(parser.getStatusCode()).isEqualTo(202);
+        assertThat(parser.isKeepAlive()).isFalse();
+        assertThat(new String(parser.getBody(), StandardCharsets.US_ASCII)).isEqualTo("foobar");
+    }
+
+    @Test
+    void testParseResponseDelimitedByEndOfStream() throws Exception {
+        NioIntakeTransport.HttpResponseParser parser = new NioIntakeTransport.HttpResponseParser();
+        parser.append(ascii("HTTP/1.0 500 Internal Server Error\r\n\r\nerror"));
+        assertThat(parser.isComplete()).isFalse();
+
+        assertThat(parser.completeOnEndOfStream()).isTrue();
+        assertThat(parser.getStatusCode()).isEqualTo(500);
+        assertThat(parser.isKeepAlive()).isFalse();
+        assertThat(new String(parser.getBody(), StandardCharsets.US_ASCII)).isEqualTo("error");
+    }
+
+    private URL getUrl() throws IOException {
+        return new URL("http://localhost:" + mockApmServer.port() + INTAKE_PATH);
+    }
+
+    private Response send(URL url, String body) throws IOException {
+        IntakeRequest request = transport.startRequest(url);
+        try (OutputStream os = new DeflaterOutputStream(request.getOutputStream())) {
+            os.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        Response response = new Response();
+        request.end(response);
+        return response;
+    }
+
+    private List<String> getReceivedBodies() {
+        return mockApmServer.findAll(postRequestedFor(urlEqualTo(INTAKE_PATH))).stream()
+            .map(Request::getBody)
+            .map(NioIntakeTransportTest::inflate)
+            .collect(Collectors.toList());
+    }
+
+    private static String inflate(byte[] bytes) {
+        try (InputStream is = new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String createNdJson(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("{\"transaction\":{\"id\":\"").append(i).append("\"}}\n");
+        }
+        return sb.toString();
+    }
+
+    private static ByteBuffer ascii(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static class Response extends CompletableFuture<Response> implements ResponseHandler {
+        private int statusCode;
+        @Nullable
+        private String body;
+        @Nullable
+        private IOException exception;
+
+        @Override
+        public void onResponse(int statusCode, @Nullable InputStream body) {
+            this.statusCode = statusCode;
+            try {
+                this.body = body != null ? new String(body.readAllBytes(), StandardCharsets.UTF_8) : null;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            complete(this);
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            this.exception = e;
+            complete(this);
+        }
+
+        private Response await() throws Exception {
+            return get(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -27,17 +27,24 @@ package co.elastic.apm.agent.util;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import javax.annotation.Nonnull;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.concurrent.ArrayBlockingQueue;
 
 import static java.nio.charset.StandardCharsets.UTF_16;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class IOUtilsTest  {
 
@@ -143,6 +150,36 @@ class IOUtilsTest  {
         assertThat((CharSequence) charBuffer).isEqualTo(CharBuffer.allocate(16));
     }
 
+    @Test
+    void testCreatePrivateDirectory(@TempDir Path tempDir) throws IOException {
+        assumeTrue(tempDir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        File directory = tempDir.resolve("private").toFile();
+
+        IOUtils.createPrivateDirectory(directory);
+
+        assertThat(directory).isDirectory();
+        assertThat(Files.getPosixFilePermissions(directory.toPath())).isEqualTo(PosixFilePermissions.fromString("rwx------"));
+    }
+
+    @Test
+    void testCreatePrivateDirectoryRestrictsPermissionsOfExistingDirectory(@TempDir Path tempDir) throws IOException {
+        assumeTrue(tempDir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path directory = Files.createDirectory(tempDir.resolve("existing"), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwxrwxrwx")));
+
+        IOUtils.createPrivateDirectory(directory.toFile());
+
+        assertThat(Files.getPosixFilePermissions(directory)).isEqualTo(PosixFilePermissions.fromString("rwx------"));
+    }
+
+    @Test
+    void testCreatePrivateDirectoryRejectsSymlink(@TempDir Path tempDir) throws IOException {
+        assumeTrue(tempDir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path target = Files.createDirectory(tempDir.resolve("target"));
+        Path link = Files.createSymbolicLink(tempDir.resolve("link"), target);
+
+        assertThatThrownBy(() -> IOUtils.createPrivateDirectory(link.toFile())).isInstanceOf(IOException.class);
+    }
+
     @Nonnull
     private ByteArrayInputStream toInputStream(String s, Charset charset) {
         return new ByteArrayInputStream(s.getBytes(charset));
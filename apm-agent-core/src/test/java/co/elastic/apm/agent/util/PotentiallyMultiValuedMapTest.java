@@ -98,4 +98,122 @@ class PotentiallyMultiValuedMapTest {
         assertThat(map.get("foo")).isEqualTo(Arrays.asList("bar", "baz"));
     }
 
+    @Test
+    void testCharViews() {
+        map.add("foo", "bar");
+        map.add("baz", "qux");
+        map.add("Foo", "quux");
+        assertThat(map.size()).isEqualTo(2);
+        assertThat(map.getKeyChars(0).toString()).isEqualTo("foo");
+        assertThat(map.getValueCount(0)).isEqualTo(2);
+        int value = map.getFirstValue(0);
+        assertThat(map.getValueChars(value).toString()).isEqualTo("bar");
+        value = map.getNextValue(value);
+        assertThat(map.getValueChars(value).toString()).isEqualTo("quux");
+        assertThat(map.getNextValue(value)).isEqualTo(PotentiallyMultiValuedMap.NO_MORE_VALUES);
+        assertThat(map.getKeyChars(1).toString()).isEqualTo("baz");
+        assertThat(map.getValueCount(1)).isEqualTo(1);
+        assertThat(map.getValueChars(map.getFirstValue(1)).toString()).isEqualTo("qux");
+    }
+
+    @Test
+    void testIterateManyValues() {
+        for (int i = 0; i < 1000; i++) {
+            map.add("foo", Integer.toString(i));
+        }
+        int count = 0;
+        for (int v = map.getFirstValue(0); v != PotentiallyMultiValuedMap.NO_MORE_VALUES; v = map.getNextValue(v)) {
+            assertThat(map.getValueChars(v).toString()).isEqualTo(Integer.toString(count++));
+        }
+        assertThat(count).isEqualTo(1000);
+    }
+
+    @Test
+    void testNullValue() {
+        map.add("foo", null);
+        assertThat(map.containsIgnoreCase("foo")).isTrue();
+        assertThat(map.get("foo")).isNull();
+        assertThat(map.getValueChars(map.getFirstValue(0))).isNull();
+    }
+
+    @Test
+    void testSetReplacesAllValues() {
+        map.add("foo", "bar");
+        map.add("foo", "baz");
+        map.set(0, "qux");
+        assertThat(map.get("foo")).isEqualTo("qux");
+        assertThat(map.getValueCount(0)).isEqualTo(1);
+    }
+
+    @Test
+    void testRemoveKeepsOrder() {
+        map.add("foo", "1");
+        map.add("bar", "2");
+        map.add("baz", "3");
+        map.add("bar", "4");
+        map.removeIgnoreCase("foo");
+        assertThat(map.getKey(0)).isEqualTo("bar");
+        assertThat(map.getValue(0)).isEqualTo(Arrays.asList("2", "4"));
+        assertThat(map.getKey(1)).isEqualTo("baz");
+        assertThat(map.getValue(1)).isEqualTo("3");
+    }
+
+    @Test
+    void testCopyFrom() {
+        map.add("foo", "bar");
+        map.add("foo", "baz");
+        map.add("qux", null);
+        PotentiallyMultiValuedMap copy = new PotentiallyMultiValuedMap();
+        copy.add("quux", "corge");
+        copy.copyFrom(map);
+        map.resetState();
+        assertThat(copy.size()).isEqualTo(3);
+        assertThat(copy.get("quux")).isEqualTo("corge");
+        assertThat(copy.get("foo")).isEqualTo(Arrays.asList("bar", "baz"));
+        assertThat(copy.containsIgnoreCase("qux")).isTrue();
+        assertThat(copy.get("qux")).isNull();
+    }
+
+    @Test
+    void testGrowAndRecycle() {
+        for (int i = 0; i < 100; i++) {
+            map.add("key" + i, "value" + i);
+            map.add("key" + i, "other" + i);
+        }
+        assertThat(map.size()).isEqualTo(100);
+        assertThat(map.getAll("KEY99")).containsExactly("value99", "other99");
+
+        map.resetState();
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.get("key0")).isNull();
+        map.add("foo", "bar");
+        assertThat(map.getKeyChars(0).toString()).isEqualTo("foo");
+        assertThat(map.getValueChars(map.getFirstValue(0)).toString()).isEqualTo("bar");
+    }
+
+    @Test
+    void testLargeBufferIsShrunk() {
+        char[] chars = new char[PotentiallyMultiValuedMap.MAX_POOLED_BUFFER_SIZE];
+        Arrays.fill(chars, 'a');
+        map.add("foo", new String(chars));
+        assertThat(map.getBufferSize()).isGreaterThan(PotentiallyMultiValuedMap.MAX_POOLED_BUFFER_SIZE);
+        map.resetState();
+        assertThat(map.getBufferSize()).isEqualTo(PotentiallyMultiValuedMap.MAX_POOLED_BUFFER_SIZE);
+        map.add("foo", "bar");
+        assertThat(map.getValueChars(map.getFirstValue(0)).toString()).isEqualTo("bar");
+    }
+
+    @Test
+    void testManyValuesAfterShrinking() {
+        for (int i = 0; i < PotentiallyMultiValuedMap.MAX_POOLED_CAPACITY * 2; i++) {
+            map.add("key" + i, "value" + i);
+        }
+        map.resetState();
+        for (int i = 0; i < PotentiallyMultiValuedMap.MAX_POOLED_CAPACITY * 2; i++) {
+            map.add("key" + i, "value" + i);
+        }
+        assertThat(map.size()).isEqualTo(PotentiallyMultiValuedMap.MAX_POOLED_CAPACITY * 2);
+        assertThat(map.getFirst("key127")).isEqualTo("value127");
+    }
+
 }
@@ -47,7 +47,7 @@ public abstract class JdbcInstrumentation extends ElasticApmInstrumentation {
             if (jdbcHelperManager == null) {
                 jdbcHelperManager = HelperClassManager.ForSingleClassLoader.of(tracer,
                     "co.elastic.apm.agent.jdbc.helper.JdbcHelperImpl",
-                    "co.elastic.apm.agent.jdbc.helper.JdbcHelperImpl$1");
+                    "co.elastic.apm.agent.jdbc.helper.JdbcHelperImpl$SignatureParserAllocator");
             }
         }
     }
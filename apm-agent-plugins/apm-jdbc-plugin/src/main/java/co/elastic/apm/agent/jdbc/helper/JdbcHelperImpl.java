@@ -24,13 +24,18 @@
  */
 package co.elastic.apm.agent.jdbc.helper;
 
-import co.elastic.apm.agent.bci.VisibleForAdvice;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.context.Destination;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.jdbc.signature.SignatureParser;
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import co.elastic.apm.agent.util.DataStructures;
 import com.blogspot.mydailyjava.weaklockfree.WeakConcurrentMap;
+import org.jctools.queues.atomic.AtomicQueueFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +45,8 @@ import java.sql.DatabaseMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 
+import static org.jctools.queues.spec.ConcurrentQueueSpec.createBoundedMpmc;
+
 @SuppressWarnings("unused") // indirect access to this class provided through HelperClassManager
 public class JdbcHelperImpl extends JdbcHelper {
 
@@ -54,13 +61,21 @@ public class JdbcHelperImpl extends JdbcHelper {
     private final WeakConcurrentMap<Class<?>, Boolean> metadataSupported = new WeakConcurrentMap.WithInlinedExpunction<Class<?>, Boolean>();
     private final WeakConcurrentMap<Class<?>, Boolean> connectionSupported = new WeakConcurrentMap.WithInlinedExpunction<Class<?>, Boolean>();
 
-    @VisibleForAdvice
-    public final ThreadLocal<SignatureParser> SIGNATURE_PARSER_THREAD_LOCAL = new ThreadLocal<SignatureParser>() {
-        @Override
-        protected SignatureParser initialValue() {
-            return new SignatureParser();
-        }
-    };
+    /**
+     * The parsers are only used for a short time while creating a span, so they are shared by all threads
+     * instead of having one per thread.
+     * The number of parsers depends on the number of threads parsing at the same time, which is related to the number of CPUs,
+     * rather than on the number of threads which have ever executed a query.
+     * If more threads parse concurrently than there are pooled parsers, the surplus parsers are garbage collected.
+     */
+    private final ObjectPool<SignatureParser> signatureParserPool = QueueBasedObjectPool.of(
+        AtomicQueueFactory.<SignatureParser>newQueue(createBoundedMpmc(2 * Runtime.getRuntime().availableProcessors())),
+        false, SignatureParserAllocator.INSTANCE, SignatureParserAllocator.INSTANCE);
+
+    public JdbcHelperImpl(ElasticApmTracer tracer) {
+        // the helper is created lazily on the first JDBC call, so that applications which don't use JDBC don't get these metrics
+        SignatureParser.getSignatureCache().bindTo(tracer.getMetricRegistry());
+    }
 
     @Override
     public void clearInternalStorage() {
@@ -82,7 +97,12 @@ public class JdbcHelperImpl extends JdbcHelper {
         } else if (span.isSampled()) {
             StringBuilder spanName = span.getAndOverrideName(AbstractSpan.PRIO_DEFAULT);
             if (spanName != null) {
-                SIGNATURE_PARSER_THREAD_LOCAL.get().querySignature(sql, spanName, preparedStatement);
+                SignatureParser signatureParser = signatureParserPool.createInstance();
+                try {
+                    signatureParser.querySignature(sql, spanName, preparedStatement);
+                } finally {
+                    signatureParserPool.recycle(signatureParser);
+                }
             }
         }
         // setting the type here is important
@@ -195,4 +215,18 @@ public class JdbcHelperImpl extends JdbcHelper {
         }
     }
 
+    private static class SignatureParserAllocator implements Allocator<SignatureParser>, Resetter<SignatureParser> {
+
+        private static final SignatureParserAllocator INSTANCE = new SignatureParserAllocator();
+
+        @Override
+        public SignatureParser createInstance() {
+            return new SignatureParser();
+        }
+
+        @Override
+        public void recycle(SignatureParser object) {
+            // the parser does not keep state across invocations
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.jdbc.signature;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A probabilistic estimate of how often a key has recently been accessed,
+ * used by {@link SignatureCache} to decide which queries are worth caching.
+ * <p>
+ * This is a count-min sketch with a depth of four and 4 bit counters, packed into longs.
+ * The estimated frequency of a key is the minimum of its four counters.
+ * To let the sketch adapt to a changing workload, all counters are halved after a number of increments,
+ * which is proportional to the size of the sketch.
+ * </p>
+ * <p>
+ * Updates are not atomic so that concurrent increments may get lost.
+ * That's acceptable as the frequencies are only estimates anyway and it avoids CAS contention on popular keys.
+ * </p>
+ */
+class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = {0x97cb3127, 0xf6a1e0ec, 0x4ec8cc0d, 0xb3c0bf1b};
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param expectedSize the number of keys whose frequencies should be estimated accurately, usually the size of the cache
+     */
+    FrequencySketch(int expectedSize) {
+        // each long holds 16 counters, 4 for each key
+        int tableSize = Integer.highestOneBit(Math.max(expectedSize, 16) - 1) << 1;
+        table = new AtomicLongArray(tableSize);
+        tableMask = tableSize - 1;
+        sampleSize = 10 * expectedSize;
+    }
+
+    /**
+     * Returns the estimated number of recent accesses of the key, capped at {@value #MAX_COUNT}
+     */
+    int frequency(long key) {
+        int hash = spread(key);
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, getCount(hash, i));
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments the estimated frequency of the key
+     */
+    void increment(long key) {
+        int hash = spread(key);
+        boolean incremented = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            incremented |= incrementCount(hash, i);
+        }
+        if (incremented && size.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+
+    private int getCount(int hash, int depth) {
+        int index = indexOf(hash, depth);
+        return (int) ((table.get(index) >>> offsetOf(hash, depth)) & MAX_COUNT);
+    }
+
+    private boolean incrementCount(int hash, int depth) {
+        int index = indexOf(hash, depth);
+        int offset = offsetOf(hash, depth);
+        long value = table.get(index);
+        if (((value >>> offset) & MAX_COUNT) == MAX_COUNT) {
+            return false;
+        }
+        table.lazySet(index, value + (1L << offset));
+        return true;
+    }
+
+    /**
+     * Halves all counters, so that keys which have been popular in the past can be evicted if they are not accessed anymore
+     */
+    private void reset() {
+        size.set(0);
+        for (int i = 0; i < table.length(); i++) {
+            table.lazySet(i, (table.get(i) >>> 1) & RESET_MASK);
+        }
+    }
+
+    private int indexOf(int hash, int depth) {
+        int h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h ^= h >>> 17;
+        return h & tableMask;
+    }
+
+    /**
+     * Each of the four counters of a key lives in a different quarter of the long,
+     * which makes sure that the counters of a key are independent even if they are stored in the same long.
+     */
+    private static int offsetOf(int hash, int depth) {
+        int counterInQuarter = (hash >>> (depth << 3)) & 3;
+        return ((depth << 2) + counterInQuarter) << 2;
+    }
+
+    private static int spread(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.jdbc.signature;
+
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of SQL signatures with frequency-based admission and eviction.
+ * <p>
+ * ORMs tend to issue the same few queries over and over again,
+ * mixed with a long tail of dynamic queries which are rarely repeated.
+ * To keep the long tail from displacing the popular queries,
+ * a new query is only admitted to the cache if it has been seen more often recently than the entry it would replace.
+ * The access frequencies are tracked by a {@link FrequencySketch}, similar to TinyLFU.
+ * </p>
+ * <p>
+ * The cache is set-associative:
+ * a query can only be stored in one of the {@value #WAYS} slots of the set determined by its hash.
+ * When the set is full, the least frequently used entry of the set is the eviction candidate.
+ * This keeps lookups and updates lock-free.
+ * </p>
+ * <p>
+ * Entries don't retain the query strings, which can be huge.
+ * Instead, queries are identified by a 64 bit hash and their length.
+ * </p>
+ */
+public class SignatureCache {
+
+    private static final int WAYS = 4;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int setMask;
+    private final AtomicBoolean bound = new AtomicBoolean();
+    private final FrequencySketch sketch;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maximumSize the maximum number of cached signatures, must be a power of 2 and at least {@value #WAYS}
+     */
+    public SignatureCache(int maximumSize) {
+        if (Integer.bitCount(maximumSize) != 1 || maximumSize < WAYS) {
+            throw new IllegalArgumentException("The size must be a power of 2 and at least " + WAYS + ", but was " + maximumSize);
+        }
+        entries = new AtomicReferenceArray<>(maximumSize);
+        setMask = maximumSize / WAYS - 1;
+        sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * Computes the key of a query.
+     * <p>
+     * Combines the (cached) {@link String#hashCode()} with a second, independent hash
+     * so that collisions between different queries of the same length are very unlikely.
+     * </p>
+     */
+    static long keyOf(String query) {
+        int h2 = 0x811c9dc5;
+        for (int i = 0; i < query.length(); i++) {
+            h2 = (h2 ^ query.charAt(i)) * 0x01000193;
+        }
+        return ((long) query.hashCode() << 32) | (h2 & 0xffffffffL);
+    }
+
+    /**
+     * Looks up the signature of a query and records the access.
+     *
+     * @return the cached entry or {@code null} if the signature of the query is not cached
+     */
+    @Nullable
+    Entry get(long key, int queryLength) {
+        sketch.increment(key);
+        int set = indexOfSet(key);
+        for (int i = set; i < set + WAYS; i++) {
+            Entry entry = entries.get(i);
+            if (entry != null && entry.key == key && entry.queryLength == queryLength) {
+                hits.incrementAndGet();
+                return entry;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds the signature of a query to the cache,
+     * given that there is a free slot or that the query has been accessed more often than the least frequently used entry in its set.
+     * The signature strings are only created if the query is admitted.
+     *
+     * @param signature      the builder containing the signature, starting at {@code signatureStart}
+     * @param signatureStart the index of the first character of the signature
+     * @param dbLink         the builder containing the DB link, starting at {@code dbLinkStart}, or {@code null}
+     * @param dbLinkStart    the index of the first character of the DB link
+     * @return {@code true} if the signature has been added
+     */
+    boolean put(long key, int queryLength, StringBuilder signature, int signatureStart, @Nullable StringBuilder dbLink, int dbLinkStart) {
+        int set = indexOfSet(key);
+        int slot = -1;
+        int victimFrequency = Integer.MAX_VALUE;
+        for (int i = set; i < set + WAYS; i++) {
+            Entry entry = entries.get(i);
+            if (entry == null) {
+                slot = i;
+                victimFrequency = -1;
+                break;
+            }
+            int frequency = sketch.frequency(entry.key);
+            if (frequency < victimFrequency) {
+                slot = i;
+                victimFrequency = frequency;
+            }
+        }
+        if (sketch.frequency(key) <= victimFrequency) {
+            return false;
+        }
+        // we don't mind overwriting a concurrently added entry
+        entries.set(slot, new Entry(key, queryLength, signature.substring(signatureStart), dbLink != null ? dbLink.substring(dbLinkStart) : ""));
+        return true;
+    }
+
+    private int indexOfSet(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return ((int) (h >>> 32) & setMask) * WAYS;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Registers the hit and miss counts of this cache as gauges.
+     * <p>
+     * Only the first invocation has an effect,
+     * as the cache is shared by all helper instances which may try to bind it.
+     * </p>
+     *
+     * @param metricRegistry the registry to add the gauges to
+     */
+    public void bindTo(MetricRegistry metricRegistry) {
+        if (!bound.compareAndSet(false, true)) {
+            return;
+        }
+        metricRegistry.add("agent.jdbc.signature.cache.hits", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return hits.get();
+            }
+        });
+        metricRegistry.add("agent.jdbc.signature.cache.misses", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return misses.get();
+            }
+        });
+    }
+
+    static class Entry {
+        private final long key;
+        private final int queryLength;
+        final String signature;
+        final String dbLink;
+
+        private Entry(long key, int queryLength, String signature, String dbLink) {
+            this.key = key;
+            this.queryLength = queryLength;
+            this.signature = signature;
+            this.dbLink = dbLink;
+        }
+    }
+}
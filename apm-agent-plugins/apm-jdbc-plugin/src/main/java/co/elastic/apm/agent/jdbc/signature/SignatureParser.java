@@ -25,8 +25,6 @@
 package co.elastic.apm.agent.jdbc.signature;
 
 import javax.annotation.Nullable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import static co.elastic.apm.agent.jdbc.signature.Scanner.Token.EOF;
 import static co.elastic.apm.agent.jdbc.signature.Scanner.Token.FROM;
@@ -37,27 +35,21 @@ import static co.elastic.apm.agent.jdbc.signature.Scanner.Token.RPAREN;
 
 public class SignatureParser {
 
-    /**
-     * If the cache reaches this size we assume that the application creates a lot of dynamic queries.
-     * In that case it's inefficient to try to cache these as they are not likely to be repeated.
-     * But we still pay the price of allocating a Map.Entry and a String for the signature.
-     */
-    private static final int DISABLE_CACHE_THRESHOLD = 512;
+    private static final int CACHE_SIZE = 1024;
     /**
      * The cache management overhead is probably not worth it for short queries
      */
     private static final int QUERY_LENGTH_CACHE_LOWER_THRESHOLD = 64;
     /**
-     * We don't want to keep alive references to huge query strings
+     * Huge queries are most likely generated and not repeated, so it's not worth hashing them
      */
     private static final int QUERY_LENGTH_CACHE_UPPER_THRESHOLD = 10_000;
     /**
-     * Not using weak keys because ORMs like Hibernate generate equal SQL strings for the same query but don't reuse the same string instance.
-     * When relying on weak keys, we would not leverage any caching benefits if the query string is collected.
-     * That means that we are leaking Strings but as the size of the map is limited that should not be an issue.
+     * Applications which create a lot of dynamic queries would otherwise flood the cache with signatures which are not likely to be repeated.
+     * The cache only admits queries which are accessed more frequently than the ones they would replace,
+     * so that the popular queries stay cached.
      */
-    private final static ConcurrentMap<String, String[]> signatureCache = new ConcurrentHashMap<String, String[]>(DISABLE_CACHE_THRESHOLD,
-            0.5f, Runtime.getRuntime().availableProcessors());
+    private static final SignatureCache signatureCache = new SignatureCache(CACHE_SIZE);
 
     private final Scanner scanner = new Scanner();
 
@@ -69,26 +61,33 @@ public class SignatureParser {
         final boolean cacheable = preparedStatement // non-prepared statements are likely to be dynamic strings
             && QUERY_LENGTH_CACHE_LOWER_THRESHOLD < query.length()
             && query.length() < QUERY_LENGTH_CACHE_UPPER_THRESHOLD;
+        long key = 0;
         if (cacheable) {
-            final String[] cachedSignature = signatureCache.get(query);
+            key = SignatureCache.keyOf(query);
+            final SignatureCache.Entry cachedSignature = signatureCache.get(key, query.length());
             if (cachedSignature != null) {
-                signature.append(cachedSignature[0]);
+                signature.append(cachedSignature.signature);
                 if (dbLink != null) {
-                    dbLink.append(cachedSignature[1]);
+                    dbLink.append(cachedSignature.dbLink);
                 }
                 return;
             }
         }
 
+        final int signatureStart = signature.length();
+        final int dbLinkStart = dbLink != null ? dbLink.length() : 0;
         scanner.setQuery(query);
         parse(query, signature, dbLink);
 
-        if (cacheable && signatureCache.size() <= DISABLE_CACHE_THRESHOLD) {
-            // we don't mind a small overshoot due to race conditions
-            signatureCache.put(query, new String[]{signature.toString(), dbLink != null ? dbLink.toString() : ""});
+        if (cacheable) {
+            signatureCache.put(key, query.length(), signature, signatureStart, dbLink, dbLinkStart);
         }
     }
 
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
     private void parse(String query, StringBuilder signature, @Nullable StringBuilder dbLink) {
         final Scanner.Token firstToken = scanner.scanWhile(Scanner.Token.COMMENT);
         switch (firstToken) {
@@ -0,0 +1,65 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.jdbc.signature;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FrequencySketchTest {
+
+    @Test
+    void testIncrement() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        assertThat(sketch.frequency(42)).isZero();
+        sketch.increment(42);
+        sketch.increment(42);
+        assertThat(sketch.frequency(42)).isEqualTo(2);
+        assertThat(sketch.frequency(43)).isZero();
+    }
+
+    @Test
+    void testFrequencyIsCapped() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(42);
+        }
+        assertThat(sketch.frequency(42)).isEqualTo(15);
+    }
+
+    @Test
+    void testCountersAreHalvedPeriodically() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment(42);
+        }
+        assertThat(sketch.frequency(42)).isEqualTo(8);
+        // the sample size is 10 times the expected size
+        for (long i = 0; i < 160; i++) {
+            sketch.increment(1000 + i);
+        }
+        assertThat(sketch.frequency(42)).isLessThanOrEqualTo(4);
+    }
+}
@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.jdbc.signature;
+
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class SignatureCacheTest {
+
+    @Test
+    void testGetAndPut() {
+        SignatureCache cache = new SignatureCache(16);
+        String query = "SELECT * FROM foo WHERE bar = ?";
+        long key = SignatureCache.keyOf(query);
+
+        assertThat(cache.get(key, query.length())).isNull();
+        assertThat(put(cache, query, "SELECT FROM foo", null)).isTrue();
+
+        SignatureCache.Entry entry = cache.get(key, query.length());
+        assertThat(entry).isNotNull();
+        assertThat(entry.signature).isEqualTo("SELECT FROM foo");
+        assertThat(entry.dbLink).isEmpty();
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    void testBindsMetricsOnlyOnce() {
+        SignatureCache cache = new SignatureCache(16);
+        MetricRegistry metricRegistry = mock(MetricRegistry.class);
+
+        cache.bindTo(metricRegistry);
+        cache.bindTo(metricRegistry);
+
+        verify(metricRegistry, times(1)).add(eq("agent.jdbc.signature.cache.hits"), eq(Labels.EMPTY), any(DoubleSupplier.class));
+        verify(metricRegistry, times(1)).add(eq("agent.jdbc.signature.cache.misses"), eq(Labels.EMPTY), any(DoubleSupplier.class));
+    }
+
+    @Test
+    void testKeyIncludesLength() {
+        SignatureCache cache = new SignatureCache(16);
+        String query = "SELECT * FROM foo";
+        put(cache, query, "SELECT FROM foo", null);
+        assertThat(cache.get(SignatureCache.keyOf(query), query.length() + 1)).isNull();
+    }
+
+    @Test
+    void testOnlySignatureIsCached() {
+        SignatureCache cache = new SignatureCache(16);
+        String query = "SELECT * FROM foo@bar";
+        StringBuilder signature = new StringBuilder("prefix SELECT FROM foo");
+        StringBuilder dbLink = new StringBuilder("prefix bar");
+        long key = SignatureCache.keyOf(query);
+        cache.get(key, query.length());
+        cache.put(key, query.length(), signature, "prefix ".length(), dbLink, "prefix ".length());
+
+        SignatureCache.Entry entry = cache.get(key, query.length());
+        assertThat(entry).isNotNull();
+        assertThat(entry.signature).isEqualTo("SELECT FROM foo");
+        assertThat(entry.dbLink).isEqualTo("bar");
+    }
+
+    @Test
+    void testInfrequentQueriesDontEvictFrequentOnes() {
+        // a single set
+        SignatureCache cache = new SignatureCache(4);
+        for (int i = 0; i < 4; i++) {
+            String query = "SELECT * FROM popular" + i;
+            for (int j = 0; j < 3; j++) {
+                cache.get(SignatureCache.keyOf(query), query.length());
+            }
+            assertThat(put(cache, query, "SELECT FROM popular" + i, null)).isTrue();
+        }
+
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 4; j++) {
+                String query = "SELECT * FROM popular" + j;
+                assertThat(cache.get(SignatureCache.keyOf(query), query.length())).isNotNull();
+            }
+            String query = "SELECT * FROM dynamic" + i;
+            cache.get(SignatureCache.keyOf(query), query.length());
+            assertThat(put(cache, query, "SELECT FROM dynamic" + i, null)).isFalse();
+        }
+    }
+
+    @Test
+    void testFrequentQueryIsAdmitted() {
+        SignatureCache cache = new SignatureCache(4);
+        for (int i = 0; i < 4; i++) {
+            String query = "SELECT * FROM foo" + i;
+            cache.get(SignatureCache.keyOf(query), query.length());
+            put(cache, query, "SELECT FROM foo" + i, null);
+        }
+        String query = "SELECT * FROM bar";
+        long key = SignatureCache.keyOf(query);
+        cache.get(key, query.length());
+        assertThat(put(cache, query, "SELECT FROM bar", null)).isFalse();
+
+        cache.get(key, query.length());
+        assertThat(put(cache, query, "SELECT FROM bar", null)).isTrue();
+        assertThat(cache.get(key, query.length())).isNotNull();
+    }
+
+    @Test
+    void testSignatureParserUsesCache() {
+        SignatureParser signatureParser = new SignatureParser();
+        String query = "SELECT * FROM signature_parser_cache_test WHERE id = ? AND name = ? AND description = ?";
+        long hits = SignatureParser.getSignatureCache().getHits();
+        for (int i = 0; i < 3; i++) {
+            StringBuilder signature = new StringBuilder();
+            signatureParser.querySignature(query, signature, true);
+            assertThat(signature.toString()).isEqualTo("SELECT FROM signature_parser_cache_test");
+        }
+        assertThat(SignatureParser.getSignatureCache().getHits() - hits).isEqualTo(2);
+    }
+
+    private static boolean put(SignatureCache cache, String query, String signature, @Nullable String dbLink) {
+        return cache.put(SignatureCache.keyOf(query), query.length(), new StringBuilder(signature), 0,
+            dbLink != null ? new StringBuilder(dbLink) : null, 0);
+    }
+}
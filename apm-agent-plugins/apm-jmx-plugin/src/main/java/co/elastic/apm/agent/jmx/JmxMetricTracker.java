@@ -25,6 +25,7 @@
 package co.elastic.apm.agent.jmx;
 
 import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.context.DeferrableLifecycleListener;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.metrics.DoubleSupplier;
 import co.elastic.apm.agent.metrics.Labels;
@@ -34,6 +35,7 @@ import org.slf4j.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationOption;
 
 import javax.annotation.Nullable;
+import javax.management.Attribute;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.JMException;
@@ -43,19 +45,22 @@ import javax.management.MBeanServerFactory;
 import javax.management.MBeanServerNotification;
 import javax.management.Notification;
 import javax.management.NotificationListener;
-import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 import javax.management.relation.MBeanServerNotificationFilter;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
-public class JmxMetricTracker extends AbstractLifecycleListener {
+public class JmxMetricTracker extends AbstractLifecycleListener implements DeferrableLifecycleListener {
 
     private static final String JMX_PREFIX = "jvm.jmx.";
     private static final Logger logger = LoggerFactory.getLogger(JmxMetricTracker.class);
@@ -67,6 +72,13 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
     private final MetricRegistry metricRegistry;
     @Nullable
     private volatile NotificationListener listener;
+    /**
+     * The names of the MBeans matching the {@link JmxMetric#getObjectName()} patterns.
+     * Instead of querying the MBean server again for each configuration change,
+     * this is kept up to date via the MBean server's registration notifications.
+     */
+    private final Map<ObjectName, Set<ObjectName>> objectNamesByPattern = new HashMap<>();
+    private final ConcurrentMap<ObjectName, MBeanAttributes> mBeanAttributes = new ConcurrentHashMap<>();
 
     public JmxMetricTracker(ElasticApmTracer tracer) {
         jmxConfiguration = tracer.getConfig(JmxConfiguration.class);
@@ -149,6 +161,8 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         }
         logger.debug("Init JMX metric tracking with server {}", platformMBeanServer);
         this.server = platformMBeanServer;
+        // the listener has to be registered before the MBean names are queried initially,
+        // otherwise an MBean registered in between would neither be part of the query result nor be notified about
         registerMBeanNotificationListener(platformMBeanServer);
 
         jmxConfiguration.getCaptureJmxMetrics().addChangeListener(new ConfigurationOption.ChangeListener<List<JmxMetric>>() {
@@ -158,12 +172,12 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
                 List<JmxMetricRegistration> newRegistrations = compileJmxMetricRegistrations(newValue, platformMBeanServer);
 
                 for (JmxMetricRegistration addedRegistration : removeAll(oldRegistrations, newRegistrations)) {
-                    addedRegistration.register(platformMBeanServer, metricRegistry);
+                    addedRegistration.register(metricRegistry);
                 }
                 for (JmxMetricRegistration deletedRegistration : removeAll(newRegistrations, oldRegistrations)) {
                     deletedRegistration.unregister(metricRegistry);
                 }
-
+                retainPatterns(newValue);
             }
         });
         register(jmxConfiguration.getCaptureJmxMetrics().get(), platformMBeanServer);
@@ -173,27 +187,105 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
         filter.enableAllObjectNames();
         filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
-        listener = new NotificationListener() {
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+        NotificationListener listener = new NotificationListener() {
             @Override
             public void handleNotification(Notification notification, Object handback) {
                 if (notification instanceof MBeanServerNotification) {
                     ObjectName mBeanName = ((MBeanServerNotification) notification).getMBeanName();
-                    for (JmxMetric jmxMetric : jmxConfiguration.getCaptureJmxMetrics().get()) {
-                        if (jmxMetric.getObjectName().apply(mBeanName)) {
-                            logger.debug("MBean added at runtime: {}", jmxMetric.getObjectName());
-                            register(Collections.singletonList(jmxMetric), server);
-                        }
+                    if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                        onMBeanUnregistered(mBeanName);
+                    } else {
+                        onMBeanRegistered(mBeanName, server);
                     }
                 }
             }
         };
         try {
             server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener, filter, null);
+            this.listener = listener;
         } catch (InstanceNotFoundException e) {
             logger.error(e.getMessage(), e);
         }
     }
 
+    private void onMBeanRegistered(ObjectName mBeanName, MBeanServer server) {
+        synchronized (objectNamesByPattern) {
+            for (Map.Entry<ObjectName, Set<ObjectName>> entry : objectNamesByPattern.entrySet()) {
+                if (entry.getKey().apply(mBeanName)) {
+                    entry.getValue().add(mBeanName);
+                }
+            }
+        }
+        List<JmxMetricRegistration> registrations = new ArrayList<>();
+        for (JmxMetric jmxMetric : jmxConfiguration.getCaptureJmxMetrics().get()) {
+            if (jmxMetric.getObjectName().apply(mBeanName)) {
+                logger.debug("MBean added at runtime: {}", jmxMetric.getObjectName());
+                // only resolves the registrations of the new MBean instead of re-querying the pattern
+                try {
+                    addJmxMetricRegistrations(jmxMetric, mBeanName, registrations, server);
+                } catch (Exception e) {
+                    logger.error("Failed to register JMX metric {}", jmxMetric.toString(), e);
+                }
+            }
+        }
+        for (JmxMetricRegistration registration : registrations) {
+            registration.register(metricRegistry);
+        }
+    }
+
+    private void onMBeanUnregistered(ObjectName mBeanName) {
+        synchronized (objectNamesByPattern) {
+            for (Set<ObjectName> objectNames : objectNamesByPattern.values()) {
+                objectNames.remove(mBeanName);
+            }
+        }
+        // the metrics of the MBean unregister themselves when they can't find the MBean anymore
+        mBeanAttributes.remove(mBeanName);
+    }
+
+    /**
+     * Returns the names of the MBeans matching the pattern.
+     * Only the first call for a pattern queries the MBean server,
+     * afterwards the result is updated via the MBean server's registration notifications.
+     * If the notification listener is not registered, the result is not cached as it could not be kept up to date.
+     */
+    private Set<ObjectName> queryNames(ObjectName pattern, MBeanServer server) {
+        if (listener == null) {
+            return server.queryNames(pattern, null);
+        }
+        synchronized (objectNamesByPattern) {
+            Set<ObjectName> objectNames = objectNamesByPattern.get(pattern);
+            if (objectNames == null) {
+                objectNames = new HashSet<>(server.queryNames(pattern, null));
+                objectNamesByPattern.put(pattern, objectNames);
+            }
+            return new HashSet<>(objectNames);
+        }
+    }
+
+    private void retainPatterns(List<JmxMetric> jmxMetrics) {
+        Set<ObjectName> patterns = new HashSet<>();
+        for (JmxMetric jmxMetric : jmxMetrics) {
+            patterns.add(jmxMetric.getObjectName());
+        }
+        synchronized (objectNamesByPattern) {
+            objectNamesByPattern.keySet().retainAll(patterns);
+        }
+    }
+
+    private MBeanAttributes getMBeanAttributes(ObjectName objectName, MBeanServer server) {
+        MBeanAttributes attributes = mBeanAttributes.get(objectName);
+        if (attributes == null) {
+            attributes = new MBeanAttributes(server, objectName);
+            MBeanAttributes previous = mBeanAttributes.putIfAbsent(objectName, attributes);
+            if (previous != null) {
+                attributes = previous;
+            }
+        }
+        return attributes;
+    }
+
     private static <T> List<T> removeAll(List<T> removeFromThis, List<T> toRemove) {
         List<T> result = new ArrayList<T>(toRemove);
         result.removeAll(removeFromThis);
@@ -202,7 +294,7 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
 
     private void register(List<JmxMetric> jmxMetrics, MBeanServer server) {
         for (JmxMetricRegistration registration : compileJmxMetricRegistrations(jmxMetrics, server)) {
-            registration.register(server, metricRegistry);
+            registration.register(metricRegistry);
         }
     }
 
@@ -222,41 +314,52 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
     }
 
     private void addJmxMetricRegistration(final JmxMetric jmxMetric, List<JmxMetricRegistration> registrations, MBeanServer server) throws JMException {
-        Set<ObjectInstance> mbeans = server.queryMBeans(jmxMetric.getObjectName(), null);
+        Set<ObjectName> objectNames = queryNames(jmxMetric.getObjectName(), server);
         logger.debug("Found mbeans for object name {}", jmxMetric.getObjectName());
-        for (ObjectInstance mbean : mbeans) {
-            for (JmxMetric.Attribute attribute : jmxMetric.getAttributes()) {
-                final ObjectName objectName = mbean.getObjectName();
-                final Object value;
-                try {
-                    value = server.getAttribute(objectName, attribute.getJmxAttributeName());
-                    if (value instanceof Number) {
-                        logger.debug("Found number attribute {}={}", attribute.getJmxAttributeName(), value);
-                        registrations.add(new JmxMetricRegistration(JMX_PREFIX + attribute.getMetricName(),
+        for (ObjectName objectName : objectNames) {
+            addJmxMetricRegistrations(jmxMetric, objectName, registrations, server);
+        }
+    }
+
+    private void addJmxMetricRegistrations(JmxMetric jmxMetric, ObjectName objectName, List<JmxMetricRegistration> registrations, MBeanServer server) throws JMException {
+        List<JmxMetric.Attribute> attributes = jmxMetric.getAttributes();
+        String[] attributeNames = new String[attributes.size()];
+        for (int i = 0; i < attributeNames.length; i++) {
+            attributeNames[i] = attributes.get(i).getJmxAttributeName();
+        }
+        // fetches all attributes of the MBean at once
+        Map<String, Object> values = new HashMap<>();
+        for (Attribute attribute : server.getAttributes(objectName, attributeNames).asList()) {
+            values.put(attribute.getName(), attribute.getValue());
+        }
+        MBeanAttributes mBeanAttributes = getMBeanAttributes(objectName, server);
+        for (JmxMetric.Attribute attribute : attributes) {
+            final Object value = values.get(attribute.getJmxAttributeName());
+            if (value instanceof Number) {
+                logger.debug("Found number attribute {}={}", attribute.getJmxAttributeName(), value);
+                registrations.add(new JmxMetricRegistration(JMX_PREFIX + attribute.getMetricName(),
+                    Labels.Mutable.of(objectName.getKeyPropertyList()),
+                    attribute.getJmxAttributeName(),
+                    null,
+                    mBeanAttributes));
+            } else if (value instanceof CompositeData) {
+                final CompositeData compositeValue = (CompositeData) value;
+                for (final String key : compositeValue.getCompositeType().keySet()) {
+                    if (compositeValue.get(key) instanceof Number) {
+                        logger.debug("Found composite number attribute {}.{}={}", attribute.getJmxAttributeName(), key, value);
+                        registrations.add(new JmxMetricRegistration(JMX_PREFIX + attribute.getMetricName() + "." + key,
                             Labels.Mutable.of(objectName.getKeyPropertyList()),
                             attribute.getJmxAttributeName(),
-                            null,
-                            objectName));
-                    } else if (value instanceof CompositeData) {
-                        final CompositeData compositeValue = (CompositeData) value;
-                        for (final String key : compositeValue.getCompositeType().keySet()) {
-                            if (compositeValue.get(key) instanceof Number) {
-                                logger.debug("Found composite number attribute {}.{}={}", attribute.getJmxAttributeName(), key, value);
-                                registrations.add(new JmxMetricRegistration(JMX_PREFIX + attribute.getMetricName() + "." + key,
-                                    Labels.Mutable.of(objectName.getKeyPropertyList()),
-                                    attribute.getJmxAttributeName(),
-                                    key,
-                                    objectName));
-                            } else {
-                                logger.warn("Can't create metric '{}' because composite value '{}' is not a number: '{}'", jmxMetric, key, value);
-                            }
-                        }
+                            key,
+                            mBeanAttributes));
                     } else {
-                        logger.warn("Can't create metric '{}' because attribute '{}' is not a number: '{}'", jmxMetric, attribute.getJmxAttributeName(), value);
+                        logger.warn("Can't create metric '{}' because composite value '{}' is not a number: '{}'", jmxMetric, key, value);
                     }
-                } catch (AttributeNotFoundException e) {
-                    logger.warn("Can't create metric '{}' because attribute '{}' could not be found", jmxMetric, attribute.getJmxAttributeName());
                 }
+            } else if (!values.containsKey(attribute.getJmxAttributeName())) {
+                logger.warn("Can't create metric '{}' because attribute '{}' could not be found", jmxMetric, attribute.getJmxAttributeName());
+            } else {
+                logger.warn("Can't create metric '{}' because attribute '{}' is not a number: '{}'", jmxMetric, attribute.getJmxAttributeName(), value);
             }
         }
     }
@@ -268,27 +371,27 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         private final String jmxAttribute;
         @Nullable
         private final String compositeDataKey;
-        private final ObjectName objectName;
+        private final MBeanAttributes mBeanAttributes;
 
-        private JmxMetricRegistration(String metricName, Labels labels, String jmxAttribute, @Nullable String compositeDataKey, ObjectName objectName) {
+        private JmxMetricRegistration(String metricName, Labels labels, String jmxAttribute, @Nullable String compositeDataKey, MBeanAttributes mBeanAttributes) {
             this.metricName = metricName;
             this.labels = labels.immutableCopy();
             this.jmxAttribute = jmxAttribute;
             this.compositeDataKey = compositeDataKey;
-            this.objectName = objectName;
+            this.mBeanAttributes = mBeanAttributes;
         }
 
 
-        void register(final MBeanServer server, final MetricRegistry metricRegistry) {
-            logger.debug("Registering JMX metric {} {}.{} as metric_name: {} labels: {}", objectName, jmxAttribute, compositeDataKey, metricName, labels);
+        void register(final MetricRegistry metricRegistry) {
+            logger.debug("Registering JMX metric {} {}.{} as metric_name: {} labels: {}", mBeanAttributes.getObjectName(), jmxAttribute, compositeDataKey, metricName, labels);
             metricRegistry.add(metricName, labels, new DoubleSupplier() {
                 @Override
                 public double get() {
                     try {
                         if (compositeDataKey == null) {
-                            return ((Number) server.getAttribute(objectName, jmxAttribute)).doubleValue();
+                            return ((Number) mBeanAttributes.getAttribute(jmxAttribute, this)).doubleValue();
                         } else {
-                            return ((Number) ((CompositeData) server.getAttribute(objectName, jmxAttribute)).get(compositeDataKey)).doubleValue();
+                            return ((Number) ((CompositeData) mBeanAttributes.getAttribute(jmxAttribute, this)).get(compositeDataKey)).doubleValue();
                         }
                     } catch (InstanceNotFoundException | AttributeNotFoundException e) {
                         unregister(metricRegistry);
@@ -301,7 +404,7 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         }
 
         void unregister(MetricRegistry metricRegistry) {
-            logger.debug("Unregistering JMX metric {} {}.{} metric_name: {} labels: {}", objectName, jmxAttribute, compositeDataKey, metricName, labels);
+            logger.debug("Unregistering JMX metric {} {}.{} metric_name: {} labels: {}", mBeanAttributes.getObjectName(), jmxAttribute, compositeDataKey, metricName, labels);
             metricRegistry.removeGauge(metricName, labels);
         }
 
@@ -325,7 +428,11 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         MBeanServer server = this.server;
         NotificationListener listener = this.listener;
         if (server != null && listener != null) {
+            this.listener = null;
             server.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener);
+            synchronized (objectNamesByPattern) {
+                objectNamesByPattern.clear();
+            }
         }
         Thread logManagerPropertyPoller = this.logManagerPropertyPoller;
         if (logManagerPropertyPoller != null) {
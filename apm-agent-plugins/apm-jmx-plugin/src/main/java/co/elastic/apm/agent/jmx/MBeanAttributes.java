@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fetches the attributes of an MBean which are used by metrics with a single {@link MBeanServer#getAttributes} call per reporting cycle.
+ * <p>
+ * Every metric is read once per reporting cycle.
+ * Therefore, when a metric reads an attribute for the second time, a new reporting cycle has started and the attributes are fetched again.
+ * The attributes to fetch are the ones which have been read in the previous cycle.
+ * That way, attributes of metrics which have been added in the meantime are fetched individually once and
+ * attributes of removed metrics are not fetched anymore after one cycle.
+ * </p>
+ * <p>
+ * Caching the value also means that composite attributes, which are split up in multiple metrics,
+ * only create one {@link javax.management.openmbean.CompositeData} per cycle.
+ * </p>
+ */
+class MBeanAttributes {
+
+    private static final Object NOT_FETCHED = new Object();
+
+    private final MBeanServer server;
+    private final ObjectName objectName;
+    /**
+     * The attributes which have been read since the last fetch
+     */
+    private final Set<String> readAttributes = new LinkedHashSet<>();
+    private final Map<String, Object> values = new HashMap<>();
+    /**
+     * The metrics which have read an attribute since the last fetch
+     */
+    private final Set<Object> readers = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    MBeanAttributes(MBeanServer server, ObjectName objectName) {
+        this.server = server;
+        this.objectName = objectName;
+    }
+
+    /**
+     * Returns the value of an attribute, which is fetched together with the other attributes of this MBean.
+     *
+     * @param attributeName the name of the attribute
+     * @param reader        the metric which reads the attribute
+     * @return the value of the attribute
+     */
+    synchronized Object getAttribute(String attributeName, Object reader) throws InstanceNotFoundException,
+        AttributeNotFoundException, ReflectionException, MBeanException {
+        if (!readers.add(reader)) {
+            // the reader has already consumed the current values
+            fetch(attributeName);
+            readers.add(reader);
+        }
+        readAttributes.add(attributeName);
+        Object value = values.get(attributeName);
+        if (value == null || value == NOT_FETCHED) {
+            // the attribute has not been read in the last cycle or the bulk fetch has omitted it
+            // getAttribute either returns the value or throws an exception which tells why the attribute is not available
+            value = server.getAttribute(objectName, attributeName);
+            values.put(attributeName, value);
+        }
+        return value;
+    }
+
+    private void fetch(String attributeName) throws InstanceNotFoundException, ReflectionException {
+        readers.clear();
+        readAttributes.add(attributeName);
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            entry.setValue(NOT_FETCHED);
+        }
+        List<Attribute> attributes = server.getAttributes(objectName, readAttributes.toArray(new String[0])).asList();
+        for (Attribute attribute : attributes) {
+            values.put(attribute.getName(), attribute.getValue());
+        }
+        readAttributes.clear();
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+}
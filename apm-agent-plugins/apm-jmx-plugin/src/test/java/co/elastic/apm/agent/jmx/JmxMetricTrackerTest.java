@@ -139,6 +139,25 @@ class JmxMetricTrackerTest {
         }
     }
 
+    @Test
+    void testConfigChangeIncludesMBeanAddedLater() throws Exception {
+        ObjectName objectName = new ObjectName("foo:type=Foo,name=cached1");
+        ObjectName objectName2 = new ObjectName("foo:type=Foo,name=cached2");
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new TestMetric(), objectName);
+            setConfig(JmxMetric.valueOf("object_name[foo:type=Foo,name=cached*] attribute[Baz]"));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new TestMetric(), objectName2);
+
+            // the names matching the pattern are not queried again but kept up to date by the registration notifications
+            setConfig(JmxMetric.valueOf("object_name[foo:type=Foo,name=cached*] attribute[Baz:metric_name=baz]"));
+            assertThat(metricRegistry.getGaugeValue("jvm.jmx.baz", Labels.Mutable.of("name", "cached1").add("type", "Foo"))).isEqualTo(42);
+            assertThat(metricRegistry.getGaugeValue("jvm.jmx.baz", Labels.Mutable.of("name", "cached2").add("type", "Foo"))).isEqualTo(42);
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName2);
+        }
+    }
+
     @Test
     void testMBeanUnregister() throws Exception {
         ObjectName objectName = new ObjectName("foo:type=Foo,name=testMBeanUnregister");
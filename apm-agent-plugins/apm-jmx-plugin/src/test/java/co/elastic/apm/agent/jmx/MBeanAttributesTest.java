@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.jmx;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MBeanAttributesTest {
+
+    private MBeanServer server;
+    private ObjectName objectName;
+    private MBeanAttributes mBeanAttributes;
+    private final Object reader1 = new Object();
+    private final Object reader2 = new Object();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = mock(MBeanServer.class);
+        objectName = new ObjectName("foo:type=Bar");
+        mBeanAttributes = new MBeanAttributes(server, objectName);
+        when(server.getAttribute(objectName, "A")).thenReturn(1);
+        when(server.getAttribute(objectName, "B")).thenReturn(2);
+        when(server.getAttributes(eq(objectName), any(String[].class))).thenReturn(new AttributeList(Arrays.asList(
+            new Attribute("A", 10), new Attribute("B", 20))));
+    }
+
+    @Test
+    void testFetchesAllAttributesOncePerCycle() throws Exception {
+        // the first cycle fetches the attributes individually
+        assertThat(mBeanAttributes.getAttribute("A", reader1)).isEqualTo(1);
+        assertThat(mBeanAttributes.getAttribute("B", reader2)).isEqualTo(2);
+        verify(server, never()).getAttributes(any(ObjectName.class), any(String[].class));
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(mBeanAttributes.getAttribute("A", reader1)).isEqualTo(10);
+            assertThat(mBeanAttributes.getAttribute("B", reader2)).isEqualTo(20);
+        }
+        verify(server, times(3)).getAttributes(objectName, new String[]{"A", "B"});
+        verify(server, times(1)).getAttribute(objectName, "A");
+        verify(server, times(1)).getAttribute(objectName, "B");
+    }
+
+    @Test
+    void testSharedAttribute() throws Exception {
+        mBeanAttributes.getAttribute("A", reader1);
+        mBeanAttributes.getAttribute("A", reader2);
+        verify(server, times(1)).getAttribute(objectName, "A");
+
+        mBeanAttributes.getAttribute("A", reader1);
+        mBeanAttributes.getAttribute("A", reader2);
+        verify(server, times(1)).getAttributes(objectName, new String[]{"A"});
+    }
+
+    @Test
+    void testAttributesNotReadAnymoreAreNotFetched() throws Exception {
+        mBeanAttributes.getAttribute("A", reader1);
+        mBeanAttributes.getAttribute("B", reader2);
+        mBeanAttributes.getAttribute("A", reader1);
+        verify(server).getAttributes(objectName, new String[]{"A", "B"});
+
+        // reader2 has been removed
+        mBeanAttributes.getAttribute("A", reader1);
+        verify(server).getAttributes(objectName, new String[]{"A"});
+    }
+
+    @Test
+    void testAttributeMissingInBulkResult() throws Exception {
+        when(server.getAttribute(objectName, "C")).thenThrow(new AttributeNotFoundException("C"));
+        mBeanAttributes.getAttribute("A", reader1);
+        assertThatThrownBy(() -> mBeanAttributes.getAttribute("C", reader2)).isInstanceOf(AttributeNotFoundException.class);
+
+        assertThat(mBeanAttributes.getAttribute("A", reader1)).isEqualTo(10);
+        assertThatThrownBy(() -> mBeanAttributes.getAttribute("C", reader2)).isInstanceOf(AttributeNotFoundException.class);
+    }
+}
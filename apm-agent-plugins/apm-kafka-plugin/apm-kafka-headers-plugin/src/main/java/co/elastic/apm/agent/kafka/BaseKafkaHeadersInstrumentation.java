@@ -49,6 +49,7 @@ public abstract class BaseKafkaHeadersInstrumentation extends BaseKafkaInstrumen
             kafkaInstrHeadersHelperManager = HelperClassManager.ForAnyClassLoader.of(tracer,
                 "co.elastic.apm.agent.kafka.helper.KafkaInstrumentationHeadersHelperImpl",
                 "co.elastic.apm.agent.kafka.helper.ConsumerRecordsIteratorWrapper",
+                "co.elastic.apm.agent.kafka.helper.TopicTransactionNames",
                 "co.elastic.apm.agent.kafka.helper.ConsumerRecordsIterableWrapper",
                 "co.elastic.apm.agent.kafka.helper.ConsumerRecordsListWrapper",
                 "co.elastic.apm.agent.kafka.helper.ElasticHeaderImpl",
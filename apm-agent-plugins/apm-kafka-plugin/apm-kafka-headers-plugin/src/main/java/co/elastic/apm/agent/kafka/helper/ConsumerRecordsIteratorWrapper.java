@@ -37,6 +37,7 @@ import org.apache.kafka.common.record.TimestampType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.util.Iterator;
 
 @SuppressWarnings("rawtypes")
@@ -44,20 +45,38 @@ class ConsumerRecordsIteratorWrapper implements Iterator<ConsumerRecord> {
 
     public static final Logger logger = LoggerFactory.getLogger(ConsumerRecordsIteratorWrapper.class);
 
+    private static final TopicTransactionNames recordTransactionNames = new TopicTransactionNames("Kafka record from ");
+    private static final TopicTransactionNames batchTransactionNames = new TopicTransactionNames("Kafka records from ");
+
     private final Iterator<ConsumerRecord> delegate;
     private final ElasticApmTracer tracer;
     private final CoreConfiguration coreConfiguration;
     private final MessagingConfiguration messagingConfiguration;
+    /**
+     * Whether a single transaction is created for all records of this iterator, instead of one per record
+     */
+    private final boolean batchHandling;
+    @Nullable
+    private Transaction batchTransaction;
 
     public ConsumerRecordsIteratorWrapper(Iterator<ConsumerRecord> delegate, ElasticApmTracer tracer) {
         this.delegate = delegate;
         this.tracer = tracer;
         coreConfiguration = tracer.getConfig(CoreConfiguration.class);
         messagingConfiguration = tracer.getConfig(MessagingConfiguration.class);
+        batchHandling = messagingConfiguration.getMessageBatchStrategy() == MessagingConfiguration.BatchStrategy.BATCH_HANDLING;
     }
 
     @Override
     public boolean hasNext() {
+        if (batchHandling) {
+            boolean hasNext = delegate.hasNext();
+            if (!hasNext && batchTransaction != null) {
+                batchTransaction = null;
+                endCurrentTransaction();
+            }
+            return hasNext;
+        }
         endCurrentTransaction();
         return delegate.hasNext();
     }
@@ -75,6 +94,15 @@ class ConsumerRecordsIteratorWrapper implements Iterator<ConsumerRecord> {
 
     @Override
     public ConsumerRecord next() {
+        if (batchHandling) {
+            ConsumerRecord record = delegate.next();
+            try {
+                onBatchRecord(record);
+            } catch (Exception e) {
+                logger.error("Error in batch transaction creation based on Kafka record", e);
+            }
+            return record;
+        }
         endCurrentTransaction();
         ConsumerRecord record = delegate.next();
         try {
@@ -82,7 +110,7 @@ class ConsumerRecordsIteratorWrapper implements Iterator<ConsumerRecord> {
             if (!WildcardMatcher.isAnyMatch(messagingConfiguration.getIgnoreMessageQueues(), topic)) {
                 Transaction transaction = tracer.startChildTransaction(record, KafkaRecordHeaderAccessor.instance(), ConsumerRecordsIteratorWrapper.class.getClassLoader());
                 if (transaction != null) {
-                    transaction.withType("messaging").withName("Kafka record from " + topic).activate();
+                    transaction.withType("messaging").withName(recordTransactionNames.get(topic)).activate();
                     Message message = transaction.getContext().getMessage();
                     message.withQueue(topic);
                     if (record.timestampType() == TimestampType.CREATE_TIME) {
@@ -111,6 +139,35 @@ class ConsumerRecordsIteratorWrapper implements Iterator<ConsumerRecord> {
         return record;
     }
 
+    /**
+     * Starts the batch transaction with the first record which is not ignored
+     * and links the batch transaction to the trace context of each record, if sampled.
+     * Records of a non-sampled batch don't add any overhead.
+     */
+    private void onBatchRecord(ConsumerRecord record) {
+        Transaction transaction = batchTransaction;
+        if (transaction == null) {
+            String topic = record.topic();
+            if (WildcardMatcher.isAnyMatch(messagingConfiguration.getIgnoreMessageQueues(), topic)) {
+                return;
+            }
+            transaction = tracer.startRootTransaction(ConsumerRecordsIteratorWrapper.class.getClassLoader());
+            if (transaction == null) {
+                return;
+            }
+            transaction.withType("messaging").withName(batchTransactionNames.get(topic)).activate();
+            Message message = transaction.getContext().getMessage();
+            message.withQueue(topic);
+            if (record.timestampType() == TimestampType.CREATE_TIME) {
+                message.withAge(System.currentTimeMillis() - record.timestamp());
+            }
+            batchTransaction = transaction;
+        }
+        if (transaction.isSampled() && !WildcardMatcher.isAnyMatch(messagingConfiguration.getIgnoreMessageQueues(), record.topic())) {
+            transaction.getSpanLinks().addLink(record, KafkaRecordHeaderAccessor.instance(), messagingConfiguration.getMessageBatchMaxLinks());
+        }
+    }
+
     @Override
     public void remove() {
         delegate.remove();
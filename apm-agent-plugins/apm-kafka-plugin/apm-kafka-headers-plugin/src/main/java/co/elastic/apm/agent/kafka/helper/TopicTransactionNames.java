@@ -0,0 +1,57 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.kafka.helper;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the transaction name for each topic so that it doesn't have to be concatenated for every record.
+ */
+class TopicTransactionNames {
+
+    /**
+     * Guards against an unbounded growth if an application dynamically creates topics
+     */
+    private static final int MAX_SIZE = 1000;
+
+    private final ConcurrentMap<String, String> namesByTopic = new ConcurrentHashMap<>();
+    private final String prefix;
+
+    TopicTransactionNames(String prefix) {
+        this.prefix = prefix;
+    }
+
+    String get(String topic) {
+        String name = namesByTopic.get(topic);
+        if (name == null) {
+            name = prefix + topic;
+            if (namesByTopic.size() < MAX_SIZE) {
+                namesByTopic.putIfAbsent(topic, name);
+            }
+        }
+        return name;
+    }
+}
@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.kafka.helper;
+
+import co.elastic.apm.agent.AbstractInstrumentationTest;
+import co.elastic.apm.agent.configuration.MessagingConfiguration;
+import co.elastic.apm.agent.impl.transaction.SpanLinks;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.matcher.WildcardMatcher;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("rawtypes")
+class ConsumerRecordsIteratorWrapperTest extends AbstractInstrumentationTest {
+
+    private static final String TOPIC = "test-topic";
+
+    private MessagingConfiguration messagingConfiguration;
+    private final List<Transaction> producerTransactions = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        messagingConfiguration = config.getConfig(MessagingConfiguration.class);
+        producerTransactions.clear();
+    }
+
+    @Test
+    void testTransactionPerRecord() {
+        iterate(createRecords(TOPIC, 3));
+
+        List<Transaction> transactions = reporter.getTransactions();
+        assertThat(transactions).hasSize(3);
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            assertThat(transaction.getNameAsString()).isEqualTo("Kafka record from " + TOPIC);
+            assertThat(transaction.getTraceContext().getTraceId()).isEqualTo(producerTransactions.get(i).getTraceContext().getTraceId());
+            assertThat(transaction.getSpanLinks().size()).isZero();
+        }
+    }
+
+    @Test
+    void testTransactionPerBatch() {
+        when(messagingConfiguration.getMessageBatchStrategy()).thenReturn(MessagingConfiguration.BatchStrategy.BATCH_HANDLING);
+
+        iterate(createRecords(TOPIC, 3));
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        Transaction transaction = reporter.getFirstTransaction();
+        assertThat(transaction.getType()).isEqualTo("messaging");
+        assertThat(transaction.getNameAsString()).isEqualTo("Kafka records from " + TOPIC);
+        assertThat(transaction.getContext().getMessage().getQueueName()).isEqualTo(TOPIC);
+        assertThat(transaction.getTraceContext().isRoot()).isTrue();
+        SpanLinks spanLinks = transaction.getSpanLinks();
+        assertThat(spanLinks.size()).isEqualTo(3);
+        for (int i = 0; i < spanLinks.size(); i++) {
+            TraceContext producerContext = producerTransactions.get(i).getTraceContext();
+            assertThat(spanLinks.getTraceId(i)).isEqualTo(producerContext.getTraceId());
+            assertThat(spanLinks.getSpanId(i)).isEqualTo(producerContext.getId());
+        }
+    }
+
+    @Test
+    void testBatchMaxLinks() {
+        when(messagingConfiguration.getMessageBatchStrategy()).thenReturn(MessagingConfiguration.BatchStrategy.BATCH_HANDLING);
+        when(messagingConfiguration.getMessageBatchMaxLinks()).thenReturn(2);
+
+        iterate(createRecords(TOPIC, 10));
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        SpanLinks spanLinks = reporter.getFirstTransaction().getSpanLinks();
+        assertThat(spanLinks.size()).isEqualTo(2);
+        assertThat(spanLinks.getSeen()).isEqualTo(10);
+    }
+
+    @Test
+    void testBatchIgnoredTopic() {
+        when(messagingConfiguration.getMessageBatchStrategy()).thenReturn(MessagingConfiguration.BatchStrategy.BATCH_HANDLING);
+        when(messagingConfiguration.getIgnoreMessageQueues()).thenReturn(List.of(WildcardMatcher.valueOf(TOPIC)));
+
+        List<ConsumerRecord> records = createRecords(TOPIC, 2);
+        records.addAll(createRecords("other-topic", 2));
+        iterate(records);
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        Transaction transaction = reporter.getFirstTransaction();
+        assertThat(transaction.getNameAsString()).isEqualTo("Kafka records from other-topic");
+        assertThat(transaction.getSpanLinks().size()).isEqualTo(2);
+    }
+
+    private void iterate(List<ConsumerRecord> records) {
+        Iterator<ConsumerRecord> iterator = new ConsumerRecordsIteratorWrapper(records.iterator(), tracer);
+        int count = 0;
+        while (iterator.hasNext()) {
+            assertThat(iterator.next()).isSameAs(records.get(count++));
+        }
+        assertThat(count).isEqualTo(records.size());
+        assertThat(tracer.getActive()).isNull();
+    }
+
+    private List<ConsumerRecord> createRecords(String topic, int count) {
+        List<ConsumerRecord> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Transaction producerTransaction = tracer.startRootTransaction(null);
+            assertThat(producerTransaction).isNotNull();
+            producerTransactions.add(producerTransaction);
+            ProducerRecord<String, String> producerRecord = new ProducerRecord<>(topic, "key", "value");
+            producerTransaction.propagateTraceContext(producerRecord, KafkaRecordHeaderAccessor.instance());
+            RecordHeaders headers = new RecordHeaders();
+            headers.add(TraceContext.TRACE_PARENT_BINARY_HEADER_NAME,
+                producerRecord.headers().lastHeader(TraceContext.TRACE_PARENT_BINARY_HEADER_NAME).value().clone());
+            records.add(new ConsumerRecord<>(topic, 0, i, System.currentTimeMillis(), TimestampType.CREATE_TIME, null,
+                3, 5, "key", "value", headers));
+        }
+        reporter.reset();
+        return records;
+    }
+}
@@ -29,6 +29,7 @@ import co.elastic.apm.agent.report.AbstractIntakeApiHandler;
 import co.elastic.apm.agent.report.ApmServerClient;
 import co.elastic.apm.agent.report.ReporterConfiguration;
 import co.elastic.apm.agent.report.serialize.PayloadSerializer;
+import co.elastic.apm.agent.report.transport.IntakeRequest;
 import com.dslplatform.json.JsonWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,9 +37,7 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -59,8 +58,8 @@ public class ApmServerLogShipper extends AbstractIntakeApiHandler implements Fil
     public boolean onLineAvailable(TailableFile tailableFile, byte[] line, int offset, int length, boolean eol) throws IOException {
         tailableFiles.add(tailableFile);
         try {
-            if (connection == null) {
-                connection = startRequest(LOGS_ENDPOINT);
+            if (request == null) {
+                request = startRequest(LOGS_ENDPOINT);
             }
             if (os != null) {
                 File file = tailableFile.getFile();
@@ -84,16 +83,16 @@ public class ApmServerLogShipper extends AbstractIntakeApiHandler implements Fil
     }
 
     @Override
-    protected void onRequestSuccess() {
-        super.onRequestSuccess();
+    protected void onRequestSuccess(long transmittedEvents) {
+        super.onRequestSuccess(transmittedEvents);
         for (TailableFile tailableFile : tailableFiles) {
             tailableFile.ack();
         }
     }
 
     @Override
-    protected void onRequestError(Integer responseCode, InputStream inputStream, @Nullable IOException e) {
-        super.onRequestError(responseCode, inputStream, e);
+    protected void onRequestError(@Nullable Integer responseCode, @Nullable String responseBody, @Nullable IOException e, long transmittedEvents) {
+        super.onRequestError(responseCode, responseBody, e, transmittedEvents);
         for (TailableFile tailableFile : tailableFiles) {
             tailableFile.nak();
         }
@@ -118,11 +117,11 @@ public class ApmServerLogShipper extends AbstractIntakeApiHandler implements Fil
     }
 
     @Override
-    protected HttpURLConnection startRequest(String endpoint) throws IOException {
-        HttpURLConnection connection = super.startRequest(endpoint);
+    protected IntakeRequest startRequest(String endpoint) throws IOException {
+        IntakeRequest request = super.startRequest(endpoint);
         httpRequestClosingThreshold = System.currentTimeMillis() + reporterConfiguration.getApiRequestTime().getMillis();
         currentFile = null;
-        return connection;
+        return request;
     }
 
     @Override
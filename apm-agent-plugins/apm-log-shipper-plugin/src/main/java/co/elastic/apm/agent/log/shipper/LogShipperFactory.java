@@ -25,6 +25,7 @@
 package co.elastic.apm.agent.log.shipper;
 
 import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.context.DeferrableLifecycleListener;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.logging.Log4j2ConfigurationFactory;
@@ -41,7 +42,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 
-public class LogShipperFactory extends AbstractLifecycleListener {
+public class LogShipperFactory extends AbstractLifecycleListener implements DeferrableLifecycleListener {
 
     private static final Logger logger = LoggerFactory.getLogger(LogShipperFactory.class);
 
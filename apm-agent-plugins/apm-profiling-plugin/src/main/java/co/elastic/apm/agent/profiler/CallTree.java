@@ -198,6 +198,7 @@ public class CallTree implements Recyclable {
         if (index >= 1) {
             final StackFrame frame = stackFrames.get(--index);
             if (lastChild != null) {
+                // the frames resolved by the JfrParser are interned, so this is usually an identity check
                 if (!lastChild.isEnded() && frame.equals(lastChild.frame)) {
                     topOfStack = lastChild.addFrame(stackFrames, index, activeSpan, activationTimestamp, nanoTime, callTreePool, minDurationNs, root);
                     endChild = false;
@@ -28,13 +28,16 @@ import co.elastic.apm.agent.impl.ActivationListener;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Transaction;
 
+import javax.annotation.Nullable;
 import java.util.Objects;
 
 public class ProfilingActivationListener implements ActivationListener {
 
     private final ElasticApmTracer tracer;
     private final SamplingProfiler profiler;
+    private final ProfilingConfiguration config;
 
     public ProfilingActivationListener(ElasticApmTracer tracer) {
         this(tracer, Objects.requireNonNull(tracer.getLifecycleListener(SamplingProfiler.class)));
@@ -43,6 +46,7 @@ public class ProfilingActivationListener implements ActivationListener {
     ProfilingActivationListener(ElasticApmTracer tracer, SamplingProfiler profiler) {
         this.tracer = tracer;
         this.profiler = profiler;
+        this.config = tracer.getConfig(ProfilingConfiguration.class);
     }
 
     @Override
@@ -63,10 +67,31 @@ public class ProfilingActivationListener implements ActivationListener {
     public void afterDeactivate(AbstractSpan<?> deactivatedContext) {
         if (deactivatedContext.isSampled()) {
             AbstractSpan<?> active = tracer.getActive();
-            profiler.onDeactivation(deactivatedContext.getTraceContext(), active != null ? active.getTraceContext() : null);
+            if (active == null) {
+                profiler.onDeactivation(deactivatedContext.getTraceContext(), null, getLabelingTransaction(deactivatedContext));
+            } else {
+                profiler.onDeactivation(deactivatedContext.getTraceContext(), active.getTraceContext());
+            }
         }
     }
 
+    /**
+     * Returns the transaction whose name and type label the samples of the thread root.
+     * The profiler allocates a {@link String} for the transaction name,
+     * which is why it's only done when it's actually needed for continuous, allocation or lock profiling.
+     */
+    @Nullable
+    private Transaction getLabelingTransaction(AbstractSpan<?> threadRoot) {
+        if (!config.isContinuousProfilingEnabled() && !config.isAllocationProfilingEnabled() && !config.isLockProfilingEnabled()) {
+            return null;
+        }
+        Transaction transaction = threadRoot.getTransaction();
+        if (transaction == null || transaction.getNameForSerialization().length() == 0) {
+            return null;
+        }
+        return transaction;
+    }
+
     @Override
     public void afterDeactivate(ErrorCapture deactivatedError) {
         // noop
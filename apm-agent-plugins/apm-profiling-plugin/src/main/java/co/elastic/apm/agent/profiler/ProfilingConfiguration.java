@@ -24,14 +24,17 @@
  */
 package co.elastic.apm.agent.profiler;
 
-import co.elastic.apm.agent.configuration.converter.ListValueConverter;
+import co.elastic.apm.agent.configuration.converter.ByteValue;
+import co.elastic.apm.agent.configuration.converter.ByteValueConverter;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.configuration.converter.TimeDurationValueConverter;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherListValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherSet;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
 
+import javax.annotation.Nullable;
 import java.util.Arrays;
 import java.util.List;
 
@@ -101,7 +104,7 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(TimeDuration.of("0ms"));
 
     private final ConfigurationOption<List<WildcardMatcher>> includedClasses = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("profiling_inferred_spans_included_classes")
         .configurationCategory(PROFILING_CATEGORY)
         .description("If set, the agent will only create inferred spans for methods which match this list.\n" +
@@ -114,7 +117,7 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(WildcardMatcher.matchAllList());
 
     private final ConfigurationOption<List<WildcardMatcher>> excludedClasses = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("profiling_inferred_spans_excluded_classes")
         .configurationCategory(PROFILING_CATEGORY)
         .description("Excludes classes for which no profiler-inferred spans should be created.\n" +
@@ -122,7 +125,7 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
         .tags("added[1.15.0]")
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.caseSensitiveMatcher("java.*"),
             WildcardMatcher.caseSensitiveMatcher("javax.*"),
             WildcardMatcher.caseSensitiveMatcher("sun.*"),
@@ -136,7 +139,7 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.caseSensitiveMatcher("org.eclipse.jetty.*"),
             WildcardMatcher.caseSensitiveMatcher("com.ibm.websphere.*"),
             WildcardMatcher.caseSensitiveMatcher("io.undertow.*")
-        ));
+        )));
 
     private final ConfigurationOption<TimeDuration> profilerInterval = TimeDurationValueConverter.durationOption("s")
         .key("profiling_inferred_spans_interval")
@@ -163,6 +166,127 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .tags("added[1.15.0]", "internal")
         .buildWithDefault(TimeDuration.of("5s"));
 
+    private final ConfigurationOption<Boolean> continuousProfilingEnabled = ConfigurationOption.<Boolean>booleanOption()
+        .key("profiling_continuous_enabled")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("Set to `true` to continuously profile all threads of the JVM with\n" +
+            "https://github.com/jvm-profiling-tools/async-profiler[async-profiler] at a low frequency.\n" +
+            "\n" +
+            "The stack traces are aggregated and periodically written as gzip-compressed\n" +
+            "https://github.com/google/pprof[pprof] profiles to <<config-profiling-continuous-output-dir, `profiling_continuous_output_dir`>>.\n" +
+            "Stack traces which have been sampled while a sampled transaction or span was active on a thread\n" +
+            "are labeled with the service name and, if known when the transaction or span gets deactivated, with the transaction name.\n" +
+            "\n" +
+            "When enabled, profiling sessions run back-to-back instead of being started periodically.\n" +
+            "\n" +
+            "NOTE: This feature is not available on Windows")
+        .dynamic(true)
+        .tags("added[1.17.0]", "experimental")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<ContinuousProfilingEvent> continuousProfilingEvent = ConfigurationOption.enumOption(ContinuousProfilingEvent.class)
+        .key("profiling_continuous_event")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The event which triggers taking a sample when continuous profiling is enabled.\n" +
+            "\n" +
+            "`wall` samples threads regardless of whether they are running, waiting or blocked.\n" +
+            "`cpu` only samples threads which are running on a CPU.\n" +
+            "\n" +
+            "NOTE: When <<config-profiling-inferred-spans-enabled, `profiling_inferred_spans_enabled`>> is enabled, `wall` is always used.")
+        .dynamic(true)
+        .tags("added[1.17.0]", "experimental")
+        .buildWithDefault(ContinuousProfilingEvent.WALL);
+
+    private final ConfigurationOption<TimeDuration> continuousProfilingSamplingInterval = TimeDurationValueConverter.durationOption("ms")
+        .key("profiling_continuous_sampling_interval")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The frequency at which stack traces are gathered when continuous profiling is enabled.\n" +
+            "\n" +
+            "NOTE: When <<config-profiling-inferred-spans-enabled, `profiling_inferred_spans_enabled`>> is enabled,\n" +
+            "<<config-profiling-inferred-spans-sampling-interval, `profiling_inferred_spans_sampling_interval`>> is used instead.")
+        .dynamic(true)
+        .addValidator(isInRange(TimeDuration.of("1ms"), TimeDuration.of("1s")))
+        .tags("added[1.17.0]", "experimental")
+        .buildWithDefault(TimeDuration.of("100ms"));
+
+    private final ConfigurationOption<TimeDuration> continuousProfilingInterval = TimeDurationValueConverter.durationOption("s")
+        .key("profiling_continuous_interval")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The interval at which the aggregated continuous profile is written.\n" +
+            "Each profile covers the stack traces gathered since the previous one was written.")
+        .dynamic(true)
+        .addValidator(min(TimeDuration.of("1s")))
+        .tags("added[1.17.0]", "experimental")
+        .buildWithDefault(TimeDuration.of("60s"));
+
+    private final ConfigurationOption<String> continuousProfilingOutputDir = ConfigurationOption.stringOption()
+        .key("profiling_continuous_output_dir")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The directory where continuous profiles are written to.\n" +
+            "The files are named `profile-<epoch millis>.pb.gz` and can be analyzed with `go tool pprof`.\n" +
+            "Only the most recent profiles are kept.\n" +
+            "\n" +
+            "If not set, the agent uses a directory named after the <<config-service-name>>\n" +
+            "within the `elastic-apm-profiles-<user name>` directory in `java.io.tmpdir`.\n" +
+            "This directory can only be accessed by the user running the agent.\n" +
+            "If it exists but is owned by another user, no continuous profiles are written.")
+        .dynamic(false)
+        .tags("added[1.17.0]", "experimental")
+        .build();
+
+    private final ConfigurationOption<Boolean> allocationProfilingEnabled = ConfigurationOption.<Boolean>booleanOption()
+        .key("profiling_allocation_enabled")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("Set to `true` to periodically record heap allocations of all threads with\n" +
+            "https://github.com/jvm-profiling-tools/async-profiler[async-profiler].\n" +
+            "\n" +
+            "The agent reports the metric `profiling.allocation.bytes`,\n" +
+            "an estimation of the bytes allocated during the allocation profiling sessions,\n" +
+            "which can be filtered and grouped by `transaction.name`.\n" +
+            "Allocations which happened outside of a sampled transaction don't have a `transaction.name`.\n" +
+            "\n" +
+            "Async-profiler can only record one kind of event at a time.\n" +
+            "Allocation profiling sessions therefore take turns with the wall clock and lock profiling sessions.\n" +
+            "\n" +
+            "NOTE: This feature is not available on Windows")
+        .dynamic(true)
+        .tags("added[1.17.0]", "experimental")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<ByteValue> allocationProfilingInterval = ByteValueConverter.byteOption()
+        .key("profiling_allocation_interval")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The average amount of allocated bytes between two allocation samples.\n" +
+            "\n" +
+            "Lower values increase the resolution but also the overhead.\n" +
+            "\n" +
+            "Allocations are sampled when a thread-local allocation buffer (TLAB) is exhausted,\n" +
+            "and at most one sample is recorded per TLAB.\n" +
+            "Therefore, intervals lower than the typical size of a TLAB lead to an underestimation of the allocated bytes.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(true)
+        .tags("added[1.17.0]", "experimental")
+        .buildWithDefault(ByteValue.of("4mb"));
+
+    private final ConfigurationOption<Boolean> lockProfilingEnabled = ConfigurationOption.<Boolean>booleanOption()
+        .key("profiling_lock_enabled")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("Set to `true` to periodically record contended monitor acquisitions (`synchronized`) of all threads with\n" +
+            "https://github.com/jvm-profiling-tools/async-profiler[async-profiler].\n" +
+            "\n" +
+            "The agent reports the metric `profiling.lock.contended.count`,\n" +
+            "the number of times a thread had to wait for a monitor held by another thread during the lock profiling sessions.\n" +
+            "It can be filtered and grouped by `transaction.name` and by the class of the monitor (`labels.lock_class`).\n" +
+            "\n" +
+            "Async-profiler can only record one kind of event at a time.\n" +
+            "Lock profiling sessions therefore take turns with the wall clock and allocation profiling sessions.\n" +
+            "\n" +
+            "NOTE: This feature is not available on Windows")
+        .dynamic(true)
+        .tags("added[1.17.0]", "experimental")
+        .buildWithDefault(false);
+
     public boolean isProfilingEnabled() {
         return profilingEnabled.get();
     }
@@ -206,4 +330,47 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
     public boolean isBackupDiagnosticFiles() {
         return backupDiagnosticFiles.get();
     }
+
+    public boolean isContinuousProfilingEnabled() {
+        return continuousProfilingEnabled.get();
+    }
+
+    public ContinuousProfilingEvent getContinuousProfilingEvent() {
+        return continuousProfilingEvent.get();
+    }
+
+    public TimeDuration getContinuousProfilingSamplingInterval() {
+        return continuousProfilingSamplingInterval.get();
+    }
+
+    public TimeDuration getContinuousProfilingInterval() {
+        return continuousProfilingInterval.get();
+    }
+
+    @Nullable
+    public String getContinuousProfilingOutputDir() {
+        return continuousProfilingOutputDir.get();
+    }
+
+    public boolean isAllocationProfilingEnabled() {
+        return allocationProfilingEnabled.get();
+    }
+
+    public ByteValue getAllocationProfilingInterval() {
+        return allocationProfilingInterval.get();
+    }
+
+    public boolean isLockProfilingEnabled() {
+        return lockProfilingEnabled.get();
+    }
+
+    public enum ContinuousProfilingEvent {
+        WALL,
+        CPU;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
 }
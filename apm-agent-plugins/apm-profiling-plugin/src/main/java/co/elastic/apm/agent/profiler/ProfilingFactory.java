@@ -25,13 +25,14 @@
 package co.elastic.apm.agent.profiler;
 
 import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.context.DeferrableLifecycleListener;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.util.ExecutorUtils;
 
 import java.io.File;
 import java.io.IOException;
 
-public class ProfilingFactory extends AbstractLifecycleListener {
+public class ProfilingFactory extends AbstractLifecycleListener implements DeferrableLifecycleListener {
 
     private final SamplingProfiler profiler;
     private final NanoClock nanoClock;
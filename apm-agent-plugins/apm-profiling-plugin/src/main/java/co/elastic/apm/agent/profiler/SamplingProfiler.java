@@ -31,17 +31,21 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.objectpool.Allocator;
 import co.elastic.apm.agent.objectpool.ObjectPool;
 import co.elastic.apm.agent.objectpool.impl.ListBasedObjectPool;
 import co.elastic.apm.agent.profiler.asyncprofiler.AsyncProfiler;
 import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
 import co.elastic.apm.agent.profiler.collections.Long2ObjectHashMap;
+import co.elastic.apm.agent.profiler.pprof.PprofProfile;
 import co.elastic.apm.agent.util.ExecutorUtils;
+import co.elastic.apm.agent.util.IOUtils;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventPoller;
-import com.lmax.disruptor.EventTranslatorTwoArg;
+import com.lmax.disruptor.EventTranslatorThreeArg;
 import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.Sequence;
 import com.lmax.disruptor.SequenceBarrier;
@@ -51,7 +55,10 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
@@ -59,16 +66,20 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
 
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
@@ -119,9 +130,29 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * {@link ProfilingConfiguration#getProfilingInterval()} and {@link ProfilingConfiguration#getSamplingInterval()}.
  * Having said that, there are some optimizations so that the JFR file is not processed at all if there have not been any
  * {@link ActivationEvent} in a given profiling session.
- * Also, only if there's a {@link CallTree.Root} for a {@link StackTraceEvent},
+ * Also, only if there's a {@link CallTree.Root} for a stack trace event,
  * we will {@link JfrParser#resolveStackTrace(long, boolean, List, int) resolve the full stack trace}.
  * </p>
+ * <p>
+ * Continuous profiling:
+ * </p>
+ * <p>
+ * When {@link ProfilingConfiguration#isContinuousProfilingEnabled()} is set, async-profiler samples all threads,
+ * not only the ones which have an active span, and profiling sessions run back-to-back.
+ * The {@link StackTraceAggregator} counts the stack trace events of each session,
+ * labeled with the transaction which was active on the thread, and adds them to a {@link PprofProfile}.
+ * Once per {@link ProfilingConfiguration#getContinuousProfilingInterval()}, the profile is written to a gzip-compressed pprof file.
+ * </p>
+ * <p>
+ * Allocation and lock profiling:
+ * </p>
+ * <p>
+ * async-profiler can only record one kind of event per session.
+ * If {@link ProfilingConfiguration#isAllocationProfilingEnabled()} or {@link ProfilingConfiguration#isLockProfilingEnabled()} is set,
+ * the {@link SessionType}s take turns.
+ * The allocation and lock samples are attributed to transactions in the same way as continuous profiling samples,
+ * by the {@link StackTraceAggregator}, and are reported as metrics.
+ * </p>
  */
 public class SamplingProfiler extends AbstractLifecycleListener implements Runnable {
 
@@ -131,18 +162,24 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private static final int PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB = 10;
     private static final int MAX_ACTIVATION_EVENTS_FILE_SIZE = ACTIVATION_EVENTS_IN_FILE * ActivationEvent.SERIALIZED_SIZE;
     private static final int ACTIVATION_EVENTS_BUFFER_SIZE = ActivationEvent.SERIALIZED_SIZE * 4 * 1024;
-    private final EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext> ACTIVATION_EVENT_TRANSLATOR =
-        new EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext>() {
+    private static final int MAX_CONTINUOUS_PROFILE_FILES = 60;
+    private static final String CONTINUOUS_PROFILE_FILE_PREFIX = "profile-";
+    private static final String CONTINUOUS_PROFILE_FILE_SUFFIX = ".pb.gz";
+    static final String ALLOCATION_BYTES_METRIC = "profiling.allocation.bytes";
+    static final String LOCK_CONTENDED_METRIC = "profiling.lock.contended.count";
+    static final String LOCK_CLASS_LABEL = "lock_class";
+    private final EventTranslatorThreeArg<ActivationEvent, TraceContext, TraceContext, Transaction> ACTIVATION_EVENT_TRANSLATOR =
+        new EventTranslatorThreeArg<ActivationEvent, TraceContext, TraceContext, Transaction>() {
             @Override
-            public void translateTo(ActivationEvent event, long sequence, TraceContext active, TraceContext previouslyActive) {
+            public void translateTo(ActivationEvent event, long sequence, TraceContext active, TraceContext previouslyActive, Transaction transaction) {
                 event.activation(active, Thread.currentThread().getId(), previouslyActive, nanoClock.nanoTime());
             }
         };
-    private final EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext> DEACTIVATION_EVENT_TRANSLATOR =
-        new EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext>() {
+    private final EventTranslatorThreeArg<ActivationEvent, TraceContext, TraceContext, Transaction> DEACTIVATION_EVENT_TRANSLATOR =
+        new EventTranslatorThreeArg<ActivationEvent, TraceContext, TraceContext, Transaction>() {
             @Override
-            public void translateTo(ActivationEvent event, long sequence, TraceContext active, TraceContext previouslyActive) {
-                event.deactivation(active, Thread.currentThread().getId(), previouslyActive, nanoClock.nanoTime());
+            public void translateTo(ActivationEvent event, long sequence, TraceContext active, TraceContext previouslyActive, @Nullable Transaction transaction) {
+                event.deactivation(active, Thread.currentThread().getId(), previouslyActive, nanoClock.nanoTime(), transaction);
             }
         };
     // sizeof(ActivationEvent) is 176B so the ring buffer should be around 880KiB
@@ -164,6 +201,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private final WriteActivationEventToFileHandler writeActivationEventToFileHandler = new WriteActivationEventToFileHandler();
     @Nullable
     private JfrParser jfrParser;
+    @Nullable
+    private StackTraceEventStreams stackTraceEvents;
     private volatile int profilingSessions;
 
     private final ByteBuffer activationEventsBuffer;
@@ -173,6 +212,11 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private final FileChannel activationEventsFileChannel;
     private final ObjectPool<CallTree> callTreePool;
     private final TraceContext contextForLogging;
+    private final StackTraceAggregator stackTraceAggregator = new StackTraceAggregator();
+    private final PprofProfile continuousProfile = new PprofProfile();
+    private final SessionMetricsReporter sessionMetricsReporter = new SessionMetricsReporter();
+    private final Set<SessionType> failedSessionTypes = EnumSet.noneOf(SessionType.class);
+    private SessionType sessionType = SessionType.WALL_CLOCK;
 
     public SamplingProfiler(ElasticApmTracer tracer, NanoClock nanoClock) throws IOException {
         this(tracer,
@@ -261,7 +305,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             if (previouslyActive == null) {
                 AsyncProfiler.getInstance().enableProfilingCurrentThread();
             }
-            boolean success = eventBuffer.tryPublishEvent(ACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive);
+            boolean success = eventBuffer.tryPublishEvent(ACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive, null);
             if (!success && logger.isDebugEnabled()) {
                 logger.debug("Could not add activation event to ring buffer as no slots are available");
             }
@@ -282,11 +326,23 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
      * @return {@code true}, if the event could be processed, {@code false} if the internal event queue is full which means the event has been discarded
      */
     public boolean onDeactivation(TraceContext activeSpan, @Nullable TraceContext previouslyActive) {
+        return onDeactivation(activeSpan, previouslyActive, null);
+    }
+
+    /**
+     * Called whenever a span is deactivated.
+     *
+     * @param activeSpan       the span which is about to be activated
+     * @param previouslyActive the span which has previously been activated
+     * @param transaction      the transaction whose name and type are used to label the samples when the thread root gets deactivated
+     * @return {@code true}, if the event could be processed, {@code false} if the internal event queue is full which means the event has been discarded
+     */
+    public boolean onDeactivation(TraceContext activeSpan, @Nullable TraceContext previouslyActive, @Nullable Transaction transaction) {
         if (profilingSessionOngoing) {
             if (previouslyActive == null) {
                 AsyncProfiler.getInstance().disableProfilingCurrentThread();
             }
-            boolean success = eventBuffer.tryPublishEvent(DEACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive);
+            boolean success = eventBuffer.tryPublishEvent(DEACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive, transaction);
             if (!success && logger.isDebugEnabled()) {
                 logger.debug("Could not add deactivation event to ring buffer as no slots are available");
             }
@@ -297,9 +353,14 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
     @Override
     public void run() {
-        if (config.isProfilingDisabled() || !tracer.isRunning()) {
+        if (!config.isContinuousProfilingEnabled() && continuousProfile.getStartTimeMillis() != 0) {
+            continuousProfile.resetState();
+            stackTraceAggregator.resetState();
+        }
+        if (!isAnyProfilingEnabled() || !tracer.isRunning()) {
             if (jfrParser != null) {
                 jfrParser = null;
+                stackTraceEvents = null;
                 rootPool.clear();
                 callTreePool.clear();
             }
@@ -307,12 +368,15 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             return;
         }
 
-        TimeDuration sampleRate = config.getSamplingInterval();
+        if (!isSessionTypeEnabled(sessionType)) {
+            sessionType = getNextSessionType(sessionType);
+        }
+        TimeDuration sampleRate = getSessionSamplingInterval();
         TimeDuration profilingDuration = config.getProfilingDuration();
 
         setProfilingSessionOngoing(true);
 
-        logger.debug("Start profiling session");
+        logger.debug("Start {} profiling session", sessionType);
         try {
             profile(sampleRate, profilingDuration);
         } catch (Throwable t) {
@@ -320,23 +384,118 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             logger.error("Stopping profiler", t);
             return;
         }
-        logger.debug("End profiling session");
+        logger.debug("End {} profiling session", sessionType);
 
         boolean interrupted = Thread.currentThread().isInterrupted();
-        boolean continueProfilingSession = config.isNonStopProfiling() && !interrupted && config.isProfilingEnabled();
+        SessionType nextSessionType = getNextSessionType(sessionType);
+        // the sessions of different types run back-to-back, the profiling interval applies when starting over
+        long delay = config.isContinuousProfilingEnabled() || nextSessionType.ordinal() > sessionType.ordinal()
+            ? 0
+            : config.getProfilingInterval().getMillis() - profilingDuration.getMillis();
+        boolean continueProfilingSession = delay <= 0 && !interrupted && isAnyProfilingEnabled();
         setProfilingSessionOngoing(continueProfilingSession);
+        if (continueProfilingSession && nextSessionType != sessionType) {
+            // call trees can only be built from consecutive wall clock samples
+            // but the thread roots known to the stack trace aggregator are retained
+            clearProfiledThreads();
+        }
 
         if (!interrupted) {
-            long delay = config.getProfilingInterval().getMillis() - profilingDuration.getMillis();
+            sessionType = nextSessionType;
             scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
         }
     }
 
+    private boolean isAnyProfilingEnabled() {
+        for (SessionType type : SessionType.values()) {
+            if (isSessionTypeEnabled(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSessionTypeEnabled(SessionType type) {
+        switch (type) {
+            case ALLOCATION:
+                return config.isAllocationProfilingEnabled() && !failedSessionTypes.contains(type);
+            case LOCK:
+                return config.isLockProfilingEnabled() && !failedSessionTypes.contains(type);
+            default:
+                return config.isProfilingEnabled() || config.isContinuousProfilingEnabled();
+        }
+    }
+
+    /**
+     * Returns the next enabled session type after the given one, which may be the given one itself
+     */
+    private SessionType getNextSessionType(SessionType current) {
+        SessionType[] types = SessionType.values();
+        for (int i = 1; i <= types.length; i++) {
+            SessionType type = types[(current.ordinal() + i) % types.length];
+            if (isSessionTypeEnabled(type)) {
+                return type;
+            }
+        }
+        return SessionType.WALL_CLOCK;
+    }
+
+    /**
+     * Whether the stack traces of the current session are counted by the {@link StackTraceAggregator}
+     */
+    private boolean isAggregatingSamples() {
+        return sessionType != SessionType.WALL_CLOCK || config.isContinuousProfilingEnabled();
+    }
+
+    /**
+     * Whether thread roots are registered with the {@link StackTraceAggregator}.
+     * <p>
+     * This does not depend on the type of the current session,
+     * as a root which is activated during a wall clock session may still be active during the next allocation or lock session.
+     * </p>
+     */
+    private boolean isTrackingThreadRoots() {
+        return config.isContinuousProfilingEnabled() || config.isAllocationProfilingEnabled() || config.isLockProfilingEnabled();
+    }
+
+    private boolean isInferringSpans() {
+        return sessionType == SessionType.WALL_CLOCK && !isContinuousProfilingOnly();
+    }
+
+    /**
+     * Inferring spans requires wall clock samples at the configured {@link ProfilingConfiguration#getSamplingInterval()},
+     * only if continuous profiling is the only profiling mode, its own sampling interval and event can be used.
+     */
+    private boolean isContinuousProfilingOnly() {
+        return config.isContinuousProfilingEnabled() && config.isProfilingDisabled();
+    }
+
+    private TimeDuration getSessionSamplingInterval() {
+        return isContinuousProfilingOnly() ? config.getContinuousProfilingSamplingInterval() : config.getSamplingInterval();
+    }
+
+    private String getSessionEvent() {
+        return isContinuousProfilingOnly() ? config.getContinuousProfilingEvent().toString() : ProfilingConfiguration.ContinuousProfilingEvent.WALL.toString();
+    }
+
     private void profile(TimeDuration sampleRate, TimeDuration profilingDuration) throws Exception {
         AsyncProfiler asyncProfiler = AsyncProfiler.getInstance();
         try {
-            String startCommand = "start,jfr,event=wall,cstack=n,interval=" + sampleRate.getMillis() + "ms,filter,file=" + jfrFile + ",safemode=" + config.getAsyncProfilerSafeMode();
-            String startMessage = asyncProfiler.execute(startCommand);
+            if (sessionType == SessionType.WALL_CLOCK && config.isContinuousProfilingEnabled() && continuousProfile.getStartTimeMillis() == 0) {
+                continuousProfile.start(getSessionEvent(), System.currentTimeMillis());
+            }
+            String startMessage;
+            try {
+                startMessage = asyncProfiler.execute(getStartCommand(sampleRate));
+            } catch (IllegalStateException e) {
+                if (sessionType == SessionType.WALL_CLOCK) {
+                    throw e;
+                }
+                // for example, allocation profiling is not supported by all JVMs
+                logger.warn("Disabling {} profiling as the profiling session could not be started: {}", sessionType, e.getMessage());
+                failedSessionTypes.add(sessionType);
+                return;
+            }
             logger.debug(startMessage);
             if (!profiledThreads.isEmpty()) {
                 restoreFilterState(asyncProfiler);
@@ -358,6 +517,20 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         }
     }
 
+    private String getStartCommand(TimeDuration sampleRate) {
+        String fileAndSafeMode = "file=" + jfrFile + ",safemode=" + config.getAsyncProfilerSafeMode();
+        // allocation, lock and continuous profiling sample all threads, otherwise only the threads which have an active span are sampled
+        switch (sessionType) {
+            case ALLOCATION:
+                return "start,jfr,event=alloc,interval=" + config.getAllocationProfilingInterval().getBytes() + "," + fileAndSafeMode;
+            case LOCK:
+                return "start,jfr,event=lock," + fileAndSafeMode;
+            default:
+                return "start,jfr,event=" + getSessionEvent() + ",cstack=n,interval=" + sampleRate.getMillis() + "ms," +
+                    (config.isContinuousProfilingEnabled() ? "" : "filter,") + fileAndSafeMode;
+        }
+    }
+
     /**
      * When doing continuous profiling (interval=duration),
      * we have to tell async-profiler which threads it should profile after re-starting it.
@@ -410,11 +583,18 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         if (jfrParser == null) {
             jfrParser = new JfrParser();
         }
+        if (stackTraceEvents == null) {
+            stackTraceEvents = new StackTraceEventStreams();
+        }
+        final JfrParser jfrParser = this.jfrParser;
+        final StackTraceEventStreams stackTraceEvents = this.stackTraceEvents;
         if (Thread.currentThread().isInterrupted()) {
             return;
         }
-        long eof = startProcessingActivationEventsFile();
-        if (eof == 0 && activationEventsBuffer.limit() == 0 && profiledThreads.isEmpty()) {
+        final long eof = startProcessingActivationEventsFile();
+        final boolean continuousProfiling = sessionType == SessionType.WALL_CLOCK && config.isContinuousProfilingEnabled();
+        final boolean aggregateSamples = isAggregatingSamples();
+        if (!aggregateSamples && eof == 0 && activationEventsBuffer.limit() == 0 && profiledThreads.isEmpty()) {
             logger.debug("No activation events during this period. Skip processing stack traces.");
             return;
         }
@@ -425,48 +605,138 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             backupDiagnosticFiles(eof);
         }
         try {
+            // the included and excluded classes only apply to the call trees,
+            // the stack trace aggregator resolves the full stack traces from the same parsed file
             jfrParser.parse(jfrFile, excludedClasses, includedClasses);
-            final List<StackTraceEvent> stackTraceEvents = getSortedStackTraceEvents(jfrParser);
+            jfrParser.consumeStackTraces(stackTraceEvents);
             if (logger.isDebugEnabled()) {
                 logger.debug("Processing {} stack traces", stackTraceEvents.size());
             }
-            List<StackFrame> stackFrames = new ArrayList<>();
-            ElasticApmTracer tracer = this.tracer;
-            ActivationEvent event = new ActivationEvent();
-            long inferredSpansMinDuration = getInferredSpansMinDurationNs();
-            for (StackTraceEvent stackTrace : stackTraceEvents) {
-                processActivationEventsUpTo(stackTrace.nanoTime, event, eof);
-                CallTree.Root root = profiledThreads.get(stackTrace.threadId);
-                if (root != null) {
-                    jfrParser.resolveStackTrace(stackTrace.stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
-                    if (stackFrames.size() == MAX_STACK_DEPTH) {
-                        logger.debug("Max stack depth reached. Set profiling_included_classes or profiling_excluded_classes.");
-                    }
-                    // stack frames may not contain any Java frames
-                    // see https://github.com/jvm-profiling-tools/async-profiler/issues/271#issuecomment-582430233
-                    if (!stackFrames.isEmpty()) {
-                        try {
-                            root.addStackTrace(tracer, stackFrames, stackTrace.nanoTime, callTreePool, inferredSpansMinDuration);
-                        } catch (Exception e) {
-                            logger.warn("Removing call tree for thread {} because of exception while adding a stack trace: {} {}",
-                                stackTrace.threadId, e.getClass(), e.getMessage());
-                            logger.debug(e.getMessage(), e);
-                            profiledThreads.remove(stackTrace.threadId);
-                        }
-                    }
+            final List<StackFrame> stackFrames = new ArrayList<>();
+            final ElasticApmTracer tracer = this.tracer;
+            final ActivationEvent event = new ActivationEvent();
+            final long inferredSpansMinDuration = getInferredSpansMinDurationNs();
+            stackTraceEvents.consumeInOrder(new JfrParser.StackTraceConsumer() {
+                @Override
+                public void onCallTree(long threadId, long stackTraceId, long nanoTime) throws IOException {
+                    processStackTrace(jfrParser, threadId, stackTraceId, nanoTime, event, eof, stackFrames, tracer, inferredSpansMinDuration, aggregateSamples);
                 }
-                stackFrames.clear();
-            }
+            });
             // process all activation events that happened after the last stack trace event
             // otherwise we may miss root deactivations
             processActivationEventsUpTo(System.nanoTime(), event, eof);
+            if (sessionType != SessionType.WALL_CLOCK) {
+                stackTraceAggregator.flushTopFrames(jfrParser, sessionMetricsReporter);
+            } else if (continuousProfiling) {
+                addToContinuousProfile(jfrParser);
+            }
         } finally {
             if (logger.isDebugEnabled()) {
                 logger.debug("Processing traces took {}µs", (System.nanoTime() - start) / 1000);
             }
             jfrParser.resetState();
+            stackTraceEvents.resetState();
             resetActivationEventBuffer();
         }
+        if (continuousProfiling) {
+            writeContinuousProfileIfDue();
+        }
+    }
+
+    private void addToContinuousProfile(JfrParser jfrParser) throws IOException {
+        if (continuousProfile.getStartTimeMillis() == 0) {
+            continuousProfile.start(getSessionEvent(), System.currentTimeMillis());
+        }
+        stackTraceAggregator.flush(jfrParser, continuousProfile, getSessionSamplingInterval().getMillis() * 1_000_000);
+    }
+
+    private void writeContinuousProfileIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - continuousProfile.getStartTimeMillis() < config.getContinuousProfilingInterval().getMillis()) {
+            return;
+        }
+        if (!continuousProfile.isEmpty()) {
+            try {
+                writeContinuousProfile(now);
+            } catch (IOException e) {
+                logger.warn("Failed to write continuous profile: {}", e.getMessage());
+                logger.debug(e.getMessage(), e);
+            }
+        }
+        continuousProfile.start(getSessionEvent(), now);
+    }
+
+    private void writeContinuousProfile(long now) throws IOException {
+        File directory = getContinuousProfilingOutputDirectory();
+        File file = new File(directory, CONTINUOUS_PROFILE_FILE_PREFIX + now + CONTINUOUS_PROFILE_FILE_SUFFIX);
+        // written to a temporary file first so that consumers of the directory never see partially written profiles
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        try (OutputStream os = new GZIPOutputStream(new FileOutputStream(tempFile))) {
+            continuousProfile.writeTo(os, now);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Wrote continuous profile to {}", file);
+        deleteOldContinuousProfiles(directory);
+    }
+
+    File getContinuousProfilingOutputDirectory() throws IOException {
+        String outputDir = config.getContinuousProfilingOutputDir();
+        if (outputDir != null) {
+            File directory = new File(outputDir);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory " + directory);
+            }
+            return directory;
+        }
+        // the profiles reveal the code of the application, so the default directory must not be readable by other users
+        return IOUtils.createPrivateTempDirectory("elastic-apm-profiles", coreConfig.getServiceName());
+    }
+
+    private static void deleteOldContinuousProfiles(File directory) {
+        File[] profiles = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(CONTINUOUS_PROFILE_FILE_PREFIX) && name.endsWith(CONTINUOUS_PROFILE_FILE_SUFFIX);
+            }
+        });
+        if (profiles != null && profiles.length > MAX_CONTINUOUS_PROFILE_FILES) {
+            // the names contain the epoch millis so that the lexicographical order is the chronological order
+            Arrays.sort(profiles);
+            for (int i = 0; i < profiles.length - MAX_CONTINUOUS_PROFILE_FILES; i++) {
+                if (!profiles[i].delete()) {
+                    logger.debug("Could not delete old continuous profile {}", profiles[i]);
+                }
+            }
+        }
+    }
+
+    private void processStackTrace(JfrParser jfrParser, long threadId, long stackTraceId, long nanoTime, ActivationEvent event, long eof,
+                                   List<StackFrame> stackFrames, ElasticApmTracer tracer, long inferredSpansMinDuration,
+                                   boolean aggregateSamples) throws IOException {
+        processActivationEventsUpTo(nanoTime, event, eof);
+        if (aggregateSamples) {
+            stackTraceAggregator.onStackTrace(threadId, stackTraceId);
+        }
+        CallTree.Root root = profiledThreads.get(threadId);
+        if (root != null) {
+            jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
+            if (stackFrames.size() == MAX_STACK_DEPTH) {
+                logger.debug("Max stack depth reached. Set profiling_included_classes or profiling_excluded_classes.");
+            }
+            // stack frames may not contain any Java frames
+            // see https://github.com/jvm-profiling-tools/async-profiler/issues/271#issuecomment-582430233
+            if (!stackFrames.isEmpty()) {
+                try {
+                    root.addStackTrace(tracer, stackFrames, nanoTime, callTreePool, inferredSpansMinDuration);
+                } catch (Exception e) {
+                    logger.warn("Removing call tree for thread {} because of exception while adding a stack trace: {} {}",
+                        threadId, e.getClass(), e.getMessage());
+                    logger.debug(e.getMessage(), e);
+                    profiledThreads.remove(threadId);
+                }
+            }
+        }
+        stackFrames.clear();
     }
 
     private void backupDiagnosticFiles(long eof) throws IOException {
@@ -490,26 +760,6 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         return Math.max(config.getInferredSpansMinDuration().getMillis(), coreConfig.getSpanMinDuration().getMillis()) * 1_000_000;
     }
 
-    /**
-     * Returns stack trace events of relevant threads sorted by timestamp.
-     * The events in the JFR file are not in order.
-     * Even for the same thread, a more recent event might come before an older event.
-     * In order to be able to correlate stack trace events and activation events, both need to be in order.
-     *
-     * Returns only events for threads where at least one activation happened (because only those are profiled by async-profiler)
-     */
-    private List<StackTraceEvent> getSortedStackTraceEvents(JfrParser jfrParser) throws IOException {
-        final List<StackTraceEvent> stackTraceEvents = new ArrayList<>();
-        jfrParser.consumeStackTraces(new JfrParser.StackTraceConsumer() {
-            @Override
-            public void onCallTree(long threadId, long stackTraceId, long nanoTime) {
-                stackTraceEvents.add(new StackTraceEvent(nanoTime, stackTraceId, threadId));
-            }
-        });
-        Collections.sort(stackTraceEvents);
-        return stackTraceEvents;
-    }
-
     void processActivationEventsUpTo(long timestamp, long eof) throws IOException {
         processActivationEventsUpTo(timestamp, new ActivationEvent(), eof);
     }
@@ -566,6 +816,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     public void resetActivationEventBuffer() throws IOException {
         ((Buffer) activationEventsBuffer).clear();
         activationEventsFileChannel.position(0L);
+        // there are no serialized events left which could refer to the interned names
+        ActivationEvent.clearInternedNames();
     }
 
     private void flushActivationEvents() throws IOException {
@@ -615,6 +867,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         this.profilingSessionOngoing = profilingSessionOngoing;
         if (!profilingSessionOngoing) {
             clearProfiledThreads();
+            stackTraceAggregator.resetState();
         } else if (!profiledThreads.isEmpty() && logger.isDebugEnabled()) {
             logger.debug("Retaining {} call tree roots", profiledThreads.size());
         }
@@ -652,53 +905,71 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     int getProfilingSessions() {
         return profilingSessions;
     }
-    // --
-
-    public static class StackTraceEvent implements Comparable<StackTraceEvent> {
-        private final long nanoTime;
-        private final long stackTraceId;
-        private final long threadId;
-
-        private StackTraceEvent(long nanoTime, long stackTraceId, long threadId) {
-            this.nanoTime = nanoTime;
-            this.stackTraceId = stackTraceId;
-            this.threadId = threadId;
-        }
 
-        public long getThreadId() {
-            return threadId;
-        }
-
-        public long getNanoTime() {
-            return nanoTime;
-        }
-
-        public long getStackTraceId() {
-            return stackTraceId;
-        }
+    // for testing
+    void setSessionType(SessionType sessionType) {
+        this.sessionType = sessionType;
+    }
 
-        @Override
-        public int compareTo(StackTraceEvent o) {
-            return Long.compare(nanoTime, o.nanoTime);
-        }
+    SessionType getSessionType() {
+        return sessionType;
     }
+    // --
 
     private static class ActivationEvent {
         public static final int SERIALIZED_SIZE =
             Long.SIZE / Byte.SIZE + // timestamp
                 Short.SIZE / Byte.SIZE + // serviceName index
+                Short.SIZE / Byte.SIZE + // transactionName index
+                Short.SIZE / Byte.SIZE + // transactionType index
                 TraceContext.SERIALIZED_LENGTH + // traceContextBuffer
                 TraceContext.SERIALIZED_LENGTH + // previousContextBuffer
                 1 + // rootContext
                 Long.SIZE / Byte.SIZE + // threadId
                 1; // activation
 
+        /**
+         * Limits the number of distinct transaction names per profiling session in case of high-cardinality names.
+         * Samples of transactions whose name exceeds the limit are only labeled with the service name.
+         * The interned names are {@linkplain #clearInternedNames() cleared} whenever the activation events have been processed,
+         * so that transactions which only show up later in the lifetime of the JVM can still be labeled.
+         */
+        private static final int MAX_TRANSACTION_NAMES = 1000;
+        private static final int MAX_TRANSACTION_TYPES = 100;
+        private static final short NO_TRANSACTION_NAME = -1;
+        private static final short NO_TRANSACTION_TYPE = -1;
         private static final Map<String, Short> serviceNameMap = new HashMap<>();
         private static final Map<Short, String> serviceNameBackMap = new HashMap<>();
+        private static final Map<String, Short> transactionNameMap = new HashMap<>();
+        private static final Map<Short, String> transactionNameBackMap = new HashMap<>();
+        private static final Map<String, Short> transactionTypeMap = new HashMap<>();
+        private static final Map<Short, String> transactionTypeBackMap = new HashMap<>();
+
+        /**
+         * Must only be called when there are no serialized events which have not been deserialized yet
+         */
+        static void clearInternedNames() {
+            serviceNameMap.clear();
+            serviceNameBackMap.clear();
+            transactionNameMap.clear();
+            transactionNameBackMap.clear();
+            transactionTypeMap.clear();
+            transactionTypeBackMap.clear();
+        }
 
         private long timestamp;
         @Nullable
         private String serviceName;
+        /**
+         * Only set for deactivation events of a thread root while continuous, allocation or lock profiling is enabled
+         */
+        @Nullable
+        private String transactionName;
+        /**
+         * Set alongside the {@link #transactionName}
+         */
+        @Nullable
+        private String transactionType;
         private byte[] traceContextBuffer = new byte[TraceContext.SERIALIZED_LENGTH];
         private byte[] previousContextBuffer = new byte[TraceContext.SERIALIZED_LENGTH];
         private boolean rootContext;
@@ -706,18 +977,27 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         private boolean activation;
 
         public void activation(TraceContext context, long threadId, @Nullable TraceContext previousContext, long nanoTime) {
-            set(context, threadId, true, previousContext != null ? previousContext : null, nanoTime);
+            set(context, threadId, true, previousContext != null ? previousContext : null, nanoTime, null, null);
         }
 
-        public void deactivation(TraceContext context, long threadId, @Nullable TraceContext previousContext, long nanoTime) {
-            set(context, threadId, false, previousContext != null ? previousContext : null, nanoTime);
+        public void deactivation(TraceContext context, long threadId, @Nullable TraceContext previousContext, long nanoTime, @Nullable Transaction transaction) {
+            if (transaction != null) {
+                String type = transaction.getType();
+                // the transaction may not have ended yet, it will be reported with the default type if none is set until then
+                set(context, threadId, false, previousContext, nanoTime, transaction.getNameAsString(), type != null ? type : "custom");
+            } else {
+                set(context, threadId, false, previousContext, nanoTime, null, null);
+            }
         }
 
-        private void set(TraceContext traceContext, long threadId, boolean activation, @Nullable TraceContext previousContext, long nanoTime) {
+        private void set(TraceContext traceContext, long threadId, boolean activation, @Nullable TraceContext previousContext, long nanoTime,
+                         @Nullable String transactionName, @Nullable String transactionType) {
             traceContext.serialize(traceContextBuffer);
             this.threadId = threadId;
             this.activation = activation;
             this.serviceName = traceContext.getServiceName();
+            this.transactionName = transactionName;
+            this.transactionType = transactionType;
             if (previousContext != null) {
                 previousContext.serialize(previousContextBuffer);
                 rootContext = false;
@@ -755,6 +1035,13 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         }
 
         private void startProfiling(SamplingProfiler samplingProfiler) {
+            if (samplingProfiler.isTrackingThreadRoots()) {
+                samplingProfiler.stackTraceAggregator.onRootActivation(threadId,
+                    serviceName != null ? serviceName : samplingProfiler.coreConfig.getServiceName());
+            }
+            if (!samplingProfiler.isInferringSpans()) {
+                return;
+            }
             CallTree.Root root = CallTree.createRoot(samplingProfiler.rootPool, traceContextBuffer, serviceName, timestamp);
             if (logger.isDebugEnabled()) {
                 logger.debug("Create call tree ({}) for thread {}", deserialize(samplingProfiler, traceContextBuffer), threadId);
@@ -792,6 +1079,9 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         }
 
         private void stopProfiling(SamplingProfiler samplingProfiler) {
+            if (samplingProfiler.isTrackingThreadRoots()) {
+                samplingProfiler.stackTraceAggregator.onRootDeactivation(threadId, transactionName, transactionType);
+            }
             CallTree.Root callTree = samplingProfiler.profiledThreads.get(threadId);
             if (callTree != null && callTree.getRootContext().traceIdAndIdEquals(traceContextBuffer)) {
                 if (logger.isDebugEnabled()) {
@@ -815,6 +1105,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         public void serialize(ByteBuffer buf) {
             buf.putLong(timestamp);
             buf.putShort(getServiceNameIndex());
+            buf.putShort(getTransactionNameIndex());
+            buf.putShort(getTransactionTypeIndex());
             buf.put(traceContextBuffer);
             buf.put(previousContextBuffer);
             buf.put(rootContext ? (byte) 1 : (byte) 0);
@@ -825,6 +1117,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         public void deserialize(ByteBuffer buf) {
             timestamp = buf.getLong();
             serviceName = serviceNameBackMap.get(buf.getShort());
+            transactionName = transactionNameBackMap.get(buf.getShort());
+            transactionType = transactionTypeBackMap.get(buf.getShort());
             buf.get(traceContextBuffer);
             buf.get(previousContextBuffer);
             rootContext = buf.get() == 1;
@@ -841,6 +1135,38 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             }
             return index;
         }
+
+        private short getTransactionNameIndex() {
+            if (transactionName == null) {
+                return NO_TRANSACTION_NAME;
+            }
+            Short index = transactionNameMap.get(transactionName);
+            if (index == null) {
+                if (transactionNameMap.size() >= MAX_TRANSACTION_NAMES) {
+                    return NO_TRANSACTION_NAME;
+                }
+                index = (short) transactionNameMap.size();
+                transactionNameMap.put(transactionName, index);
+                transactionNameBackMap.put(index, transactionName);
+            }
+            return index;
+        }
+
+        private short getTransactionTypeIndex() {
+            if (transactionType == null) {
+                return NO_TRANSACTION_TYPE;
+            }
+            Short index = transactionTypeMap.get(transactionType);
+            if (index == null) {
+                if (transactionTypeMap.size() >= MAX_TRANSACTION_TYPES) {
+                    return NO_TRANSACTION_TYPE;
+                }
+                index = (short) transactionTypeMap.size();
+                transactionTypeMap.put(transactionType, index);
+                transactionTypeBackMap.put(index, transactionType);
+            }
+            return index;
+        }
     }
 
     /**
@@ -877,4 +1203,40 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             return false;
         }
     }
+
+    enum SessionType {
+        /**
+         * Wall clock or CPU samples used to infer spans and for continuous profiling
+         */
+        WALL_CLOCK,
+        ALLOCATION,
+        LOCK
+    }
+
+    /**
+     * Reports the allocation and lock samples, attributed to the transaction name, as metrics
+     */
+    private class SessionMetricsReporter implements StackTraceAggregator.TopFrameConsumer {
+
+        private final Labels.Mutable labels = Labels.Mutable.of();
+
+        @Override
+        public void onSamples(StackFrame topFrame, @Nullable String serviceName, @Nullable String transactionName,
+                              @Nullable String transactionType, long count) {
+            labels.resetState();
+            if (transactionName != null && transactionType != null) {
+                labels.transactionName(transactionName).transactionType(transactionType);
+            }
+            if (sessionType == SessionType.ALLOCATION) {
+                // there's at most one sample per interval, each sample stands for interval bytes
+                tracer.getMetricRegistry().incrementCounter(ALLOCATION_BYTES_METRIC, labels, count * config.getAllocationProfilingInterval().getBytes());
+            } else {
+                String lockClass = topFrame.getClassName();
+                if (lockClass != null) {
+                    labels.add(LOCK_CLASS_LABEL, lockClass);
+                }
+                tracer.getMetricRegistry().incrementCounter(LOCK_CONTENDED_METRIC, labels, count);
+            }
+        }
+    }
 }
@@ -0,0 +1,217 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
+import co.elastic.apm.agent.profiler.collections.Int2IntHashMap;
+import co.elastic.apm.agent.profiler.collections.Int2ObjectHashMap;
+import co.elastic.apm.agent.profiler.collections.Long2LongHashMap;
+import co.elastic.apm.agent.profiler.pprof.PprofProfile;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts the stack trace events of all threads during a profiling session,
+ * grouped by the stack trace id and the root transaction or span which was active on the thread when the sample was taken.
+ * <p>
+ * The name of a transaction is usually only known when it ends.
+ * That's why the samples of a thread are not directly associated with a transaction name but with a slot,
+ * which is allocated when the thread root is {@linkplain #onRootActivation activated}.
+ * The transaction name and type are assigned to the slot when the thread root is {@linkplain #onRootDeactivation deactivated}.
+ * </p>
+ * <p>
+ * Stack traces are only resolved once per distinct stack trace id when {@linkplain #flush flushing} the session into a {@link PprofProfile},
+ * the number of samples does not influence the number of resolved stack traces.
+ * For allocation and lock profiling sessions, only the top frame, which denotes the allocated or contended class,
+ * is {@linkplain #flushTopFrames resolved}.
+ * </p>
+ */
+class StackTraceAggregator implements Recyclable {
+
+    /**
+     * Slot used for samples of threads without an active transaction or span
+     */
+    private static final int NO_SLOT = 0;
+    private static final int MAX_STACK_DEPTH = Integer.MAX_VALUE;
+
+    private final Long2LongHashMap threadSlots = new Long2LongHashMap(-1);
+    /**
+     * Keyed by the stack trace id in the upper and the slot in the lower 32 bits
+     */
+    private final Long2LongHashMap sampleCounts = new Long2LongHashMap(-1);
+    private final Int2IntHashMap stackTraceIdToStackId = new Int2IntHashMap(-1);
+    private final Int2ObjectHashMap<StackFrame> stackTraceIdToTopFrame = new Int2ObjectHashMap<>();
+    private final List<StackFrame> stackFrames = new ArrayList<>();
+    private String[] slotServiceNames = new String[16];
+    private String[] slotTransactionNames = new String[16];
+    private String[] slotTransactionTypes = new String[16];
+    private int slots = 1;
+
+    void onRootActivation(long threadId, @Nullable String serviceName) {
+        if (slots == slotServiceNames.length) {
+            slotServiceNames = Arrays.copyOf(slotServiceNames, slots * 2);
+            slotTransactionNames = Arrays.copyOf(slotTransactionNames, slots * 2);
+            slotTransactionTypes = Arrays.copyOf(slotTransactionTypes, slots * 2);
+        }
+        slotServiceNames[slots] = serviceName;
+        threadSlots.put(threadId, slots++);
+    }
+
+    void onRootDeactivation(long threadId, @Nullable String transactionName, @Nullable String transactionType) {
+        long slot = threadSlots.remove(threadId);
+        if (slot != -1) {
+            slotTransactionNames[(int) slot] = transactionName;
+            slotTransactionTypes[(int) slot] = transactionType;
+        }
+    }
+
+    void onStackTrace(long threadId, long stackTraceId) {
+        long slot = threadSlots.get(threadId);
+        if (slot == -1) {
+            slot = NO_SLOT;
+        }
+        long key = (stackTraceId << 32) | slot;
+        long count = sampleCounts.get(key);
+        sampleCounts.put(key, count == -1 ? 1 : count + 1);
+    }
+
+    /**
+     * Resolves the stack traces of the current session and adds them to the profile.
+     * <p>
+     * Threads whose root is still active keep contributing to the next session,
+     * but samples of the current session won't be labeled with a transaction name.
+     * </p>
+     *
+     * @param jfrParser   the parser of the JFR file the stack trace ids belong to
+     * @param profile     the profile to add the samples to
+     * @param periodNanos the sampling interval of the current session
+     * @throws IOException if there is an error reading the JFR file
+     */
+    void flush(JfrParser jfrParser, PprofProfile profile, long periodNanos) throws IOException {
+        Long2LongHashMap.KeyIterator iterator = sampleCounts.keySet().iterator();
+        while (iterator.hasNext()) {
+            long key = iterator.nextValue();
+            int stackTraceId = (int) (key >>> 32);
+            int stackId = stackTraceIdToStackId.get(stackTraceId);
+            if (stackId == -1) {
+                stackFrames.clear();
+                jfrParser.resolveStackTrace(stackTraceId, true, false, stackFrames, MAX_STACK_DEPTH);
+                stackId = profile.internStack(stackFrames);
+                stackTraceIdToStackId.put(stackTraceId, stackId);
+            }
+            int slot = (int) key;
+            int labelSetId = profile.internLabels(slotServiceNames[slot], slotTransactionNames[slot]);
+            profile.addSample(stackId, labelSetId, sampleCounts.get(key), periodNanos);
+        }
+        sampleCounts.clear();
+        stackTraceIdToStackId.clear();
+        stackFrames.clear();
+        compactSlots();
+    }
+
+    /**
+     * Resolves the top frames of the stack traces of the current session and reports the number of samples to the consumer.
+     * <p>
+     * Stack traces without a top frame are not reported.
+     * </p>
+     *
+     * @param jfrParser the parser of the JFR file the stack trace ids belong to
+     * @param consumer  the consumer of the number of samples per top frame and transaction name
+     * @throws IOException if there is an error reading the JFR file
+     */
+    void flushTopFrames(JfrParser jfrParser, TopFrameConsumer consumer) throws IOException {
+        Long2LongHashMap.KeyIterator iterator = sampleCounts.keySet().iterator();
+        while (iterator.hasNext()) {
+            long key = iterator.nextValue();
+            int stackTraceId = (int) (key >>> 32);
+            StackFrame topFrame = stackTraceIdToTopFrame.get(stackTraceId);
+            if (topFrame == null) {
+                topFrame = jfrParser.resolveTopFrame(stackTraceId);
+                if (topFrame == null) {
+                    continue;
+                }
+                stackTraceIdToTopFrame.put(stackTraceId, topFrame);
+            }
+            int slot = (int) key;
+            consumer.onSamples(topFrame, slotServiceNames[slot], slotTransactionNames[slot], slotTransactionTypes[slot], sampleCounts.get(key));
+        }
+        sampleCounts.clear();
+        stackTraceIdToTopFrame.clear();
+        compactSlots();
+    }
+
+    /**
+     * Re-assigns the slots of threads whose root is still active so that the slots of the previous session can be reused
+     */
+    private void compactSlots() {
+        String[] serviceNames = this.slotServiceNames;
+        // the transaction names are not needed anymore, use them as a scratch space to avoid overriding slots which are yet to be moved
+        String[] compacted = this.slotTransactionNames;
+        Arrays.fill(compacted, null);
+        int slots = 1;
+        Long2LongHashMap.KeyIterator iterator = threadSlots.keySet().iterator();
+        while (iterator.hasNext()) {
+            long threadId = iterator.nextValue();
+            compacted[slots] = serviceNames[(int) threadSlots.get(threadId)];
+            threadSlots.put(threadId, slots++);
+        }
+        System.arraycopy(compacted, 0, serviceNames, 0, serviceNames.length);
+        Arrays.fill(compacted, null);
+        Arrays.fill(slotTransactionTypes, null);
+        this.slots = slots;
+    }
+
+    @Override
+    public void resetState() {
+        threadSlots.clear();
+        sampleCounts.clear();
+        stackTraceIdToStackId.clear();
+        stackTraceIdToTopFrame.clear();
+        stackFrames.clear();
+        Arrays.fill(slotServiceNames, null);
+        Arrays.fill(slotTransactionNames, null);
+        Arrays.fill(slotTransactionTypes, null);
+        slots = 1;
+    }
+
+    interface TopFrameConsumer {
+
+        /**
+         * @param topFrame        the top frame of the sampled stack traces
+         * @param serviceName     the service name of the thread root, {@code null} if there was no active transaction or span
+         * @param transactionName the name of the transaction, {@code null} if unknown or if there was no active transaction or span
+         * @param transactionType the type of the transaction, {@code null} if the name is unknown
+         * @param count           the number of samples
+         */
+        void onSamples(StackFrame topFrame, @Nullable String serviceName, @Nullable String transactionName,
+                       @Nullable String transactionType, long count);
+    }
+}
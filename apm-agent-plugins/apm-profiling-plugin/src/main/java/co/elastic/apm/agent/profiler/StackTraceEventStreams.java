@@ -0,0 +1,193 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
+import co.elastic.apm.agent.profiler.collections.Long2ObjectHashMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the stack trace events of a JFR file and emits them ordered by their timestamp.
+ * <p>
+ * The events in the JFR file are not in order.
+ * But as async-profiler records the events of a given thread into the same buffer,
+ * the events of a single thread are almost always in order.
+ * This class therefore keeps a separate stream of events for each thread
+ * and merges the streams on the fly when {@linkplain #consumeInOrder(JfrParser.StackTraceConsumer) consuming} them.
+ * </p>
+ * <p>
+ * In contrast to materializing an object for each event and sorting all of them,
+ * events are stored in primitive arrays which are reused across profiling sessions.
+ * This means that, once warmed up, collecting and ordering the events does not allocate memory.
+ * </p>
+ */
+class StackTraceEventStreams implements JfrParser.StackTraceConsumer, Recyclable {
+
+    private final Long2ObjectHashMap<ThreadStream> streamsByThreadId = new Long2ObjectHashMap<>();
+    /**
+     * All streams that have ever been created, used and unused ones, so that they can be reused
+     */
+    private final List<ThreadStream> streams = new ArrayList<>();
+    private int usedStreams;
+    private int size;
+    private ThreadStream[] heap = new ThreadStream[16];
+
+    @Override
+    public void onCallTree(long threadId, long stackTraceId, long nanoTime) {
+        ThreadStream stream = streamsByThreadId.get(threadId);
+        if (stream == null) {
+            stream = nextStream(threadId);
+            streamsByThreadId.put(threadId, stream);
+        }
+        stream.add(nanoTime, stackTraceId);
+        size++;
+    }
+
+    private ThreadStream nextStream(long threadId) {
+        if (usedStreams == streams.size()) {
+            streams.add(new ThreadStream());
+        }
+        ThreadStream stream = streams.get(usedStreams++);
+        stream.threadId = threadId;
+        return stream;
+    }
+
+    /**
+     * @return the number of events which have been collected
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Invokes the callback for each collected event in the order of their timestamps,
+     * by merging the events of all threads.
+     *
+     * @param callback called for each event
+     * @throws IOException if the callback throws an exception
+     */
+    void consumeInOrder(JfrParser.StackTraceConsumer callback) throws IOException {
+        if (heap.length < usedStreams) {
+            heap = new ThreadStream[usedStreams];
+        }
+        int heapSize = 0;
+        for (int i = 0; i < usedStreams; i++) {
+            heap[heapSize++] = streams.get(i);
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i, heapSize);
+        }
+        while (heapSize > 0) {
+            ThreadStream stream = heap[0];
+            callback.onCallTree(stream.threadId, stream.stackTraceIds[stream.readIndex], stream.nanoTimes[stream.readIndex]);
+            stream.readIndex++;
+            if (!stream.hasNext()) {
+                heap[0] = heap[--heapSize];
+                heap[heapSize] = null;
+            }
+            siftDown(0, heapSize);
+        }
+    }
+
+    private void siftDown(int i, int heapSize) {
+        ThreadStream[] heap = this.heap;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && heap[left].peekNanoTime() < heap[smallest].peekNanoTime()) {
+                smallest = left;
+            }
+            if (right < heapSize && heap[right].peekNanoTime() < heap[smallest].peekNanoTime()) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            ThreadStream tmp = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = tmp;
+            i = smallest;
+        }
+    }
+
+    @Override
+    public void resetState() {
+        for (int i = 0; i < usedStreams; i++) {
+            streams.get(i).resetState();
+        }
+        streamsByThreadId.clear();
+        usedStreams = 0;
+        size = 0;
+    }
+
+    /**
+     * The events of a single thread, ordered by their timestamp
+     */
+    private static class ThreadStream implements Recyclable {
+        private long threadId;
+        private long[] nanoTimes = new long[64];
+        private long[] stackTraceIds = new long[64];
+        private int size;
+        private int readIndex;
+
+        void add(long nanoTime, long stackTraceId) {
+            if (size == nanoTimes.length) {
+                nanoTimes = Arrays.copyOf(nanoTimes, size * 2);
+                stackTraceIds = Arrays.copyOf(stackTraceIds, size * 2);
+            }
+            // events are almost always in order so this insertion sort is usually a no-op
+            int i = size;
+            while (i > 0 && nanoTimes[i - 1] > nanoTime) {
+                nanoTimes[i] = nanoTimes[i - 1];
+                stackTraceIds[i] = stackTraceIds[i - 1];
+                i--;
+            }
+            nanoTimes[i] = nanoTime;
+            stackTraceIds[i] = stackTraceId;
+            size++;
+        }
+
+        boolean hasNext() {
+            return readIndex < size;
+        }
+
+        long peekNanoTime() {
+            return nanoTimes[readIndex];
+        }
+
+        @Override
+        public void resetState() {
+            threadId = 0;
+            size = 0;
+            readIndex = 0;
+        }
+    }
+}
@@ -28,7 +28,6 @@ import co.elastic.apm.agent.impl.transaction.StackFrame;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
 import co.elastic.apm.agent.objectpool.Recyclable;
 import co.elastic.apm.agent.profiler.collections.Int2IntHashMap;
-import co.elastic.apm.agent.profiler.collections.Int2ObjectHashMap;
 import co.elastic.apm.agent.profiler.collections.Long2LongHashMap;
 import co.elastic.apm.agent.profiler.collections.Long2ObjectHashMap;
 import org.slf4j.Logger;
@@ -41,7 +40,6 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -51,6 +49,8 @@ import java.util.Set;
  * The implementation is tuned with to minimize allocations when parsing a JFR file.
  * Most data structures can be reused by first {@linkplain #resetState() resetting the state} and then {@linkplain #parse(File, List, List) parsing}
  * another file.
+ * The resolved {@link StackFrame}s are interned in a {@link StackFrameCache} which is not reset,
+ * so that only frames of methods which have not been seen in previous files cause allocations.
  * </p>
  */
 public class JfrParser implements Recyclable {
@@ -61,15 +61,15 @@ public class JfrParser implements Recyclable {
     private static final Set<String> JAVA_FRAME_TYPES = new HashSet<>(Arrays.asList("Interpreted", "JIT compiled", "Inlined"));
     private static final int BIG_FILE_BUFFER_SIZE = 5 * 1024 * 1024;
     private static final int SMALL_FILE_BUFFER_SIZE = 4 * 1024;
-    private static final String SYMBOL_EXCLUDED = "3x cluded";
-    private static final String SYMBOL_NULL = "n u11";
-    private final static StackFrame FRAME_EXCLUDED = new StackFrame("excluded", "excluded");
+    private static final int MAX_CACHED_STACK_FRAMES = 8 * 1024;
+    private static final int CLASS_INCLUDED = 1;
+    private static final int CLASS_EXCLUDED = 0;
     private final static StackFrame FRAME_NULL = new StackFrame("null", "null");
 
     private final BufferedFile bufferedFile;
     private final Int2IntHashMap classIdToClassNameSymbolId = new Int2IntHashMap(-1);
     private final Int2IntHashMap symbolIdToPos = new Int2IntHashMap(-1);
-    private final Int2ObjectHashMap<String> symbolIdToString = new Int2ObjectHashMap<String>();
+    private final Int2IntHashMap classNameSymbolIdToIncluded = new Int2IntHashMap(-1);
     private final Int2IntHashMap stackTraceIdToFilePositions = new Int2IntHashMap(-1);
     private final Long2LongHashMap nativeTidToJavaTid = new Long2LongHashMap(-1);
     private final Long2ObjectHashMap<StackFrame> frameIdToFrame = new Long2ObjectHashMap<StackFrame>();
@@ -77,6 +77,8 @@ public class JfrParser implements Recyclable {
     private final Long2LongHashMap frameIdToClassId = new Long2LongHashMap(-1);
     // used to resolve a symbol with minimal allocations
     private final StringBuilder symbolBuilder = new StringBuilder();
+    private final StringBuilder classNameBuilder = new StringBuilder();
+    private final StackFrameCache stackFrameCache = new StackFrameCache(MAX_CACHED_STACK_FRAMES);
     private long eventsOffset;
     private long metadataOffset;
     @Nullable
@@ -96,6 +98,7 @@ public class JfrParser implements Recyclable {
 
     /**
      * Initializes the parser to make it ready for {@link #resolveStackTrace(long, boolean, List, int)} to be called.
+     * The full stack traces, including the excluded classes, can be resolved via {@link #resolveStackTrace(long, boolean, boolean, List, int)}.
      *
      * @param file            the JFR file to parse
      * @param excludedClasses Class names to exclude in stack traces (has an effect on {@link #resolveStackTrace(long, boolean, List, int)})
@@ -227,7 +230,6 @@ public class JfrParser implements Recyclable {
                     int symbolId = (int) bufferedFile.getLong();
                     int pos = (int) bufferedFile.position();
                     symbolIdToPos.put(symbolId, pos);
-                    symbolIdToString.put(symbolId, SYMBOL_NULL);
                     skipString();
                 }
                 break;
@@ -294,8 +296,9 @@ public class JfrParser implements Recyclable {
     /**
      * Resolves the stack trace with the given {@code stackTraceId}.
      * <p>
-     * Note that his allocates strings for symbols in case a stack frame has not already been resolved for the current JFR file yet.
-     * These strings are currently not cached so this can create some GC pressure.
+     * Note that this allocates a {@link StackFrame} and the strings for its symbols
+     * in case a frame of the same method has not been resolved for this or a previous JFR file yet,
+     * or if it has been evicted from the {@link StackFrameCache}.
      * </p>
      * <p>
      * Excludes frames based on the {@link WildcardMatcher}s supplied to {@link #parse(File, List, List)}.
@@ -313,6 +316,25 @@ public class JfrParser implements Recyclable {
      * @throws IOException if there is an error reading in current buffer
      */
     public void resolveStackTrace(long stackTraceId, boolean onlyJavaFrames, List<StackFrame> stackFrames, int maxStackDepth) throws IOException {
+        resolveStackTrace(stackTraceId, onlyJavaFrames, true, stackFrames, maxStackDepth);
+    }
+
+    /**
+     * Resolves the stack trace with the given {@code stackTraceId}.
+     * <p>
+     * In contrast to {@link #resolveStackTrace(long, boolean, List, int)},
+     * this allows to resolve the full stack trace, regardless of the {@link WildcardMatcher}s supplied to {@link #parse(File, List, List)}.
+     * That way, the same file does not have to be parsed twice in order to get both the filtered and the full stack traces.
+     * </p>
+     *
+     * @param stackTraceId     The id of the stack traced.
+     * @param onlyJavaFrames   If {@code true}, will only resolve {@code Interpreted}, {@code JIT compiled} and {@code Inlined} frames.
+     * @param applyClassFilter If {@code true}, excludes frames based on the {@link WildcardMatcher}s supplied to {@link #parse(File, List, List)}.
+     * @param stackFrames      The mutable list where the stack frames are written to.
+     * @param maxStackDepth    The max size of the stackFrames list (excluded frames don't take up space).
+     * @throws IOException if there is an error reading in current buffer
+     */
+    public void resolveStackTrace(long stackTraceId, boolean onlyJavaFrames, boolean applyClassFilter, List<StackFrame> stackFrames, int maxStackDepth) throws IOException {
         if (!bufferedFile.isSet()) {
             throw new IllegalStateException("getStackTrace was called before parse");
         }
@@ -328,7 +350,7 @@ public class JfrParser implements Recyclable {
             long frameId = bufferedFile.getUnsafeLong();
             bufferedFile.getUnsafeInt(); // bci (always set to 0 by async-profiler)
             byte frameType = bufferedFile.getUnsafe();
-            addFrameIfIncluded(stackFrames, onlyJavaFrames, frameId, frameType);
+            addFrameIfIncluded(stackFrames, onlyJavaFrames, applyClassFilter, frameId, frameType);
             if (stackFrames.size() > maxStackDepth) {
                 stackFrames.remove(0);
             }
@@ -336,10 +358,45 @@ public class JfrParser implements Recyclable {
         bufferedFile.position(position);
     }
 
-    private void addFrameIfIncluded(List<StackFrame> stackFrames, boolean onlyJavaFrames, long frameId, byte frameType) throws IOException {
+    /**
+     * Resolves the top-most frame of the stack trace with the given {@code stackTraceId}, regardless of its frame type
+     * and regardless of the {@link WildcardMatcher}s supplied to {@link #parse(File, List, List)}.
+     * <p>
+     * For allocation and lock events, async-profiler records a synthetic top frame with the method name {@code new}
+     * whose class is the class of the allocated object or the class of the contended monitor, respectively.
+     * </p>
+     *
+     * @param stackTraceId The id of the stack traced.
+     * @return the top-most frame or {@code null} if the stack trace does not contain any frames
+     * @throws IOException if there is an error reading in current buffer
+     */
+    @Nullable
+    public StackFrame resolveTopFrame(long stackTraceId) throws IOException {
+        if (!bufferedFile.isSet()) {
+            throw new IllegalStateException("resolveTopFrame was called before parse");
+        }
+        long position = bufferedFile.position();
+        bufferedFile.position(stackTraceIdToFilePositions.get((int) stackTraceId));
+        try {
+            bufferedFile.ensureRemaining(13);
+            long stackTraceIdFromFile = bufferedFile.getUnsafeLong();
+            assert stackTraceId == stackTraceIdFromFile;
+            bufferedFile.getUnsafe(); // truncated
+            int numFrames = bufferedFile.getUnsafeInt();
+            if (numFrames == 0) {
+                return null;
+            }
+            bufferedFile.ensureRemaining(8);
+            return resolveStackFrame(bufferedFile.getUnsafeLong());
+        } finally {
+            bufferedFile.position(position);
+        }
+    }
+
+    private void addFrameIfIncluded(List<StackFrame> stackFrames, boolean onlyJavaFrames, boolean applyClassFilter, long frameId, byte frameType) throws IOException {
         if (!onlyJavaFrames || isJavaFrameType(frameType)) {
             StackFrame stackFrame = resolveStackFrame(frameId);
-            if (stackFrame != FRAME_EXCLUDED) {
+            if (!applyClassFilter || isClassIncluded(frameId, stackFrame)) {
                 stackFrames.add(stackFrame);
             }
         }
@@ -349,59 +406,52 @@ public class JfrParser implements Recyclable {
         return isJavaFrameType[frameType];
     }
 
-    private String resolveSymbol(int id, boolean classSymbol) throws IOException {
-        String symbol = symbolIdToString.get(id);
-        if (symbol != SYMBOL_NULL) {
-            return symbol;
-        }
-        StringBuilder symbolBuilder = resolveSymbolBuilder(symbolIdToPos.get(id), classSymbol);
-        if (classSymbol && !isClassIncluded(symbolBuilder)) {
-            symbol = SYMBOL_EXCLUDED;
-        } else {
-            symbol = symbolBuilder.toString();
-        }
-        symbolIdToString.put(id, symbol);
-        return symbol;
-    }
-
-    private StringBuilder resolveSymbolBuilder(int pos, boolean replaceSlashWithDot) throws IOException {
+    private StringBuilder resolveSymbolBuilder(int id, boolean replaceSlashWithDot, StringBuilder symbolBuilder) throws IOException {
         long currentPos = bufferedFile.position();
-        bufferedFile.position(pos);
+        bufferedFile.position(symbolIdToPos.get(id));
         try {
-            return readUtf8String(replaceSlashWithDot);
+            return readUtf8String(replaceSlashWithDot, symbolBuilder);
         } finally {
             bufferedFile.position(currentPos);
         }
     }
 
-    private boolean isClassIncluded(CharSequence className) {
-        return WildcardMatcher.isAnyMatch(includedClasses, className) && WildcardMatcher.isNoneMatch(excludedClasses, className);
+    private boolean isClassIncluded(long frameId, StackFrame stackFrame) {
+        int classNameSymbolId = classIdToClassNameSymbolId.get((int) frameIdToClassId.get(frameId));
+        int included = classNameSymbolIdToIncluded.get(classNameSymbolId);
+        if (included == -1) {
+            String className = stackFrame.getClassName();
+            included = WildcardMatcher.isAnyMatch(includedClasses, className) && WildcardMatcher.isNoneMatch(excludedClasses, className)
+                ? CLASS_INCLUDED
+                : CLASS_EXCLUDED;
+            classNameSymbolIdToIncluded.put(classNameSymbolId, included);
+        }
+        return included == CLASS_INCLUDED;
     }
 
+    /**
+     * Resolves the frame with the given id without allocating, unless the method has not been seen by the {@link #stackFrameCache} before.
+     */
     private StackFrame resolveStackFrame(long frameId) throws IOException {
         StackFrame stackFrame = frameIdToFrame.get(frameId);
         if (stackFrame != FRAME_NULL) {
             return stackFrame;
         }
-        String className = resolveSymbol(classIdToClassNameSymbolId.get((int) frameIdToClassId.get(frameId)), true);
-        if (className == SYMBOL_EXCLUDED) {
-            stackFrame = FRAME_EXCLUDED;
-        } else {
-            String method = resolveSymbol((int) frameIdToMethodSymbol.get(frameId), false);
-            stackFrame = new StackFrame(className, Objects.requireNonNull(method));
-        }
+        int classNameSymbolId = classIdToClassNameSymbolId.get((int) frameIdToClassId.get(frameId));
+        StringBuilder className = resolveSymbolBuilder(classNameSymbolId, true, classNameBuilder);
+        StringBuilder method = resolveSymbolBuilder((int) frameIdToMethodSymbol.get(frameId), false, symbolBuilder);
+        stackFrame = stackFrameCache.intern(className, method);
         frameIdToFrame.put(frameId, stackFrame);
         return stackFrame;
     }
 
     private StringBuilder readUtf8String() throws IOException {
-        return readUtf8String(false);
+        return readUtf8String(false, symbolBuilder);
     }
 
-    private StringBuilder readUtf8String(boolean replaceSlashWithDot) throws IOException {
+    private StringBuilder readUtf8String(boolean replaceSlashWithDot, StringBuilder symbolBuilder) throws IOException {
         int size = bufferedFile.getUnsignedShort();
         bufferedFile.ensureRemaining(size);
-        StringBuilder symbolBuilder = this.symbolBuilder;
         symbolBuilder.setLength(0);
         for (int i = 0; i < size; i++) {
             char c = (char) bufferedFile.getUnsafe();
@@ -426,10 +476,12 @@ public class JfrParser implements Recyclable {
         frameIdToMethodSymbol.clear();
         frameIdToClassId.clear();
         symbolBuilder.setLength(0);
+        classNameBuilder.setLength(0);
         excludedClasses = null;
         includedClasses = null;
         symbolIdToPos.clear();
-        symbolIdToString.clear();
+        classNameSymbolIdToIncluded.clear();
+        // the stack frame cache is intentionally not reset so that the frames can be reused when parsing the next file
     }
 
     public interface StackTraceConsumer {
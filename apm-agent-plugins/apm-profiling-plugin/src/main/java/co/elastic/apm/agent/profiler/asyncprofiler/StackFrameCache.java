@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler.asyncprofiler;
+
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.profiler.collections.CollectionUtil;
+import co.elastic.apm.agent.profiler.collections.Hashing;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * A bounded cache of interned {@link StackFrame}s which outlives the parsing of a single JFR file.
+ * <p>
+ * The ids of symbols and frames are only valid within a JFR file, that's why the frames are keyed by their class and method name.
+ * Looking up a frame does not allocate.
+ * A {@link StackFrame} and its strings are only created for methods which are not in the cache.
+ * This also means that the frames of hot methods are the same instances across profiling sessions,
+ * so that comparing them usually boils down to an identity check.
+ * </p>
+ * <p>
+ * When the cache is full, a frame which has not been looked up since the clock hand last passed it is evicted
+ * (aka clock or second-chance algorithm).
+ * </p>
+ */
+class StackFrameCache {
+
+    private static final int NO_ENTRY = -1;
+
+    /**
+     * The first entry of the collision chain for each bucket
+     */
+    private final int[] buckets;
+    /**
+     * The next entry of the collision chain of each entry
+     */
+    private final int[] next;
+    private final int[] hashes;
+    private final StackFrame[] frames;
+    private final boolean[] referenced;
+    private int size;
+    private int clockHand;
+
+    StackFrameCache(int capacity) {
+        frames = new StackFrame[capacity];
+        hashes = new int[capacity];
+        next = new int[capacity];
+        referenced = new boolean[capacity];
+        buckets = new int[CollectionUtil.findNextPositivePowerOfTwo(capacity * 2)];
+        Arrays.fill(buckets, NO_ENTRY);
+    }
+
+    /**
+     * Returns the cached frame with the given class and method name,
+     * or creates and caches a new one if there is none.
+     *
+     * @param className  the class name, usually a reused {@link StringBuilder}
+     * @param methodName the method name, usually a reused {@link StringBuilder}
+     * @return the interned frame
+     */
+    StackFrame intern(CharSequence className, CharSequence methodName) {
+        int hash = hash(className, methodName);
+        int bucket = Hashing.hash(hash, buckets.length - 1);
+        for (int i = buckets[bucket]; i != NO_ENTRY; i = next[i]) {
+            StackFrame frame = frames[i];
+            if (hashes[i] == hash && contentEquals(frame.getClassName(), className) && frame.getMethodName().contentEquals(methodName)) {
+                referenced[i] = true;
+                return frame;
+            }
+        }
+        int index = size < frames.length ? size++ : evict();
+        StackFrame frame = new StackFrame(className.toString(), methodName.toString());
+        frames[index] = frame;
+        hashes[index] = hash;
+        referenced[index] = false;
+        next[index] = buckets[bucket];
+        buckets[bucket] = index;
+        return frame;
+    }
+
+    private int evict() {
+        while (referenced[clockHand]) {
+            referenced[clockHand] = false;
+            clockHand = (clockHand + 1) % frames.length;
+        }
+        int index = clockHand;
+        clockHand = (clockHand + 1) % frames.length;
+        unlink(index);
+        return index;
+    }
+
+    private void unlink(int index) {
+        int bucket = Hashing.hash(hashes[index], buckets.length - 1);
+        if (buckets[bucket] == index) {
+            buckets[bucket] = next[index];
+            return;
+        }
+        for (int i = buckets[bucket]; i != NO_ENTRY; i = next[i]) {
+            if (next[i] == index) {
+                next[i] = next[index];
+                return;
+            }
+        }
+    }
+
+    private static int hash(CharSequence className, CharSequence methodName) {
+        int hash = 0;
+        for (int i = 0, length = className.length(); i < length; i++) {
+            hash = 31 * hash + className.charAt(i);
+        }
+        hash = 31 * hash + '#';
+        for (int i = 0, length = methodName.length(); i < length; i++) {
+            hash = 31 * hash + methodName.charAt(i);
+        }
+        return hash;
+    }
+
+    private static boolean contentEquals(@Nullable String s, CharSequence charSequence) {
+        return s != null && s.contentEquals(charSequence);
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,358 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler.pprof;
+
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.profiler.collections.Long2LongHashMap;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates stack trace samples and writes them in the
+ * <a href="https://github.com/google/pprof/blob/master/proto/profile.proto">pprof</a> format.
+ * <p>
+ * Strings, functions and stacks are interned,
+ * so that the size of a profile depends on the number of distinct stacks rather than on the number of samples.
+ * As there's no line number information, each function has exactly one location whose id is the same as the function id.
+ * </p>
+ * <p>
+ * Samples are aggregated by their stack and their labels, a pair of service name and transaction name.
+ * Each sample has two values: the number of samples and the sampled time in nanoseconds.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+public class PprofProfile implements Recyclable {
+
+    public static final String LABEL_SERVICE_NAME = "service.name";
+    public static final String LABEL_TRANSACTION_NAME = "transaction.name";
+
+    // field numbers as defined in profile.proto
+    private static final int PROFILE_SAMPLE_TYPE = 1;
+    private static final int PROFILE_SAMPLE = 2;
+    private static final int PROFILE_LOCATION = 4;
+    private static final int PROFILE_FUNCTION = 5;
+    private static final int PROFILE_STRING_TABLE = 6;
+    private static final int PROFILE_TIME_NANOS = 9;
+    private static final int PROFILE_DURATION_NANOS = 10;
+    private static final int PROFILE_PERIOD_TYPE = 11;
+    private static final int PROFILE_PERIOD = 12;
+    private static final int VALUE_TYPE_TYPE = 1;
+    private static final int VALUE_TYPE_UNIT = 2;
+    private static final int SAMPLE_LOCATION_ID = 1;
+    private static final int SAMPLE_VALUE = 2;
+    private static final int SAMPLE_LABEL = 3;
+    private static final int LABEL_KEY = 1;
+    private static final int LABEL_STR = 2;
+    private static final int LOCATION_ID = 1;
+    private static final int LOCATION_LINE = 4;
+    private static final int LINE_FUNCTION_ID = 1;
+    private static final int FUNCTION_ID = 1;
+    private static final int FUNCTION_NAME = 2;
+    private static final int FUNCTION_SYSTEM_NAME = 3;
+    private static final int FUNCTION_FILENAME = 4;
+
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final Map<StackFrame, Integer> functionIds = new HashMap<>();
+    private final List<StackFrame> functions = new ArrayList<>();
+    private final Map<Stack, Integer> stackIds = new HashMap<>();
+    private final List<Stack> stacks = new ArrayList<>();
+    /**
+     * Maps a pair of string ids (service name and transaction name) to the id of the label set
+     */
+    private final Long2LongHashMap labelSetIds = new Long2LongHashMap(-1);
+    private long[] labelSets = new long[16];
+    private int labelSetCount;
+    /**
+     * Keyed by the stack id in the upper and the label set id in the lower 32 bits
+     */
+    private final Long2LongHashMap sampleCounts = new Long2LongHashMap(-1);
+    private final Long2LongHashMap sampleNanos = new Long2LongHashMap(-1);
+    private final ProtobufWriter profileWriter = new ProtobufWriter(64 * 1024);
+    private final ProtobufWriter messageWriter = new ProtobufWriter(1024);
+    private final ProtobufWriter nestedMessageWriter = new ProtobufWriter(1024);
+    private final StringBuilder fileNameBuilder = new StringBuilder();
+    private String sampleType = "wall";
+    private long startTimeMillis;
+    private long periodNanos;
+
+    public PprofProfile() {
+        resetState();
+    }
+
+    /**
+     * Starts a new profile, discarding all previously added samples.
+     *
+     * @param sampleType      the type of the sampled time, for example {@code wall} or {@code cpu}
+     * @param startTimeMillis the epoch timestamp in milliseconds when the profile started
+     */
+    public void start(String sampleType, long startTimeMillis) {
+        resetState();
+        this.sampleType = sampleType;
+        this.startTimeMillis = startTimeMillis;
+    }
+
+    /**
+     * Interns a stack trace.
+     *
+     * @param stackFrames the frames of the stack trace, the leaf frame first
+     * @return the id of the stack trace which can be used in {@link #addSample}
+     */
+    public int internStack(List<StackFrame> stackFrames) {
+        int[] functionIds = new int[stackFrames.size()];
+        for (int i = 0; i < functionIds.length; i++) {
+            functionIds[i] = internFunction(stackFrames.get(i));
+        }
+        Stack stack = new Stack(functionIds);
+        Integer id = stackIds.get(stack);
+        if (id == null) {
+            id = stacks.size();
+            stacks.add(stack);
+            stackIds.put(stack, id);
+        }
+        return id;
+    }
+
+    private int internFunction(StackFrame stackFrame) {
+        Integer id = functionIds.get(stackFrame);
+        if (id == null) {
+            functions.add(stackFrame);
+            // ids have to be non-zero
+            id = functions.size();
+            functionIds.put(stackFrame, id);
+        }
+        return id;
+    }
+
+    /**
+     * Interns the labels of a sample.
+     *
+     * @param serviceName     the service name or {@code null} if there was no active transaction or span
+     * @param transactionName the transaction name or {@code null} if it's unknown
+     * @return the id of the label set which can be used in {@link #addSample}
+     */
+    public int internLabels(@Nullable String serviceName, @Nullable String transactionName) {
+        long key = ((long) internString(serviceName) << 32) | internString(transactionName);
+        long id = labelSetIds.get(key);
+        if (id == -1) {
+            if (labelSetCount == labelSets.length) {
+                labelSets = Arrays.copyOf(labelSets, labelSetCount * 2);
+            }
+            id = labelSetCount;
+            labelSets[labelSetCount++] = key;
+            labelSetIds.put(key, id);
+        }
+        return (int) id;
+    }
+
+    private int internString(@Nullable String s) {
+        if (s == null) {
+            return 0;
+        }
+        Integer id = stringIds.get(s);
+        if (id == null) {
+            id = strings.size();
+            strings.add(s);
+            stringIds.put(s, id);
+        }
+        return id;
+    }
+
+    /**
+     * Adds samples for a given stack and label set.
+     *
+     * @param stackId     the id returned by {@link #internStack}
+     * @param labelSetId  the id returned by {@link #internLabels}
+     * @param count       the number of samples
+     * @param periodNanos the sampling interval in nanoseconds
+     */
+    public void addSample(int stackId, int labelSetId, long count, long periodNanos) {
+        long key = ((long) stackId << 32) | labelSetId;
+        long previousCount = sampleCounts.get(key);
+        if (previousCount == -1) {
+            sampleCounts.put(key, count);
+            sampleNanos.put(key, count * periodNanos);
+        } else {
+            sampleCounts.put(key, previousCount + count);
+            sampleNanos.put(key, sampleNanos.get(key) + count * periodNanos);
+        }
+        this.periodNanos = periodNanos;
+    }
+
+    public boolean isEmpty() {
+        return sampleCounts.isEmpty();
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * Writes the uncompressed pprof profile.
+     * Callers are responsible for compressing the output, for example via {@link java.util.zip.GZIPOutputStream}.
+     *
+     * @param os            the stream to write the profile to
+     * @param endTimeMillis the epoch timestamp in milliseconds when the profile ended
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeTo(OutputStream os, long endTimeMillis) throws IOException {
+        ProtobufWriter profile = this.profileWriter;
+        profile.reset();
+        writeValueType(profile, PROFILE_SAMPLE_TYPE, "samples", "count");
+        writeValueType(profile, PROFILE_SAMPLE_TYPE, sampleType, "nanoseconds");
+        writeSamples(profile);
+        writeLocationsAndFunctions(profile);
+        profile.writeVarintField(PROFILE_TIME_NANOS, startTimeMillis * 1_000_000);
+        profile.writeVarintField(PROFILE_DURATION_NANOS, Math.max(0, endTimeMillis - startTimeMillis) * 1_000_000);
+        writeValueType(profile, PROFILE_PERIOD_TYPE, sampleType, "nanoseconds");
+        profile.writeVarintField(PROFILE_PERIOD, periodNanos);
+        // has to be written last as writing the other fields interns strings
+        for (int i = 0; i < strings.size(); i++) {
+            profile.writeStringField(PROFILE_STRING_TABLE, strings.get(i));
+        }
+        profile.writeTo(os);
+    }
+
+    private void writeValueType(ProtobufWriter profile, int fieldNumber, String type, String unit) {
+        ProtobufWriter valueType = this.messageWriter;
+        valueType.reset();
+        valueType.writeVarintField(VALUE_TYPE_TYPE, internString(type));
+        valueType.writeVarintField(VALUE_TYPE_UNIT, internString(unit));
+        profile.writeMessage(fieldNumber, valueType);
+    }
+
+    private void writeSamples(ProtobufWriter profile) {
+        ProtobufWriter sample = this.messageWriter;
+        ProtobufWriter nested = this.nestedMessageWriter;
+        int serviceNameKey = internString(LABEL_SERVICE_NAME);
+        int transactionNameKey = internString(LABEL_TRANSACTION_NAME);
+        Long2LongHashMap.KeyIterator iterator = sampleCounts.keySet().iterator();
+        while (iterator.hasNext()) {
+            long key = iterator.nextValue();
+            sample.reset();
+
+            nested.reset();
+            for (int functionId : stacks.get((int) (key >>> 32)).functionIds) {
+                nested.writeVarint(functionId);
+            }
+            sample.writeMessage(SAMPLE_LOCATION_ID, nested);
+
+            nested.reset();
+            nested.writeVarint(sampleCounts.get(key));
+            nested.writeVarint(sampleNanos.get(key));
+            sample.writeMessage(SAMPLE_VALUE, nested);
+
+            long labelSet = labelSets[(int) key];
+            writeLabel(sample, nested, serviceNameKey, (int) (labelSet >>> 32));
+            writeLabel(sample, nested, transactionNameKey, (int) labelSet);
+
+            profile.writeMessage(PROFILE_SAMPLE, sample);
+        }
+    }
+
+    private static void writeLabel(ProtobufWriter sample, ProtobufWriter label, int key, int value) {
+        if (value != 0) {
+            label.reset();
+            label.writeVarintField(LABEL_KEY, key);
+            label.writeVarintField(LABEL_STR, value);
+            sample.writeMessage(SAMPLE_LABEL, label);
+        }
+    }
+
+    private void writeLocationsAndFunctions(ProtobufWriter profile) {
+        ProtobufWriter message = this.messageWriter;
+        ProtobufWriter line = this.nestedMessageWriter;
+        for (int id = 1; id <= functions.size(); id++) {
+            message.reset();
+            message.writeVarintField(LOCATION_ID, id);
+            line.reset();
+            line.writeVarintField(LINE_FUNCTION_ID, id);
+            message.writeMessage(LOCATION_LINE, line);
+            profile.writeMessage(PROFILE_LOCATION, message);
+        }
+        for (int id = 1; id <= functions.size(); id++) {
+            StackFrame stackFrame = functions.get(id - 1);
+            int name = internString(stackFrame.toString());
+            fileNameBuilder.setLength(0);
+            stackFrame.appendFileName(fileNameBuilder);
+            message.reset();
+            message.writeVarintField(FUNCTION_ID, id);
+            message.writeVarintField(FUNCTION_NAME, name);
+            message.writeVarintField(FUNCTION_SYSTEM_NAME, name);
+            message.writeVarintField(FUNCTION_FILENAME, internString(fileNameBuilder.toString()));
+            profile.writeMessage(PROFILE_FUNCTION, message);
+        }
+    }
+
+    @Override
+    public void resetState() {
+        stringIds.clear();
+        strings.clear();
+        // the first entry of the string table has to be the empty string
+        internString("");
+        functionIds.clear();
+        functions.clear();
+        stackIds.clear();
+        stacks.clear();
+        labelSetIds.clear();
+        labelSetCount = 0;
+        sampleCounts.clear();
+        sampleNanos.clear();
+        startTimeMillis = 0;
+        periodNanos = 0;
+    }
+
+    private static class Stack {
+        private final int[] functionIds;
+        private final int hash;
+
+        private Stack(int[] functionIds) {
+            this.functionIds = functionIds;
+            this.hash = Arrays.hashCode(functionIds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Arrays.equals(functionIds, ((Stack) o).functionIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
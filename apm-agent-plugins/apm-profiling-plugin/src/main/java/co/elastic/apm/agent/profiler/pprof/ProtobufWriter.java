@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler.pprof;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A minimal encoder for the <a href="https://developers.google.com/protocol-buffers/docs/encoding">protocol buffers wire format</a>.
+ * <p>
+ * Only supports the subset needed to write {@code profile.proto} messages:
+ * varints and length-delimited fields.
+ * Embedded messages and packed repeated fields are written to a separate {@link ProtobufWriter}
+ * which is then appended via {@link #writeMessage(int, ProtobufWriter)}.
+ * </p>
+ * <p>
+ * The underlying buffer grows as needed and is retained when {@linkplain #reset() resetting} the writer,
+ * so that a writer can be reused without allocations once warmed up.
+ * </p>
+ */
+class ProtobufWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int WIRE_TYPE_VARINT = 0;
+    private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+
+    private byte[] buffer;
+    private int size;
+
+    ProtobufWriter(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    void writeVarintField(int fieldNumber, long value) {
+        writeTag(fieldNumber, WIRE_TYPE_VARINT);
+        writeVarint(value);
+    }
+
+    void writeStringField(int fieldNumber, String value) {
+        writeBytesField(fieldNumber, value.getBytes(UTF_8));
+    }
+
+    void writeBytesField(int fieldNumber, byte[] bytes) {
+        writeTag(fieldNumber, WIRE_TYPE_LENGTH_DELIMITED);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /**
+     * Writes the content of another writer as an embedded message or as a packed repeated field.
+     *
+     * @param fieldNumber the field number of the embedded message
+     * @param message     the writer containing the encoded message
+     */
+    void writeMessage(int fieldNumber, ProtobufWriter message) {
+        writeTag(fieldNumber, WIRE_TYPE_LENGTH_DELIMITED);
+        writeVarint(message.size);
+        ensureCapacity(message.size);
+        System.arraycopy(message.buffer, 0, buffer, size, message.size);
+        size += message.size;
+    }
+
+    void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    private void writeTag(int fieldNumber, int wireType) {
+        writeVarint((fieldNumber << 3) | wireType);
+    }
+
+    private void ensureCapacity(int additionalBytes) {
+        if (size + additionalBytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additionalBytes));
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void writeTo(OutputStream os) throws IOException {
+        os.write(buffer, 0, size);
+    }
+
+    void reset() {
+        size = 0;
+    }
+}
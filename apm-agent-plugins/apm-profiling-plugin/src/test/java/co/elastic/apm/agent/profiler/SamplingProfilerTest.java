@@ -27,22 +27,37 @@ package co.elastic.apm.agent.profiler;
 import co.elastic.apm.agent.MockReporter;
 import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.ByteValue;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.Scope;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricSet;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.DisabledOnOs;
 import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.awaitility.Awaitility.await;
@@ -52,15 +67,17 @@ import static org.mockito.Mockito.when;
 @DisabledOnOs(OS.WINDOWS)
 class SamplingProfilerTest {
 
+    private static volatile Object sink;
     private MockReporter reporter;
     private ElasticApmTracer tracer;
     private SamplingProfiler profiler;
+    private ProfilingConfiguration profilingConfig;
 
     @BeforeEach
     void setUp() {
         reporter = new MockReporter();
         ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
-        ProfilingConfiguration profilingConfig = config.getConfig(ProfilingConfiguration.class);
+        profilingConfig = config.getConfig(ProfilingConfiguration.class);
         when(profilingConfig.getIncludedClasses()).thenReturn(List.of(WildcardMatcher.valueOf(getClass().getName())));
         when(profilingConfig.isProfilingEnabled()).thenReturn(true);
         when(profilingConfig.getProfilingDuration()).thenReturn(TimeDuration.of("500ms"));
@@ -119,6 +136,204 @@ class SamplingProfilerTest {
         assertThat(inferredSpanD.get().isChildOf(inferredSpanC.get())).isTrue();
     }
 
+    @Test
+    void testContinuousProfiling(@TempDir Path outputDir) throws Exception {
+        when(profilingConfig.getContinuousProfilingOutputDir()).thenReturn(outputDir.toString());
+        when(profilingConfig.getContinuousProfilingInterval()).thenReturn(TimeDuration.of("1s"));
+        when(profilingConfig.isContinuousProfilingEnabled()).thenReturn(true);
+
+        Transaction transaction = tracer.startRootTransaction(null).withName("continuous-transaction");
+        try (Scope scope = transaction.activateInScope()) {
+            Thread.sleep(1200);
+        } finally {
+            transaction.end();
+        }
+
+        await()
+            .pollDelay(10, TimeUnit.MILLISECONDS)
+            .timeout(5000, TimeUnit.MILLISECONDS)
+            .untilAsserted(() -> assertThat(readProfiles(outputDir.toFile()))
+                // the string table contains the transaction name label and the functions of all threads
+                .contains("continuous-transaction")
+                .contains("SamplingProfilerTest.testContinuousProfiling")
+                .contains("SamplingProfiler.run"));
+    }
+
+    @Test
+    void testAllocationProfiling() {
+        when(profilingConfig.getAllocationProfilingInterval()).thenReturn(ByteValue.of("1kb"));
+        when(profilingConfig.isAllocationProfilingEnabled()).thenReturn(true);
+
+        // the allocation profiling session takes turns with the wall clock session
+        await()
+            .pollDelay(10, TimeUnit.MILLISECONDS)
+            .timeout(5000, TimeUnit.MILLISECONDS)
+            .untilAsserted(() -> {
+                Transaction transaction = tracer.startRootTransaction(null).withName("allocating-transaction");
+                try (Scope scope = transaction.activateInScope()) {
+                    for (int i = 0; i < 10_000; i++) {
+                        sink = new byte[1024];
+                    }
+                } finally {
+                    transaction.end();
+                }
+                // the transaction has not ended yet when it's deactivated, so it's labeled with the default type
+                Labels labels = Labels.Mutable.of().transactionName("allocating-transaction").transactionType("custom");
+                assertThat(getCounter(SamplingProfiler.ALLOCATION_BYTES_METRIC, labels))
+                    .isPositive();
+            });
+    }
+
+    @Test
+    void testTransactionNamesAreLabeledAfterManyDistinctNames() {
+        when(profilingConfig.getAllocationProfilingInterval()).thenReturn(ByteValue.of("1kb"));
+        when(profilingConfig.isAllocationProfilingEnabled()).thenReturn(true);
+        // exceeds the number of distinct transaction names which are interned per session
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Transaction transaction = tracer.startRootTransaction(null).withName("transaction-" + i);
+            try (Scope scope = transaction.activateInScope()) {
+                transactions.add(transaction);
+            }
+        }
+
+        try {
+            await()
+                .pollDelay(10, TimeUnit.MILLISECONDS)
+                .timeout(5000, TimeUnit.MILLISECONDS)
+                .untilAsserted(() -> {
+                    Transaction transaction = tracer.startRootTransaction(null).withName("late-transaction");
+                    try (Scope scope = transaction.activateInScope()) {
+                        for (int i = 0; i < 10_000; i++) {
+                            sink = new byte[1024];
+                        }
+                    } finally {
+                        transaction.end();
+                    }
+                    Labels labels = Labels.Mutable.of().transactionName("late-transaction").transactionType("custom");
+                    assertThat(getCounter(SamplingProfiler.ALLOCATION_BYTES_METRIC, labels)).isPositive();
+                });
+        } finally {
+            // ending the transactions beforehand would exhaust the limit of metric sets of the metric registry
+            for (Transaction transaction : transactions) {
+                transaction.end();
+            }
+        }
+    }
+
+    @Test
+    void testLockProfiling() throws Exception {
+        when(profilingConfig.isLockProfilingEnabled()).thenReturn(true);
+        Object lock = new Object();
+
+        await()
+            .pollDelay(10, TimeUnit.MILLISECONDS)
+            .timeout(5000, TimeUnit.MILLISECONDS)
+            .untilAsserted(() -> {
+                CountDownLatch lockAcquired = new CountDownLatch(1);
+                Thread lockHolder = new Thread(() -> {
+                    synchronized (lock) {
+                        lockAcquired.countDown();
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException ignore) {
+                        }
+                    }
+                });
+                lockHolder.start();
+                lockAcquired.await();
+                Transaction transaction = tracer.startRootTransaction(null).withName("contended-transaction").withType("request");
+                try (Scope scope = transaction.activateInScope()) {
+                    synchronized (lock) {
+                        sink = lock;
+                    }
+                } finally {
+                    transaction.end();
+                }
+                lockHolder.join();
+                Labels labels = Labels.Mutable.of(SamplingProfiler.LOCK_CLASS_LABEL, "java.lang.Object")
+                    .transactionName("contended-transaction")
+                    .transactionType("request");
+                assertThat(getCounter(SamplingProfiler.LOCK_CONTENDED_METRIC, labels)).isPositive();
+            });
+    }
+
+    @Test
+    void testLockProfilingOfTransactionActivatedInWallClockSession() throws Exception {
+        when(profilingConfig.isLockProfilingEnabled()).thenReturn(true);
+        Object lock = new Object();
+        await()
+            .pollDelay(1, TimeUnit.MILLISECONDS)
+            .timeout(5000, TimeUnit.MILLISECONDS)
+            .until(() -> profiler.getSessionType() == SamplingProfiler.SessionType.WALL_CLOCK);
+
+        Transaction transaction = tracer.startRootTransaction(null).withName("long-transaction").withType("request");
+        try (Scope scope = transaction.activateInScope()) {
+            await()
+                .pollDelay(1, TimeUnit.MILLISECONDS)
+                .timeout(5000, TimeUnit.MILLISECONDS)
+                .until(() -> profiler.getSessionType() == SamplingProfiler.SessionType.LOCK);
+            for (int i = 0; i < 5; i++) {
+                CountDownLatch lockAcquired = new CountDownLatch(1);
+                Thread lockHolder = new Thread(() -> {
+                    synchronized (lock) {
+                        lockAcquired.countDown();
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException ignore) {
+                        }
+                    }
+                });
+                lockHolder.start();
+                lockAcquired.await();
+                synchronized (lock) {
+                    sink = lock;
+                }
+                lockHolder.join();
+            }
+        } finally {
+            transaction.end();
+        }
+
+        Labels labels = Labels.Mutable.of(SamplingProfiler.LOCK_CLASS_LABEL, "java.lang.Object")
+            .transactionName("long-transaction")
+            .transactionType("request");
+        await()
+            .pollDelay(10, TimeUnit.MILLISECONDS)
+            .timeout(5000, TimeUnit.MILLISECONDS)
+            .untilAsserted(() -> assertThat(getCounter(SamplingProfiler.LOCK_CONTENDED_METRIC, labels)).isPositive());
+    }
+
+    private long getCounter(String name, Labels labels) {
+        AtomicLong value = new AtomicLong();
+        // reporting flips between two metric sets which are not reset unless serialized
+        for (int i = 0; i < 2; i++) {
+            tracer.getMetricRegistry().report(metricSets -> {
+                MetricSet metricSet = metricSets.get(labels);
+                if (metricSet != null && metricSet.getCounters().get(name) != null) {
+                    value.addAndGet(metricSet.getCounters().get(name).get());
+                }
+            });
+        }
+        return value.get();
+    }
+
+    private static String readProfiles(File directory) throws IOException {
+        StringBuilder profiles = new StringBuilder();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertThat(file.getName()).startsWith("profile-").endsWith(".pb.gz");
+                try (InputStream is = new GZIPInputStream(new FileInputStream(file))) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    is.transferTo(bytes);
+                    profiles.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return profiles.toString();
+    }
+
     private void aInferred(Transaction transaction) throws Exception {
         Span span = transaction.createSpan().withName("bExplicit").withType("test");
         try (Scope spanScope = span.activateInScope()) {
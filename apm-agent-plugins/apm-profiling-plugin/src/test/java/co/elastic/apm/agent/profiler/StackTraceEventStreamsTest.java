@@ -0,0 +1,72 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StackTraceEventStreamsTest {
+
+    private final StackTraceEventStreams streams = new StackTraceEventStreams();
+
+    @Test
+    void testMergesThreadsInOrder() throws Exception {
+        streams.onCallTree(1, 10, 1);
+        streams.onCallTree(2, 20, 2);
+        streams.onCallTree(1, 11, 4);
+        streams.onCallTree(3, 30, 3);
+        // out of order within the same thread
+        streams.onCallTree(2, 22, 6);
+        streams.onCallTree(2, 21, 5);
+
+        assertThat(streams.size()).isEqualTo(6);
+        assertThat(consume()).containsExactly(10L, 20L, 30L, 11L, 21L, 22L);
+    }
+
+    @Test
+    void testReuseAfterReset() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            streams.onCallTree(i % 7, i, i);
+        }
+        assertThat(consume()).hasSize(1000).isSorted();
+
+        streams.resetState();
+        assertThat(streams.size()).isZero();
+        assertThat(consume()).isEmpty();
+
+        streams.onCallTree(42, 1, 1);
+        assertThat(consume()).containsExactly(1L);
+    }
+
+    private List<Long> consume() throws Exception {
+        List<Long> stackTraceIds = new ArrayList<>();
+        streams.consumeInOrder((threadId, stackTraceId, nanoTime) -> stackTraceIds.add(stackTraceId));
+        return stackTraceIds;
+    }
+}
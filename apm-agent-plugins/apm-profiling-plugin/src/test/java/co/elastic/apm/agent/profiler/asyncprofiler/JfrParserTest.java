@@ -68,4 +68,49 @@ class JfrParserTest {
         assertThat(stackTraces.get()).isEqualTo(97);
     }
 
+    @Test
+    void testStackFramesAreInternedAcrossFiles() throws Exception {
+        JfrParser jfrParser = new JfrParser(ByteBuffer.allocate(113), ByteBuffer.allocate(113));
+        URL url = getClass().getClassLoader().getResource("recording.jfr");
+        File file = new File(URLDecoder.decode(url.getPath(), StandardCharsets.UTF_8.name()));
+
+        List<StackFrame> firstParse = resolveAllStackFrames(jfrParser, file);
+        jfrParser.resetState();
+        List<StackFrame> secondParse = resolveAllStackFrames(jfrParser, file);
+
+        assertThat(firstParse).isNotEmpty();
+        assertThat(secondParse).hasSameSizeAs(firstParse);
+        for (int i = 0; i < firstParse.size(); i++) {
+            assertThat(secondParse.get(i)).isSameAs(firstParse.get(i));
+        }
+    }
+
+    @Test
+    void testResolveFullStackTraceRegardlessOfClassFilter() throws Exception {
+        JfrParser jfrParser = new JfrParser(ByteBuffer.allocate(113), ByteBuffer.allocate(113));
+        URL url = getClass().getClassLoader().getResource("recording.jfr");
+        File file = new File(URLDecoder.decode(url.getPath(), StandardCharsets.UTF_8.name()));
+
+        jfrParser.parse(file, List.of(), List.of(caseSensitiveMatcher("co.elastic.apm.*")));
+        List<StackFrame> filtered = new ArrayList<>();
+        List<StackFrame> full = new ArrayList<>();
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime) -> {
+            jfrParser.resolveStackTrace(stackTraceId, true, true, filtered, Integer.MAX_VALUE);
+            jfrParser.resolveStackTrace(stackTraceId, true, false, full, Integer.MAX_VALUE);
+        });
+
+        assertThat(filtered).isNotEmpty();
+        assertThat(filtered).allMatch(frame -> frame.getClassName().startsWith("co.elastic.apm."));
+        assertThat(full).hasSizeGreaterThan(filtered.size());
+        assertThat(full).anyMatch(frame -> !frame.getClassName().startsWith("co.elastic.apm."));
+        assertThat(full).containsAll(filtered);
+    }
+
+    private static List<StackFrame> resolveAllStackFrames(JfrParser jfrParser, File file) throws Exception {
+        jfrParser.parse(file, List.of(), List.of(caseSensitiveMatcher("co.elastic.apm.*")));
+        List<StackFrame> stackFrames = new ArrayList<>();
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime) -> jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, Integer.MAX_VALUE));
+        return stackFrames;
+    }
+
 }
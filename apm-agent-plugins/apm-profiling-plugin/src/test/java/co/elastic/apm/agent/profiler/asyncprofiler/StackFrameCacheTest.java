@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler.asyncprofiler;
+
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StackFrameCacheTest {
+
+    @Test
+    void testInternEqualContent() {
+        StackFrameCache cache = new StackFrameCache(16);
+        StackFrame frame = cache.intern(new StringBuilder("com.example.Foo"), new StringBuilder("bar"));
+
+        assertThat(frame.getClassName()).isEqualTo("com.example.Foo");
+        assertThat(frame.getMethodName()).isEqualTo("bar");
+        assertThat(cache.intern(new StringBuilder("com.example.Foo"), new StringBuilder("bar"))).isSameAs(frame);
+        assertThat(cache.intern("com.example.Foo", "baz")).isNotSameAs(frame);
+        assertThat(cache.intern("com.example.Fo", "obar")).isNotSameAs(frame);
+        assertThat(cache.size()).isEqualTo(3);
+    }
+
+    @Test
+    void testEvictsFramesWhichHaveNotBeenUsedRecently() {
+        StackFrameCache cache = new StackFrameCache(2);
+        StackFrame a = cache.intern("A", "a");
+        StackFrame b = cache.intern("B", "b");
+        // gives a a second chance
+        assertThat(cache.intern("A", "a")).isSameAs(a);
+
+        StackFrame c = cache.intern("C", "c");
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.intern("A", "a")).isSameAs(a);
+        assertThat(cache.intern("C", "c")).isSameAs(c);
+        StackFrame newB = cache.intern("B", "b");
+        assertThat(newB).isNotSameAs(b);
+        assertThat(newB).isEqualTo(b);
+    }
+
+    @Test
+    void testCollisions() {
+        StackFrameCache cache = new StackFrameCache(4);
+        // "Aa" and "BB" have the same hash code
+        StackFrame aa = cache.intern("Aa", "m");
+        StackFrame bb = cache.intern("BB", "m");
+
+        assertThat(cache.intern("Aa", "m")).isSameAs(aa);
+        assertThat(cache.intern("BB", "m")).isSameAs(bb);
+        for (int i = 0; i < 16; i++) {
+            cache.intern("C", Integer.toString(i));
+        }
+        assertThat(cache.size()).isEqualTo(4);
+        assertThat(cache.intern("Aa", "m")).isEqualTo(aa);
+        assertThat(cache.intern("BB", "m")).isEqualTo(bb);
+    }
+}
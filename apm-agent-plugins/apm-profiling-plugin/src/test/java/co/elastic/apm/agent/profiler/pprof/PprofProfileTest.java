@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler.pprof;
+
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PprofProfileTest {
+
+    private final PprofProfile profile = new PprofProfile();
+
+    @Test
+    void testWriteProfile() throws Exception {
+        profile.start("wall", 1000);
+        int stack = profile.internStack(List.of(StackFrame.of("com.example.Foo", "bar"), StackFrame.of("com.example.Main", "main")));
+        int labels = profile.internLabels("my-service", "GET /foo");
+        profile.addSample(stack, labels, 3, 10_000_000);
+
+        Message decoded = write(2000);
+
+        List<String> strings = decoded.strings(6);
+        assertThat(strings.get(0)).isEmpty();
+        assertThat(decoded.varint(9)).isEqualTo(1000 * 1_000_000L);
+        assertThat(decoded.varint(10)).isEqualTo(1000 * 1_000_000L);
+        assertThat(decoded.varint(12)).isEqualTo(10_000_000L);
+
+        List<Message> sampleTypes = decoded.messages(1);
+        assertThat(sampleTypes).hasSize(2);
+        assertThat(strings.get((int) sampleTypes.get(0).varint(1))).isEqualTo("samples");
+        assertThat(strings.get((int) sampleTypes.get(1).varint(1))).isEqualTo("wall");
+        assertThat(strings.get((int) sampleTypes.get(1).varint(2))).isEqualTo("nanoseconds");
+
+        List<Message> functions = decoded.messages(5);
+        assertThat(functions).hasSize(2);
+        assertThat(strings.get((int) functions.get(0).varint(2))).isEqualTo("com.example.Foo.bar");
+        assertThat(strings.get((int) functions.get(0).varint(4))).isEqualTo("Foo.java");
+        assertThat(decoded.messages(4)).hasSize(2);
+
+        List<Message> samples = decoded.messages(2);
+        assertThat(samples).hasSize(1);
+        Message sample = samples.get(0);
+        // leaf first
+        assertThat(sample.packed(1)).containsExactly(1L, 2L);
+        assertThat(sample.packed(2)).containsExactly(3L, 30_000_000L);
+        Map<String, String> sampleLabels = new HashMap<>();
+        for (Message label : sample.messages(3)) {
+            sampleLabels.put(strings.get((int) label.varint(1)), strings.get((int) label.varint(2)));
+        }
+        assertThat(sampleLabels)
+            .containsEntry(PprofProfile.LABEL_SERVICE_NAME, "my-service")
+            .containsEntry(PprofProfile.LABEL_TRANSACTION_NAME, "GET /foo");
+    }
+
+    @Test
+    void testAggregateSamplesOfSameStackAndLabels() throws Exception {
+        profile.start("cpu", 0);
+        int stack = profile.internStack(List.of(StackFrame.of("com.example.Foo", "bar")));
+        assertThat(profile.internStack(List.of(StackFrame.of("com.example.Foo", "bar")))).isEqualTo(stack);
+        int otherStack = profile.internStack(List.of(StackFrame.of("com.example.Foo", "baz"), StackFrame.of("com.example.Foo", "bar")));
+        int noLabels = profile.internLabels(null, null);
+        int serviceOnly = profile.internLabels("my-service", null);
+        assertThat(profile.internLabels("my-service", null)).isEqualTo(serviceOnly);
+
+        profile.addSample(stack, noLabels, 1, 1);
+        profile.addSample(stack, noLabels, 2, 1);
+        profile.addSample(stack, serviceOnly, 1, 1);
+        profile.addSample(otherStack, noLabels, 1, 1);
+
+        List<Message> samples = write(0).messages(2);
+        assertThat(samples).hasSize(3);
+        long totalSamples = 0;
+        for (Message sample : samples) {
+            totalSamples += sample.packed(2).get(0);
+            if (sample.packed(1).size() == 1 && sample.messages(3).isEmpty()) {
+                assertThat(sample.packed(2)).containsExactly(3L, 3L);
+            }
+        }
+        assertThat(totalSamples).isEqualTo(5);
+        // a function is only added once, even if it's part of multiple stacks
+        assertThat(write(0).messages(5)).hasSize(2);
+    }
+
+    @Test
+    void testReset() throws Exception {
+        profile.start("wall", 0);
+        profile.addSample(profile.internStack(List.of(StackFrame.of("com.example.Foo", "bar"))), profile.internLabels(null, null), 1, 1);
+        assertThat(profile.isEmpty()).isFalse();
+
+        profile.start("wall", 0);
+        assertThat(profile.isEmpty()).isTrue();
+        Message decoded = write(0);
+        assertThat(decoded.messages(2)).isEmpty();
+        assertThat(decoded.messages(5)).isEmpty();
+    }
+
+    private Message write(long endTimeMillis) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        profile.writeTo(os, endTimeMillis);
+        return Message.parse(os.toByteArray());
+    }
+
+    /**
+     * A minimal protobuf decoder which only supports varints and length-delimited fields
+     */
+    private static class Message {
+        private final Map<Integer, List<Object>> fields = new HashMap<>();
+        private final byte[] bytes;
+        private int pos;
+
+        private Message(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        static Message parse(byte[] bytes) {
+            Message message = new Message(bytes);
+            while (message.pos < bytes.length) {
+                long tag = message.readVarint();
+                int fieldNumber = (int) (tag >>> 3);
+                Object value;
+                if ((tag & 7) == 0) {
+                    value = message.readVarint();
+                } else {
+                    assertThat(tag & 7).isEqualTo(2);
+                    int length = (int) message.readVarint();
+                    byte[] content = new byte[length];
+                    System.arraycopy(bytes, message.pos, content, 0, length);
+                    message.pos += length;
+                    value = content;
+                }
+                message.fields.computeIfAbsent(fieldNumber, k -> new ArrayList<>()).add(value);
+            }
+            return message;
+        }
+
+        private long readVarint() {
+            long result = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+        }
+
+        long varint(int fieldNumber) {
+            return (Long) fields.get(fieldNumber).get(0);
+        }
+
+        List<Long> packed(int fieldNumber) {
+            Message packed = new Message((byte[]) fields.get(fieldNumber).get(0));
+            List<Long> values = new ArrayList<>();
+            while (packed.pos < packed.bytes.length) {
+                values.add(packed.readVarint());
+            }
+            return values;
+        }
+
+        List<Message> messages(int fieldNumber) {
+            List<Message> messages = new ArrayList<>();
+            for (Object value : fields.getOrDefault(fieldNumber, List.of())) {
+                messages.add(parse((byte[]) value));
+            }
+            return messages;
+        }
+
+        List<String> strings(int fieldNumber) {
+            List<String> strings = new ArrayList<>();
+            for (Object value : fields.get(fieldNumber)) {
+                strings.add(new String((byte[]) value, StandardCharsets.UTF_8));
+            }
+            return strings;
+        }
+    }
+}